@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.DataManager.WebsafeRows;
+import org.opendatakit.aggregate.odktables.exception.PermissionDeniedException;
+import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.aggregate.odktables.rest.entity.RowList;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome.OutcomeType;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.aggregate.odktables.security.TablesUserPermissions;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Measures row-page read throughput with N readers pulling one table while a
+ * single writer pushes batches of updates to it. Reads run either lock-free
+ * on a database snapshot (the DataManager read path) or, for comparison,
+ * wrapped in the exclusive table lock that writers hold.
+ *
+ * Not run as part of the integration tests. Run it explicitly with:
+ * mvn verify -pl postgres-test -Dit.test=DataManagerReadConcurrencyBenchmark
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class DataManagerReadConcurrencyBenchmark {
+
+  static final String TABLE_ID = "read_concurrency";
+  static final int[] READER_COUNTS = { 1, 4, 16 };
+  static final int ROW_COUNT = 500;
+  static final int PAGE_SIZE = 100;
+  static final int WRITE_BATCH = 10;
+  static final long RUN_MILLISECONDS = 5000L;
+
+  @Ignore
+  static class AllPermissions implements TablesUserPermissions {
+
+    @Override
+    public String getOdkTablesUserId() {
+      return "myid";
+    }
+
+    @Override
+    public void checkPermission(String appId, String tableId, TablePermission permission)
+        throws ODKDatastoreException, PermissionDeniedException {
+      return;
+    }
+
+    @Override
+    public boolean hasPermission(String appId, String tableId, TablePermission permission)
+        throws ODKDatastoreException {
+      return true;
+    }
+
+    @Override
+    public boolean hasFilterScope(String appId, String tableId, TablePermission permission,
+        String rowId, Scope filterScope) {
+      return true;
+    }
+  }
+
+  @Ignore
+  static class ReaderThread extends Thread {
+    final CyclicBarrier launchBarrier;
+    final AtomicBoolean done;
+    final DataManager dm;
+    final CallingContext cc;
+    final boolean useTableLock;
+
+    boolean failed = false;
+    int pages = 0;
+    long readNanos = 0L;
+
+    ReaderThread(CyclicBarrier launchBarrier, AtomicBoolean done, DataManager dm,
+        CallingContext cc, boolean useTableLock) {
+      this.launchBarrier = launchBarrier;
+      this.done = done;
+      this.dm = dm;
+      this.cc = cc;
+      this.useTableLock = useTableLock;
+    }
+
+    @Override
+    public void run() {
+      try {
+        launchBarrier.await();
+        while (!done.get()) {
+          long start = System.nanoTime();
+          OdkTablesLockTemplate lock = null;
+          if (useTableLock) {
+            lock = new OdkTablesLockTemplate(TABLE_ID,
+                ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+                OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+            lock.acquire();
+          }
+          try {
+            WebsafeRows page = dm.getRowsSince(null, null, PAGE_SIZE);
+            // a page is always full: rows are only updated, never deleted.
+            if (page.rows.size() != PAGE_SIZE || page.dataETag == null) {
+              System.out.println("Thread " + getId() + " read a short page: " + page.rows.size());
+              failed = true;
+            }
+          } finally {
+            if (lock != null) {
+              lock.release();
+            }
+          }
+          readNanos += System.nanoTime() - start;
+          ++pages;
+        }
+      } catch (Exception e) {
+        failed = true;
+        System.out.println("FAILED " + e.toString() + " Thread " + getId());
+      }
+    }
+  }
+
+  @Ignore
+  static class WriterThread extends Thread {
+    final CyclicBarrier launchBarrier;
+    final AtomicBoolean done;
+    final DataManager dm;
+    final TableManager tm;
+    final List<Row> rows;
+
+    boolean failed = false;
+    int batches = 0;
+
+    WriterThread(CyclicBarrier launchBarrier, AtomicBoolean done, DataManager dm,
+        TableManager tm, List<Row> rows) {
+      this.launchBarrier = launchBarrier;
+      this.done = done;
+      this.dm = dm;
+      this.tm = tm;
+      this.rows = rows;
+    }
+
+    @Override
+    public void run() {
+      try {
+        launchBarrier.await();
+        int offset = 0;
+        while (!done.get()) {
+          ArrayList<Row> updates = new ArrayList<Row>();
+          for (int i = 0; i < WRITE_BATCH; ++i) {
+            int idx = (offset + i) % rows.size();
+            Row r = rows.get(idx);
+            updates.add(Row.forUpdate(r.getRowId(), r.getRowETag(), T.form_id_2, T.locale_2,
+                SavepointTypeManipulator.complete(), T.savepoint_timestamp_2,
+                T.savepoint_creator_2, RowFilterScope.EMPTY_ROW_FILTER,
+                (batches % 2 == 0) ? T.Data.JOHN.getValues() : T.Data.DYLAN.getValues()));
+          }
+          String dataETag = tm.getTable(TABLE_ID).getDataETag();
+          RowOutcomeList outcomes = dm.insertOrUpdateRows(new RowList(updates, dataETag));
+          for (int i = 0; i < WRITE_BATCH; ++i) {
+            RowOutcome outcome = outcomes.getRows().get(i);
+            if (outcome.getOutcome() != OutcomeType.SUCCESS) {
+              failed = true;
+            }
+            rows.set((offset + i) % rows.size(), outcome);
+          }
+          offset = (offset + WRITE_BATCH) % rows.size();
+          ++batches;
+        }
+      } catch (Exception e) {
+        failed = true;
+        System.out.println("FAILED " + e.toString() + " writer");
+      }
+    }
+  }
+
+  private CallingContext cc;
+  private TablesUserPermissions userPermissions;
+  private TableManager tm;
+  private List<Row> rows;
+
+  @Before
+  public void setUp() throws Exception {
+    cc = TestContextFactory.getCallingContext();
+    userPermissions = new AllPermissions();
+    tm = new TableManager(T.appId, userPermissions, cc);
+    tm.createTable(TABLE_ID, T.columns);
+
+    DataManager dm = new DataManager(T.appId, TABLE_ID, userPermissions, cc);
+    ArrayList<Row> inserts = new ArrayList<Row>();
+    for (int i = 0; i < ROW_COUNT; ++i) {
+      inserts.add(Row.forInsert("reader_" + i, T.form_id_1, T.locale_1,
+          SavepointTypeManipulator.complete(), T.savepoint_timestamp_1, T.savepoint_creator_1,
+          RowFilterScope.EMPTY_ROW_FILTER, T.Data.DYLAN.getValues()));
+    }
+    String dataETag = tm.getTable(TABLE_ID).getDataETag();
+    RowOutcomeList outcomes = dm.insertOrUpdateRows(new RowList(inserts, dataETag));
+    assertEquals(ROW_COUNT, outcomes.getRows().size());
+    rows = new ArrayList<Row>(outcomes.getRows());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try {
+      tm.deleteTable(TABLE_ID);
+    } catch (ODKEntityNotFoundException e) {
+      // ignore
+    }
+  }
+
+  private void runReaders(String label, int readerCount, boolean useTableLock)
+      throws Exception {
+    AtomicBoolean done = new AtomicBoolean(false);
+    CyclicBarrier launchBarrier = new CyclicBarrier(readerCount + 2);
+    List<ReaderThread> readers = new ArrayList<ReaderThread>();
+    for (int i = 0; i < readerCount; ++i) {
+      ReaderThread t = new ReaderThread(launchBarrier, done,
+          new DataManager(T.appId, TABLE_ID, userPermissions, cc), cc, useTableLock);
+      t.start();
+      readers.add(t);
+    }
+    WriterThread writer = new WriterThread(launchBarrier, done,
+        new DataManager(T.appId, TABLE_ID, userPermissions, cc), tm, rows);
+    writer.start();
+
+    launchBarrier.await();
+    Thread.sleep(RUN_MILLISECONDS);
+    done.set(true);
+
+    int pages = 0;
+    long readNanos = 0L;
+    for (ReaderThread t : readers) {
+      t.join();
+      assertFalse(t.failed);
+      pages += t.pages;
+      readNanos += t.readNanos;
+    }
+    writer.join();
+    assertFalse(writer.failed);
+
+    double seconds = RUN_MILLISECONDS / 1000.0;
+    System.out.println(label + "\t" + readerCount + "\t"
+        + String.format("%.1f", pages / seconds) + "\t"
+        + String.format("%.2f", (readNanos / 1000000.0) / Math.max(1, pages)) + "\t"
+        + String.format("%.1f", writer.batches / seconds));
+  }
+
+  @Test
+  public void benchmarkReadersAndWriter() throws Exception {
+    System.out.println("reads\treaders\tpages/sec\tmean page (ms)\twrite batches/sec");
+    for (int readerCount : READER_COUNTS) {
+      runReaders("snapshot", readerCount, false);
+      runReaders("locked", readerCount, true);
+    }
+  }
+}
@@ -18,6 +18,8 @@ package org.opendatakit.aggregate.odktables;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
@@ -34,16 +36,24 @@ import org.opendatakit.aggregate.odktables.exception.BadColumnNameException;
 import org.opendatakit.aggregate.odktables.exception.ETagMismatchException;
 import org.opendatakit.aggregate.odktables.exception.InconsistentStateException;
 import org.opendatakit.aggregate.odktables.exception.PermissionDeniedException;
+import org.opendatakit.aggregate.odktables.exception.TableDataETagMismatchException;
 import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
+import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
 import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.Row;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.aggregate.odktables.rest.entity.RowList;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome.OutcomeType;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope;
 import org.opendatakit.aggregate.odktables.rest.entity.TableEntry;
+import org.opendatakit.aggregate.odktables.rest.entity.TableRole;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
 import org.opendatakit.aggregate.odktables.security.TablesUserPermissions;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
@@ -116,6 +126,17 @@ public class DataManagerTestIT {
     assertTrue(websafeResult.rows.isEmpty());
   }
 
+  @Test
+  public void testTableMetadataCacheHit() throws ODKDatastoreException, PermissionDeniedException,
+      InconsistentStateException, ODKTaskLockException, BadColumnNameException {
+    dm.getRows(null, 2000);
+    long hits = TableMetadataCache.getHitCount();
+    long misses = TableMetadataCache.getMissCount();
+    dm.getRows(null, 2000);
+    assertEquals(hits + 1, TableMetadataCache.getHitCount());
+    assertEquals(misses, TableMetadataCache.getMissCount());
+  }
+
   @Test
   public void testInsertRows() throws ODKEntityPersistException, ODKDatastoreException,
       ODKTaskLockException, BadColumnNameException, ETagMismatchException, PermissionDeniedException, InconsistentStateException {
@@ -155,6 +176,63 @@ public class DataManagerTestIT {
     }
   }
 
+  @Test
+  public void testInsertOrUpdateRowsBulk() throws ODKDatastoreException, ODKTaskLockException,
+      BadColumnNameException, PermissionDeniedException, InconsistentStateException,
+      TableDataETagMismatchException {
+    // more rows than fit in a single IN (...) lookup on SQL Server
+    int count = 2500;
+    ArrayList<Row> inserts = new ArrayList<Row>();
+    for (int i = 0; i < count; ++i) {
+      inserts.add(Row.forInsert("bulk_" + i, T.form_id_1, T.locale_1,
+          SavepointTypeManipulator.complete(), T.savepoint_timestamp_1, T.savepoint_creator_1,
+          RowFilterScope.EMPTY_ROW_FILTER, T.Data.DYLAN.getValues()));
+    }
+    String dataETag = tm.getTable(T.tableId).getDataETag();
+    RowOutcomeList inserted = dm.insertOrUpdateRows(new RowList(inserts, dataETag));
+    assertEquals(count, inserted.getRows().size());
+
+    ArrayList<Row> updates = new ArrayList<Row>();
+    for (RowOutcome outcome : inserted.getRows()) {
+      assertEquals(OutcomeType.SUCCESS, outcome.getOutcome());
+      updates.add(Row.forUpdate(outcome.getRowId(), outcome.getRowETag(), T.form_id_2,
+          T.locale_2, SavepointTypeManipulator.complete(), T.savepoint_timestamp_2,
+          T.savepoint_creator_2, RowFilterScope.EMPTY_ROW_FILTER, T.Data.JOHN.getValues()));
+    }
+    RowOutcomeList updated = dm.insertOrUpdateRows(new RowList(updates,
+        inserted.getDataETag()));
+    assertEquals(count, updated.getRows().size());
+    for (int i = 0; i < count; ++i) {
+      RowOutcome outcome = updated.getRows().get(i);
+      assertEquals(OutcomeType.SUCCESS, outcome.getOutcome());
+      assertEquals(updates.get(i).getRowId(), outcome.getRowId());
+      assertFalse(updates.get(i).getRowETag().equals(outcome.getRowETag()));
+      assertEquals(T.Data.JOHN.getValues(), outcome.getValues());
+    }
+  }
+
+  @Test
+  public void testChangeSetsHighWaterMark() throws ODKDatastoreException, ODKTaskLockException,
+      BadColumnNameException, ETagMismatchException, PermissionDeniedException,
+      InconsistentStateException {
+    dm.insertOrUpdateRow(rows.get(0));
+    ChangeSetList first = dm.getChangeSetsSince(null, null);
+    assertTrue(first.getChangeSets().contains(first.getDataETag()));
+
+    // reading does not advance the sequence
+    ChangeSetList again = dm.getChangeSetsSince(null, null);
+    assertEquals(first.getSequenceValue(), again.getSequenceValue());
+    ChangeSetList none = dm.getChangeSetsSince(null, first.getSequenceValue());
+    assertTrue(none.getChangeSets() == null || none.getChangeSets().isEmpty());
+
+    // later changes compare greater than the mark
+    dm.insertOrUpdateRow(rows.get(1));
+    ChangeSetList next = dm.getChangeSetsSince(null, first.getSequenceValue());
+    assertEquals(1, next.getChangeSets().size());
+    assertEquals(next.getDataETag(), next.getChangeSets().get(0));
+    assertTrue(next.getSequenceValue().compareTo(first.getSequenceValue()) > 0);
+  }
+
   @Test
   public void testGetRows() throws ODKDatastoreException, ODKTaskLockException,
       BadColumnNameException, ETagMismatchException, PermissionDeniedException, InconsistentStateException {
@@ -398,6 +476,121 @@ public class DataManagerTestIT {
     Util.assertCollectionSameElements(expected.values(), actual);
   }
 
+  @Test
+  public void testGetRowsSinceActiveOnly() throws ODKEntityPersistException, ODKDatastoreException,
+      ODKTaskLockException, ETagMismatchException, BadColumnNameException, PermissionDeniedException, InconsistentStateException {
+    TableEntry entry = tm.getTableNullSafe(T.tableId);
+    String beginETag = entry.getDataETag();
+    Map<String, Row> expected = new HashMap<String, Row>();
+    for ( Row r : rows ) {
+      Row change = dm.insertOrUpdateRow(r);
+      expected.put(change.getRowId(), change);
+    }
+
+    // revise the first row several times
+    Row row = expected.get(rows.get(0).getRowId());
+    for ( int i = 0 ; i < 3 ; ++i ) {
+      Map<String,String> evalues = Row.convertToMap(row.getValues());
+      evalues.put(T.Columns.column_age.getElementKey(), Integer.toString(100 + i));
+      row.setValues(Row.convertFromMap(evalues));
+      row = dm.insertOrUpdateRow(row);
+    }
+    expected.put(row.getRowId(), row);
+
+    // one row per page, so the superseded revisions span several log pages
+    List<Row> actual = new ArrayList<Row>();
+    QueryResumePoint cursor = null;
+    WebsafeRows websafeRows;
+    do {
+      websafeRows = dm.getRowsSince(beginETag, true, cursor, 1);
+      assertTrue(websafeRows.rows.size() <= 1);
+      actual.addAll(websafeRows.rows);
+      cursor = QueryResumePoint.fromWebsafeCursor(websafeRows.websafeResumeCursor);
+    } while ( websafeRows.hasMore );
+
+    Util.assertCollectionSameElements(expected.values(), actual);
+  }
+
+  @Test
+  public void testGetRowsSinceActiveOnlyBoundsLogScan() throws ODKEntityPersistException, ODKDatastoreException,
+      ODKTaskLockException, ETagMismatchException, BadColumnNameException, PermissionDeniedException, InconsistentStateException {
+    TableEntry entry = tm.getTableNullSafe(T.tableId);
+    String beginETag = entry.getDataETag();
+    Map<String, Row> expected = new HashMap<String, Row>();
+    for ( Row r : rows ) {
+      Row change = dm.insertOrUpdateRow(r);
+      expected.put(change.getRowId(), change);
+    }
+
+    // a run of superseded revisions longer than one request may scan
+    Row row = expected.get(rows.get(0).getRowId());
+    for ( int i = 0 ; i < DataManager.MAX_LOG_PAGES_PER_REQUEST + 2 ; ++i ) {
+      Map<String,String> evalues = Row.convertToMap(row.getValues());
+      evalues.put(T.Columns.column_age.getElementKey(), Integer.toString(100 + i));
+      row.setValues(Row.convertFromMap(evalues));
+      row = dm.insertOrUpdateRow(row);
+    }
+    expected.put(row.getRowId(), row);
+
+    List<Row> actual = new ArrayList<Row>();
+    QueryResumePoint cursor = null;
+    WebsafeRows websafeRows;
+    boolean sawEmptyPage = false;
+    do {
+      websafeRows = dm.getRowsSince(beginETag, true, cursor, 1);
+      if ( websafeRows.rows.isEmpty() && websafeRows.hasMore ) {
+        sawEmptyPage = true;
+      }
+      actual.addAll(websafeRows.rows);
+      cursor = QueryResumePoint.fromWebsafeCursor(websafeRows.websafeResumeCursor);
+    } while ( websafeRows.hasMore );
+
+    // the scan stopped within the run and the client resumed from its cursor
+    assertTrue(sawEmptyPage);
+    Util.assertCollectionSameElements(expected.values(), actual);
+  }
+
+  @Test
+  public void testGetRowsSinceNotModifiedCheck() throws ODKEntityPersistException, ODKDatastoreException,
+      ODKTaskLockException, ETagMismatchException, BadColumnNameException, PermissionDeniedException, InconsistentStateException {
+    for ( Row r : rows ) {
+      dm.insertOrUpdateRow(r);
+    }
+    String currentDataETag = tm.getTableNullSafe(T.tableId).getDataETag();
+
+    final List<String> seen = new ArrayList<String>();
+    WebsafeRows websafeRows = dm.getRowsSince(null, false, null, 2000, new DataManager.NotModifiedCheck() {
+      @Override
+      public boolean isNotModified(String dataETag, String aclETag) {
+        seen.add(dataETag);
+        seen.add(aclETag);
+        return true;
+      }
+    });
+    assertTrue(websafeRows.notModified);
+    assertNull(websafeRows.rows);
+    assertEquals(currentDataETag, websafeRows.dataETag);
+    assertEquals(currentDataETag, seen.get(0));
+    assertNotNull(seen.get(1));
+    assertEquals(seen.get(1), websafeRows.aclETag);
+
+    websafeRows = dm.getRowsSince(null, false, null, 2000, new DataManager.NotModifiedCheck() {
+      @Override
+      public boolean isNotModified(String dataETag, String aclETag) {
+        return false;
+      }
+    });
+    assertFalse(websafeRows.notModified);
+    assertEquals(rows.size(), websafeRows.rows.size());
+    assertEquals(seen.get(1), websafeRows.aclETag);
+
+    // changing the acls changes the acl ETag
+    TableAclManager am = new TableAclManager(T.appId, T.tableId, userPermissions, cc);
+    am.setAcl(new Scope(Scope.Type.USER, "someone"), TableRole.FILTERED_READER);
+    websafeRows = dm.getRowsSince(null, false, null, 2000, null);
+    assertFalse(seen.get(1).equals(websafeRows.aclETag));
+  }
+
 //  @Test
 //  public void testGetRowsSinceByScope() throws ODKEntityPersistException, ETagMismatchException,
 //      BadColumnNameException, ODKDatastoreException, ODKTaskLockException, PermissionDeniedException {
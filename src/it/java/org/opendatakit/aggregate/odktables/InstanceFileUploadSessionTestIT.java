@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.aggregate.odktables.exception.FileNotFoundException;
+import org.opendatakit.aggregate.odktables.exception.InstanceFileModificationException;
+import org.opendatakit.aggregate.odktables.exception.PermissionDeniedException;
+import org.opendatakit.aggregate.odktables.exception.UploadOffsetMismatchException;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.aggregate.odktables.security.TablesUserPermissions;
+import org.opendatakit.common.datamodel.BinaryContentManipulator;
+import org.opendatakit.common.datamodel.ContentAddressedStore;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+public class InstanceFileUploadSessionTestIT {
+
+  private static final String ROW_ID = "uuid:upload-session-row";
+  private static final String PATH = "media/video.mp4";
+  private static final String CONTENT_TYPE = "video/mp4";
+
+  private CallingContext cc;
+  private TablesUserPermissions userPermissions;
+  private String tableId;
+  private TableManager tm;
+  private InstanceFileManager fm;
+  private byte[] content;
+
+  private class MockCurrentUserPermissions implements TablesUserPermissions {
+
+    @Override
+    public String getOdkTablesUserId() {
+      return "myid";
+    }
+
+    @Override
+    public void checkPermission(String appId, String tableId, TablePermission permission)
+        throws ODKDatastoreException, PermissionDeniedException {
+      return;
+    }
+
+    @Override
+    public boolean hasPermission(String appId, String tableId, TablePermission permission)
+        throws ODKDatastoreException {
+      return true;
+    }
+
+    @Override
+    public boolean hasFilterScope(String appId, String tableId, TablePermission permission, String rowId, Scope filterScope) {
+      return true;
+    }
+
+  }
+
+  /**
+   * Delivers the first count bytes of the content, then fails as a dropped
+   * connection would.
+   */
+  private static class DroppedConnectionInputStream extends InputStream {
+    private final InputStream in;
+    private int remaining;
+
+    DroppedConnectionInputStream(byte[] content, int count) {
+      this.in = new ByteArrayInputStream(content);
+      this.remaining = count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) {
+        throw new IOException("connection reset");
+      }
+      int n = in.read(b, off, Math.min(len, remaining));
+      remaining -= n;
+      return n;
+    }
+  }
+
+  private static String md5HashUri(byte[] value) throws Exception {
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    md.update(value);
+    return CommonFieldsBase.newMD5HashUri(md);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int len;
+    while ((len = in.read(buf)) >= 0) {
+      out.write(buf, 0, len);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    this.cc = TestContextFactory.getCallingContext();
+
+    userPermissions = new MockCurrentUserPermissions();
+
+    this.tableId = T.tableId;
+    this.tm = new TableManager(T.appId, userPermissions, cc);
+    tm.createTable(tableId, T.columns);
+
+    this.fm = new InstanceFileManager(T.appId, cc);
+
+    // spans several staged parts
+    content = new byte[2 * BinaryContentManipulator.STREAM_PART_SIZE + 12345];
+    new Random(25).nextBytes(content);
+  }
+
+  @After
+  public void tearDown() throws ODKDatastoreException, ODKTaskLockException, PermissionDeniedException {
+    try {
+      tm.deleteTable(tableId);
+    } catch (ODKEntityNotFoundException e) {
+      // ignore
+    }
+  }
+
+  @Test
+  public void testResumeAfterDroppedConnection() throws Exception {
+    String sessionId = fm.createUploadSession(tableId, ROW_ID, PATH, CONTENT_TYPE,
+        (long) content.length, userPermissions);
+    assertEquals(0L, fm.getUploadOffset(tableId, ROW_ID, sessionId, userPermissions));
+
+    int dropAt = BinaryContentManipulator.STREAM_PART_SIZE + 1000;
+    try {
+      fm.appendToUploadSession(tableId, ROW_ID, sessionId, 0L,
+          new DroppedConnectionInputStream(content, dropAt), userPermissions);
+      fail("expected IOException");
+    } catch (IOException e) {
+      // expected
+    }
+    // everything received before the connection dropped is kept
+    long offset = fm.getUploadOffset(tableId, ROW_ID, sessionId, userPermissions);
+    assertEquals(dropAt, offset);
+
+    try {
+      fm.appendToUploadSession(tableId, ROW_ID, sessionId, 0L,
+          new ByteArrayInputStream(content), userPermissions);
+      fail("expected UploadOffsetMismatchException");
+    } catch (UploadOffsetMismatchException e) {
+      assertEquals(offset, e.getCommittedOffset());
+    }
+
+    assertEquals(content.length, fm.appendToUploadSession(tableId, ROW_ID, sessionId, offset,
+        new ByteArrayInputStream(Arrays.copyOfRange(content, (int) offset, content.length)),
+        userPermissions));
+
+    assertEquals(InstanceFileChangeDetail.FILE_PRESENT,
+        fm.finishUploadSession(tableId, ROW_ID, sessionId, md5HashUri(content), userPermissions));
+
+    FileContentInfo fi = fm.getFile(tableId, ROW_ID, PATH, userPermissions);
+    assertEquals(CONTENT_TYPE, fi.contentType);
+    assertEquals(md5HashUri(content), fi.contentHash);
+    assertArrayEquals(content, readAll(fi.fileStream));
+
+    // the session is gone
+    try {
+      fm.getUploadOffset(tableId, ROW_ID, sessionId, userPermissions);
+      fail("expected FileNotFoundException");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testIncompleteUploadCanBeResumed() throws Exception {
+    String sessionId = fm.createUploadSession(tableId, ROW_ID, PATH, CONTENT_TYPE,
+        (long) content.length, userPermissions);
+    fm.appendToUploadSession(tableId, ROW_ID, sessionId, 0L,
+        new ByteArrayInputStream(content, 0, 100), userPermissions);
+    try {
+      fm.finishUploadSession(tableId, ROW_ID, sessionId, md5HashUri(content), userPermissions);
+      fail("expected InstanceFileModificationException");
+    } catch (InstanceFileModificationException e) {
+      // expected
+    }
+    assertEquals(100L, fm.getUploadOffset(tableId, ROW_ID, sessionId, userPermissions));
+    fm.cancelUploadSession(tableId, ROW_ID, sessionId, userPermissions);
+  }
+
+  @Test
+  public void testHashMismatchKeepsUpload() throws Exception {
+    String sessionId = fm.createUploadSession(tableId, ROW_ID, PATH, CONTENT_TYPE, null,
+        userPermissions);
+    fm.appendToUploadSession(tableId, ROW_ID, sessionId, 0L, new ByteArrayInputStream(content),
+        userPermissions);
+    byte[] other = content.clone();
+    other[0] ^= 1;
+    try {
+      fm.finishUploadSession(tableId, ROW_ID, sessionId, md5HashUri(other), userPermissions);
+      fail("expected InstanceFileModificationException");
+    } catch (InstanceFileModificationException e) {
+      // expected
+    }
+    assertEquals(null, fm.getFile(tableId, ROW_ID, PATH, userPermissions));
+    assertEquals(content.length, fm.getUploadOffset(tableId, ROW_ID, sessionId, userPermissions));
+
+    fm.cancelUploadSession(tableId, ROW_ID, sessionId, userPermissions);
+    try {
+      fm.getUploadOffset(tableId, ROW_ID, sessionId, userPermissions);
+      fail("expected FileNotFoundException");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testTruncatedFinalPieceCanBeResumed() throws Exception {
+    // no declared length, so finishing early is only caught by the hash
+    String sessionId = fm.createUploadSession(tableId, ROW_ID, PATH, CONTENT_TYPE, null,
+        userPermissions);
+    int cutAt = content.length - 500;
+    assertEquals(cutAt, fm.appendToUploadSession(tableId, ROW_ID, sessionId, 0L,
+        new ByteArrayInputStream(content, 0, cutAt), userPermissions));
+    try {
+      fm.finishUploadSession(tableId, ROW_ID, sessionId, md5HashUri(content), userPermissions);
+      fail("expected InstanceFileModificationException");
+    } catch (InstanceFileModificationException e) {
+      // expected
+    }
+    assertEquals(cutAt, fm.getUploadOffset(tableId, ROW_ID, sessionId, userPermissions));
+
+    assertEquals(content.length, fm.appendToUploadSession(tableId, ROW_ID, sessionId, cutAt,
+        new ByteArrayInputStream(Arrays.copyOfRange(content, cutAt, content.length)),
+        userPermissions));
+    assertEquals(InstanceFileChangeDetail.FILE_PRESENT,
+        fm.finishUploadSession(tableId, ROW_ID, sessionId, md5HashUri(content), userPermissions));
+    assertArrayEquals(content, readAll(fm.getFile(tableId, ROW_ID, PATH, userPermissions).fileStream));
+
+    // the same content at another path is stored once more as a reference
+    String otherPath = "media/copy.mp4";
+    sessionId = fm.createUploadSession(tableId, ROW_ID, otherPath, CONTENT_TYPE,
+        (long) content.length, userPermissions);
+    fm.appendToUploadSession(tableId, ROW_ID, sessionId, 0L, new ByteArrayInputStream(content),
+        userPermissions);
+    assertEquals(InstanceFileChangeDetail.FILE_PRESENT,
+        fm.finishUploadSession(tableId, ROW_ID, sessionId, md5HashUri(content), userPermissions));
+    assertEquals(2L, ContentAddressedStore.getInstance(cc).getReferenceCount(
+        ContentAddressedStore.newContentKey(MessageDigest.getInstance("SHA-256").digest(content),
+            content.length), cc));
+
+    // and finishing again is refused
+    try {
+      fm.finishUploadSession(tableId, ROW_ID, sessionId, md5HashUri(content), userPermissions);
+      fail("expected FileNotFoundException");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testIdleSessionsAreDiscarded() throws Exception {
+    // start from no sessions at all
+    InstanceFileManager.deleteIdleUploadSessions(new Date(System.currentTimeMillis() + 60000L),
+        cc);
+
+    String sessionId = fm.createUploadSession(tableId, ROW_ID, PATH, CONTENT_TYPE,
+        (long) content.length, userPermissions);
+    fm.appendToUploadSession(tableId, ROW_ID, sessionId, 0L,
+        new ByteArrayInputStream(content, 0, 1000), userPermissions);
+
+    // not yet idle
+    assertEquals(0, InstanceFileManager.deleteIdleUploadSessions(
+        new Date(System.currentTimeMillis() - 60000L), cc));
+    assertEquals(1000L, fm.getUploadOffset(tableId, ROW_ID, sessionId, userPermissions));
+
+    // idle: the session and the content it received are discarded
+    assertEquals(1, InstanceFileManager.deleteIdleUploadSessions(
+        new Date(System.currentTimeMillis() + 60000L), cc));
+    try {
+      fm.getUploadOffset(tableId, ROW_ID, sessionId, userPermissions);
+      fail("expected FileNotFoundException");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+    assertEquals(0, readAll(ContentAddressedStore.getInstance(cc).getStagedContent(sessionId, cc))
+        .length);
+  }
+
+  @Test
+  public void testCommittedPartsAreNotDiscardedAsStaged() throws Exception {
+    String sessionId = fm.createUploadSession(tableId, ROW_ID, PATH, CONTENT_TYPE,
+        (long) content.length, userPermissions);
+    fm.appendToUploadSession(tableId, ROW_ID, sessionId, 0L, new ByteArrayInputStream(content),
+        userPermissions);
+    assertEquals(InstanceFileChangeDetail.FILE_PRESENT,
+        fm.finishUploadSession(tableId, ROW_ID, sessionId, md5HashUri(content), userPermissions));
+
+    // as if the session had outlived the commit of its parts
+    ContentAddressedStore.getInstance(cc).deleteStagedParts(sessionId, cc);
+    assertArrayEquals(content, readAll(fm.getFile(tableId, ROW_ID, PATH, userPermissions).fileStream));
+  }
+
+  @Test
+  public void testStreamedPutFileReleasesUnusedContent() throws Exception {
+    ContentAddressedStore store = ContentAddressedStore.getInstance(cc);
+    String contentKey = ContentAddressedStore.newContentKey(
+        MessageDigest.getInstance("SHA-256").digest(content), content.length);
+
+    assertEquals(InstanceFileChangeDetail.FILE_PRESENT, fm.putFile(tableId, ROW_ID,
+        new FileContentInfo(PATH, CONTENT_TYPE, null, null, new ByteArrayInputStream(content)),
+        userPermissions));
+    assertEquals(1L, store.getReferenceCount(contentKey, cc));
+
+    // the same content again is staged, found unchanged and released
+    assertEquals(InstanceFileChangeDetail.FILE_PRESENT, fm.putFile(tableId, ROW_ID,
+        new FileContentInfo(PATH, CONTENT_TYPE, null, null, new ByteArrayInputStream(content)),
+        userPermissions));
+    assertEquals(1L, store.getReferenceCount(contentKey, cc));
+
+    // different content at the same path is refused and released
+    byte[] other = content.clone();
+    other[0] ^= 1;
+    assertEquals(InstanceFileChangeDetail.FILE_INCOMPATIBLE, fm.putFile(tableId, ROW_ID,
+        new FileContentInfo(PATH, CONTENT_TYPE, null, null, new ByteArrayInputStream(other)),
+        userPermissions));
+    assertEquals(0L, store.getReferenceCount(ContentAddressedStore.newContentKey(
+        MessageDigest.getInstance("SHA-256").digest(other), other.length), cc));
+    assertArrayEquals(content, readAll(fm.getFile(tableId, ROW_ID, PATH, userPermissions).fileStream));
+  }
+
+  @Test
+  public void testDeclaredLengthIsEnforced() throws Exception {
+    String sessionId = fm.createUploadSession(tableId, ROW_ID, PATH, CONTENT_TYPE, 10L,
+        userPermissions);
+    try {
+      fm.appendToUploadSession(tableId, ROW_ID, sessionId, 0L,
+          new ByteArrayInputStream(content, 0, 11), userPermissions);
+      fail("expected InstanceFileModificationException");
+    } catch (InstanceFileModificationException e) {
+      // expected
+    }
+    assertEquals(0L, fm.getUploadOffset(tableId, ROW_ID, sessionId, userPermissions));
+    fm.cancelUploadSession(tableId, ROW_ID, sessionId, userPermissions);
+  }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.TableMetadataCache.TableMetadata;
+import org.opendatakit.aggregate.odktables.exception.PermissionDeniedException;
+import org.opendatakit.aggregate.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+import org.opendatakit.aggregate.odktables.relation.DbTable;
+import org.opendatakit.aggregate.odktables.relation.EntityConverter;
+import org.opendatakit.aggregate.odktables.relation.EntityCreator;
+import org.opendatakit.aggregate.odktables.relation.RowCodec;
+import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.aggregate.odktables.rest.entity.TableEntry;
+import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
+import org.opendatakit.aggregate.odktables.security.TablesUserPermissions;
+import org.opendatakit.common.ermodel.Entity;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Compares converting the values of a 100-column row into a DbTable entity
+ * and back through the RowCodec against the per-value column search and
+ * getAsString/setAsString by name that EntityCreator and EntityConverter
+ * used before. Nothing is written to the database after the table is
+ * created.
+ *
+ * Not run as part of the integration tests. Run it explicitly with:
+ * mvn verify -pl postgres-test -Dit.test=RowCodecBenchmark
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class RowCodecBenchmark {
+
+  static final String TABLE_ID = "row_codec_benchmark";
+  static final int COLUMN_COUNT = 100;
+  static final int ROWS = 2000;
+  static final int REPETITIONS = 10;
+
+  static final String[] TYPES = { "string", "integer", "number", "boolean" };
+
+  @Ignore
+  static class AllPermissions implements TablesUserPermissions {
+
+    @Override
+    public String getOdkTablesUserId() {
+      return "myid";
+    }
+
+    @Override
+    public void checkPermission(String appId, String tableId, TablePermission permission)
+        throws ODKDatastoreException, PermissionDeniedException {
+      return;
+    }
+
+    @Override
+    public boolean hasPermission(String appId, String tableId, TablePermission permission)
+        throws ODKDatastoreException {
+      return true;
+    }
+
+    @Override
+    public boolean hasFilterScope(String appId, String tableId, TablePermission permission,
+        String rowId, Scope filterScope) {
+      return true;
+    }
+  }
+
+  private CallingContext cc;
+  private TableManager tm;
+  private TableMetadata metadata;
+  private ArrayList<DataKeyValue> values;
+
+  @Before
+  public void setUp() throws Exception {
+    cc = TestContextFactory.getCallingContext();
+    tm = new TableManager(T.appId, new AllPermissions(), cc);
+    List<Column> columns = new ArrayList<Column>();
+    values = new ArrayList<DataKeyValue>();
+    for (int i = 0; i < COLUMN_COUNT; ++i) {
+      String type = TYPES[i % TYPES.length];
+      String elementKey = "col_" + i;
+      columns.add(new Column(elementKey, elementKey, type, null));
+      String value;
+      if (type.equals("integer")) {
+        value = Integer.toString(i * 1000);
+      } else if (type.equals("number")) {
+        value = Double.toString(i + 0.25);
+      } else if (type.equals("boolean")) {
+        value = Boolean.toString(i % 2 == 0);
+      } else {
+        value = "value of column " + i;
+      }
+      values.add(new DataKeyValue(elementKey, value));
+    }
+    TableEntry entry = tm.createTable(TABLE_ID, columns);
+    metadata = TableMetadataCache.get(TABLE_ID, entry.getSchemaETag(), cc);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try {
+      tm.deleteTable(TABLE_ID);
+    } catch (ODKEntityNotFoundException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * What EntityCreator.setRowFields and EntityConverter.getRowValues did for
+   * the user-defined columns before the RowCodec.
+   */
+  private static ArrayList<DataKeyValue> legacyRoundTrip(Entity row,
+      List<DataKeyValue> values, List<DbColumnDefinitionsEntity> columns) {
+    for (DataKeyValue kv : values) {
+      DbColumnDefinitionsEntity column = null;
+      for (DbColumnDefinitionsEntity c : columns) {
+        if (kv.column.equals(c.getElementKey())) {
+          column = c;
+          break;
+        }
+      }
+      if (column != null && column.isUnitOfRetention()) {
+        row.setAsString(column.getElementKey().toUpperCase(), kv.value);
+      }
+    }
+    ArrayList<DataKeyValue> out = new ArrayList<DataKeyValue>();
+    for (DbColumnDefinitionsEntity column : columns) {
+      if (column.isUnitOfRetention()) {
+        String name = column.getElementKey();
+        out.add(new DataKeyValue(name, row.getAsString(name.toUpperCase())));
+      }
+    }
+    return out;
+  }
+
+  private double timeLegacy(DbTable table) {
+    List<DbColumnDefinitionsEntity> columns = metadata.getColumns();
+    long start = System.nanoTime();
+    for (int i = 0; i < ROWS; ++i) {
+      Entity row = table.newEntity("uuid:legacy-" + i, cc);
+      assertEquals(COLUMN_COUNT, legacyRoundTrip(row, values, columns).size());
+    }
+    return (System.nanoTime() - start) / 1000000.0;
+  }
+
+  private double timeCodec(DbTable table) throws Exception {
+    RowCodec codec = metadata.getRowCodec();
+    EntityCreator creator = new EntityCreator();
+    EntityConverter converter = new EntityConverter();
+    long start = System.nanoTime();
+    for (int i = 0; i < ROWS; ++i) {
+      Entity row = table.newEntity("uuid:codec-" + i, cc);
+      creator.setRowFields(row, "rowETag", "dataETag", "user", false,
+          RowFilterScope.EMPTY_ROW_FILTER, T.form_id_1, T.locale_1,
+          SavepointTypeManipulator.complete(), T.savepoint_timestamp_1, T.savepoint_creator_1,
+          values, codec);
+      Row out = converter.toRow(row, codec);
+      assertEquals(COLUMN_COUNT, out.getValues().size());
+    }
+    return (System.nanoTime() - start) / 1000000.0;
+  }
+
+  @Test
+  public void benchmarkRowConversion() throws Exception {
+    DbTable table = metadata.getTable();
+
+    // same values either way
+    Entity row = table.newEntity("uuid:check", cc);
+    ArrayList<DataKeyValue> expected = legacyRoundTrip(row, values, metadata.getColumns());
+    assertEquals(expected, metadata.getRowCodec().getTableValues(row));
+
+    // warm up
+    timeLegacy(table);
+    timeCodec(table);
+
+    double legacy = 0.0;
+    double codec = 0.0;
+    for (int i = 0; i < REPETITIONS; ++i) {
+      legacy += timeLegacy(table);
+      codec += timeCodec(table);
+    }
+    System.out.println("columns\trows\tlegacy (ms)\tcodec (ms)");
+    System.out.println(COLUMN_COUNT + "\t" + ROWS + "\t"
+        + String.format("%.2f", legacy / REPETITIONS) + "\t"
+        + String.format("%.2f", codec / REPETITIONS));
+  }
+}
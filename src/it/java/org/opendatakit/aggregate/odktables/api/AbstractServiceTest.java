@@ -195,9 +195,9 @@ public abstract class AbstractServiceTest {
       HttpStatus status = resp.getStatusCode();
       String body = readInput(resp.getBody());
       if (status.value() / 100 == 4)
-        throw new HttpClientErrorException(status, body);
+        throw new HttpClientErrorException(status, body, resp.getHeaders(), null, null);
       else if (status.value() / 100 == 5)
-        throw new HttpServerErrorException(status, body);
+        throw new HttpServerErrorException(status, body, resp.getHeaders(), null, null);
     }
 
     @Override
@@ -0,0 +1,110 @@
+package org.opendatakit.aggregate.odktables.api;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.impl.api.BulkSyncProcessor;
+import org.opendatakit.aggregate.odktables.rest.entity.*;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+@RunWith(org.junit.runners.JUnit4.class)
+public class BulkSyncServiceTestIT extends AbstractServiceTest {
+
+  private static final int FETCH_LIMIT = 100;
+
+  private TableResource resource;
+
+  @Before
+  public void setUp() throws Exception, Throwable {
+    super.abstractServiceSetUp();
+    resource = super.createTable();
+  }
+
+  private String getRowsSinceETag() {
+    String uri = resource.getDiffUri() + "?" + TableService.FETCH_LIMIT + "=" + FETCH_LIMIT;
+    ResponseEntity<RowResourceList> resp = rt.exchange(uri, HttpMethod.GET, null,
+        RowResourceList.class);
+    assertEquals(HttpStatus.OK, resp.getStatusCode());
+    String eTag = resp.getHeaders().getETag();
+    assertNotNull(eTag);
+    return eTag;
+  }
+
+  @Test
+  public void testMixedResults() throws Throwable {
+    // the rows ETag of the table, read from the beginning
+    String eTag = getRowsSinceETag();
+
+    ArrayList<TableSyncRequest> tables = new ArrayList<TableSyncRequest>();
+    // unchanged since eTag
+    tables.add(new TableSyncRequest(T.tableId, resource.getSchemaETag(), null, null));
+    // the same table from an unknown dataETag has a different rows ETag
+    tables.add(new TableSyncRequest(T.tableId, resource.getSchemaETag(), "uuid:not-a-data-etag",
+        null));
+    // no such table
+    tables.add(new TableSyncRequest("no_such_table", "uuid:no-such-schema", null, null));
+    // no schemaETag
+    tables.add(new TableSyncRequest(T.tableId, null, null, null));
+
+    HttpHeaders headers = new HttpHeaders();
+    headers.putAll(reqHeaders);
+    headers.setIfNoneMatch(eTag);
+    HttpEntity<TableSyncRequestList> entity = new HttpEntity<TableSyncRequestList>(
+        new TableSyncRequestList(tables, FETCH_LIMIT), headers);
+
+    ResponseEntity<TableSyncResultList> resp = rt.exchange(resolveUri("bulkSync"),
+        HttpMethod.POST, entity, TableSyncResultList.class);
+    assertEquals(HttpStatus.OK, resp.getStatusCode());
+    ArrayList<TableSyncResult> results = resp.getBody().getTables();
+    assertEquals(tables.size(), results.size());
+
+    // results are in the order requested
+    TableSyncResult notModified = results.get(0);
+    assertEquals(T.tableId, notModified.getTableId());
+    assertEquals(HttpStatus.NOT_MODIFIED.value(), notModified.getStatus());
+    assertNull(notModified.getRows());
+    assertNull(notModified.getError());
+
+    TableSyncResult ok = results.get(1);
+    assertEquals(T.tableId, ok.getTableId());
+    assertEquals(HttpStatus.OK.value(), ok.getStatus());
+    assertNotNull(ok.getRows());
+    assertTrue(ok.getRows().getRows().isEmpty());
+    assertNull(ok.getError());
+
+    TableSyncResult notFound = results.get(2);
+    assertEquals("no_such_table", notFound.getTableId());
+    assertEquals(HttpStatus.NOT_FOUND.value(), notFound.getStatus());
+    assertNull(notFound.getRows());
+    assertNotNull(notFound.getError());
+
+    TableSyncResult badRequest = results.get(3);
+    assertEquals(HttpStatus.BAD_REQUEST.value(), badRequest.getStatus());
+    assertNull(badRequest.getRows());
+    assertNotNull(badRequest.getError());
+  }
+
+  @Test
+  public void testTooManyTables() throws Throwable {
+    ArrayList<TableSyncRequest> tables = new ArrayList<TableSyncRequest>();
+    for (int i = 0; i <= BulkSyncProcessor.MAX_TABLES_PER_REQUEST; ++i) {
+      tables.add(new TableSyncRequest(T.tableId, resource.getSchemaETag(), null, null));
+    }
+    try {
+      rt.exchange(resolveUri("bulkSync"), HttpMethod.POST,
+          entity(new TableSyncRequestList(tables, FETCH_LIMIT)), TableSyncResultList.class);
+      fail("expected 400 Bad Request");
+    } catch (HttpClientErrorException e) {
+      assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+    }
+  }
+}
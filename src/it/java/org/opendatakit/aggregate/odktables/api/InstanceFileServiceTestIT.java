@@ -0,0 +1,138 @@
+package org.opendatakit.aggregate.odktables.api;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.ByteArrayHttpMessageConverter;
+import org.springframework.web.client.HttpClientErrorException;
+
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(org.junit.runners.JUnit4.class)
+public class InstanceFileServiceTestIT extends AbstractServiceTest {
+
+  private static final String ROW_ID = "uuid:upload-session-row";
+  private static final String PATH = "media/video.mp4";
+
+  private TableResource resource;
+  private byte[] content;
+
+  @Before
+  public void setUp() throws Exception, Throwable {
+    super.abstractServiceSetUp();
+    rt.getMessageConverters().add(new ByteArrayHttpMessageConverter());
+    resource = super.createTable();
+
+    content = new byte[100000];
+    new Random(25).nextBytes(content);
+  }
+
+  private static String md5HashUri(byte[] value) throws Exception {
+    MessageDigest md = MessageDigest.getInstance("MD5");
+    md.update(value);
+    return CommonFieldsBase.newMD5HashUri(md);
+  }
+
+  private URI rowUri(String path) {
+    return URI.create(resource.getInstanceFilesUri() + "/" + ROW_ID + "/" + path);
+  }
+
+  private ResponseEntity<Void> exchange(URI uri, HttpMethod method, HttpHeaders headers,
+      byte[] body) {
+    HttpHeaders h = new HttpHeaders();
+    h.putAll(reqHeaders);
+    if (headers != null) {
+      h.putAll(headers);
+    }
+    return rt.exchange(uri, method, new HttpEntity<byte[]>(body, h), Void.class);
+  }
+
+  private static long uploadOffset(HttpHeaders headers) {
+    String offset = headers.getFirst(ApiConstants.UPLOAD_OFFSET_HEADER);
+    assertNotNull(offset);
+    return Long.parseLong(offset);
+  }
+
+  private ResponseEntity<Void> append(URI session, long offset, byte[] piece) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+    headers.set(ApiConstants.UPLOAD_OFFSET_HEADER, Long.toString(offset));
+    return exchange(session, HttpMethod.PUT, headers, piece);
+  }
+
+  @Test
+  public void testUploadSession() throws Exception {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.valueOf("video/mp4"));
+    headers.set(ApiConstants.UPLOAD_LENGTH_HEADER, Integer.toString(content.length));
+    ResponseEntity<Void> resp = exchange(rowUri("upload_session/file/" + PATH), HttpMethod.POST,
+        headers, null);
+    assertEquals(HttpStatus.CREATED, resp.getStatusCode());
+    assertEquals(0L, uploadOffset(resp.getHeaders()));
+    URI session = resp.getHeaders().getLocation();
+    assertNotNull(session);
+
+    int half = content.length / 2;
+    resp = append(session, 0L, Arrays.copyOfRange(content, 0, half));
+    assertEquals(HttpStatus.OK, resp.getStatusCode());
+    assertEquals(half, uploadOffset(resp.getHeaders()));
+
+    resp = exchange(session, HttpMethod.GET, null, null);
+    assertEquals(HttpStatus.OK, resp.getStatusCode());
+    assertEquals(half, uploadOffset(resp.getHeaders()));
+
+    // resending from the start conflicts, and reports where to resume
+    try {
+      append(session, 0L, content);
+      fail("expected 409 Conflict");
+    } catch (HttpClientErrorException e) {
+      assertEquals(HttpStatus.CONFLICT, e.getStatusCode());
+      assertEquals(half, uploadOffset(e.getResponseHeaders()));
+    }
+
+    // finishing early is refused and the upload is kept
+    HttpHeaders finish = new HttpHeaders();
+    finish.set(ApiConstants.UPLOAD_CONTENT_HASH_HEADER, md5HashUri(content));
+    try {
+      exchange(session, HttpMethod.POST, finish, null);
+      fail("expected 400 Bad Request");
+    } catch (HttpClientErrorException e) {
+      assertEquals(HttpStatus.BAD_REQUEST, e.getStatusCode());
+    }
+
+    resp = append(session, half, Arrays.copyOfRange(content, half, content.length));
+    assertEquals(content.length, uploadOffset(resp.getHeaders()));
+
+    resp = exchange(session, HttpMethod.POST, finish, null);
+    assertEquals(HttpStatus.CREATED, resp.getStatusCode());
+
+    HttpHeaders accept = new HttpHeaders();
+    accept.setAccept(Arrays.asList(MediaType.ALL));
+    ResponseEntity<byte[]> file = rt.exchange(rowUri("file/" + PATH), HttpMethod.GET,
+        new HttpEntity<Void>(accept), byte[].class);
+    assertEquals(HttpStatus.OK, file.getStatusCode());
+    assertArrayEquals(content, file.getBody());
+
+    // the session is gone
+    try {
+      exchange(session, HttpMethod.GET, null, null);
+      fail("expected 404 Not Found");
+    } catch (HttpClientErrorException e) {
+      assertEquals(HttpStatus.NOT_FOUND, e.getStatusCode());
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables.impl.api.wink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Measures bytes on the wire and CPU time per page of rows for each response
+ * content encoding and compression level, and checks that small and already
+ * compressed responses are passed through unchanged.
+ *
+ * Not run as part of the integration tests. Run it explicitly with:
+ * mvn verify -pl postgres-test -Dit.test=ContentEncodingBenchmark
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class ContentEncodingBenchmark {
+
+  static final int[] PAGE_SIZES = { 100, 500, 2000 };
+  static final int COLUMNS = 20;
+  static final int ITERATIONS = 50;
+  static final int WRITE_CHUNK = 8192;
+
+  private static byte[] buildPage(int rowCount) throws IOException {
+    Random rand = new Random(rowCount);
+    ArrayList<RowResource> rows = new ArrayList<RowResource>();
+    for (int i = 0; i < rowCount; ++i) {
+      ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+      for (int j = 0; j < COLUMNS; ++j) {
+        String value;
+        switch (j % 4) {
+        case 0:
+          value = Integer.toString(rand.nextInt(100000));
+          break;
+        case 1:
+          value = Double.toString(rand.nextDouble() * 180.0 - 90.0);
+          break;
+        case 2:
+          value = (rand.nextBoolean() ? "yes" : "no");
+          break;
+        default:
+          value = "Observation note " + rand.nextInt(1000) + " for site " + rand.nextInt(50);
+          break;
+        }
+        values.add(new DataKeyValue("column_" + j, value));
+      }
+      Row row = Row.forUpdate("uuid:" + UUID.randomUUID().toString(),
+          UUID.randomUUID().toString(), "form_id", "default", SavepointTypeManipulator.complete(),
+          "2017-05-12T12:34:56.789000000", "mailto:collector@example.org",
+          RowFilterScope.EMPTY_ROW_FILTER, values);
+      RowResource resource = new RowResource(row);
+      resource.setSelfUri("http://localhost/odktables/default/tables/t/ref/s/rows/" + row.getRowId());
+      rows.add(resource);
+    }
+    RowResourceList page = new RowResourceList(rows, UUID.randomUUID().toString(),
+        "http://localhost/odktables/default/tables/t", null, null, null, true, false);
+    return new ObjectMapper().writeValueAsBytes(page);
+  }
+
+  private static MockHttpServletResponse filter(ContentEncodingResponseFilter filter,
+      String acceptEncoding, final String contentType, final byte[] body)
+      throws IOException, ServletException {
+    MockHttpServletRequest req = new MockHttpServletRequest("GET", "/odktables/default/tables");
+    if (acceptEncoding != null) {
+      req.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+    }
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    filter.doFilter(req, resp, new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        response.setContentType(contentType);
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        for (int off = 0; off < body.length; off += WRITE_CHUNK) {
+          out.write(body, off, Math.min(WRITE_CHUNK, body.length - off));
+        }
+        out.flush();
+      }
+    });
+    return resp;
+  }
+
+  private static byte[] decode(MockHttpServletResponse resp) throws IOException {
+    byte[] wire = resp.getContentAsByteArray();
+    String encoding = resp.getHeader(HttpHeaders.CONTENT_ENCODING);
+    if (encoding == null) {
+      return wire;
+    }
+    InputStream in;
+    if ("gzip".equals(encoding)) {
+      in = new GZIPInputStream(new ByteArrayInputStream(wire));
+    } else {
+      in = new InflaterInputStream(new ByteArrayInputStream(wire));
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[WRITE_CHUNK];
+    int len;
+    while ((len = in.read(buffer)) != -1) {
+      out.write(buffer, 0, len);
+    }
+    return out.toByteArray();
+  }
+
+  private static void runEncoding(String label, String acceptEncoding, int level, byte[] page)
+      throws IOException, ServletException {
+    ContentEncodingResponseFilter filter = new ContentEncodingResponseFilter();
+    filter.setCompressionLevel(level);
+
+    // verify the round trip
+    MockHttpServletResponse resp = filter(filter, acceptEncoding, "application/json", page);
+    assertArrayEquals(page, decode(resp));
+    int wireBytes = resp.getContentAsByteArray().length;
+
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    long cpuStart = bean.getCurrentThreadCpuTime();
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; ++i) {
+      filter(filter, acceptEncoding, "application/json", page);
+    }
+    double cpuMs = (bean.getCurrentThreadCpuTime() - cpuStart) / 1000000.0 / ITERATIONS;
+    double elapsedMs = (System.nanoTime() - start) / 1000000.0 / ITERATIONS;
+    System.out.println(label + "\t" + level + "\t" + page.length + "\t" + wireBytes + "\t"
+        + String.format("%.1f", (100.0 * wireBytes) / page.length) + "\t"
+        + String.format("%.3f", cpuMs) + "\t" + String.format("%.3f", elapsedMs));
+  }
+
+  @Test
+  public void testPassThrough() throws IOException, ServletException {
+    ContentEncodingResponseFilter filter = new ContentEncodingResponseFilter();
+
+    // below the minimum size
+    byte[] small = new byte[filter.getMinimumSize() - 1];
+    MockHttpServletResponse resp = filter(filter, "gzip", "application/json", small);
+    assertNull(resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(small.length, resp.getContentLength());
+    assertArrayEquals(small, resp.getContentAsByteArray());
+
+    // already compressed
+    byte[] image = new byte[10 * filter.getMinimumSize()];
+    new Random(1).nextBytes(image);
+    resp = filter(filter, "gzip, deflate", "image/jpeg", image);
+    assertNull(resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(image.length, resp.getContentLength());
+    assertArrayEquals(image, resp.getContentAsByteArray());
+
+    // not accepted
+    resp = filter(filter, "identity", "application/json", image);
+    assertNull(resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertArrayEquals(image, resp.getContentAsByteArray());
+  }
+
+  @Test
+  public void benchmarkEncoding() throws IOException, ServletException {
+    System.out.println("encoding\tlevel\tentity bytes\twire bytes\twire %\tcpu ms/page\tms/page");
+    for (int rowCount : PAGE_SIZES) {
+      byte[] page = buildPage(rowCount);
+      runEncoding("identity", null, -1, page);
+      for (int level : new int[] { 1, 6, 9 }) {
+        runEncoding("gzip", "gzip", level, page);
+      }
+      runEncoding("deflate", "deflate", 6, page);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.datamodel;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.common.ermodel.AbstractBlobRelationSet;
+import org.opendatakit.common.ermodel.BlobEntitySet;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Uploads a duplicate-heavy set of attachments (a small pool of files attached
+ * to many rows of two tables) and reports the bytes actually stored in the
+ * content-addressed store against the bytes uploaded, and the upload latency
+ * of content seen for the first time against that of duplicates.
+ *
+ * Not run as part of the integration tests. Run it explicitly with:
+ * mvn verify -pl postgres-test -Dit.test=AttachmentDedupBenchmark
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class AttachmentDedupBenchmark {
+
+  static final int DISTINCT_FILES = 10;
+  static final int ROWS = 200;
+  static final int[] FILE_SIZES = { 16 * 1024, 256 * 1024,
+      BinaryContentManipulator.STREAM_PART_SIZE + 512 * 1024 };
+
+  static class TableFiles extends AbstractBlobRelationSet {
+    TableFiles(String tableName, CallingContext cc) throws ODKDatastoreException {
+      super(tableName, cc);
+    }
+  }
+
+  private static long storedBytes(CallingContext cc) throws ODKDatastoreException {
+    RefBlob blobRelation = ContentAddressedStore.getInstance(cc).getBlobRelation();
+    Query q = cc.getDatastore().createQuery(blobRelation, "AttachmentDedupBenchmark.storedBytes",
+        cc.getCurrentUser());
+    List<? extends CommonFieldsBase> parts = q.executeQuery();
+    long total = 0L;
+    for (CommonFieldsBase p : parts) {
+      total += ((RefBlob) p).getValue().length;
+    }
+    return total;
+  }
+
+  private static void runUploads(CallingContext cc, String label, int fileSize, boolean stream)
+      throws Exception {
+    TableFiles first = new TableFiles("DEDUP_BENCH_A", cc);
+    TableFiles second = new TableFiles("DEDUP_BENCH_B", cc);
+    first.dropBlobRelationSet(cc);
+    second.dropBlobRelationSet(cc);
+    first = new TableFiles("DEDUP_BENCH_A", cc);
+    second = new TableFiles("DEDUP_BENCH_B", cc);
+
+    Random r = new Random(fileSize);
+    byte[][] files = new byte[DISTINCT_FILES][];
+    for (int i = 0; i < DISTINCT_FILES; ++i) {
+      files[i] = new byte[fileSize];
+      r.nextBytes(files[i]);
+    }
+
+    long storedBefore = storedBytes(cc);
+    long uploadedBytes = 0L;
+    long missNanos = 0L;
+    long hitNanos = 0L;
+    String lastUri = null;
+    for (int i = 0; i < ROWS; ++i) {
+      TableFiles table = (i % 2 == 0) ? first : second;
+      byte[] content = files[i % DISTINCT_FILES];
+      BlobEntitySet row = table.newBlobEntitySet(cc);
+      long start = System.nanoTime();
+      if (stream) {
+        row.addBlob(new ByteArrayInputStream(content), "image/jpeg", "photo.jpg", false, cc);
+      } else {
+        row.addBlob(content, "image/jpeg", "photo.jpg", false, cc);
+      }
+      long elapsed = System.nanoTime() - start;
+      if (i < DISTINCT_FILES) {
+        missNanos += elapsed;
+      } else {
+        hitNanos += elapsed;
+      }
+      uploadedBytes += content.length;
+      lastUri = row.getUri();
+    }
+    long stored = storedBytes(cc) - storedBefore;
+
+    // spot-check that a duplicate reads back intact
+    assertArrayEquals(files[(ROWS - 1) % DISTINCT_FILES],
+        second.getBlobEntitySet(lastUri, cc).getBlob(1, cc));
+
+    System.out.println(label + "\t" + fileSize + "\t" + ROWS + "\t" + DISTINCT_FILES + "\t"
+        + uploadedBytes + "\t" + stored + "\t"
+        + String.format("%.1f", 100.0 * (uploadedBytes - stored) / uploadedBytes) + "\t"
+        + String.format("%.2f", (missNanos / 1000000.0) / DISTINCT_FILES) + "\t"
+        + String.format("%.2f", (hitNanos / 1000000.0) / (ROWS - DISTINCT_FILES)));
+
+    first.dropBlobRelationSet(cc);
+    second.dropBlobRelationSet(cc);
+  }
+
+  @Test
+  public void benchmarkDuplicateUploads() throws Exception {
+    CallingContext cc = TestContextFactory.getCallingContext();
+
+    System.out.println("upload\tfile size\tuploads\tdistinct\tuploaded bytes\tstored bytes"
+        + "\tsaved %\tmean first upload (ms)\tmean duplicate upload (ms)");
+    for (int fileSize : FILE_SIZES) {
+      runUploads(cc, "bytes", fileSize, false);
+      runUploads(cc, "stream", fileSize, true);
+    }
+  }
+}
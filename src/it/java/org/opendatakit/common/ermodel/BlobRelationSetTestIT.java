@@ -15,9 +15,21 @@ package org.opendatakit.common.ermodel;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.opendatakit.common.datamodel.BinaryContentManipulator;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
+import org.opendatakit.common.datamodel.ContentAddressedStore;
+import org.opendatakit.common.persistence.PersistenceUtils;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.TestContextFactory;
@@ -39,6 +51,8 @@ public class BlobRelationSetTestIT {
 		// ensure that blobset tables are not present...
 		MyBlobRelationSet set = new MyBlobRelationSet(cc);
 		set.dropBlobRelationSet(cc);
+		OtherBlobRelationSet other = new OtherBlobRelationSet(cc);
+		other.dropBlobRelationSet(cc);
 	}
 	
 	static class MyBlobRelationSet extends AbstractBlobRelationSet {
@@ -47,9 +61,16 @@ public class BlobRelationSetTestIT {
 			super("TEST_BLOB", cc);
 		}
 	}
+
+	static class OtherBlobRelationSet extends AbstractBlobRelationSet {
+
+		OtherBlobRelationSet(CallingContext cc) throws ODKDatastoreException {
+			super("TEST_BLOB_OTHER", cc);
+		}
+	}
 	
 	@Test
-	public void testCase1() throws ODKDatastoreException {
+	public void testCase1() throws Exception {
 		CallingContext cc = TestContextFactory.getCallingContext();
 		
 		MyBlobRelationSet rel = new MyBlobRelationSet(cc);
@@ -76,7 +97,152 @@ public class BlobRelationSetTestIT {
 			otherType = "text/plain";
 		}
 		assertEquals(otherType, alt.getContentType(2, cc));
-		
+
+		ContentAddressedStore store = ContentAddressedStore.getInstance(cc);
+		assertEquals(1L, store.getReferenceCount(contentKey(s.getBytes()), cc));
+		assertEquals(1L, store.getReferenceCount(contentKey(t.getBytes()), cc));
+
+		rel.dropBlobRelationSet(cc);
+		assertEquals(0L, store.getReferenceCount(contentKey(s.getBytes()), cc));
+		assertEquals(0L, store.getReferenceCount(contentKey(t.getBytes()), cc));
+	}
+
+	@Test
+	public void testStreamedBlob() throws ODKDatastoreException, IOException {
+		CallingContext cc = TestContextFactory.getCallingContext();
+
+		MyBlobRelationSet rel = new MyBlobRelationSet(cc);
+
+		// spans several parts, the last of which is partially filled
+		byte[] content = new byte[2 * BinaryContentManipulator.STREAM_PART_SIZE + 1234];
+		new Random(42L).nextBytes(content);
+		String md5Hash = PersistenceUtils.newMD5HashUri(content);
+
+		BlobEntitySet instance = rel.newBlobEntitySet(cc);
+		assertEquals(BlobSubmissionOutcome.COMPLETELY_NEW_FILE, instance.addBlob(
+				new ByteArrayInputStream(content), "application/octet-stream", "big.bin", false, cc));
+
+		BlobEntitySet alt = rel.getBlobEntitySet(instance.getUri(), cc);
+		assertEquals(1, alt.getAttachmentCount(cc));
+		assertEquals(md5Hash, alt.getContentHash(1, cc));
+		assertEquals(content.length, alt.getContentLength(1, cc).intValue());
+		assertArrayEquals(content, alt.getBlob(1, cc));
+
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		InputStream in = alt.getBlobInputStream(1, cc);
+		byte[] data = new byte[7777];
+		int len;
+		while ((len = in.read(data)) >= 0) {
+			bo.write(data, 0, len);
+		}
+		in.close();
+		assertArrayEquals(content, bo.toByteArray());
+
+		// same content is unchanged; different content is a new version
+		assertEquals(BlobSubmissionOutcome.FILE_UNCHANGED, alt.addBlob(
+				new ByteArrayInputStream(content), "application/octet-stream", "big.bin", false, cc));
+		byte[] changed = Arrays.copyOf(content, content.length - 1);
+		assertEquals(BlobSubmissionOutcome.NEW_FILE_VERSION, alt.addBlob(
+				new ByteArrayInputStream(changed), "application/octet-stream", "big.bin", false, cc));
+		assertArrayEquals(content, rel.getBlobEntitySet(instance.getUri(), cc).getBlob(1, cc));
+
+		// and overwriting replaces it
+		assertEquals(BlobSubmissionOutcome.NEW_FILE_VERSION, alt.addBlob(
+				new ByteArrayInputStream(changed), "application/octet-stream", "big.bin", true, cc));
+		alt = rel.getBlobEntitySet(instance.getUri(), cc);
+		assertEquals(PersistenceUtils.newMD5HashUri(changed), alt.getContentHash(1, cc));
+		assertArrayEquals(changed, alt.getBlob(1, cc));
+
 		rel.dropBlobRelationSet(cc);
 	}
+
+	private static String contentKey(byte[] content) throws Exception {
+		return ContentAddressedStore.newContentKey(
+				MessageDigest.getInstance("SHA-256").digest(content), content.length);
+	}
+
+	@Test
+	public void testDuplicateContentIsStoredOnce() throws Exception {
+		CallingContext cc = TestContextFactory.getCallingContext();
+		ContentAddressedStore store = ContentAddressedStore.getInstance(cc);
+
+		MyBlobRelationSet rel = new MyBlobRelationSet(cc);
+		OtherBlobRelationSet other = new OtherBlobRelationSet(cc);
+
+		// one small and one multi-part content, each attached in both relation sets
+		byte[] small = new byte[3000];
+		new Random(7L).nextBytes(small);
+		byte[] large = new byte[BinaryContentManipulator.STREAM_PART_SIZE + 4321];
+		new Random(8L).nextBytes(large);
+
+		BlobEntitySet a = rel.newBlobEntitySet(cc);
+		a.addBlob(small, "image/png", "logo.png", false, cc);
+		a.addBlob(new ByteArrayInputStream(large), "image/jpeg", "photo.jpg", false, cc);
+		BlobEntitySet b = other.newBlobEntitySet(cc);
+		b.addBlob(new ByteArrayInputStream(small), "image/png", "copy.png", false, cc);
+		b.addBlob(large, "image/jpeg", "copy.jpg", false, cc);
+		BlobEntitySet c = other.newBlobEntitySet(cc);
+		c.addBlob(small, "image/png", "logo.png", false, cc);
+		BlobEntitySet d = other.newBlobEntitySet(cc);
+		d.addBlob(small, "image/png", "logo.png", false, cc);
+		assertEquals(4L, store.getReferenceCount(contentKey(small), cc));
+		assertEquals(2L, store.getReferenceCount(contentKey(large), cc));
+
+		assertArrayEquals(small, rel.getBlobEntitySet(a.getUri(), cc).getBlob(1, cc));
+		assertArrayEquals(large, rel.getBlobEntitySet(a.getUri(), cc).getBlob(2, cc));
+		assertArrayEquals(small, other.getBlobEntitySet(b.getUri(), cc).getBlob(1, cc));
+		assertArrayEquals(large, other.getBlobEntitySet(b.getUri(), cc).getBlob(2, cc));
+		assertEquals(PersistenceUtils.newMD5HashUri(large),
+				other.getBlobEntitySet(b.getUri(), cc).getContentHash(2, cc));
+		assertArrayEquals(small, store.getContent(contentKey(small), cc).getBlob());
+		assertArrayEquals(large, store.getContent(contentKey(large), cc).getBlob());
+
+		// removing some of the references leaves the content in place
+		rel.deleteBlobEntitySet(rel.getBlobEntitySet(a.getUri(), cc), cc);
+		other.deleteBlobEntitySet(other.getBlobEntitySet(c.getUri(), cc), cc);
+		assertArrayEquals(small, other.getBlobEntitySet(b.getUri(), cc).getBlob(1, cc));
+		assertArrayEquals(large, other.getBlobEntitySet(b.getUri(), cc).getBlob(2, cc));
+		assertEquals(2L, store.getReferenceCount(contentKey(small), cc));
+		assertEquals(1L, store.getReferenceCount(contentKey(large), cc));
+
+		// removing an entity set directly releases its references
+		other.getBlobEntitySet(b.getUri(), cc).remove(cc);
+		assertEquals(1L, store.getReferenceCount(contentKey(small), cc));
+		assertEquals(0L, store.getReferenceCount(contentKey(large), cc));
+		try {
+			store.getContent(contentKey(large), cc);
+			fail("expected the content to be deleted");
+		} catch (ODKDatastoreException e) {
+			// expected
+		}
+
+		// and dropping the relation set removes the last one
+		other.dropBlobRelationSet(cc);
+		assertEquals(0L, store.getReferenceCount(contentKey(small), cc));
+		assertEquals(0L, store.getReferenceCount(contentKey(large), cc));
+		for (byte[] content : new byte[][] { small, large }) {
+			try {
+				store.getContent(contentKey(content), cc);
+				fail("expected the content to be deleted");
+			} catch (ODKDatastoreException e) {
+				// expected
+			}
+		}
+		rel.dropBlobRelationSet(cc);
+	}
+
+	@Test
+	public void testContentKey() {
+		// SHA-256 of the empty string
+		byte[] sha256 = new byte[32];
+		String hex = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+		for (int i = 0; i < sha256.length; ++i) {
+			sha256[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		String key = ContentAddressedStore.newContentKey(sha256, Long.MAX_VALUE);
+		assertEquals("sha256:4oymiquy7qobjgx36tejs35zeqt24qpemsnzgtfeswmrw6csxbkq-"
+				+ Long.MAX_VALUE, key);
+		assertTrue(key.length() <= 80);
+		assertEquals(Long.MAX_VALUE, ContentAddressedStore.getContentLength(key));
+	}
 }
@@ -27,6 +27,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.DatastoreTransaction;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
 import org.opendatakit.common.persistence.Query.FilterOperation;
@@ -487,4 +488,85 @@ public class RelationTestIT {
     rel.dropRelation(cc);
   }
 
+  @Test
+  public void testBulkPutAndDelete() throws ODKDatastoreException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+
+    MyRelation rel = new MyRelation(cc);
+    final int COUNT = 3000;
+
+    // insert enough entities to span several batches
+    List<Entity> eList = new ArrayList<Entity>();
+    for (int i = 0; i < COUNT; ++i) {
+      Entity e = rel.newEntity(cc);
+      e.set(MyRelation.fieldStr, "bulk " + i);
+      e.set(MyRelation.fieldInt, i);
+      eList.add(e);
+    }
+    Relation.putEntities(eList, cc);
+    for (Entity e : eList) {
+      assertTrue(e.isFromDatabase());
+    }
+
+    Query query = rel.query("RelationTestIT.testBulkPutAndDelete", cc);
+    assertEquals(COUNT, query.execute().size());
+
+    // and update them all
+    for (Entity e : eList) {
+      e.set(MyRelation.fieldInt, -e.getInteger(MyRelation.fieldInt));
+    }
+    Relation.putEntities(eList, cc);
+
+    query = rel.query("RelationTestIT.testBulkPutAndDelete", cc);
+    query.addFilter(MyRelation.fieldInt.getName(), FilterOperation.GREATER_THAN, 0);
+    assertEquals(0, query.execute().size());
+
+    // delete all but the last one
+    Relation.deleteEntities(eList.subList(0, COUNT - 1), cc);
+
+    query = rel.query("RelationTestIT.testBulkPutAndDelete", cc);
+    List<Entity> entities = query.execute();
+    assertEquals(1, entities.size());
+    assertEquals(eList.get(COUNT - 1).getId(), entities.get(0).getId());
+
+    rel.dropRelation(cc);
+  }
+
+  @Test
+  public void testTransactionCommitAndRollback() throws ODKDatastoreException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    Datastore ds = cc.getDatastore();
+
+    MyRelation rel = new MyRelation(cc);
+
+    DatastoreTransaction txn = ds.beginTransaction(cc.getCurrentUser());
+    try {
+      Entity e = rel.newEntity(cc);
+      e.set(MyRelation.fieldStr, "rolled back");
+      e.put(cc);
+      Entity e2 = rel.newEntity(cc);
+      e2.set(MyRelation.fieldStr, "also rolled back");
+      e2.put(cc);
+    } finally {
+      txn.rollback();
+    }
+    assertEquals(0, rel.query("RelationTestIT.testTransaction", cc).execute().size());
+
+    txn = ds.beginTransaction(cc.getCurrentUser());
+    try {
+      Entity e = rel.newEntity(cc);
+      e.set(MyRelation.fieldStr, "committed");
+      e.put(cc);
+      Entity e2 = rel.newEntity(cc);
+      e2.set(MyRelation.fieldStr, "also committed");
+      e2.put(cc);
+      txn.commit();
+    } finally {
+      txn.rollback();
+    }
+    assertEquals(2, rel.query("RelationTestIT.testTransaction", cc).execute().size());
+
+    rel.dropRelation(cc);
+  }
+
 }
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Puts enough new rows through putEntities() that the insert is split into
+ * several batches, then puts the same entities again. Every entity must be
+ * marked as coming from the database after the first put, so that the second
+ * put updates the rows rather than re-inserting them.
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class BatchPutTestIT {
+
+  @BeforeClass
+  public static void oneTimeSetUp() throws Exception {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    MyBatchRelation rel = MyBatchRelation.assertRelation(cc);
+    // drop it, in case prior test was messed up...
+    cc.getDatastore().dropRelation(rel, cc.getCurrentUser());
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    MyBatchRelation rel = MyBatchRelation.assertRelation(cc);
+    cc.getDatastore().dropRelation(rel, cc.getCurrentUser());
+  }
+
+  @Ignore
+  static class MyBatchRelation extends CommonFieldsBase {
+
+    static final DataField fieldValue = new DataField("VALUE", DataField.DataType.STRING, true,
+        80L);
+
+    private MyBatchRelation(String databaseSchema) {
+      super(databaseSchema, "MY_BATCH_PUT_TABLE");
+      fieldList.add(fieldValue);
+    }
+
+    private MyBatchRelation(MyBatchRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyBatchRelation(this, user);
+    }
+
+    static synchronized final MyBatchRelation assertRelation(CallingContext cc)
+        throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getUserService().getDaemonAccountUser();
+      MyBatchRelation relationPrototype = new MyBatchRelation(ds.getDefaultSchemaName());
+      ds.assertRelation(relationPrototype, user);
+      return relationPrototype;
+    }
+  }
+
+  @Test
+  public void verifyMultiBatchPutTwice() throws ODKDatastoreException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    MyBatchRelation rel = MyBatchRelation.assertRelation(cc);
+
+    // the engine batches at most MAX_BIND_PARAMS / fieldCount rows, and
+    // MAX_BIND_PARAMS is getMaxBindParams() plus the reserve; span 3 batches.
+    int rowsPerBatch = (ds.getMaxBindParams() + PersistConsts.BIND_PARAMS_RESERVE)
+        / rel.getFieldList().size();
+    int rowCount = 2 * rowsPerBatch + 1;
+
+    List<MyBatchRelation> entities = new ArrayList<MyBatchRelation>();
+    for (int i = 0; i < rowCount; ++i) {
+      MyBatchRelation element = ds.createEntityUsingRelation(rel, user);
+      element.setStringField(MyBatchRelation.fieldValue, "first-" + i);
+      entities.add(element);
+    }
+    ds.putEntities(entities, user);
+
+    for (MyBatchRelation element : entities) {
+      assertTrue("entity not marked as inserted: " + element.getUri(),
+          element.isFromDatabase());
+    }
+
+    // the second put must update every row in place
+    for (int i = 0; i < rowCount; ++i) {
+      entities.get(i).setStringField(MyBatchRelation.fieldValue, "second-" + i);
+    }
+    ds.putEntities(entities, user);
+
+    Query query = ds.createQuery(rel, "BatchPutTestIT.verifyMultiBatchPutTwice", user);
+    List<? extends CommonFieldsBase> dbValues = query.executeQuery();
+    assertEquals(rowCount, dbValues.size());
+    for (CommonFieldsBase b : dbValues) {
+      assertTrue(((MyBatchRelation) b).getStringField(MyBatchRelation.fieldValue)
+          .startsWith("second-"));
+    }
+  }
+}
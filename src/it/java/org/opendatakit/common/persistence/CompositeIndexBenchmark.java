@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.common.persistence.Query.Direction;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Compares the sync query shapes of the log table on a million-row table with
+ * and without the composite indexes that DbLogTable declares: the lookup of
+ * the sequence value of a dataETag, and the distinct dataETags after a
+ * sequence value.
+ *
+ * Not run as part of the integration tests. Run it explicitly with:
+ * mvn verify -pl postgres-test -Dit.test=CompositeIndexBenchmark
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class CompositeIndexBenchmark {
+
+  static final int TABLE_SIZE = 1000000;
+  static final int ROWS_PER_CHANGE_SET = 100;
+  static final int REPETITIONS = 50;
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    User user = cc.getCurrentUser();
+    cc.getDatastore().dropRelation(MyLogRelation.assertRelation(cc, false), user);
+    cc.getDatastore().dropRelation(MyLogRelation.assertRelation(cc, true), user);
+  }
+
+  @Ignore
+  static class MyLogRelation extends CommonFieldsBase {
+
+    static final DataField fieldRowId = new DataField("ROW_ID", DataField.DataType.STRING, false,
+        80L).setIndexable(DataField.IndexType.HASH);
+    static final DataField fieldSeq = new DataField("SEQ_VALUE", DataField.DataType.STRING, false,
+        40L).setIndexable(DataField.IndexType.ORDERED);
+    static final DataField fieldDataETag = new DataField("DATA_ETAG", DataField.DataType.STRING,
+        false, 80L).setIndexable(DataField.IndexType.HASH);
+
+    private MyLogRelation(String databaseSchema, boolean withCompositeIndexes) {
+      super(databaseSchema, withCompositeIndexes ? "MY_CIB_INDEXED" : "MY_CIB_PLAIN");
+      fieldList.add(fieldRowId);
+      fieldList.add(fieldSeq);
+      fieldList.add(fieldDataETag);
+      if (withCompositeIndexes) {
+        indexList.add(new CompositeIndex("desv", fieldDataETag.getName(), fieldSeq.getName()));
+        indexList.add(new CompositeIndex("svde", fieldSeq.getName())
+            .include(fieldDataETag.getName()));
+      }
+    }
+
+    private MyLogRelation(MyLogRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyLogRelation(this, user);
+    }
+
+    static synchronized final MyLogRelation assertRelation(CallingContext cc,
+        boolean withCompositeIndexes) throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getUserService().getDaemonAccountUser();
+      MyLogRelation relationPrototype = new MyLogRelation(ds.getDefaultSchemaName(),
+          withCompositeIndexes);
+      ds.assertRelation(relationPrototype, user);
+      return relationPrototype;
+    }
+  }
+
+  private static String dataETag(int changeSet) {
+    return String.format("etag-%08d", changeSet);
+  }
+
+  private static MyLogRelation populate(CallingContext cc, boolean withCompositeIndexes)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    MyLogRelation rel = MyLogRelation.assertRelation(cc, withCompositeIndexes);
+    ds.dropRelation(rel, user);
+    rel = MyLogRelation.assertRelation(cc, withCompositeIndexes);
+
+    List<MyLogRelation> batch = new ArrayList<MyLogRelation>();
+    for (int i = 0; i < TABLE_SIZE; ++i) {
+      MyLogRelation element = ds.createEntityUsingRelation(rel, user);
+      // hot rows are revised many times
+      element.setStringField(MyLogRelation.fieldRowId, "uuid:row-" + (i % (TABLE_SIZE / 10)));
+      element.setStringField(MyLogRelation.fieldSeq, String.format("%012d", i));
+      element.setStringField(MyLogRelation.fieldDataETag, dataETag(i / ROWS_PER_CHANGE_SET));
+      batch.add(element);
+      if (batch.size() == 1000) {
+        ds.batchAlterData(batch, user);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      ds.batchAlterData(batch, user);
+    }
+    return rel;
+  }
+
+  /**
+   * The shape of DataManager.getSequenceValueForDataETag
+   */
+  private static double timeSequenceValueLookup(CallingContext cc, MyLogRelation rel)
+      throws ODKDatastoreException {
+    Random r = new Random(42);
+    long total = 0L;
+    for (int i = 0; i < REPETITIONS; ++i) {
+      int changeSet = r.nextInt(TABLE_SIZE / ROWS_PER_CHANGE_SET);
+      long start = System.nanoTime();
+      Query query = cc.getDatastore().createQuery(rel, "CompositeIndexBenchmark",
+          cc.getCurrentUser());
+      query.addFilter(MyLogRelation.fieldDataETag, FilterOperation.EQUAL, dataETag(changeSet));
+      query.addFilter(MyLogRelation.fieldSeq, FilterOperation.GREATER_THAN, " ");
+      query.addSort(MyLogRelation.fieldSeq, Direction.DESCENDING);
+      QueryResult result = query.executeQuery(null, 1);
+      total += System.nanoTime() - start;
+      assertFalse(result.getResultList().isEmpty());
+      assertEquals(dataETag(changeSet),
+          result.getResultList().get(0).getStringField(MyLogRelation.fieldDataETag));
+    }
+    return (total / 1000000.0) / REPETITIONS;
+  }
+
+  /**
+   * The shape of DataManager.getChangeSetsSince for a client that is the given
+   * number of rows behind.
+   */
+  private static double timeChangeSetsSince(CallingContext cc, MyLogRelation rel, int behind)
+      throws ODKDatastoreException {
+    String sequenceValue = String.format("%012d", TABLE_SIZE - behind - 1);
+    long total = 0L;
+    for (int i = 0; i < REPETITIONS; ++i) {
+      long start = System.nanoTime();
+      Query query = cc.getDatastore().createQuery(rel, "CompositeIndexBenchmark",
+          cc.getCurrentUser());
+      query.addFilter(MyLogRelation.fieldSeq, FilterOperation.GREATER_THAN, sequenceValue);
+      List<?> values = query.executeDistinctValueForDataField(MyLogRelation.fieldDataETag);
+      total += System.nanoTime() - start;
+      assertFalse(values.isEmpty());
+    }
+    return (total / 1000000.0) / REPETITIONS;
+  }
+
+  @Test
+  public void benchmarkLogQueries() throws ODKDatastoreException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+
+    System.out.println("indexes\tdataETag lookup (ms)\tchangeSets since 1% (ms)"
+        + "\tchangeSets since 10% (ms)");
+    for (boolean withCompositeIndexes : new boolean[] { false, true }) {
+      MyLogRelation rel = populate(cc, withCompositeIndexes);
+
+      // warm up
+      timeSequenceValueLookup(cc, rel);
+
+      double lookup = timeSequenceValueLookup(cc, rel);
+      double since1 = timeChangeSetsSince(cc, rel, TABLE_SIZE / 100);
+      double since10 = timeChangeSetsSince(cc, rel, TABLE_SIZE / 10);
+      System.out.println((withCompositeIndexes ? "composite" : "single-column") + "\t"
+          + String.format("%.2f", lookup) + "\t" + String.format("%.2f", since1) + "\t"
+          + String.format("%.2f", since10));
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.AfterClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.common.persistence.Query.Direction;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Measures the cost of fetching a page of a cursor-style query as the table
+ * grows. With keyset paging and a server-side limit, the time to fetch a page
+ * from the start, middle or end of the table should not depend upon the table
+ * size.
+ *
+ * Not run as part of the integration tests. Run it explicitly with:
+ * mvn verify -pl postgres-test -Dit.test=QueryPagingBenchmark
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class QueryPagingBenchmark {
+
+  static final int[] TABLE_SIZES = { 1000, 10000, 100000 };
+  static final int PAGE_SIZE = 100;
+  static final int REPETITIONS = 20;
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    MyRelation rel = MyRelation.assertRelation(cc);
+    cc.getDatastore().dropRelation(rel, cc.getCurrentUser());
+  }
+
+  @Ignore
+  static class MyRelation extends CommonFieldsBase {
+
+    static final DataField fieldSeq = new DataField("SEQ_VALUE", DataField.DataType.STRING, true,
+        40L).setIndexable(DataField.IndexType.ORDERED);
+    static final DataField fieldInt = new DataField("INT_VALUE", DataField.DataType.INTEGER, true);
+
+    private MyRelation(String databaseSchema) {
+      super(databaseSchema, "MY_QPB_TABLE");
+      fieldList.add(fieldSeq);
+      fieldList.add(fieldInt);
+    }
+
+    private MyRelation(MyRelation ref, User user) {
+      super(ref, user);
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      return new MyRelation(this, user);
+    }
+
+    static synchronized final MyRelation assertRelation(CallingContext cc)
+        throws ODKDatastoreException {
+      Datastore ds = cc.getDatastore();
+      User user = cc.getUserService().getDaemonAccountUser();
+      MyRelation relationPrototype = new MyRelation(ds.getDefaultSchemaName());
+      ds.assertRelation(relationPrototype, user);
+      return relationPrototype;
+    }
+  }
+
+  private static MyRelation populate(CallingContext cc, int size) throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    MyRelation rel = MyRelation.assertRelation(cc);
+    ds.dropRelation(rel, user);
+    rel = MyRelation.assertRelation(cc);
+
+    List<MyRelation> batch = new ArrayList<MyRelation>();
+    for (int i = 0; i < size; ++i) {
+      MyRelation element = ds.createEntityUsingRelation(rel, user);
+      // several records share each value so that the PK tie-break is exercised
+      element.setStringField(MyRelation.fieldSeq, String.format("%012d", i / 3));
+      element.setLongField(MyRelation.fieldInt, Long.valueOf(i));
+      batch.add(element);
+      if (batch.size() == 1000) {
+        ds.batchAlterData(batch, user);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      ds.batchAlterData(batch, user);
+    }
+    return rel;
+  }
+
+  private static Query newQuery(CallingContext cc, MyRelation rel) {
+    Query query = cc.getDatastore().createQuery(rel, "QueryPagingBenchmark", cc.getCurrentUser());
+    query.addFilter(MyRelation.fieldSeq, FilterOperation.GREATER_THAN, " ");
+    query.addSort(MyRelation.fieldSeq, Direction.ASCENDING);
+    return query;
+  }
+
+  /**
+   * @return the resume cursor after skipping the given fraction of the table.
+   */
+  private static QueryResumePoint cursorAt(CallingContext cc, MyRelation rel, int size,
+      double fraction) throws ODKDatastoreException {
+    int skip = (int) (size * fraction);
+    if (skip == 0) {
+      return null;
+    }
+    QueryResult result = newQuery(cc, rel).executeQuery(null, skip);
+    return result.getResumeCursor();
+  }
+
+  private static double timePage(CallingContext cc, MyRelation rel, QueryResumePoint cursor)
+      throws ODKDatastoreException {
+    long total = 0L;
+    for (int i = 0; i < REPETITIONS; ++i) {
+      long start = System.nanoTime();
+      QueryResult result = newQuery(cc, rel).executeQuery(cursor, PAGE_SIZE);
+      total += System.nanoTime() - start;
+      assertTrue(result.getResultList().size() <= PAGE_SIZE);
+    }
+    return (total / 1000000.0) / REPETITIONS;
+  }
+
+  @Test
+  public void testPagingCompleteness() throws ODKDatastoreException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    int size = 2003;
+    MyRelation rel = populate(cc, size);
+
+    Set<String> pkSet = new HashSet<String>();
+    QueryResumePoint cursor = null;
+    boolean done = false;
+    while (!done) {
+      QueryResult result = newQuery(cc, rel).executeQuery(cursor, PAGE_SIZE);
+      for (CommonFieldsBase cb : result.getResultList()) {
+        assertFalse(pkSet.contains(cb.getUri()));
+        pkSet.add(cb.getUri());
+      }
+      cursor = result.getResumeCursor();
+      done = !result.hasMoreResults();
+    }
+    assertEquals(size, pkSet.size());
+  }
+
+  @Test
+  public void benchmarkPageLatency() throws ODKDatastoreException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+
+    System.out.println("rows\tfirst page (ms)\tmiddle page (ms)\tlast page (ms)");
+    for (int size : TABLE_SIZES) {
+      MyRelation rel = populate(cc, size);
+
+      QueryResumePoint middle = cursorAt(cc, rel, size, 0.5);
+      QueryResumePoint last = cursorAt(cc, rel, size, 1.0 - ((double) PAGE_SIZE) / size);
+
+      // warm up
+      timePage(cc, rel, null);
+
+      double first = timePage(cc, rel, null);
+      double mid = timePage(cc, rel, middle);
+      double end = timePage(cc, rel, last);
+      System.out.println(size + "\t" + String.format("%.2f", first) + "\t"
+          + String.format("%.2f", mid) + "\t" + String.format("%.2f", end));
+    }
+  }
+}
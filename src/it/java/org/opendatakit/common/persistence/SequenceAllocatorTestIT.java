@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+
+/**
+ * Tests that the sequence allocator hands out strictly increasing, unique
+ * values when used concurrently.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class SequenceAllocatorTestIT {
+
+  private static final String SEQUENCE_NAME = "_test_sequence_allocator";
+
+  @Ignore
+  static class AllocatorThread extends Thread {
+    static final int ALLOCATIONS = 200;
+
+    final CyclicBarrier launchBarrier;
+    final SequenceAllocator allocator;
+    final Set<Long> values;
+    boolean failed = false;
+
+    AllocatorThread(CyclicBarrier launchBarrier, SequenceAllocator allocator, Set<Long> values) {
+      this.launchBarrier = launchBarrier;
+      this.allocator = allocator;
+      this.values = values;
+    }
+
+    @Override
+    public void run() {
+      try {
+        launchBarrier.await();
+        long last = Long.MIN_VALUE;
+        for (int i = 0; i < ALLOCATIONS; ++i) {
+          long value = allocator.nextValue();
+          if (value <= last || !values.add(value)) {
+            failed = true;
+          }
+          last = value;
+        }
+      } catch (Exception e) {
+        failed = true;
+        System.out.println("FAILED " + e.toString() + " Thread " + getId());
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentAllocation() throws ODKDatastoreException, InterruptedException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    SequenceAllocator allocator = cc.getDatastore().getSequenceAllocator(SEQUENCE_NAME,
+        cc.getCurrentUser());
+    long startValue = System.currentTimeMillis();
+    if (!allocator.isInitialized()) {
+      allocator.initialize(startValue);
+    }
+    assertTrue(allocator.isInitialized());
+    // repeated initialization is harmless and does not recreate the sequence
+    assertFalse(allocator.initialize(startValue));
+
+    long first = allocator.nextValue();
+    assertTrue(allocator.nextValue() > first);
+
+    int MAX_THREADS = 8;
+    CyclicBarrier launchBarrier = new CyclicBarrier(MAX_THREADS);
+    Set<Long> values = new ConcurrentSkipListSet<Long>();
+    List<AllocatorThread> threads = new ArrayList<AllocatorThread>();
+    for (int i = 0; i < MAX_THREADS; ++i) {
+      AllocatorThread t = new AllocatorThread(launchBarrier, allocator, values);
+      t.start();
+      threads.add(t);
+    }
+    for (AllocatorThread t : threads) {
+      t.join();
+      assertFalse(t.failed);
+    }
+    assertEquals(MAX_THREADS * AllocatorThread.ALLOCATIONS, values.size());
+    assertTrue(values.iterator().next() > first);
+  }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.ODKTablesTaskLockType;
+import org.opendatakit.aggregate.odktables.OdkTablesLockTemplate;
+import org.opendatakit.aggregate.odktables.OdkTablesLockTemplate.DelayStrategy;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.web.CallingContext;
+import org.opendatakit.common.web.TestContextFactory;
+import org.springframework.beans.BeanWrapperImpl;
+
+/**
+ * Measures lock throughput with many threads syncing many tables, comparing
+ * the native database locks with the _task_lock table fallback. With native
+ * locks, threads working on different tables should not contend at all.
+ *
+ * Not run as part of the integration tests. Run it explicitly with:
+ * mvn verify -pl postgres-test -Dit.test=TaskLockContentionBenchmark
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class TaskLockContentionBenchmark {
+
+  static final int THREADS = 16;
+  static final int[] TABLE_COUNTS = { 1, 4, 16 };
+  static final int ITERATIONS = 25;
+  static final long HOLD_MILLISECONDS = 5L;
+
+  @Ignore
+  static class LockThread extends Thread {
+    final CyclicBarrier launchBarrier;
+    final CallingContext cc;
+    final String tableId;
+    final AtomicBoolean[] inside;
+    final int tableIdx;
+
+    boolean failed = false;
+    int acquisitions = 0;
+    int timeouts = 0;
+    long acquireNanos = 0L;
+
+    LockThread(CyclicBarrier launchBarrier, CallingContext cc, int tableIdx,
+        AtomicBoolean[] inside) {
+      this.launchBarrier = launchBarrier;
+      this.cc = cc;
+      this.tableIdx = tableIdx;
+      this.tableId = "contention_table_" + tableIdx;
+      this.inside = inside;
+    }
+
+    @Override
+    public void run() {
+      try {
+        launchBarrier.await();
+        for (int i = 0; i < ITERATIONS; ++i) {
+          OdkTablesLockTemplate lock = new OdkTablesLockTemplate(tableId,
+              ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, DelayStrategy.SHORT, cc);
+          long start = System.nanoTime();
+          try {
+            lock.acquire();
+          } catch (ODKTaskLockException e) {
+            ++timeouts;
+            continue;
+          } finally {
+            acquireNanos += System.nanoTime() - start;
+          }
+          try {
+            if (!inside[tableIdx].compareAndSet(false, true)) {
+              System.out.println("Thread " + getId() + " found " + tableId + " already held!");
+              failed = true;
+            }
+            Thread.sleep(HOLD_MILLISECONDS);
+            inside[tableIdx].set(false);
+            ++acquisitions;
+          } finally {
+            lock.release();
+          }
+        }
+      } catch (Exception e) {
+        failed = true;
+        System.out.println("FAILED " + e.toString() + " Thread " + getId());
+      }
+    }
+  }
+
+  private static void setUseNativeTaskLocks(CallingContext cc, boolean useNativeTaskLocks) {
+    new BeanWrapperImpl(cc.getDatastore()).setPropertyValue("useNativeTaskLocks",
+        useNativeTaskLocks);
+  }
+
+  @After
+  public void restoreDefault() {
+    setUseNativeTaskLocks(TestContextFactory.getCallingContext(), true);
+  }
+
+  private static void runContention(CallingContext cc, String label, int tableCount)
+      throws InterruptedException {
+    AtomicBoolean[] inside = new AtomicBoolean[tableCount];
+    for (int i = 0; i < tableCount; ++i) {
+      inside[i] = new AtomicBoolean(false);
+    }
+    CyclicBarrier launchBarrier = new CyclicBarrier(THREADS);
+    List<LockThread> threads = new ArrayList<LockThread>();
+    long start = System.nanoTime();
+    for (int i = 0; i < THREADS; ++i) {
+      LockThread t = new LockThread(launchBarrier, cc, i % tableCount, inside);
+      t.start();
+      threads.add(t);
+    }
+    int acquisitions = 0;
+    int timeouts = 0;
+    long acquireNanos = 0L;
+    for (LockThread t : threads) {
+      t.join();
+      assertFalse(t.failed);
+      acquisitions += t.acquisitions;
+      timeouts += t.timeouts;
+      acquireNanos += t.acquireNanos;
+    }
+    double elapsedSeconds = (System.nanoTime() - start) / 1000000000.0;
+    System.out.println(label + "\t" + tableCount + "\t"
+        + String.format("%.1f", acquisitions / elapsedSeconds) + "\t"
+        + String.format("%.2f", (acquireNanos / 1000000.0) / (acquisitions + timeouts)) + "\t"
+        + timeouts);
+  }
+
+  @Test
+  public void benchmarkContention() throws InterruptedException {
+    CallingContext cc = TestContextFactory.getCallingContext();
+
+    System.out.println("impl\ttables\tlocks/sec\tmean acquire (ms)\ttimeouts");
+    for (int tableCount : TABLE_COUNTS) {
+      setUseNativeTaskLocks(cc, true);
+      runContention(cc, "native", tableCount);
+      setUseNativeTaskLocks(cc, false);
+      runContention(cc, "table", tableCount);
+    }
+  }
+}
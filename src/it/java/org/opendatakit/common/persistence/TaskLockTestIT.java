@@ -14,6 +14,8 @@
 package org.opendatakit.common.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -31,6 +33,7 @@ import org.opendatakit.common.security.User;
 import org.opendatakit.common.testing.ICommonTestSetup;
 import org.opendatakit.common.web.CallingContext;
 import org.opendatakit.common.web.TestContextFactory;
+import org.springframework.beans.BeanWrapperImpl;
 
 /**
  * Tests the task lock mechanism and reports its performance statistics.
@@ -212,4 +215,64 @@ public class TaskLockTestIT {
 
     assertEquals(failure, false);
   }
+
+  private static void setUseNativeTaskLocks(CallingContext cc, boolean useNativeTaskLocks) {
+    new BeanWrapperImpl(cc.getDatastore()).setPropertyValue("useNativeTaskLocks",
+        useNativeTaskLocks);
+  }
+
+  private static void verifyContentionAndRelease(CallingContext cc) throws Exception {
+    final Datastore ds = cc.getDatastore();
+    final User user = cc.getCurrentUser();
+    final String lockedResourceName = "TASK_LOCK_CONTENTION_" + UUID.randomUUID().toString();
+    String holderLockId = UUID.randomUUID().toString();
+    final String waiterLockId = UUID.randomUUID().toString();
+
+    TaskLock holder = ds.createTaskLock(user);
+    assertTrue(holder.obtainLock(holderLockId, lockedResourceName, TaskLockType.CREATE_FORM));
+
+    // a second lockId cannot obtain it while it is held...
+    TaskLock waiter = ds.createTaskLock(user);
+    assertFalse(waiter.obtainLock(waiterLockId, lockedResourceName, TaskLockType.CREATE_FORM));
+    assertFalse(waiter.obtainLock(waiterLockId, lockedResourceName, TaskLockType.CREATE_FORM,
+        200L));
+
+    // ...but a waiter obtains it once it is released within the wait
+    final AtomicBoolean waiterLocked = new AtomicBoolean(false);
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          waiterLocked.set(ds.createTaskLock(user).obtainLock(waiterLockId, lockedResourceName,
+              TaskLockType.CREATE_FORM, 5000L));
+        } catch (ODKTaskLockException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    t.start();
+    Thread.sleep(500L);
+    assertTrue(holder.releaseLock(holderLockId, lockedResourceName, TaskLockType.CREATE_FORM));
+    t.join();
+    assertTrue(waiterLocked.get());
+
+    // the waiter now holds it; released, anyone can obtain it immediately
+    assertFalse(holder.obtainLock(holderLockId, lockedResourceName, TaskLockType.CREATE_FORM));
+    assertTrue(waiter.releaseLock(waiterLockId, lockedResourceName, TaskLockType.CREATE_FORM));
+    assertTrue(holder.obtainLock(holderLockId, lockedResourceName, TaskLockType.CREATE_FORM));
+    assertTrue(holder.releaseLock(holderLockId, lockedResourceName, TaskLockType.CREATE_FORM));
+  }
+
+  @Test
+  public void verifyContentionAndRelease() throws Exception {
+    CallingContext cc = TestContextFactory.getCallingContext();
+    try {
+      setUseNativeTaskLocks(cc, true);
+      verifyContentionAndRelease(cc);
+      setUseNativeTaskLocks(cc, false);
+      verifyContentionAndRelease(cc);
+    } finally {
+      setUseNativeTaskLocks(cc, true);
+    }
+  }
 }
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares formatting and parsing DATETIME values through a new
+ * SimpleDateFormat per call (what WebUtils.iso8601Date and parseDate did)
+ * against the DateCodec fast path. Does not touch the database.
+ *
+ * Not run as part of the integration tests. Run it explicitly with:
+ * mvn verify -pl postgres-test -Dit.test=DateCodecBenchmark
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class DateCodecBenchmark {
+
+  static final int VALUES = 200000;
+  static final int REPETITIONS = 10;
+
+  private static SimpleDateFormat newIso8601() {
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return sdf;
+  }
+
+  private static double timeLegacy(Date[] dates) {
+    long start = System.nanoTime();
+    for (Date d : dates) {
+      String value = newIso8601().format(d);
+      Date parsed = newIso8601().parse(value, new ParsePosition(0));
+      assertEquals(d.getTime(), parsed.getTime());
+    }
+    return (System.nanoTime() - start) / 1000000.0;
+  }
+
+  private static double timeCodec(Date[] dates) {
+    long start = System.nanoTime();
+    for (Date d : dates) {
+      String value = WebUtils.iso8601Date(d);
+      Date parsed = WebUtils.parseDate(value);
+      assertEquals(d.getTime(), parsed.getTime());
+    }
+    return (System.nanoTime() - start) / 1000000.0;
+  }
+
+  @Test
+  public void benchmarkIso8601() {
+    Date[] dates = new Date[VALUES];
+    long base = 1488603967123L;
+    for (int i = 0; i < VALUES; ++i) {
+      dates[i] = new Date(base + i * 7919L);
+    }
+
+    // warm up
+    timeLegacy(dates);
+    timeCodec(dates);
+
+    double legacy = 0.0;
+    double codec = 0.0;
+    for (int i = 0; i < REPETITIONS; ++i) {
+      legacy += timeLegacy(dates);
+      codec += timeCodec(dates);
+    }
+    System.out.println("values\tlegacy (ms)\tcodec (ms)");
+    System.out.println(VALUES + "\t" + String.format("%.2f", legacy / REPETITIONS) + "\t"
+        + String.format("%.2f", codec / REPETITIONS));
+  }
+}
@@ -20,6 +20,8 @@ import javax.servlet.ServletContext;
 
 import org.apache.commons.dbcp2.BasicDataSource;
 import org.junit.Ignore;
+import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.common.datamodel.ContentAddressedStore;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.security.Realm;
 import org.opendatakit.common.security.User;
@@ -45,6 +47,7 @@ public class TestContextFactory {
 		final String webApplicationBase;
 		final Datastore datastore;
 		final UserService userService;
+		ContentAddressedStore contentAddressedStore = null;
 		boolean asDaemon = true; // otherwise there isn't a current user...
 
 		CallingContextImpl() {
@@ -98,14 +101,26 @@ public class TestContextFactory {
 				dataSource.setValidationQueryTimeout(1);
 				dataSource.setTestOnBorrow(true);
 
+				BasicDataSource taskLockDataSource = new BasicDataSource();
+				taskLockDataSource.setDriverClassName(jdbcDriver);
+				taskLockDataSource.setUrl(jdbcUrl);
+				taskLockDataSource.setUsername(dbUsername);
+				taskLockDataSource.setPassword(dbPassword);
+				taskLockDataSource.setMaxIdle(5);
+				taskLockDataSource.setMinIdle(0);
+				taskLockDataSource.setMaxTotal(20);
+				taskLockDataSource.setMaxWaitMillis(10000);
+
 				if(jdbcDriver.equals("org.postgresql.Driver")) {
 					org.opendatakit.common.persistence.engine.pgres.DatastoreImpl db = new org.opendatakit.common.persistence.engine.pgres.DatastoreImpl();
 					db.setDataSource(dataSource);
+					db.setTaskLockDataSource(taskLockDataSource);
 					db.setSchemaName(dbSchema);
 					datastore = db;
 				} else if (jdbcDriver.equals("com.mysql.jdbc.Driver")) {
 					org.opendatakit.common.persistence.engine.mysql.DatastoreImpl db = new org.opendatakit.common.persistence.engine.mysql.DatastoreImpl();
 					db.setDataSource(dataSource);
+					db.setTaskLockDataSource(taskLockDataSource);
 					db.setSchemaName(dbSchema);
 					datastore = db;
 				} else {
@@ -131,7 +146,21 @@ public class TestContextFactory {
 		}
 
 		@Override
-		public Object getBean(String beanName) {
+		public synchronized Object getBean(String beanName) {
+			if (BeanDefs.CONTENT_ADDRESSED_STORE.equals(beanName)) {
+				if (contentAddressedStore == null) {
+					ContentAddressedStore store = new ContentAddressedStore();
+					store.setDatastore(datastore);
+					store.setUserService(userService);
+					try {
+						store.afterPropertiesSet();
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+					contentAddressedStore = store;
+				}
+				return contentAddressedStore;
+			}
 			return null;
 		}
 
@@ -28,4 +28,7 @@ public class BeanDefs {
   public static final String DATASTORE_BEAN = "datastore";
   public static final String IMAGE_UTIL = "image_util";
   public static final String WATCHDOG = "watchdog";
+  public static final String BLOB_STORE = "blob_store";
+  public static final String BULK_SYNC_EXECUTOR = "bulk_sync_executor";
+  public static final String CONTENT_ADDRESSED_STORE = "content_addressed_store";
 }
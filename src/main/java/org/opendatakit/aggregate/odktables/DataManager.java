@@ -21,27 +21,29 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.opendatakit.aggregate.odktables.TableMetadataCache.TableMetadata;
 import org.opendatakit.aggregate.odktables.exception.BadColumnNameException;
 import org.opendatakit.aggregate.odktables.exception.ETagMismatchException;
 import org.opendatakit.aggregate.odktables.exception.InconsistentStateException;
 import org.opendatakit.aggregate.odktables.exception.PermissionDeniedException;
 import org.opendatakit.aggregate.odktables.exception.TableDataETagMismatchException;
-import org.opendatakit.aggregate.odktables.relation.DbColumnDefinitions;
 import org.opendatakit.aggregate.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
 import org.opendatakit.aggregate.odktables.relation.DbLogTable;
 import org.opendatakit.aggregate.odktables.relation.DbTable;
-import org.opendatakit.aggregate.odktables.relation.DbTableDefinitions;
-import org.opendatakit.aggregate.odktables.relation.DbTableDefinitions.DbTableDefinitionsEntity;
+import org.opendatakit.aggregate.odktables.relation.DbTableAcl;
 import org.opendatakit.aggregate.odktables.relation.DbTableEntry;
 import org.opendatakit.aggregate.odktables.relation.DbTableEntry.DbTableEntryEntity;
 import org.opendatakit.aggregate.odktables.relation.EntityConverter;
 import org.opendatakit.aggregate.odktables.relation.EntityCreator;
+import org.opendatakit.aggregate.odktables.relation.RowCodec;
 import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
 import org.opendatakit.aggregate.odktables.rest.entity.Row;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
@@ -56,6 +58,8 @@ import org.opendatakit.common.ermodel.Entity;
 import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.ermodel.Query.WebsafeQueryResult;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DatastoreTransaction;
 import org.opendatakit.common.persistence.PersistenceUtils;
 import org.opendatakit.common.persistence.Query.Direction;
 import org.opendatakit.common.persistence.QueryResumePoint;
@@ -78,10 +82,26 @@ public class DataManager {
 
   private static final Log logger = LogFactory.getLog(DataManager.class);
 
+  /**
+   * The most log pages read by one request for the latest revisions of rows.
+   * A log that is mostly superseded revisions yields few rows per page; once
+   * this many pages are read, the rows kept so far are returned along with a
+   * cursor to resume from, rather than scanning on through the log.
+   */
+  static final int MAX_LOG_PAGES_PER_REQUEST = 10;
+
   public static class WebsafeRows {
     public final List<Row> rows;
 
     public final String dataETag;
+    /**
+     * The acl ETag read with dataETag, if the rows are filtered by the acls.
+     */
+    public final String aclETag;
+    /**
+     * True if the caller's NotModifiedCheck matched; no rows were read.
+     */
+    public final boolean notModified;
     public final String websafeRefetchCursor;
     public final String websafeBackwardCursor;
     public final String websafeResumeCursor;
@@ -91,8 +111,17 @@ public class DataManager {
     public WebsafeRows(List<Row> rows, String dataETag, 
         String websafeRefetchCursor, String websafeBackwardCursor,
         String websafeResumeCursor, boolean hasMore, boolean hasPrior) {
+      this(rows, dataETag, null, false, websafeRefetchCursor, websafeBackwardCursor,
+          websafeResumeCursor, hasMore, hasPrior);
+    }
+
+    WebsafeRows(List<Row> rows, String dataETag, String aclETag, boolean notModified,
+        String websafeRefetchCursor, String websafeBackwardCursor,
+        String websafeResumeCursor, boolean hasMore, boolean hasPrior) {
       this.rows = rows;
       this.dataETag = dataETag;
+      this.aclETag = aclETag;
+      this.notModified = notModified;
       this.websafeRefetchCursor = websafeRefetchCursor;
       this.websafeBackwardCursor = websafeBackwardCursor;
       this.websafeResumeCursor = websafeResumeCursor;
@@ -143,8 +172,28 @@ public class DataManager {
     return tableId;
   }
 
+  /**
+   * Tests a conditional request against the versions a page of rows is read
+   * from, before any rows are read.
+   */
+  public interface NotModifiedCheck {
+    /**
+     * @param dataETag
+     *          the current dataETag of the table.
+     * @param aclETag
+     *          the current acl ETag of the table.
+     * @return true if the caller already has the response.
+     */
+    boolean isNotModified(String dataETag, String aclETag);
+  }
+
+  /**
+   * Writes are now applied in a single transaction and never leave a
+   * pendingDataETag behind. This cleans up after a server that wrote the log,
+   * row and table entry changes in separate statements and failed part-way.
+   */
   private void revertPendingChanges(DbTableEntryEntity entry,
-      List<DbColumnDefinitionsEntity> columns, DbTable table, DbLogTable logTable)
+      RowCodec codec, DbTable table, DbLogTable logTable)
       throws ODKDatastoreException, BadColumnNameException {
 
     // we have nothing to do if the pending dataETag is null...
@@ -198,7 +247,7 @@ public class DataManager {
             priorLogEntity.getString(DbLogTable.SAVEPOINT_TYPE),
             priorLogEntity.getString(DbLogTable.SAVEPOINT_TIMESTAMP),
             priorLogEntity.getString(DbLogTable.SAVEPOINT_CREATOR),
-            converter.getRowValues(priorLogEntity, columns), columns);
+            codec.getLogTableValues(priorLogEntity), codec);
 
         // revert DbTable to the prior row state
         rowEntity.put(cc);
@@ -227,11 +276,13 @@ public class DataManager {
     String currentDataETag = null;
     
     List<DbColumnDefinitionsEntity> columns = null;
+    
+    RowCodec codec = null;
     WebsafeQueryResult result = null;
-    OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
-        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    DatastoreTransaction txn = null;
     try {
-      propsLock.acquire();
+      // no task lock: read the table entry and rows from one snapshot.
+      txn = cc.getDatastore().beginSnapshotTransaction(cc.getCurrentUser());
 
       DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(tableId, cc);
       String schemaETag = entry.getSchemaETag();
@@ -242,16 +293,14 @@ public class DataManager {
 
       currentDataETag = entry.getDataETag();
       
-      DbTableDefinitionsEntity tableDefn = DbTableDefinitions
-          .getDefinition(tableId, schemaETag, cc);
-      columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+      TableMetadata metadata = TableMetadataCache.get(tableId, schemaETag, cc);
+      columns = metadata.getColumns();
+      codec = metadata.getRowCodec();
 
-      DbTable table = DbTable.getRelation(tableDefn, columns, cc);
-      DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
-
-      revertPendingChanges(entry, columns, table, logTable);
+      DbTable table = metadata.getTable();
 
       Query query = buildRowsQuery(table);
+      excludePendingChanges(query, DbTable.DATA_ETAG_AT_MODIFICATION, entry);
       query.addSort(table.getDataField(CommonFieldsBase.CREATION_DATE_COLUMN_NAME),
           (startCursor == null || startCursor.isForwardCursor()) ? Direction.ASCENDING
               : Direction.DESCENDING);
@@ -259,9 +308,11 @@ public class DataManager {
       query.addFilter(table.getDataField(CommonFieldsBase.CREATION_DATE_COLUMN_NAME),
           org.opendatakit.common.persistence.Query.FilterOperation.GREATER_THAN, BasicConsts.EPOCH);
       result = query.execute(startCursor, fetchLimit);
-
+      txn.commit();
     } finally {
-      propsLock.release();
+      if (txn != null) {
+        txn.rollback();
+      }
     }
 
     if (result.entities == null || columns == null) {
@@ -270,7 +321,7 @@ public class DataManager {
 
     ArrayList<Row> rows = new ArrayList<Row>();
     for (Entity entity : result.entities) {
-      Row row = converter.toRow(entity, columns);
+      Row row = converter.toRow(entity, codec);
       if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
         rows.add(row);
       } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
@@ -282,6 +333,24 @@ public class DataManager {
         result.websafeResumeCursor, result.hasMore, result.hasPrior);
   }
 
+  /**
+   * Readers hold no lock, so they must not see the changes of a write that was
+   * left pending by a server that applied writes in separate statements and
+   * failed part-way. The next writer reverts those changes.
+   *
+   * @param query
+   * @param dataETagField
+   *          the DATA_ETAG_AT_MODIFICATION field of the queried relation
+   * @param entry
+   */
+  private void excludePendingChanges(Query query, DataField dataETagField,
+      DbTableEntryEntity entry) {
+    String pendingDataETag = entry.getPendingDataETag();
+    if (pendingDataETag != null) {
+      query.notEqual(dataETagField, pendingDataETag);
+    }
+  }
+
   /**
    * @return the query for current rows in the table
    */
@@ -306,17 +375,80 @@ public class DataManager {
   public WebsafeRows getRowsSince(String dataETag, QueryResumePoint startCursor, int fetchLimit)
       throws ODKDatastoreException, ODKTaskLockException, InconsistentStateException,
       PermissionDeniedException, BadColumnNameException {
+    return getRowsSince(dataETag, false, startCursor, fetchLimit);
+  }
+
+  /**
+   * Retrieves a set of rows representing the changes since the given data etag.
+   *
+   * If isActive is true, only the latest revision of each changed row is
+   * returned, no matter how many times it was revised since the dataETag. The
+   * log is still paged by sequence value, so the cursors are the same as in
+   * the default mode; a log entry is kept only if it is the row's current
+   * revision in DbTable. Any later revision of a row is necessarily further
+   * along in the log, so rows updated while a client is paging are reported
+   * on a later page rather than being lost. A request reads a bounded number of
+   * log pages, so a page of results may hold fewer than fetchLimit rows, or
+   * none, and still have more to resume from.
+   *
+   * @param dataETag
+   *          the data ETag
+   * @param isActive
+   *          true to return only the latest revision of each row
+   * @param startCursor
+   * @param fetchLimit
+   * @return the rows which have changed or been added since the given data etag
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws InconsistentStateException
+   * @throws PermissionDeniedException
+   * @throws BadColumnNameException
+   */
+  public WebsafeRows getRowsSince(String dataETag, boolean isActive,
+      QueryResumePoint startCursor, int fetchLimit) throws ODKDatastoreException,
+      ODKTaskLockException, InconsistentStateException, PermissionDeniedException,
+      BadColumnNameException {
+    return getRowsSince(dataETag, isActive, startCursor, fetchLimit, null);
+  }
+
+  /**
+   * As {@link #getRowsSince(String, boolean, QueryResumePoint, int)}, but
+   * first passes the dataETag and acl ETag of the table to the check, within
+   * the snapshot the rows would be read from. If it reports the caller's copy
+   * as current, no rows are read and the result has notModified set.
+   *
+   * @param dataETag
+   * @param isActive
+   * @param startCursor
+   * @param fetchLimit
+   * @param check
+   *          may be null.
+   * @return the rows which have changed or been added since the given data
+   *         etag, or a notModified result.
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws InconsistentStateException
+   * @throws PermissionDeniedException
+   * @throws BadColumnNameException
+   */
+  public WebsafeRows getRowsSince(String dataETag, boolean isActive,
+      QueryResumePoint startCursor, int fetchLimit, NotModifiedCheck check)
+      throws ODKDatastoreException, ODKTaskLockException, InconsistentStateException,
+      PermissionDeniedException, BadColumnNameException {
 
     userPermissions.checkPermission(appId, tableId, TablePermission.READ_ROW);
 
     String currentDataETag = null;
+    String aclETag = null;
     
     List<DbColumnDefinitionsEntity> columns = null;
+    
+    RowCodec codec = null;
     WebsafeQueryResult result = null;
-    OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
-        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    DatastoreTransaction txn = null;
     try {
-      propsLock.acquire();
+      // no task lock: read the table entry and rows from one snapshot.
+      txn = cc.getDatastore().beginSnapshotTransaction(cc.getCurrentUser());
 
       DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(tableId, cc);
       String schemaETag = entry.getSchemaETag();
@@ -326,15 +458,18 @@ public class DataManager {
       }
 
       currentDataETag = entry.getDataETag();
+      aclETag = DbTableAcl.getAclETag(tableId, cc);
+      if (check != null && check.isNotModified(currentDataETag, aclETag)) {
+        txn.commit();
+        return new WebsafeRows(null, currentDataETag, aclETag, true, null, null, null, false,
+            false);
+      }
       
-      DbTableDefinitionsEntity tableDefn = DbTableDefinitions
-          .getDefinition(tableId, schemaETag, cc);
-      columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+      TableMetadata metadata = TableMetadataCache.get(tableId, schemaETag, cc);
+      columns = metadata.getColumns();
+      codec = metadata.getRowCodec();
 
-      DbTable table = DbTable.getRelation(tableDefn, columns, cc);
-      DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
-
-      revertPendingChanges(entry, columns, table, logTable);
+      DbLogTable logTable = metadata.getLogTable();
 
       String sequenceValue = null;
       if (dataETag != null) {
@@ -355,9 +490,19 @@ public class DataManager {
             : startCursor.isForwardCursor()));
       }
 
-      result = query.execute(startCursor, fetchLimit);
+      excludePendingChanges(query, DbLogTable.DATA_ETAG_AT_MODIFICATION, entry);
+
+      if (isActive) {
+        result = executeLatestRevisionsQuery(query, metadata.getTable(), logTable, entry,
+            startCursor, fetchLimit);
+      } else {
+        result = query.execute(startCursor, fetchLimit);
+      }
+      txn.commit();
     } finally {
-      propsLock.release();
+      if (txn != null) {
+        txn.rollback();
+      }
     }
 
     if (result.entities == null || columns == null) {
@@ -369,7 +514,7 @@ public class DataManager {
     // row.
     ArrayList<Row> rows = new ArrayList<Row>();
     for (Entity entity : result.entities) {
-      Row row = converter.toRowFromLogTable(entity, columns);
+      Row row = converter.toRowFromLogTable(entity, codec);
       if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
         rows.add(row);
       } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
@@ -377,8 +522,9 @@ public class DataManager {
         rows.add(row);
       }
     }
-    return new WebsafeRows(computeDiff(rows), currentDataETag, result.websafeRefetchCursor,
-        result.websafeBackwardCursor, result.websafeResumeCursor, result.hasMore, result.hasPrior);
+    return new WebsafeRows(computeDiff(rows), currentDataETag, aclETag, false,
+        result.websafeRefetchCursor, result.websafeBackwardCursor, result.websafeResumeCursor,
+        result.hasMore, result.hasPrior);
   }
   
   /**
@@ -412,11 +558,13 @@ public class DataManager {
     String currentDataETag = null;
     
     List<DbColumnDefinitionsEntity> columns = null;
+    
+    RowCodec codec = null;
     WebsafeQueryResult result = null;
-    OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
-        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    DatastoreTransaction txn = null;
     try {
-      propsLock.acquire();
+      // no task lock: read the table entry and rows from one snapshot.
+      txn = cc.getDatastore().beginSnapshotTransaction(cc.getCurrentUser());
 
       DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(tableId, cc);
       String schemaETag = entry.getSchemaETag();
@@ -427,14 +575,11 @@ public class DataManager {
 
       currentDataETag = entry.getDataETag();
 
-      DbTableDefinitionsEntity tableDefn = DbTableDefinitions
-          .getDefinition(tableId, schemaETag, cc);
-      columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+      TableMetadata metadata = TableMetadataCache.get(tableId, schemaETag, cc);
+      columns = metadata.getColumns();
+      codec = metadata.getRowCodec();
 
-      DbTable table = DbTable.getRelation(tableDefn, columns, cc);
-      DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
-
-      revertPendingChanges(entry, columns, table, logTable);
+      DbLogTable logTable = metadata.getLogTable();
 
      SimpleDateFormat sf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSSSSSSS");
      Date startDateToCompare = null;
@@ -478,9 +623,14 @@ public class DataManager {
             : startCursor.isForwardCursor()));
       }
 
+      excludePendingChanges(query, DbLogTable.DATA_ETAG_AT_MODIFICATION, entry);
+
       result = query.execute(startCursor, fetchLimit);
+      txn.commit();
     } finally {
-      propsLock.release();
+      if (txn != null) {
+        txn.rollback();
+      }
     }
 
     if (result.entities == null || columns == null) {
@@ -492,7 +642,7 @@ public class DataManager {
     // row.
     ArrayList<Row> rows = new ArrayList<Row>();
     for (Entity entity : result.entities) {
-      Row row = converter.toRowFromLogTable(entity, columns);
+      Row row = converter.toRowFromLogTable(entity, codec);
       if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
         rows.add(row);
       } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
@@ -706,6 +856,104 @@ public class DataManager {
     return new ArrayList<Row>(diff.values());
   }
 
+  /**
+   * Page through the log query, keeping only those log entries that are the
+   * current revision of their row, until fetchLimit entries are kept, the log
+   * is exhausted, or {@link #MAX_LOG_PAGES_PER_REQUEST} log pages have been
+   * read. Every log page is fetchLimit entries long; if a page
+   * completes the result part way through, the resume cursor is placed after
+   * the last entry kept. The refetch and backward cursors are those of the
+   * first log page, so the result can be refetched or resumed exactly like a
+   * single page.
+   *
+   * @param query
+   *          the log query, sorted by sequence value
+   * @param table
+   * @param logTable
+   * @param entry
+   * @param startCursor
+   * @param fetchLimit
+   * @return
+   * @throws ODKDatastoreException
+   */
+  private WebsafeQueryResult executeLatestRevisionsQuery(Query query, DbTable table,
+      DbLogTable logTable, DbTableEntryEntity entry, QueryResumePoint startCursor,
+      int fetchLimit) throws ODKDatastoreException {
+    String pendingDataETag = entry.getPendingDataETag();
+    List<Entity> kept = new ArrayList<Entity>();
+    WebsafeQueryResult first = null;
+    WebsafeQueryResult page = null;
+    QueryResumePoint cursor = startCursor;
+    int pagesRead = 0;
+    do {
+      page = query.execute(cursor, fetchLimit);
+      ++pagesRead;
+      if (page.entities == null) {
+        return page;
+      }
+      if (first == null) {
+        first = page;
+      }
+
+      List<String> rowIds = new ArrayList<String>();
+      for (Entity logEntity : page.entities) {
+        rowIds.add(logEntity.getString(DbLogTable.ROW_ID));
+      }
+      Map<String, Entity> current = DbTable.getEntities(table, rowIds, cc);
+
+      Map<String, String> currentRowETags = new HashMap<String, String>();
+      Map<String, String> pendingRowETags = new HashMap<String, String>();
+      for (Entity entity : current.values()) {
+        String rowETag = entity.getString(DbTable.ROW_ETAG);
+        if (pendingDataETag != null
+            && pendingDataETag.equals(entity.getString(DbTable.DATA_ETAG_AT_MODIFICATION))) {
+          pendingRowETags.put(entity.getId(), rowETag);
+        }
+        currentRowETags.put(entity.getId(), rowETag);
+      }
+      if (!pendingRowETags.isEmpty()) {
+        // the pending revision is hidden from readers; the latest visible
+        // revision is the one it replaced.
+        Map<String, Entity> pendingLogEntities = DbLogTable.getEntities(logTable,
+            pendingRowETags.values(), cc);
+        for (Map.Entry<String, String> pending : pendingRowETags.entrySet()) {
+          Entity pendingLogEntity = pendingLogEntities.get(pending.getValue());
+          if (pendingLogEntity == null) {
+            throw new ODKEntityNotFoundException("Log entry " + pending.getValue()
+                + " of pending row " + pending.getKey() + " not found");
+          }
+          currentRowETags.put(pending.getKey(),
+              pendingLogEntity.getString(DbLogTable.PREVIOUS_ROW_ETAG));
+        }
+      }
+
+      for (int i = 0; i < page.entities.size(); ++i) {
+        Entity logEntity = page.entities.get(i);
+        String rowId = logEntity.getString(DbLogTable.ROW_ID);
+        if (!currentRowETags.containsKey(rowId)
+            || logEntity.getId().equals(currentRowETags.get(rowId))) {
+          kept.add(logEntity);
+          if (kept.size() == fetchLimit && i + 1 < page.entities.size()) {
+            // resume after this entry rather than after the whole page
+            QueryResumePoint pageResume = QueryResumePoint
+                .fromWebsafeCursor(page.websafeResumeCursor);
+            QueryResumePoint resume = new QueryResumePoint(pageResume.getAttributeName(),
+                logEntity.getString(DbLogTable.SEQUENCE_VALUE), logEntity.getId(),
+                pageResume.isForwardCursor());
+            return new WebsafeQueryResult(kept, first.websafeRefetchCursor,
+                first.websafeBackwardCursor, resume.asWebsafeCursor(), true, first.hasPrior);
+          }
+        }
+      }
+
+      cursor = QueryResumePoint.fromWebsafeCursor(page.websafeResumeCursor);
+    } while (page.hasMore && kept.size() < fetchLimit && cursor != null
+        && pagesRead < MAX_LOG_PAGES_PER_REQUEST);
+
+    return new WebsafeQueryResult(kept, first.websafeRefetchCursor, first.websafeBackwardCursor,
+        page.websafeResumeCursor, page.hasMore, first.hasPrior);
+  }
+
   /**
    * Retrieve a row from the table.
    *
@@ -729,11 +977,14 @@ public class DataManager {
       userPermissions.checkPermission(appId, tableId, TablePermission.READ_ROW);
 
       List<DbColumnDefinitionsEntity> columns = null;
+
+      RowCodec codec = null;
       Entity entity = null;
-      OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
-          ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+      Entity priorLogEntity = null;
+      DatastoreTransaction txn = null;
       try {
-        propsLock.acquire();
+        // no task lock: read the table entry and rows from one snapshot.
+        txn = cc.getDatastore().beginSnapshotTransaction(cc.getCurrentUser());
 
         DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(tableId, cc);
         String schemaETag = entry.getSchemaETag();
@@ -743,26 +994,38 @@ public class DataManager {
               + " is not yet defined.");
         }
 
-        DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(tableId, schemaETag,
-            cc);
-        columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+        TableMetadata metadata = TableMetadataCache.get(tableId, schemaETag, cc);
+        columns = metadata.getColumns();
+        codec = metadata.getRowCodec();
 
-        DbTable table = DbTable.getRelation(tableDefn, columns, cc);
-        DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
-
-        revertPendingChanges(entry, columns, table, logTable);
+        DbTable table = metadata.getTable();
+        DbLogTable logTable = metadata.getLogTable();
 
         entity = table.getEntity(rowId, cc);
-
+        String pendingDataETag = entry.getPendingDataETag();
+        if (pendingDataETag != null
+            && pendingDataETag.equals(entity.getString(DbTable.DATA_ETAG_AT_MODIFICATION))) {
+          // report the state before the pending change.
+          Entity pendingLogEntity = logTable.getEntity(entity.getString(DbTable.ROW_ETAG), cc);
+          String priorETag = pendingLogEntity.getString(DbLogTable.PREVIOUS_ROW_ETAG);
+          if (priorETag == null) {
+            throw new ODKEntityNotFoundException("Row " + rowId + " is not yet committed.");
+          }
+          priorLogEntity = logTable.getEntity(priorETag, cc);
+        }
+        txn.commit();
       } finally {
-        propsLock.release();
+        if (txn != null) {
+          txn.rollback();
+        }
       }
 
       if (columns == null) {
         throw new InconsistentStateException("Unable to retrieve rows for table " + tableId + ".");
       }
 
-      Row row = converter.toRow(entity, columns);
+      Row row = (priorLogEntity == null) ? converter.toRow(entity, codec)
+          : converter.toRowFromLogTable(priorLogEntity, codec);
       if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
         return row;
       } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
@@ -790,12 +1053,6 @@ public class DataManager {
     } catch (ODKDatastoreException e) {
       e.printStackTrace();
       throw e;
-    } catch (ODKTaskLockException e) {
-      e.printStackTrace();
-      throw e;
-    } catch (BadColumnNameException e) {
-      e.printStackTrace();
-      throw e;
     } catch (PermissionDeniedException e) {
       e.printStackTrace();
       throw e;
@@ -806,7 +1063,7 @@ public class DataManager {
   }
 
   private void prepareRowForInsertUpdateOrDelete(BulkRowObjWrapper rowWrapper,
-      List<DbColumnDefinitionsEntity> columns, DbTable table,
+      RowCodec codec, DbTable table,
       DataKeyValueDeepComparator dc) throws ODKDatastoreException,
       PermissionDeniedException {
 
@@ -868,7 +1125,7 @@ public class DataManager {
       // there was an existing record for the row in the database...
       if (currentETag == null || !currentETag.equals(rowETag)) {
         // Take the hit to convert the row we have.
-        Row currentRow = converter.toRow(entity, columns);
+        Row currentRow = converter.toRow(entity, codec);
         if (row.hasMatchingSignificantFieldValues(currentRow, dc)) {
           // If the row matches everywhere except on the rowETag,
           // return the row on the server.
@@ -918,6 +1175,9 @@ public class DataManager {
           ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
 
       List<DbColumnDefinitionsEntity> columns = null;
+
+      RowCodec codec = null;
+      DatastoreTransaction txn = null;
       try {
         propsLock.acquire();
         Sequencer sequencer = new Sequencer(cc);
@@ -935,24 +1195,25 @@ public class DataManager {
           throw new TableDataETagMismatchException("The dataETag for table " + tableId + " does not match that supplied in the RowList");          
         }
 
-        DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(tableId, schemaETag,
-            cc);
-        columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+        TableMetadata metadata = TableMetadataCache.get(tableId, schemaETag, cc);
+        columns = metadata.getColumns();
+        codec = metadata.getRowCodec();
 
-        DbTable table = DbTable.getRelation(tableDefn, columns, cc);
-        DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
+        DbTable table = metadata.getTable();
+        DbLogTable logTable = metadata.getLogTable();
 
-        revertPendingChanges(entry, columns, table, logTable);
+        revertPendingChanges(entry, codec, table, logTable);
 
         logger.info("Before loop Time elpased: " + (System.currentTimeMillis() - startTime));
 
         DataKeyValueDeepComparator dc = new DataKeyValueDeepComparator(columns);
 
-        // mark as pending change.
         // get new dataETag
         dataETagAtModification = PersistenceUtils.newUri();
-        entry.setPendingDataETag(dataETagAtModification);
-        entry.put(cc);
+
+        // all changes are written in one transaction, so there is no need to
+        // mark the entry with a pendingDataETag; a failure rolls them all back.
+        txn = cc.getDatastore().beginTransaction(cc.getCurrentUser());
 
         List<Entity> entityInsertList = new ArrayList<Entity>();
         List<Entity> entityUpdateList = new ArrayList<Entity>();
@@ -960,16 +1221,33 @@ public class DataManager {
 
         ArrayList<BulkRowObjWrapper> rowWrapperList = new ArrayList<BulkRowObjWrapper>();
 
+        List<BulkRowObjWrapper> incomingRowWrappers = new ArrayList<BulkRowObjWrapper>();
+        List<String> rowIds = new ArrayList<String>();
         for (Row row : rows.getRows()) {
-
           BulkRowObjWrapper rowWrapper = new BulkRowObjWrapper(row);
+          incomingRowWrappers.add(rowWrapper);
+          rowIds.add(rowWrapper.getRowId());
+        }
+
+        // fetch all the existing rows up front rather than one at a time
+        Map<String, Entity> existingRows = DbTable.getEntities(table, rowIds, cc);
+        Set<String> existingRowIds = new HashSet<String>(existingRows.keySet());
+
+        for (BulkRowObjWrapper rowWrapper : incomingRowWrappers) {
+
+          Row row = rowWrapper.getRow();
 
           // and add row wrapper for bulk processing
           rowWrapperList.add(rowWrapper);
 
-          Entity entity = null;
-          try {
+          // each entity is handed out once; a rowId repeated within the
+          // RowList re-fetches its own copy as the per-row lookup did.
+          Entity entity = existingRows.remove(rowWrapper.getRowId());
+          if (entity == null && existingRowIds.contains(rowWrapper.getRowId())) {
             entity = table.getEntity(rowWrapper.getRowId(), cc);
+          }
+
+          if (entity != null) {
 
             if (rowWrapper.hasNewRowId()) {
               // yikes! -- generated UUID conflicts with an existing one.
@@ -978,7 +1256,7 @@ public class DataManager {
               continue;
             }
 
-          } catch (ODKEntityNotFoundException e) {
+          } else {
 
             if (row.isDeleted()) {
               rowWrapper.setOutcome(OutcomeType.DENIED);
@@ -996,7 +1274,7 @@ public class DataManager {
 
           // determine whether the update or insert should go through or not.
           // if entity.isFromDatabase() is true, it is an update or delete
-          prepareRowForInsertUpdateOrDelete(rowWrapper, columns, table, dc);
+          prepareRowForInsertUpdateOrDelete(rowWrapper, codec, table, dc);
 
           // OK we are able to update or insert or delete the record
           if (!rowWrapper.outcomeAlreadySet()) {
@@ -1022,13 +1300,13 @@ public class DataManager {
               creator.setRowFields(entity, PersistenceUtils.newUri(), dataETagAtModification,
                   userPermissions.getOdkTablesUserId(), false, rowFilterScope, row.getFormId(),
                   row.getLocale(), row.getSavepointType(), row.getSavepointTimestamp(),
-                  row.getSavepointCreator(), row.getValues(), columns);
+                  row.getSavepointCreator(), row.getValues(), codec);
 
             }
 
             // create log table entry
             Entity logEntity = creator.newLogEntity(logTable, dataETagAtModification,
-                previousRowETag, entity, columns, sequencer, cc);
+                previousRowETag, entity, codec, sequencer, cc);
 
             logEntityList.add(logEntity);
 
@@ -1056,14 +1334,15 @@ public class DataManager {
         }
 
         // commit change
-        entry.setDataETag(entry.getPendingDataETag());
+        entry.setDataETag(dataETagAtModification);
         entry.setPendingDataETag(null);
         entry.put(cc);
+        txn.commit();
 
         for (BulkRowObjWrapper rowWrapper : rowWrapperList) {
           if (!rowWrapper.outcomeAlreadySet()) {
             // we need to return the fields from the entity we upserted.
-            Row newServer = converter.toRow(rowWrapper.getEntity(), columns);
+            Row newServer = converter.toRow(rowWrapper.getEntity(), codec);
             rowWrapper.setOutcome(newServer, OutcomeType.SUCCESS);
           }
           // update the outcomes set...
@@ -1072,6 +1351,9 @@ public class DataManager {
 
         logger.info("End loop Time elpased: " + (System.currentTimeMillis() - startTime));
       } finally {
+        if (txn != null) {
+          txn.rollback();
+        }
         propsLock.release();
       }
 
@@ -1159,9 +1441,12 @@ public class DataManager {
       userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
 
       List<DbColumnDefinitionsEntity> columns = null;
+
+      RowCodec codec = null;
       Entity entity = null;
       OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
           ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+      DatastoreTransaction txn = null;
       try {
         propsLock.acquire();
         Sequencer sequencer = new Sequencer(cc);
@@ -1174,14 +1459,14 @@ public class DataManager {
               + " is not yet defined.");
         }
 
-        DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(tableId, schemaETag,
-            cc);
-        columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+        TableMetadata metadata = TableMetadataCache.get(tableId, schemaETag, cc);
+        columns = metadata.getColumns();
+        codec = metadata.getRowCodec();
 
-        DbTable table = DbTable.getRelation(tableDefn, columns, cc);
-        DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
+        DbTable table = metadata.getTable();
+        DbLogTable logTable = metadata.getLogTable();
 
-        revertPendingChanges(entry, columns, table, logTable);
+        revertPendingChanges(entry, codec, table, logTable);
         
         DataKeyValueDeepComparator dc = new DataKeyValueDeepComparator(columns);
 
@@ -1251,7 +1536,7 @@ public class DataManager {
 
             // Take the hit to convert the row we have.
             // If the row matches everywhere except on the rowETag, return it.
-            Row currentRow = converter.toRow(entity, columns);
+            Row currentRow = converter.toRow(entity, codec);
             if (row.hasMatchingSignificantFieldValues(currentRow, dc)) {
               return currentRow;
             }
@@ -1279,13 +1564,14 @@ public class DataManager {
           entity.set(DbTable.CREATE_USER, userPermissions.getOdkTablesUserId());
         }
 
-        // OK we are able to update or insert the record -- mark as pending
-        // change.
+        // OK we are able to update or insert the record.
 
         // get new dataETag
         String dataETagAtModification = PersistenceUtils.newUri();
-        entry.setPendingDataETag(dataETagAtModification);
-        entry.put(cc);
+
+        // all changes are written in one transaction, so there is no need to
+        // mark the entry with a pendingDataETag; a failure rolls them all back.
+        txn = cc.getDatastore().beginTransaction(cc.getCurrentUser());
 
         // this will be null of the entity is newly created...
         String previousRowETag = row.getRowETag();
@@ -1294,22 +1580,26 @@ public class DataManager {
         creator.setRowFields(entity, PersistenceUtils.newUri(), dataETagAtModification,
             userPermissions.getOdkTablesUserId(), false, rowFilterScope, row.getFormId(), row.getLocale(),
             row.getSavepointType(), row.getSavepointTimestamp(), row.getSavepointCreator(),
-            row.getValues(), columns);
+            row.getValues(), codec);
 
         // create log table entry
         Entity logEntity = creator.newLogEntity(logTable, dataETagAtModification, previousRowETag,
-            entity, columns, sequencer, cc);
+            entity, codec, sequencer, cc);
 
         // update db
         DbLogTable.putEntity(logEntity, cc);
         DbTable.putEntity(entity, cc);
 
         // commit change
-        entry.setDataETag(entry.getPendingDataETag());
+        entry.setDataETag(dataETagAtModification);
         entry.setPendingDataETag(null);
         entry.put(cc);
+        txn.commit();
 
       } finally {
+        if (txn != null) {
+          txn.rollback();
+        }
         propsLock.release();
       }
 
@@ -1317,7 +1607,7 @@ public class DataManager {
         throw new InconsistentStateException("Unable to retrieve rows for table " + tableId + ".");
       }
 
-      Row updatedRow = converter.toRow(entity, columns);
+      Row updatedRow = converter.toRow(entity, codec);
       return updatedRow;
     } catch (NullPointerException e) {
       e.printStackTrace();
@@ -1383,6 +1673,7 @@ public class DataManager {
       String dataETagAtModification = null;
       OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
           ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+      DatastoreTransaction txn = null;
       try {
         propsLock.acquire();
         Sequencer sequencer = new Sequencer(cc);
@@ -1395,15 +1686,14 @@ public class DataManager {
               + " is not yet defined.");
         }
 
-        DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(tableId, schemaETag,
-            cc);
-        List<DbColumnDefinitionsEntity> columns = DbColumnDefinitions
-            .query(tableId, schemaETag, cc);
+        TableMetadata metadata = TableMetadataCache.get(tableId, schemaETag, cc);
+        List<DbColumnDefinitionsEntity> columns = metadata.getColumns();
+        RowCodec codec = metadata.getRowCodec();
 
-        DbTable table = DbTable.getRelation(tableDefn, columns, cc);
-        DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
+        DbTable table = metadata.getTable();
+        DbLogTable logTable = metadata.getLogTable();
 
-        revertPendingChanges(entry, columns, table, logTable);
+        revertPendingChanges(entry, codec, table, logTable);
 
         Entity entity = table.getEntity(rowId, cc);
 
@@ -1458,8 +1748,10 @@ public class DataManager {
 
         // get new dataETag
         dataETagAtModification = PersistenceUtils.newUri();
-        entry.setPendingDataETag(dataETagAtModification);
-        entry.put(cc);
+
+        // all changes are written in one transaction, so there is no need to
+        // mark the entry with a pendingDataETag; a failure rolls them all back.
+        txn = cc.getDatastore().beginTransaction(cc.getCurrentUser());
 
         // remember the previous row ETag so we can chain revisions in the
         // DbLogTable
@@ -1471,7 +1763,7 @@ public class DataManager {
 
         // create log table entry
         Entity logEntity = creator.newLogEntity(logTable, dataETagAtModification, previousRowETag,
-            entity, columns, sequencer, cc);
+            entity, codec, sequencer, cc);
 
         // commit the log change to the database (must be done first!)
         DbLogTable.putEntity(logEntity, cc);
@@ -1486,11 +1778,15 @@ public class DataManager {
         // DbTable).
 
         // update the TableEntry to reflect the completion of the change
-        entry.setDataETag(entry.getPendingDataETag());
+        entry.setDataETag(dataETagAtModification);
         entry.setPendingDataETag(null);
         entry.put(cc);
+        txn.commit();
 
       } finally {
+        if (txn != null) {
+          txn.rollback();
+        }
         propsLock.release();
       }
 
@@ -1558,13 +1854,13 @@ public class DataManager {
     String retrievalSequenceValue = null;
     
     List<DbColumnDefinitionsEntity> columns = null;
+    
+    RowCodec codec = null;
     List<?> result = null;
-    OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
-        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    DatastoreTransaction txn = null;
     try {
-      propsLock.acquire();
-      Sequencer sequencer = new Sequencer(cc);
-      retrievalSequenceValue = sequencer.getNextSequenceValue();
+      // no task lock: read the table entry and change sets from one snapshot.
+      txn = cc.getDatastore().beginSnapshotTransaction(cc.getCurrentUser());
 
       DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(tableId, cc);
       String schemaETag = entry.getSchemaETag();
@@ -1575,14 +1871,14 @@ public class DataManager {
 
       currentDataETag = entry.getDataETag();
       
-      DbTableDefinitionsEntity tableDefn = DbTableDefinitions
-          .getDefinition(tableId, schemaETag, cc);
-      columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+      TableMetadata metadata = TableMetadataCache.get(tableId, schemaETag, cc);
+      columns = metadata.getColumns();
+      codec = metadata.getRowCodec();
 
-      DbTable table = DbTable.getRelation(tableDefn, columns, cc);
-      DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
+      DbLogTable logTable = metadata.getLogTable();
 
-      revertPendingChanges(entry, columns, table, logTable);
+      // any change not in this snapshot will have a greater sequence value.
+      retrievalSequenceValue = Sequencer.getHighWaterMark(logTable, entry, cc);
 
       String unifiedSequenceValue = null;
       if (dataETag != null) {
@@ -1606,9 +1902,14 @@ public class DataManager {
         query = buildRowsSinceQuery(logTable, unifiedSequenceValue, true);
       }
       
+      excludePendingChanges(query, DbLogTable.DATA_ETAG_AT_MODIFICATION, entry);
+
       result = query.getDistinct(DbLogTable.DATA_ETAG_AT_MODIFICATION);
+      txn.commit();
     } finally {
-      propsLock.release();
+      if (txn != null) {
+        txn.rollback();
+      }
     }
 
     if (result == null || result.isEmpty() ) {
@@ -1649,11 +1950,13 @@ public class DataManager {
     String currentDataETag = null;
     
     List<DbColumnDefinitionsEntity> columns = null;
+    
+    RowCodec codec = null;
     WebsafeQueryResult result = null;
-    OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId,
-        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+    DatastoreTransaction txn = null;
     try {
-      propsLock.acquire();
+      // no task lock: read the table entry and rows from one snapshot.
+      txn = cc.getDatastore().beginSnapshotTransaction(cc.getCurrentUser());
 
       DbTableEntryEntity entry = DbTableEntry.getTableIdEntry(tableId, cc);
       String schemaETag = entry.getSchemaETag();
@@ -1664,14 +1967,12 @@ public class DataManager {
 
       currentDataETag = entry.getDataETag();
       
-      DbTableDefinitionsEntity tableDefn = DbTableDefinitions
-          .getDefinition(tableId, schemaETag, cc);
-      columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
-
-      DbTable table = DbTable.getRelation(tableDefn, columns, cc);
-      DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
+      TableMetadata metadata = TableMetadataCache.get(tableId, schemaETag, cc);
+      columns = metadata.getColumns();
+      codec = metadata.getRowCodec();
 
-      revertPendingChanges(entry, columns, table, logTable);
+      DbTable table = metadata.getTable();
+      DbLogTable logTable = metadata.getLogTable();
 
       boolean isForwardCursor = (startCursor == null ? true
           : startCursor.isForwardCursor());
@@ -1687,6 +1988,7 @@ public class DataManager {
           query.greaterThan(DbTable.ROW_ETAG,"");
           query.sortDescending(DbTable.ROW_ETAG);
         }
+        excludePendingChanges(query, DbTable.DATA_ETAG_AT_MODIFICATION, entry);
 
         result = query.execute(startCursor, fetchLimit);
         
@@ -1701,12 +2003,15 @@ public class DataManager {
           query.greaterThan(DbLogTable.ROW_ID,"");
           query.sortDescending(DbLogTable.ROW_ID);
         }
-        
+        excludePendingChanges(query, DbLogTable.DATA_ETAG_AT_MODIFICATION, entry);
+
         result = query.execute(startCursor, fetchLimit);
       }
-
+      txn.commit();
     } finally {
-      propsLock.release();
+      if (txn != null) {
+        txn.rollback();
+      }
     }
 
     if (result.entities == null || columns == null) {
@@ -1720,7 +2025,7 @@ public class DataManager {
     if ( isActive ) {
       // query is against DbTable
       for (Entity entity : result.entities) {
-        Row row = converter.toRow(entity, columns);
+        Row row = converter.toRow(entity, codec);
         if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
           rows.add(row);
         } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
@@ -1732,7 +2037,7 @@ public class DataManager {
     } else {
       // query is against DbLogTable
       for (Entity entity : result.entities) {
-        Row row = converter.toRowFromLogTable(entity, columns);
+        Row row = converter.toRowFromLogTable(entity, codec);
         if (userPermissions.hasPermission(appId, tableId, TablePermission.UNFILTERED_READ)) {
           rows.add(row);
         } else if (userPermissions.hasFilterScope(appId, tableId, TablePermission.READ_ROW,
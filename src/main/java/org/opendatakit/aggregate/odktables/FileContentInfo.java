@@ -15,12 +15,15 @@
  */
 package org.opendatakit.aggregate.odktables;
 
+import java.io.InputStream;
+
 public class FileContentInfo {
   public final String partialPath;
   public final String contentType;
   public final Long contentLength;
   public final String contentHash;
   public final byte[] fileBlob;
+  public final InputStream fileStream;
 
   public FileContentInfo(String partialPath, String contentType, Long contentLength, String contentHash, byte[] blob) {
     this.partialPath = partialPath;
@@ -28,5 +31,25 @@ public class FileContentInfo {
     this.contentLength = contentLength;
     this.contentHash = contentHash;
     this.fileBlob = blob;
+    this.fileStream = null;
+  }
+
+  /**
+   * Content supplied as a stream. When uploading, the contentLength and
+   * contentHash may be null; they are computed as the stream is consumed.
+   *
+   * @param partialPath
+   * @param contentType
+   * @param contentLength
+   * @param contentHash
+   * @param fileStream
+   */
+  public FileContentInfo(String partialPath, String contentType, Long contentLength, String contentHash, InputStream fileStream) {
+    this.partialPath = partialPath;
+    this.contentType = contentType;
+    this.contentLength = contentLength;
+    this.contentHash = contentHash;
+    this.fileBlob = null;
+    this.fileStream = fileStream;
   }
 }
\ No newline at end of file
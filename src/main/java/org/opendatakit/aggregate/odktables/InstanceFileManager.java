@@ -16,9 +16,14 @@
 package org.opendatakit.aggregate.odktables;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 import javax.ws.rs.core.MultivaluedMap;
 
@@ -28,17 +33,22 @@ import org.apache.http.message.HeaderValueParser;
 import org.apache.wink.common.model.multipart.InMultiPart;
 import org.apache.wink.common.model.multipart.InPart;
 import org.opendatakit.aggregate.odktables.api.InstanceFileService;
+import org.opendatakit.aggregate.odktables.exception.FileNotFoundException;
 import org.opendatakit.aggregate.odktables.exception.InstanceFileModificationException;
 import org.opendatakit.aggregate.odktables.exception.ODKTablesException;
 import org.opendatakit.aggregate.odktables.exception.PermissionDeniedException;
+import org.opendatakit.aggregate.odktables.exception.UploadOffsetMismatchException;
+import org.opendatakit.aggregate.odktables.relation.DbInstanceFileUploadSessions;
+import org.opendatakit.aggregate.odktables.relation.DbInstanceFileUploadSessions.DbInstanceFileUploadSessionEntity;
 import org.opendatakit.aggregate.odktables.relation.DbTableInstanceFiles;
 import org.opendatakit.aggregate.odktables.relation.DbTableInstanceManifestETags;
 import org.opendatakit.aggregate.odktables.relation.DbTableInstanceManifestETags.DbTableInstanceManifestETagEntity;
 import org.opendatakit.aggregate.odktables.rest.entity.TableRole.TablePermission;
 import org.opendatakit.aggregate.odktables.security.TablesUserPermissions;
 import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
+import org.opendatakit.common.datamodel.ContentAddressedStore;
 import org.opendatakit.common.ermodel.BlobEntitySet;
-import org.opendatakit.common.persistence.PersistenceUtils;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
@@ -55,6 +65,18 @@ public class InstanceFileManager {
 
   public interface FetchBlobHandler {
     byte[] getBlob() throws ODKDatastoreException;
+
+    /**
+     * The list of blob parts is read, and every part is confirmed to be
+     * present, when this is called. The content itself is fetched, a few parts
+     * at a time, as the stream is read. Attachments are write-once, so the
+     * stream may be read after the instance lock has been released.
+     *
+     * @return a stream over the attachment content
+     * @throws ODKDatastoreException
+     *           if the attachment content, or any part of it, is missing.
+     */
+    InputStream getBlobInputStream() throws ODKDatastoreException;
   }
 
   public interface FileContentHandler {
@@ -62,6 +84,18 @@ public class InstanceFileManager {
   };
 
   private static final String ERROR_FILE_VERSION_DIFFERS = "File on server does not match file being uploaded. Aborting upload. ";
+  private static final String ERROR_NO_UPLOAD_SESSION = "No such upload session: ";
+  private static final String ERROR_UPLOAD_OFFSET_DIFFERS = "Upload offset does not match the number of bytes received: ";
+  private static final String ERROR_UPLOAD_TOO_LONG = "Upload is longer than its declared length: ";
+  private static final String ERROR_UPLOAD_INCOMPLETE = "Upload is incomplete. Bytes received: ";
+  private static final String ERROR_UPLOAD_HASH_DIFFERS = "Upload does not match its content hash. Bytes received: ";
+
+  /**
+   * Upload sessions that have not been added to for this long are discarded.
+   */
+  public static final long UPLOAD_SESSION_IDLE_MILLISECONDS = 24L * 60L * 60L * 1000L;
+
+  private static final String UPLOAD_SESSION_LOCK_PREFIX = "upload-session|";
 
   private String appId;
 
@@ -72,10 +106,62 @@ public class InstanceFileManager {
     this.cc = cc;
   }
 
+  /**
+   * Content read from a request and held in the content-addressed store, along
+   * with its md5 hash. The reference to contentKey must either be handed over
+   * to an attachment or removed.
+   */
+  private static final class StagedContent {
+    final String contentKey;
+    final String md5Hash;
+
+    StagedContent(String contentKey, String md5Hash) {
+      this.contentKey = contentKey;
+      this.md5Hash = md5Hash;
+    }
+  }
+
+  private static final class StagedFile {
+    final String partialPath;
+    final String contentType;
+    final StagedContent content;
+
+    StagedFile(String partialPath, String contentType, StagedContent content) {
+      this.partialPath = partialPath;
+      this.contentType = contentType;
+      this.content = content;
+    }
+  }
+
+  /**
+   * Read the content into the content-addressed store without holding any
+   * lock. The caller holds the returned reference.
+   *
+   * @param in
+   * @return the staged content.
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  private StagedContent stageContent(InputStream in) throws ODKDatastoreException, IOException {
+    MessageDigest md5;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+    }
+    String contentKey = ContentAddressedStore.getInstance(cc)
+        .putContent(new DigestInputStream(in, md5), cc);
+    return new StagedContent(contentKey, CommonFieldsBase.newMD5HashUri(md5));
+  }
+
   /**
    * Retrieve the content info for a given file. Access to the blob entity set
    * needs to be guarded by a task lock.
    * 
+   * The content is returned as a stream that fetches the blob parts as it is
+   * read. It is safe to read it after the lock is released because
+   * attachments are write-once.
+   * 
    * @param tableId
    * @param rowId
    * @param partialPath
@@ -116,17 +202,16 @@ public class InstanceFileManager {
         for (int i = 1; i <= count; ++i) {
           String path = instance.getUnrootedFilename(i, cc);
           if (path != null && path.equals(partialPath)) {
-            byte[] fileBlob = instance.getBlob(i, cc);
             String contentType = instance.getContentType(i, cc);
             String contentHash = instance.getContentHash(i, cc);
             Long contentLength = instance.getContentLength(i, cc);
 
             // And now prepare everything to be returned to the caller.
-            if (fileBlob != null && contentType != null && contentLength != null
-                && contentLength != 0L) {
+            if (contentType != null && contentLength != null && contentLength != 0L) {
 
+              InputStream fileStream = instance.getBlobInputStream(i, cc);
               FileContentInfo fo = new FileContentInfo(path, contentType, contentLength,
-                  contentHash, fileBlob);
+                  contentHash, fileStream);
               return fo;
             } else {
               return null;
@@ -162,7 +247,8 @@ public class InstanceFileManager {
   /**
    * Save a given file content under this tableId and rowId. Manipulations of
    * the blob entity set (which is being updated) needs to be guarded by a task
-   * lock.
+   * lock. Streamed content is read into the content-addressed store before
+   * that lock is taken.
    * 
    * @param tableId
    * @param rowId
@@ -175,7 +261,7 @@ public class InstanceFileManager {
    */
   public InstanceFileChangeDetail putFile(String tableId, String rowId, FileContentInfo fi,
       TablesUserPermissions userPermissions)
-      throws ODKDatastoreException, ODKTaskLockException, PermissionDeniedException {
+      throws IOException, ODKDatastoreException, ODKTaskLockException, PermissionDeniedException {
 
     try {
       if (tableId == null) {
@@ -192,8 +278,16 @@ public class InstanceFileManager {
 
       userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
 
+      // read the request body before taking the lock, so that a slow client
+      // does not hold up other changes to this row's attachments.
+      StagedContent staged = null;
+      if (fi.fileStream != null) {
+        staged = stageContent(fi.fileStream);
+      }
+
       OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, rowId,
           ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.LONG, cc);
+      boolean handedOver = false;
       try {
         propsLock.acquire();
 
@@ -209,21 +303,30 @@ public class InstanceFileManager {
 
         DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
         BlobEntitySet instance = blobStore.newBlobEntitySet(rowId, cc);
-        int count = instance.getAttachmentCount(cc);
-        for (int i = 1; i <= count; ++i) {
-          String path = instance.getUnrootedFilename(i, cc);
-          if (path != null && path.equals(fi.partialPath)) {
-            // we already have this in our store -- check that it is identical.
-            // if not, we have a problem!!!
-            if (fi.contentHash.equals(instance.getContentHash(i, cc))) {
-              return InstanceFileChangeDetail.FILE_PRESENT;
-            } else {
-              return InstanceFileChangeDetail.FILE_INCOMPATIBLE;
+        BlobSubmissionOutcome outcome;
+        if (staged != null) {
+          // addStoredContent() compares the hash against any existing file and
+          // reports FILE_UNCHANGED or NEW_FILE_VERSION without modifying that
+          // file.
+          outcome = instance.addStoredContent(staged.contentKey, staged.md5Hash, fi.contentType,
+              fi.partialPath, false, cc);
+          handedOver = true;
+        } else {
+          int count = instance.getAttachmentCount(cc);
+          for (int i = 1; i <= count; ++i) {
+            String path = instance.getUnrootedFilename(i, cc);
+            if (path != null && path.equals(fi.partialPath)) {
+              // we already have this in our store -- check that it is identical.
+              // if not, we have a problem!!!
+              if (fi.contentHash.equals(instance.getContentHash(i, cc))) {
+                return InstanceFileChangeDetail.FILE_PRESENT;
+              } else {
+                return InstanceFileChangeDetail.FILE_INCOMPATIBLE;
+              }
             }
           }
+          outcome = instance.addBlob(fi.fileBlob, fi.contentType, fi.partialPath, false, cc);
         }
-        BlobSubmissionOutcome outcome = instance.addBlob(fi.fileBlob, fi.contentType,
-            fi.partialPath, false, cc);
 
         switch (outcome) {
         case FILE_UNCHANGED:
@@ -238,6 +341,9 @@ public class InstanceFileManager {
 
       } finally {
         propsLock.release();
+        if (staged != null && !handedOver) {
+          ContentAddressedStore.getInstance(cc).removeReference(staged.contentKey, cc);
+        }
       }
     } catch (NullPointerException e) {
       e.printStackTrace();
@@ -308,13 +414,18 @@ public class InstanceFileManager {
           final int iSafe = i;
           FileContentInfo info = new FileContentInfo(instance.getUnrootedFilename(i, cc),
               instance.getContentType(i, cc), instance.getContentLength(i, cc),
-              instance.getContentHash(i, cc), null);
+              instance.getContentHash(i, cc), (byte[]) null);
 
           cb.processFileContent(info, new FetchBlobHandler() {
             @Override
             public byte[] getBlob() throws ODKDatastoreException {
               return instance.getBlob(iSafe, cc);
             }
+
+            @Override
+            public InputStream getBlobInputStream() throws ODKDatastoreException {
+              return instance.getBlobInputStream(iSafe, cc);
+            }
           });
         }
       } finally {
@@ -356,17 +467,12 @@ public class InstanceFileManager {
 
       userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
 
-      OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, rowId,
-          ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.LONG, cc);
-
+      // read every part of the request before taking the lock, so that a
+      // slow client does not hold up other changes to this row's attachments.
+      ODKTablesException e = null;
+      List<StagedFile> stagedFiles = new ArrayList<StagedFile>();
+      int handedOver = 0;
       try {
-        propsLock.acquire();
-
-        // fetch these once and then continue to re-use them.
-        DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
-        BlobEntitySet instance = blobStore.newBlobEntitySet(rowId, cc);
-
-        ODKTablesException e = null;
         // Parse the request
         while (inMP.hasNext()) {
           InPart part = inMP.next();
@@ -395,69 +501,63 @@ public class InstanceFileManager {
 
           String contentType = (headers != null) ? headers.getFirst("Content-Type") : null;
 
-          ByteArrayOutputStream bo = new ByteArrayOutputStream();
+          // stream the part into the content-addressed store. If we already
+          // have this content, this only adds a reference to it.
           InputStream bi = null;
           try {
             bi = new BufferedInputStream(part.getInputStream());
-            int length = 1024;
-            // Transfer bytes from in to out
-            byte[] data = new byte[length];
-            int len;
-            while ((len = bi.read(data, 0, length)) >= 0) {
-              if (len != 0) {
-                bo.write(data, 0, len);
-              }
-            }
+            stagedFiles.add(new StagedFile(partialPath, contentType, stageContent(bi)));
           } finally {
-            bi.close();
-          }
-          byte[] content = bo.toByteArray();
-          String md5Hash = PersistenceUtils.newMD5HashUri(content);
-
-          // we are adding one or more files -- delete any cached ETag value for
-          // this row's attachments manifest
-          try {
-            DbTableInstanceManifestETagEntity entity = DbTableInstanceManifestETags
-                .getRowIdEntry(tableId, rowId, cc);
-            entity.delete(cc);
-          } catch (ODKEntityNotFoundException ex) {
-            // ignore... it might already be deleted or have never existed
+            if (bi != null) {
+              bi.close();
+            }
           }
+        }
 
-          int count = instance.getAttachmentCount(cc);
-          boolean found = false;
-          for (int i = 1; i <= count; ++i) {
-            String path = instance.getUnrootedFilename(i, cc);
-            if (path != null && path.equals(partialPath)) {
-              // we already have this in our store -- check that it is
-              // identical.
-              // if not, we have a problem!!!
-              if (md5Hash.equals(instance.getContentHash(i, cc))) {
-                // no-op
-                found = true;
-              } else {
-                // this is an error case; indicated by setting exception
-                found = true;
-                e = new InstanceFileModificationException(
-                    ERROR_FILE_VERSION_DIFFERS + "\n" + partialPath);
-                break;
-              }
+        OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, rowId,
+            ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES, OdkTablesLockTemplate.DelayStrategy.LONG, cc);
+        try {
+          propsLock.acquire();
+
+          if (!stagedFiles.isEmpty()) {
+            // we are adding one or more files -- delete any cached ETag value
+            // for this row's attachments manifest
+            try {
+              DbTableInstanceManifestETagEntity entity = DbTableInstanceManifestETags
+                  .getRowIdEntry(tableId, rowId, cc);
+              entity.delete(cc);
+            } catch (ODKEntityNotFoundException ex) {
+              // ignore... it might already be deleted or have never existed
             }
           }
-          if (!found) {
-            BlobSubmissionOutcome outcome = instance.addBlob(content, contentType, partialPath,
-                false, cc);
+
+          DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
+          BlobEntitySet instance = blobStore.newBlobEntitySet(rowId, cc);
+
+          for (StagedFile f : stagedFiles) {
+            // if we already have this file in our store, this only reports
+            // whether or not the staged content is identical.
+            BlobSubmissionOutcome outcome = instance.addStoredContent(f.content.contentKey,
+                f.content.md5Hash, f.contentType, f.partialPath, false, cc);
+            ++handedOver;
             if (outcome == BlobSubmissionOutcome.NEW_FILE_VERSION) {
+              // this is an error case; indicated by setting exception
               e = new InstanceFileModificationException(
-                  ERROR_FILE_VERSION_DIFFERS + "\n" + partialPath);
+                  ERROR_FILE_VERSION_DIFFERS + "\n" + f.partialPath);
             }
           }
-        }
-        if (e != null) {
-          throw e;
+        } finally {
+          propsLock.release();
         }
       } finally {
-        propsLock.release();
+        // give up the staged content that was never handed over.
+        ContentAddressedStore store = ContentAddressedStore.getInstance(cc);
+        for (int i = handedOver; i < stagedFiles.size(); ++i) {
+          store.removeReference(stagedFiles.get(i).content.contentKey, cc);
+        }
+      }
+      if (e != null) {
+        throw e;
       }
     } catch (NullPointerException e) {
       e.printStackTrace();
@@ -479,4 +579,401 @@ public class InstanceFileManager {
       throw e;
     }
   }
+
+  /**
+   * Start a resumable upload of a row-level attachment. The content is then
+   * sent in one or more pieces with
+   * {@link #appendToUploadSession(String, String, String, long, InputStream, TablesUserPermissions)}
+   * and the attachment is saved by
+   * {@link #finishUploadSession(String, String, String, String, TablesUserPermissions)}.
+   *
+   * @param tableId
+   * @param rowId
+   * @param partialPath
+   * @param contentType
+   * @param contentLength
+   *          the length of the attachment, or null if not known.
+   * @param userPermissions
+   * @return the id of the upload session.
+   * @throws ODKDatastoreException
+   * @throws PermissionDeniedException
+   */
+  public String createUploadSession(String tableId, String rowId, String partialPath,
+      String contentType, Long contentLength, TablesUserPermissions userPermissions)
+      throws ODKDatastoreException, PermissionDeniedException {
+
+    if (tableId == null) {
+      throw new IllegalArgumentException("tableId cannot be null!");
+    }
+
+    if (rowId == null) {
+      throw new IllegalArgumentException("rowId cannot be null!");
+    }
+
+    if (partialPath == null) {
+      throw new IllegalArgumentException("partialPath cannot be null!");
+    }
+
+    if (contentType == null) {
+      throw new IllegalArgumentException("contentType cannot be null!");
+    }
+
+    if (contentLength != null && contentLength < 0L) {
+      throw new IllegalArgumentException("contentLength cannot be negative!");
+    }
+
+    userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
+
+    DbInstanceFileUploadSessionEntity session = DbInstanceFileUploadSessions.createNewEntity(cc);
+    session.setTableId(tableId);
+    session.setRowId(rowId);
+    session.setFilePath(partialPath);
+    session.setContentType(contentType);
+    session.setContentLength(contentLength);
+    session.put(cc);
+    return session.getId();
+  }
+
+  /**
+   * @return the session, if it exists for this row and was started by the
+   *         current user.
+   */
+  private DbInstanceFileUploadSessionEntity getUploadSession(String tableId, String rowId,
+      String sessionId) throws ODKDatastoreException, FileNotFoundException {
+    DbInstanceFileUploadSessionEntity session = DbInstanceFileUploadSessions.getSession(sessionId,
+        cc);
+    if (session == null || !session.getTableId().equals(tableId)
+        || !session.getRowId().equals(rowId)
+        || !session.getCreationUser().equals(cc.getCurrentUser().getUriUser())) {
+      throw new FileNotFoundException(ERROR_NO_UPLOAD_SESSION + sessionId);
+    }
+    return session;
+  }
+
+  private static OdkTablesLockTemplate newUploadSessionLock(String sessionId, CallingContext cc) {
+    return new OdkTablesLockTemplate(UPLOAD_SESSION_LOCK_PREFIX + sessionId,
+        ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+        OdkTablesLockTemplate.DelayStrategy.SHORT, cc);
+  }
+
+  /**
+   * @param tableId
+   * @param rowId
+   * @param sessionId
+   * @param userPermissions
+   * @return the number of bytes of the upload received so far.
+   * @throws ODKDatastoreException
+   * @throws ODKTablesException
+   */
+  public long getUploadOffset(String tableId, String rowId, String sessionId,
+      TablesUserPermissions userPermissions) throws ODKDatastoreException, ODKTablesException {
+    userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
+    return getUploadSession(tableId, rowId, sessionId).getCommittedOffset();
+  }
+
+  /**
+   * Add content to a resumable upload. offset must be the number of bytes
+   * received so far. The content is staged one part at a time as it arrives,
+   * and each part is recorded as received once it is written. If reading the
+   * content fails part-way, what was read is kept, so the client only needs to
+   * resend from the offset reported by
+   * {@link #getUploadOffset(String, String, String, TablesUserPermissions)}.
+   *
+   * @param tableId
+   * @param rowId
+   * @param sessionId
+   * @param offset
+   * @param content
+   * @param userPermissions
+   * @return the number of bytes of the upload received so far.
+   * @throws IOException
+   *           if the content could not be read.
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws ODKTablesException
+   *           UploadOffsetMismatchException if offset is not the number of
+   *           bytes received so far.
+   */
+  public long appendToUploadSession(String tableId, String rowId, String sessionId, long offset,
+      InputStream content, TablesUserPermissions userPermissions)
+      throws IOException, ODKDatastoreException, ODKTaskLockException, ODKTablesException {
+
+    userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
+
+    // fail fast, before reading any content
+    long committed = getUploadSession(tableId, rowId, sessionId).getCommittedOffset();
+    if (committed != offset) {
+      throw new UploadOffsetMismatchException(ERROR_UPLOAD_OFFSET_DIFFERS + committed, committed);
+    }
+
+    ContentAddressedStore store = ContentAddressedStore.getInstance(cc);
+    byte[] buffer = new byte[store.getStagedPartSize()];
+    for (;;) {
+      int len = 0;
+      int n = 0;
+      IOException readFailure = null;
+      try {
+        while (len < buffer.length && (n = content.read(buffer, len, buffer.length - len)) >= 0) {
+          len += n;
+        }
+      } catch (IOException e) {
+        readFailure = e;
+      }
+      if (len != 0) {
+        committed = stageUploadPart(tableId, rowId, sessionId, committed, buffer, len);
+      }
+      if (readFailure != null) {
+        throw readFailure;
+      }
+      if (n < 0) {
+        return committed;
+      }
+    }
+  }
+
+  private long stageUploadPart(String tableId, String rowId, String sessionId, long offset,
+      byte[] buffer, int len)
+      throws ODKDatastoreException, ODKTaskLockException, ODKTablesException {
+    OdkTablesLockTemplate sessionLock = newUploadSessionLock(sessionId, cc);
+    try {
+      sessionLock.acquire();
+
+      DbInstanceFileUploadSessionEntity session = getUploadSession(tableId, rowId, sessionId);
+      long committed = session.getCommittedOffset();
+      if (committed != offset) {
+        // another request added to the session in the meantime
+        throw new UploadOffsetMismatchException(ERROR_UPLOAD_OFFSET_DIFFERS + committed,
+            committed);
+      }
+      Long contentLength = session.getContentLength();
+      if (contentLength != null && offset + len > contentLength) {
+        throw new InstanceFileModificationException(ERROR_UPLOAD_TOO_LONG + contentLength);
+      }
+
+      long partCount = session.getPartCount();
+      ContentAddressedStore store = ContentAddressedStore.getInstance(cc);
+      store.truncateStagedParts(sessionId, partCount, cc);
+      store.putStagedPart(sessionId, partCount + 1L, buffer, len, cc);
+
+      session.setPartCount(partCount + 1L);
+      session.setCommittedOffset(offset + len);
+      session.put(cc);
+      return offset + len;
+    } finally {
+      sessionLock.release();
+    }
+  }
+
+  /**
+   * Complete a resumable upload and save its content as the attachment. The
+   * content is verified against contentHash; if it does not match, the upload
+   * is kept, so that content that has not been received yet (e.g., a final
+   * piece that was cut short) can still be appended. The client otherwise
+   * cancels it, or it is discarded once idle. The staged parts become the
+   * stored content as they are; if that content is already stored, they are
+   * discarded instead.
+   *
+   * @param tableId
+   * @param rowId
+   * @param sessionId
+   * @param contentHash
+   *          the md5 hash uri of the complete content.
+   * @param userPermissions
+   * @return FILE_PRESENT if the attachment now holds the content;
+   *         FILE_INCOMPATIBLE if a different file is already saved at that
+   *         path.
+   * @throws IOException
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws ODKTablesException
+   */
+  public InstanceFileChangeDetail finishUploadSession(String tableId, String rowId,
+      String sessionId, String contentHash, TablesUserPermissions userPermissions)
+      throws IOException, ODKDatastoreException, ODKTaskLockException, ODKTablesException {
+
+    if (contentHash == null) {
+      throw new IllegalArgumentException("contentHash cannot be null!");
+    }
+
+    userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
+
+    OdkTablesLockTemplate sessionLock = newUploadSessionLock(sessionId, cc);
+    try {
+      sessionLock.acquire();
+
+      DbInstanceFileUploadSessionEntity session = getUploadSession(tableId, rowId, sessionId);
+      long committed = session.getCommittedOffset();
+      Long contentLength = session.getContentLength();
+      if (contentLength != null && committed != contentLength) {
+        // the client can resume the upload
+        throw new InstanceFileModificationException(ERROR_UPLOAD_INCOMPLETE + committed);
+      }
+
+      ContentAddressedStore store = ContentAddressedStore.getInstance(cc);
+      store.truncateStagedParts(sessionId, session.getPartCount(), cc);
+
+      // read the staged content back once to compute its hashes.
+      MessageDigest sha256;
+      MessageDigest md5;
+      try {
+        sha256 = MessageDigest.getInstance("SHA-256");
+        md5 = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("Unexpected problem computing content hashes", e);
+      }
+      long length = 0L;
+      InputStream staged = store.getStagedContent(sessionId, cc);
+      try {
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = staged.read(buffer)) >= 0) {
+          sha256.update(buffer, 0, len);
+          md5.update(buffer, 0, len);
+          length += len;
+        }
+      } finally {
+        staged.close();
+      }
+      String md5Hash = CommonFieldsBase.newMD5HashUri(md5);
+
+      if (length != committed || !md5Hash.equalsIgnoreCase(contentHash)) {
+        // the client can resume or cancel the upload
+        throw new InstanceFileModificationException(ERROR_UPLOAD_HASH_DIFFERS + committed
+            + " with hash " + md5Hash);
+      }
+
+      // the parts are committed before the session is deleted: if the commit
+      // fails, the session still owns them and they are discarded when it is
+      // cancelled or goes idle. Once committed, deleteStagedParts() leaves
+      // them alone, so a session that outlives its commit is harmless.
+      String contentKey = ContentAddressedStore.newContentKey(sha256.digest(), length);
+      store.commitStagedParts(contentKey, sessionId, cc);
+
+      // the attachment takes over our reference to the content once
+      // addStoredContent returns; until then, it is ours to remove.
+      OdkTablesLockTemplate propsLock = new OdkTablesLockTemplate(tableId, rowId,
+          ODKTablesTaskLockType.TABLES_NON_PERMISSIONS_CHANGES,
+          OdkTablesLockTemplate.DelayStrategy.LONG, cc);
+      BlobSubmissionOutcome outcome;
+      boolean handedOver = false;
+      try {
+        session.delete(cc);
+
+        propsLock.acquire();
+
+        // we are adding a file -- delete any cached ETag value for this row's
+        // attachments manifest
+        try {
+          DbTableInstanceManifestETagEntity entity = DbTableInstanceManifestETags
+              .getRowIdEntry(tableId, rowId, cc);
+          entity.delete(cc);
+        } catch (ODKEntityNotFoundException e) {
+          // ignore...
+        }
+
+        DbTableInstanceFiles blobStore = new DbTableInstanceFiles(tableId, cc);
+        BlobEntitySet instance = blobStore.newBlobEntitySet(rowId, cc);
+        outcome = instance.addStoredContent(contentKey, md5Hash, session.getContentType(),
+            session.getFilePath(), false, cc);
+        handedOver = true;
+      } finally {
+        propsLock.release();
+        if (!handedOver) {
+          store.removeReference(contentKey, cc);
+        }
+      }
+
+      switch (outcome) {
+      case FILE_UNCHANGED:
+        return InstanceFileChangeDetail.FILE_PRESENT;
+      case NEW_FILE_VERSION:
+        return InstanceFileChangeDetail.FILE_INCOMPATIBLE;
+      case COMPLETELY_NEW_FILE:
+        return InstanceFileChangeDetail.FILE_PRESENT;
+      default:
+        throw new IllegalStateException("Unexpected extra status for BlobSubmissionOutcome");
+      }
+    } finally {
+      sessionLock.release();
+    }
+  }
+
+  /**
+   * Abandon a resumable upload and discard the content received so far.
+   *
+   * @param tableId
+   * @param rowId
+   * @param sessionId
+   * @param userPermissions
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws ODKTablesException
+   */
+  public void cancelUploadSession(String tableId, String rowId, String sessionId,
+      TablesUserPermissions userPermissions)
+      throws ODKDatastoreException, ODKTaskLockException, ODKTablesException {
+
+    userPermissions.checkPermission(appId, tableId, TablePermission.WRITE_ROW);
+
+    OdkTablesLockTemplate sessionLock = newUploadSessionLock(sessionId, cc);
+    try {
+      sessionLock.acquire();
+
+      getUploadSession(tableId, rowId, sessionId).delete(cc);
+      ContentAddressedStore.getInstance(cc).deleteStagedParts(sessionId, cc);
+    } finally {
+      sessionLock.release();
+    }
+  }
+
+  /**
+   * Discard the upload sessions that have not been added to for
+   * {@link #UPLOAD_SESSION_IDLE_MILLISECONDS}, along with the content they
+   * received. Called periodically by the watchdog.
+   *
+   * @param cc
+   * @return the number of sessions discarded.
+   * @throws ODKDatastoreException
+   */
+  public static int deleteIdleUploadSessions(CallingContext cc) throws ODKDatastoreException {
+    return deleteIdleUploadSessions(
+        new Date(System.currentTimeMillis() - UPLOAD_SESSION_IDLE_MILLISECONDS), cc);
+  }
+
+  /**
+   * Discard the upload sessions that have not been added to since cutoff.
+   *
+   * @param cutoff
+   * @param cc
+   * @return the number of sessions discarded.
+   * @throws ODKDatastoreException
+   */
+  static int deleteIdleUploadSessions(Date cutoff, CallingContext cc)
+      throws ODKDatastoreException {
+    int count = 0;
+    for (DbInstanceFileUploadSessionEntity idle : DbInstanceFileUploadSessions
+        .queryForIdleSessions(cutoff, cc)) {
+      String sessionId = idle.getId();
+      OdkTablesLockTemplate sessionLock = newUploadSessionLock(sessionId, cc);
+      try {
+        sessionLock.acquire();
+        try {
+          // re-check: the session may have been added to or finished since
+          // the query.
+          DbInstanceFileUploadSessionEntity session = DbInstanceFileUploadSessions
+              .getSession(sessionId, cc);
+          if (session != null && session.getLastUpdateDate().before(cutoff)) {
+            session.delete(cc);
+            ContentAddressedStore.getInstance(cc).deleteStagedParts(sessionId, cc);
+            ++count;
+          }
+        } finally {
+          sessionLock.release();
+        }
+      } catch (ODKTaskLockException e) {
+        // in use -- try again next time.
+      }
+    }
+    return count;
+  }
 }
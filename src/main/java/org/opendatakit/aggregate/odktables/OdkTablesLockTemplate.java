@@ -113,8 +113,10 @@ public class OdkTablesLockTemplate {
   }
 
   /**
-   * Tries up to 5 times to acquire the lock. If unsuccessful, throws an
-   * ODKTaskLockException.
+   * Tries up to 5 times to acquire the lock. Each attempt waits for the lock
+   * for the next backoff interval; native database locks wait on the server
+   * and the table-based fallback makes one attempt and sleeps. If
+   * unsuccessful, throws an ODKTaskLockException.
    *
    * @throws ODKTaskLockException
    */
@@ -123,20 +125,16 @@ public class OdkTablesLockTemplate {
     boolean acquired = false;
     maxBackoffMs = delay.getBaseBackOffTime();
     for (int i = 0; i < TRIES; i++) {
-      if (lock.obtainLock(lockId, tableId, type)) {
-        acquired = true;
-        break;
-      } else {
-        try {
-          long backOffTime = getNextBackoff();
-          log.info("acquire lock sleeping for: " + backOffTime);
-          Thread.sleep(backOffTime);
-        } catch (RuntimeException e) {
-          throw new ODKTaskLockException(e);
-        } catch (Exception e) {
-          throw new ODKTaskLockException(e);
+      long backOffTime = getNextBackoff();
+      try {
+        if (lock.obtainLock(lockId, tableId, type, backOffTime)) {
+          acquired = true;
+          break;
         }
+      } catch (RuntimeException e) {
+        throw new ODKTaskLockException(e);
       }
+      log.info("acquire lock waited for: " + backOffTime);
     }
     if (!acquired) {
       throw new ODKTaskLockException(
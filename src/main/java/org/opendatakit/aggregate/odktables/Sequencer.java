@@ -16,10 +16,19 @@
 
 package org.opendatakit.aggregate.odktables;
 
+import java.util.Date;
+
 import org.apache.commons.lang3.StringUtils;
+import org.opendatakit.aggregate.odktables.relation.DbLogTable;
+import org.opendatakit.aggregate.odktables.relation.DbTableEntry.DbTableEntryEntity;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
+import org.opendatakit.common.ermodel.Query;
+import org.opendatakit.common.ermodel.Query.WebsafeQueryResult;
+import org.opendatakit.common.persistence.SequenceAllocator;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.utils.WebUtils;
 import org.opendatakit.common.web.CallingContext;
 
 /**
@@ -28,10 +37,15 @@ import org.opendatakit.common.web.CallingContext;
  *
  * sequenceBase.counter
  *
- * Where sequenceBase is a value that is fetched, incremented and written to the
- * datastore via
- *
- * ServerPreferencesProperties.unsafeIncOdkTablesSequencerBase(cc).
+ * Where sequenceBase is the next value of the ODK Tables database sequence,
+ * interpreted as milliseconds since the epoch and formatted as an iso8601
+ * date. The sequence is atomic across servers sharing the database, so writes
+ * to different tables no longer serialize on a single settings row. The
+ * sequence is created, or its increment aligned, once per server by
+ * {@link #initializeSequence(CallingContext)}, normally at startup. When it is
+ * created, it starts after the legacy ODK_TABLES_SEQUENCER_BASE setting so that
+ * new values String-compare greater than those already stored, and that
+ * setting is moved forward to the starting value.
  *
  * This is obtained when the Sequencer is created, which is at the time the
  * update lock is obtained.
@@ -45,9 +59,37 @@ import org.opendatakit.common.web.CallingContext;
 public class Sequencer {
 
   private static final int DECIMAL_PLACES = 10;
+  private static final String SEQUENCE_NAME = "_odktables_sequencer";
+  private static volatile boolean sequenceReady = false;
   private final String sequenceBase;
   private int counter;
 
+  /**
+   * Create the ODK Tables database sequence if it does not exist, migrating
+   * from the legacy ODK_TABLES_SEQUENCER_BASE setting, or align the increment
+   * of the existing sequence. This issues DDL and only does work the first
+   * time it is called; it is called from the watchdog at startup.
+   *
+   * @param cc
+   * @throws ODKEntityNotFoundException
+   * @throws ODKOverQuotaException
+   * @throws ODKDatastoreException
+   */
+  public static synchronized void initializeSequence(CallingContext cc)
+      throws ODKEntityNotFoundException, ODKOverQuotaException, ODKDatastoreException {
+    if (sequenceReady) {
+      return;
+    }
+    SequenceAllocator allocator = cc.getDatastore().getSequenceAllocator(SEQUENCE_NAME,
+        cc.getCurrentUser());
+    long startValue = ServerPreferencesProperties.getOdkTablesSequencerStartValue(cc);
+    if (allocator.initialize(startValue)) {
+      ServerPreferencesProperties.setOdkTablesSequencerBase(cc,
+          WebUtils.iso8601Date(new Date(startValue)));
+    }
+    sequenceReady = true;
+  }
+
   /**
    * Obtain a sequencer from the datastore. Should be called immediately after
    * the update lock has been obtained, and released whenever the lock is
@@ -56,12 +98,52 @@ public class Sequencer {
    * @param cc
    * @throws ODKEntityNotFoundException
    * @throws ODKOverQuotaException
+   * @throws ODKDatastoreException
    */
-  Sequencer(CallingContext cc) throws ODKEntityNotFoundException, ODKOverQuotaException {
-    sequenceBase = ServerPreferencesProperties.unsafeIncOdkTablesSequencerBase(cc);
+  Sequencer(CallingContext cc)
+      throws ODKEntityNotFoundException, ODKOverQuotaException, ODKDatastoreException {
+    if (!sequenceReady) {
+      // the watchdog has not yet started (e.g., unit tests)
+      initializeSequence(cc);
+    }
+    SequenceAllocator allocator = cc.getDatastore().getSequenceAllocator(SEQUENCE_NAME,
+        cc.getCurrentUser());
+    sequenceBase = WebUtils.iso8601Date(new Date(allocator.nextValue()));
     counter = 0;
   }
 
+  /**
+   * Return a sequence value that compares greater than or equal to every
+   * _SEQUENCE_VALUE committed to the given table's log and less than that of
+   * any change not yet committed to it. Nothing is written to the database.
+   *
+   * Writers to a table hold its update lock from the time their Sequencer is
+   * created until they commit, so within a table, sequence order is commit
+   * order and the largest committed value is such a mark. Call this within
+   * the same snapshot transaction as the read it describes.
+   *
+   * @param logTable
+   * @param entry
+   *          the table entry; its apriori sequence value is the mark of a
+   *          table with no changes.
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  static String getHighWaterMark(DbLogTable logTable, DbTableEntryEntity entry,
+      CallingContext cc) throws ODKDatastoreException {
+    Query query = logTable.query("Sequencer.getHighWaterMark", cc);
+    // we need the filter to activate the sort for the sequence value
+    query.addFilter(DbLogTable.SEQUENCE_VALUE,
+        org.opendatakit.common.persistence.Query.FilterOperation.GREATER_THAN, " ");
+    query.sortDescending(DbLogTable.SEQUENCE_VALUE);
+    WebsafeQueryResult result = query.execute(null, 1);
+    if (result.entities == null || result.entities.isEmpty()) {
+      return entry.getAprioriDataSequenceValue();
+    }
+    return result.entities.get(0).getString(DbLogTable.SEQUENCE_VALUE);
+  }
+
   /**
    * Generate the next sequence value.
    *
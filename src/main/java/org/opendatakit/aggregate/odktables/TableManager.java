@@ -485,6 +485,7 @@ public class TableManager {
 
     // delete stale schema
     if ( tableEntry.getStaleSchemaETag() != null ) {
+      TableMetadataCache.invalidate(tableEntry.getId(), tableEntry.getStaleSchemaETag());
       // get the column schema
       List<DbColumnDefinitionsEntity> colDefs = DbColumnDefinitions.query(tableEntry.getId(), tableEntry.getStaleSchemaETag(), cc);
       // get the table definition
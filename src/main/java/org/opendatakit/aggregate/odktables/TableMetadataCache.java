@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendatakit.aggregate.odktables.relation.DbColumnDefinitions;
+import org.opendatakit.aggregate.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+import org.opendatakit.aggregate.odktables.relation.DbLogTable;
+import org.opendatakit.aggregate.odktables.relation.DbTable;
+import org.opendatakit.aggregate.odktables.relation.DbTableDefinitions;
+import org.opendatakit.aggregate.odktables.relation.DbTableDefinitions.DbTableDefinitionsEntity;
+import org.opendatakit.aggregate.odktables.relation.RowCodec;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Process-wide cache of the table definition, column definitions, the
+ * DbTable and DbLogTable relations and the RowCodec for a (tableId,
+ * schemaETag).
+ *
+ * A schema change always produces a new schemaETag, so a cached entry never
+ * goes stale; it simply stops being asked for and eventually ages out of the
+ * bounded LRU map. Callers must still read the DbTableEntry to learn the
+ * current schemaETag (and the dataETag, which changes on every write).
+ *
+ * The cached objects are shared across threads. The table and column
+ * definitions are read-only copies whose setters, put() and delete() throw.
+ * The relations and the RowCodec are fully built before they are cached and
+ * have no mutators.
+ *
+ * Hit and miss counts and the cache size are exported with the datastore
+ * metrics by {@link #writePrometheusText(Appendable)}.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class TableMetadataCache {
+
+  private static final int MAX_ENTRIES = 256;
+
+  public static final class TableMetadata {
+    private final DbTableDefinitionsEntity tableDefinition;
+    private final List<DbColumnDefinitionsEntity> columns;
+    private final DbTable table;
+    private final DbLogTable logTable;
+    private final RowCodec rowCodec;
+
+    private TableMetadata(DbTableDefinitionsEntity tableDefinition,
+        List<DbColumnDefinitionsEntity> columns, DbTable table, DbLogTable logTable) {
+      this.tableDefinition = tableDefinition;
+      this.columns = Collections.unmodifiableList(columns);
+      this.table = table;
+      this.logTable = logTable;
+      this.rowCodec = new RowCodec(columns, table, logTable);
+    }
+
+    public DbTableDefinitionsEntity getTableDefinition() {
+      return tableDefinition;
+    }
+
+    public List<DbColumnDefinitionsEntity> getColumns() {
+      return columns;
+    }
+
+    public DbTable getTable() {
+      return table;
+    }
+
+    public DbLogTable getLogTable() {
+      return logTable;
+    }
+
+    public RowCodec getRowCodec() {
+      return rowCodec;
+    }
+  }
+
+  private static final Map<String, TableMetadata> cache = new LinkedHashMap<String, TableMetadata>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, TableMetadata> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  private static final AtomicLong hitCount = new AtomicLong(0L);
+  private static final AtomicLong missCount = new AtomicLong(0L);
+
+  private TableMetadataCache() {
+  }
+
+  private static String key(String tableId, String schemaETag) {
+    return tableId + "\n" + schemaETag;
+  }
+
+  /**
+   * Get the metadata for the given tableId and schemaETag, building and
+   * caching it if it is not already present.
+   *
+   * @param tableId
+   * @param schemaETag
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public static TableMetadata get(String tableId, String schemaETag, CallingContext cc)
+      throws ODKDatastoreException {
+    String key = key(tableId, schemaETag);
+    synchronized (cache) {
+      TableMetadata metadata = cache.get(key);
+      if (metadata != null) {
+        hitCount.incrementAndGet();
+        return metadata;
+      }
+    }
+    missCount.incrementAndGet();
+
+    // build outside of the lock; concurrent misses may build it twice.
+    DbTableDefinitionsEntity tableDefn = DbTableDefinitions.getDefinition(tableId, schemaETag, cc);
+    List<DbColumnDefinitionsEntity> columns = DbColumnDefinitions.query(tableId, schemaETag, cc);
+    DbTable table = DbTable.getRelation(tableDefn, columns, cc);
+    DbLogTable logTable = DbLogTable.getRelation(tableDefn, columns, cc);
+    List<DbColumnDefinitionsEntity> readOnlyColumns = new ArrayList<DbColumnDefinitionsEntity>(
+        columns.size());
+    for (DbColumnDefinitionsEntity column : columns) {
+      readOnlyColumns.add(column.asReadOnly());
+    }
+    TableMetadata metadata = new TableMetadata(tableDefn.asReadOnly(), readOnlyColumns, table,
+        logTable);
+
+    // the definition queries report failures as empty results;
+    // don't remember those.
+    if (!columns.isEmpty()) {
+      synchronized (cache) {
+        cache.put(key, metadata);
+      }
+    }
+    return metadata;
+  }
+
+  /**
+   * Remove the metadata for the given tableId and schemaETag. Called when that
+   * version of the table is deleted.
+   *
+   * @param tableId
+   * @param schemaETag
+   */
+  public static void invalidate(String tableId, String schemaETag) {
+    synchronized (cache) {
+      cache.remove(key(tableId, schemaETag));
+    }
+  }
+
+  /**
+   * Remove all cached metadata for the given tableId.
+   *
+   * @param tableId
+   */
+  public static void invalidate(String tableId) {
+    String prefix = tableId + "\n";
+    synchronized (cache) {
+      Iterator<String> it = cache.keySet().iterator();
+      while (it.hasNext()) {
+        if (it.next().startsWith(prefix)) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  public static long getHitCount() {
+    return hitCount.get();
+  }
+
+  public static long getMissCount() {
+    return missCount.get();
+  }
+
+  public static int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /**
+   * Write the hit and miss counts and the number of cached entries in the
+   * Prometheus text exposition format.
+   *
+   * @param out
+   * @throws IOException
+   */
+  public static void writePrometheusText(Appendable out) throws IOException {
+    out.append("# HELP odk_table_metadata_cache_hits_total Table metadata cache hits.\n");
+    out.append("# TYPE odk_table_metadata_cache_hits_total counter\n");
+    out.append("odk_table_metadata_cache_hits_total ").append(Long.toString(getHitCount()))
+        .append('\n');
+    out.append("# HELP odk_table_metadata_cache_misses_total Table metadata cache misses.\n");
+    out.append("# TYPE odk_table_metadata_cache_misses_total counter\n");
+    out.append("odk_table_metadata_cache_misses_total ").append(Long.toString(getMissCount()))
+        .append('\n');
+    out.append("# HELP odk_table_metadata_cache_entries Table versions in the metadata cache.\n");
+    out.append("# TYPE odk_table_metadata_cache_entries gauge\n");
+    out.append("odk_table_metadata_cache_entries ").append(Integer.toString(size()))
+        .append('\n');
+  }
+}
@@ -16,12 +16,15 @@
 package org.opendatakit.aggregate.odktables.api;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
@@ -59,6 +62,12 @@ import org.opendatakit.common.persistence.exception.ODKTaskLockException;
  * <p>
  * These urls should be generated by a file manifest servlet on a table id
  * basis.
+ * <p>
+ * Large files can instead be uploaded in pieces that survive a lost
+ * connection: POST to upload_session/file/subpathToFile to start an upload
+ * session, PUT the content to the session (resuming at the Upload-Offset
+ * reported by a GET of the session), then POST to the session to save the
+ * file. Sessions that are abandoned are discarded after a day.
  *
  * @author sudar.sam@gmail.com
  *
@@ -81,6 +90,10 @@ public interface InstanceFileService {
   public static final String ERROR_MSG_INSUFFICIENT_PATH = "Not Enough Path Segments: must be at least 1.";
   public static final String ERROR_MSG_UNRECOGNIZED_APP_ID = "Unrecognized app id: ";
   public static final String ERROR_MSG_PATH_NOT_UNDER_APP_ID = "File path is not under app id: ";
+  public static final String ERROR_MSG_CONTENT_TYPE_EXPECTED = "Content-Type of the file expected.";
+  public static final String ERROR_MSG_INVALID_UPLOAD_LENGTH = "Invalid " + ApiConstants.UPLOAD_LENGTH_HEADER + " header.";
+  public static final String ERROR_MSG_INVALID_UPLOAD_OFFSET = "Missing or invalid " + ApiConstants.UPLOAD_OFFSET_HEADER + " header.";
+  public static final String ERROR_MSG_UPLOAD_CONTENT_HASH_EXPECTED = ApiConstants.UPLOAD_CONTENT_HASH_HEADER + " header expected.";
   public static final String MIME_TYPE_IMAGE_JPEG = "image/jpeg";
 
   @GET
@@ -132,6 +145,84 @@ public interface InstanceFileService {
   @POST
   @Path("file/{filePath:.*}")
   @Consumes({MediaType.MEDIA_TYPE_WILDCARD})
-  public Response putFile(@Context HttpServletRequest req, @PathParam("filePath") List<PathSegment> segments, byte[] content) throws IOException, ODKTaskLockException, PermissionDeniedException, ODKDatastoreException;
+  public Response putFile(@Context HttpServletRequest req, @PathParam("filePath") List<PathSegment> segments, InputStream content) throws IOException, ODKTaskLockException, PermissionDeniedException, ODKDatastoreException;
+
+  /**
+   * Start a resumable upload of the file. The Content-Type of the request is
+   * the content type of the file; the request has no body. If known, the
+   * length of the file should be given in the Upload-Length header.
+   * 
+   * @param req
+   * @param segments
+   * @return Status.CREATED with the Location of the upload session and an
+   *         Upload-Offset of 0.
+   * @throws ODKDatastoreException
+   * @throws ODKTablesException
+   */
+  @POST
+  @Path("upload_session/file/{filePath:.*}")
+  @Consumes({MediaType.MEDIA_TYPE_WILDCARD})
+  public Response createUploadSession(@Context HttpServletRequest req, @PathParam("filePath") List<PathSegment> segments) throws ODKDatastoreException, ODKTablesException;
+
+  /**
+   * @param sessionId
+   * @return the number of bytes received so far, in the Upload-Offset header.
+   * @throws ODKDatastoreException
+   * @throws ODKTablesException
+   */
+  @GET
+  @Path("upload_session/{sessionId}")
+  public Response getUploadOffset(@PathParam("sessionId") String sessionId) throws ODKDatastoreException, ODKTablesException;
+
+  /**
+   * Add the request body to the upload. The Upload-Offset header must give the
+   * number of bytes received so far; otherwise Status.CONFLICT is returned
+   * with that number in the Upload-Offset header. Bytes received before the
+   * connection is lost are kept.
+   * 
+   * @param req
+   * @param sessionId
+   * @param content
+   * @return the number of bytes received so far, in the Upload-Offset header.
+   * @throws IOException
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws ODKTablesException
+   */
+  @PUT
+  @Path("upload_session/{sessionId}")
+  @Consumes({MediaType.MEDIA_TYPE_WILDCARD})
+  public Response appendToUploadSession(@Context HttpServletRequest req, @PathParam("sessionId") String sessionId, InputStream content) throws IOException, ODKDatastoreException, ODKTaskLockException, ODKTablesException;
+
+  /**
+   * Complete the upload and save the file. The Upload-Content-Hash header must
+   * give the md5 hash uri of the complete file (md5:...). An upload that does
+   * not match it is kept, so that content that was not received can still be
+   * added; otherwise, it should be abandoned.
+   * 
+   * @param req
+   * @param sessionId
+   * @return Status.CREATED if the file is saved.
+   * @throws IOException
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws ODKTablesException
+   */
+  @POST
+  @Path("upload_session/{sessionId}")
+  public Response finishUploadSession(@Context HttpServletRequest req, @PathParam("sessionId") String sessionId) throws IOException, ODKDatastoreException, ODKTaskLockException, ODKTablesException;
+
+  /**
+   * Abandon the upload.
+   * 
+   * @param sessionId
+   * @return
+   * @throws ODKDatastoreException
+   * @throws ODKTaskLockException
+   * @throws ODKTablesException
+   */
+  @DELETE
+  @Path("upload_session/{sessionId}")
+  public Response cancelUploadSession(@PathParam("sessionId") String sessionId) throws ODKDatastoreException, ODKTaskLockException, ODKTablesException;
 
 }
@@ -21,6 +21,8 @@ import org.opendatakit.aggregate.odktables.impl.api.FileManifestServiceImpl;
 import org.opendatakit.aggregate.odktables.impl.api.FileServiceImpl;
 import org.opendatakit.aggregate.odktables.impl.api.TableServiceImpl;
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.TableSyncRequestList;
+import org.opendatakit.aggregate.odktables.rest.entity.TableSyncResultList;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
 
@@ -70,6 +72,29 @@ public interface OdkTables {
   public Response /*OK*/ postInstallationInfo(@Context ServletContext sc, @Context HttpServletRequest req, @Context HttpHeaders httpHeaders,
       @Context UriInfo info, @PathParam("appId") String appId, Object body) throws AppNameMismatchException, PermissionDeniedException, ODKDatastoreException, ODKTaskLockException;
 
+  /**
+   * Return the rows changed since the given dataETag for each of the listed
+   * tables, as getRowsSince would, in a single round trip. The tables are
+   * processed concurrently and the results are streamed in the order
+   * requested. Each result carries the HTTP status the individual request
+   * would have returned. The If-None-Match header applies to each table; a
+   * table whose rows ETag it lists is reported as 304 without rows.
+   *
+   * @param sc
+   * @param req
+   * @param httpHeaders
+   * @param info
+   * @param appId
+   * @param tables
+   * @return {@link TableSyncResultList}
+   */
+  @POST
+  @Path("{appId}/bulkSync")
+  @Consumes({MediaType.APPLICATION_JSON})
+  @Produces({MediaType.APPLICATION_JSON})
+  public Response /*TableSyncResultList*/ postBulkSync(@Context ServletContext sc, @Context HttpServletRequest req, @Context HttpHeaders httpHeaders,
+      @Context UriInfo info, @PathParam("appId") String appId, TableSyncRequestList tables) throws AppNameMismatchException, PermissionDeniedException, ODKDatastoreException, ODKTaskLockException;
+
   @Path("{appId}/manifest")
   public FileManifestServiceImpl getFileManifestService(@Context ServletContext sc, @Context HttpServletRequest req, @Context HttpHeaders httpHeaders,
       @Context UriInfo info, @PathParam("appId") String appId) throws AppNameMismatchException, PermissionDeniedException, ODKDatastoreException, ODKTaskLockException;
@@ -1,23 +1,21 @@
 package org.opendatakit.aggregate.odktables.entity.serialization;
 
 import java.io.ByteArrayOutputStream;
-import java.io.OutputStreamWriter;
-import java.math.BigInteger;
-import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.List;
 import java.util.Properties;
 
-import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.http.HttpStatus;
 import org.apache.wink.server.handlers.HandlersChain;
 import org.apache.wink.server.handlers.MessageContext;
 import org.apache.wink.server.handlers.ResponseHandler;
+import org.opendatakit.aggregate.odktables.impl.api.ETagUtils;
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -44,44 +42,24 @@ public class NotModifiedHandler implements ResponseHandler {
       
       // if the implementation provides an ETAG, do nothing. Otherwise
       // compute the ETAG from the md5hash of the JSON serialization of
-      // whatever the implementation is providing.
-
-      if (response.getEntity() != null && !response.getMetadata().containsKey(HttpHeaders.ETAG)) {
-        // This is extremely wasteful, but I don't see a way to avoid it
-        // given the handler stack structure and its lack of flexibility.
-
-        // write it to a byte array
+      // whatever the implementation is providing. Implementations that can
+      // derive an ETAG from dataETags, schemaETags or manifest ETags should
+      // do so, and test If-None-Match before building the entity.
+
+      // streamed responses are not buffered, so they have no ETAG.
+      if (response.getEntity() != null && !(response.getEntity() instanceof StreamingOutput)
+          && !response.getMetadata().containsKey(HttpHeaders.ETAG)) {
+        // Serialize the entity once, hashing it as it is written. Unless the
+        // response becomes NOT_MODIFIED, the bytes are handed to
+        // SimpleJSONMessageReaderWriter through a request attribute so that
+        // it writes them rather than serializing the entity again.
+        MessageDigest md = ETagUtils.newMD5Digest();
         ByteArrayOutputStream bas = new ByteArrayOutputStream(8192);
-        OutputStreamWriter w = new OutputStreamWriter(bas,
-            Charset.forName(ApiConstants.UTF8_ENCODE));
-
-        mapper.writeValue(w, response.getEntity());
-        // get the array and compute md5 hash
-        byte[] bytes = bas.toByteArray();
-        try {
-          MessageDigest md = MessageDigest.getInstance("MD5");
-          md.update(bytes);
-
-          byte[] messageDigest = md.digest();
-
-          BigInteger number = new BigInteger(1, messageDigest);
-          String md5 = number.toString(16);
-          while (md5.length() < 32)
-            md5 = "0" + md5;
-          eTag = "md5:" + md5;
-        } catch (NoSuchAlgorithmException e) {
-          throw new IllegalStateException("Unexpected problem computing md5 hash", e);
-        }
+        mapper.writeValue(new DigestOutputStream(bas, md), response.getEntity());
+        eTag = "md5:" + ETagUtils.toHex(md.digest());
 
         // check if there is an IF_NONE_MATCH header...
-        List<String> ifNoneMatchTags = context.getHttpHeaders().getRequestHeader(
-            HttpHeaders.IF_NONE_MATCH);
-        String ifNoneMatchTag = null;
-        if (ifNoneMatchTags != null && ifNoneMatchTags.size() > 0) {
-          ifNoneMatchTag = ifNoneMatchTags.get(0);
-        }
-
-        if (ifNoneMatchTag != null && eTag.equals(ifNoneMatchTag)) {
+        if (ETagUtils.ifNoneMatch(context.getHttpHeaders(), eTag)) {
           // OK -- we have a if-none-match header on the request that
           // matches the eTag of the entity that we would return.
           // Rewrite the response to be a NOT_MODIFIED response
@@ -89,10 +67,12 @@ public class NotModifiedHandler implements ResponseHandler {
           overrideWithNotModifiedStatus = true;
         } else {
           // just add the ETAG to the response...
-
-          ServletContext sc = (ServletContext) context.getAttributes().get(
-              ServletContext.class.getCanonicalName());
-          // sc.setAttribute(jsonBufferKey, new SimpleJSONMessageReaderWriter.JSONWrapper(bytes));
+          HttpServletRequest httpRequest = context.getAttribute(HttpServletRequest.class);
+          if (httpRequest != null) {
+            httpRequest.setAttribute(jsonBufferKey,
+                new SimpleJSONMessageReaderWriter.JSONWrapper(response.getEntity(),
+                    bas.toByteArray()));
+          }
 
           response.getMetadata().add(HttpHeaders.ETAG, eTag);
         }
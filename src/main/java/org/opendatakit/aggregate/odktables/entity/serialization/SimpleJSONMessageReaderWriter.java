@@ -16,10 +16,14 @@
 
 package org.opendatakit.aggregate.odktables.entity.serialization;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 
-import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
@@ -27,24 +31,23 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.ext.MessageBodyReader;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.StringWriter;
-import java.io.PrintWriter;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
-import java.nio.charset.Charset;
-import java.util.Enumeration;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.zip.GZIPInputStream;
 
 @Consumes({MediaType.APPLICATION_JSON})
@@ -53,12 +56,33 @@ import java.util.zip.GZIPInputStream;
 public class SimpleJSONMessageReaderWriter<T> implements MessageBodyReader<T>,
     MessageBodyWriter<T> {
 
+  private static final Log logger = LogFactory.getLog(SimpleJSONMessageReaderWriter.class);
+
   private static final ObjectMapper mapper = new ObjectMapper();
   private static final String DEFAULT_ENCODING = "utf-8";
 
+  // bytes of a request body retained for the log if it cannot be parsed
+  private static final int MAX_CAPTURED_BYTES = 4096;
+
+  private static final String REDACTED = "[redacted]";
+
+  // request headers whose values are never logged
+  private static final Set<String> CREDENTIAL_HEADERS = new TreeSet<String>(
+      String.CASE_INSENSITIVE_ORDER);
+  static {
+    CREDENTIAL_HEADERS.addAll(Arrays.asList("Authorization", "Proxy-Authorization", "Cookie",
+        "X-Api-Key", "X-Auth-Token", "X-Amz-Security-Token"));
+  }
+
+  /**
+   * The JSON serialization of a response entity, produced by
+   * NotModifiedHandler while computing its ETag.
+   */
   public static class JSONWrapper {
-    byte[] buffer;
-    public JSONWrapper(byte[] buffer) {
+    final Object entity;
+    final byte[] buffer;
+    public JSONWrapper(Object entity, byte[] buffer) {
+      this.entity = entity;
       this.buffer = buffer;
     }
   };
@@ -67,7 +91,7 @@ public class SimpleJSONMessageReaderWriter<T> implements MessageBodyReader<T>,
   private HttpHeaders headers;
 
   @Context
-  ServletContext context;
+  HttpServletRequest request;
 
   @Override
   public boolean isReadable(Class<?> type, Type genericType, Annotation annotations[],
@@ -79,62 +103,54 @@ public class SimpleJSONMessageReaderWriter<T> implements MessageBodyReader<T>,
   @Override
   public boolean isWriteable(Class<?> type, Type genericType, Annotation annotations[],
       MediaType mediaType) {
+    // streamed responses write their own JSON
+    if (StreamingOutput.class.isAssignableFrom(type)) {
+      return false;
+    }
     return mediaType.getType().equals(MediaType.APPLICATION_JSON_TYPE.getType())
         && mediaType.getSubtype().equals(MediaType.APPLICATION_JSON_TYPE.getSubtype());
   }
 
-   @Override
-    public T readFrom(Class<T> aClass, Type genericType, Annotation[] annotations,
-        MediaType mediaType, MultivaluedMap<String, String> map, InputStream stream)
-        throws IOException, WebApplicationException {
-        String encoding = getCharsetAsString(mediaType);
-        String requestBody = "";
+  @Override
+  public T readFrom(Class<T> aClass, Type genericType, Annotation[] annotations,
+      MediaType mediaType, MultivaluedMap<String, String> map, InputStream stream)
+      throws IOException, WebApplicationException {
+    String encoding = getCharsetAsString(mediaType);
+    if (!encoding.equalsIgnoreCase(DEFAULT_ENCODING)) {
+      throw new IOException("Charset for the request is not utf-8, received: " + encoding);
+    }
 
-        try {
-            if (!encoding.equalsIgnoreCase(DEFAULT_ENCODING)) {
-                throw new IllegalArgumentException("Charset for the request is not utf-8, received: " + encoding);
-            }
-
-            // Check if request body is compressed (gzip)
-            String contentEncoding = (headers != null && headers.getRequestHeaders().containsKey("Content-Encoding"))
-                    ? headers.getRequestHeaders().get("Content-Encoding").get(0) : null;
-            if ("gzip".equalsIgnoreCase(contentEncoding)) {
-                // System.out.println("Detected Gzipped request, decompressing...");
-                stream = new GZIPInputStream(stream);
-            }
-
-            // Read the InputStream into a String before parsing
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(stream, Charset.forName(ApiConstants.UTF8_ENCODE)));
-            StringBuilder rawInput = new StringBuilder();
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                rawInput.append(line).append("\n");
-            }
-            requestBody = rawInput.toString();
-
-            // System.out.println("Decompressed Request Body: " + requestBody);
-            return mapper.readValue(requestBody, aClass);
-        } catch (Exception e) {
-            System.err.println("Unexpected error while reading JSON: " + e.getMessage()); 
-            System.out.println("Received Encoding: " + encoding);            
-            if (headers != null) {
-                for (java.util.Map.Entry<String, List<String>> header : headers.getRequestHeaders().entrySet()) {
-                    System.out.println("Header: " + header.getKey() + " = " + String.join(", ", header.getValue()));
-                }
-            }
-            
-
-            // Log raw request body in case of an error
-            System.err.println("Raw Request Body (on error): " + requestBody);
-
-            // Log stack trace for debugging
-            StringWriter sw = new StringWriter();
-            e.printStackTrace(new PrintWriter(sw));
-            System.err.println(sw.toString());
-
-            throw new IOException("Error parsing JSON request: " + e.getMessage(), e);
-        }
+    // Check if request body is compressed (gzip)
+    String contentEncoding = (headers != null && headers.getRequestHeaders().containsKey("Content-Encoding"))
+        ? headers.getRequestHeaders().get("Content-Encoding").get(0) : null;
+
+    // Jackson parses directly from the stream; only the start of the body is
+    // retained, for the error report.
+    PrefixCapturingInputStream capture = null;
+    try {
+      if ("gzip".equalsIgnoreCase(contentEncoding)) {
+        stream = new GZIPInputStream(stream);
+      }
+      capture = new PrefixCapturingInputStream(stream, MAX_CAPTURED_BYTES);
+      return mapper.readValue(capture, aClass);
+    } catch (Exception e) {
+      StringBuilder b = new StringBuilder();
+      b.append("Error parsing JSON request for ").append(aClass.getSimpleName())
+          .append(": ").append(e.getMessage());
+      b.append("\nContent-Encoding: ").append(contentEncoding);
+      if (headers != null) {
+        appendRequestHeaders(b, headers.getRequestHeaders());
+      }
+      if (capture != null) {
+        b.append("\nRequest body (first ").append(capture.getCapturedLength())
+            .append(" of ").append(capture.getTotalLength()).append(" bytes read): ")
+            .append(capture.getCapturedText());
+      }
+      logger.error(b.toString(), e);
+
+      throw new IOException("Error parsing JSON request: " + e.getMessage(), e);
     }
+  }
 
   @Override
   public void writeTo(T o, Class<?> aClass, Type type, Annotation[] annotations,
@@ -152,38 +168,152 @@ public class SimpleJSONMessageReaderWriter<T> implements MessageBodyReader<T>,
        * am forced to do pre-processing. We only do this for JSON response path.
        */
       byte[] bytes = null;
-      {
-        Object obj = context.getAttribute(NotModifiedHandler.jsonBufferKey);
+      if ( request != null ) {
+        Object obj = request.getAttribute(NotModifiedHandler.jsonBufferKey);
         if ( obj != null && obj instanceof JSONWrapper ) {
           JSONWrapper wrapper = (JSONWrapper) obj;
-          bytes = wrapper.buffer;
+          request.removeAttribute(NotModifiedHandler.jsonBufferKey);
+          // only if it is the serialization of this entity
+          if ( wrapper.entity == o ) {
+            bytes = wrapper.buffer;
+          }
         }
       }
-      if ( bytes == null ) {
-        // write object to a byte array
-        ByteArrayOutputStream bas = new ByteArrayOutputStream(8192);
-        OutputStreamWriter w = new OutputStreamWriter(bas,
-            Charset.forName(ApiConstants.UTF8_ENCODE));
-        mapper.writeValue(w, o);
-        // get the array
-        bytes = bas.toByteArray();
-      }
-      /**
-       * OK. At this point, bytes[] holds the serialized response entity.
-       */
+
+      // headers must be set before the first byte is written
       map.putSingle(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION);
       map.putSingle("Access-Control-Allow-Origin", "*");
       map.putSingle("Access-Control-Allow-Credentials", "true");
 
-      rawStream.write(bytes);
-      rawStream.flush();
-      rawStream.close();
+      if ( bytes != null ) {
+        rawStream.write(bytes);
+        rawStream.flush();
+        rawStream.close();
+      } else {
+        // serialize directly onto the response stream. writeValue does not
+        // close the generator; closing it flushes it and, as above, closes
+        // the stream.
+        JsonGenerator g = mapper.getFactory().createGenerator(rawStream, JsonEncoding.UTF8);
+        try {
+          mapper.writeValue(g, o);
+        } finally {
+          g.close();
+        }
+      }
 
     } catch (Exception e) {
       throw new IOException(e);
     }
   }
 
+  /**
+   * Append the request headers to a log message, with the values of those
+   * that carry credentials replaced. For Authorization headers the scheme is
+   * kept.
+   *
+   * @param b
+   * @param requestHeaders
+   */
+  static void appendRequestHeaders(StringBuilder b, Map<String, List<String>> requestHeaders) {
+    for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+      b.append("\nHeader: ").append(header.getKey()).append(" = ");
+      if (!CREDENTIAL_HEADERS.contains(header.getKey())) {
+        b.append(String.join(", ", header.getValue()));
+        continue;
+      }
+      boolean first = true;
+      for (String value : header.getValue()) {
+        if (!first) {
+          b.append(", ");
+        }
+        first = false;
+        int idx = (value == null) ? -1 : value.trim().indexOf(' ');
+        if (idx > 0 && header.getKey().toLowerCase(Locale.ENGLISH).endsWith("authorization")) {
+          b.append(value.trim().substring(0, idx)).append(' ');
+        }
+        b.append(REDACTED);
+      }
+    }
+  }
+
+  /**
+   * Passes the stream through, retaining at most the first maxCapture bytes
+   * so that a request that fails to parse can be logged without buffering
+   * the whole body.
+   */
+  static final class PrefixCapturingInputStream extends FilterInputStream {
+    private final byte[] captured;
+    private int capturedLength = 0;
+    private long totalLength = 0L;
+
+    PrefixCapturingInputStream(InputStream in, int maxCapture) {
+      super(in);
+      this.captured = new byte[maxCapture];
+    }
+
+    private void capture(byte[] b, int off, int len) {
+      if (len > 0) {
+        int n = Math.min(len, captured.length - capturedLength);
+        if (n > 0) {
+          System.arraycopy(b, off, captured, capturedLength, n);
+          capturedLength += n;
+        }
+        totalLength += len;
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      int c = super.read();
+      if (c != -1) {
+        if (capturedLength < captured.length) {
+          captured[capturedLength++] = (byte) c;
+        }
+        ++totalLength;
+      }
+      return c;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      capture(b, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // route through read() so that skipped bytes are captured too
+      byte[] buf = new byte[(int) Math.min(n, 512L)];
+      long remaining = n;
+      while (remaining > 0) {
+        int r = read(buf, 0, (int) Math.min(remaining, buf.length));
+        if (r < 0) {
+          break;
+        }
+        remaining -= r;
+      }
+      return n - remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    int getCapturedLength() {
+      return capturedLength;
+    }
+
+    long getTotalLength() {
+      return totalLength;
+    }
+
+    String getCapturedText() {
+      return new String(captured, 0, capturedLength, StandardCharsets.UTF_8);
+    }
+  }
+
   @Override
   public long getSize(T arg0, Class<?> arg1, Type arg2, Annotation[] arg3, MediaType arg4) {
     return -1;
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables.exception;
+
+/**
+ * Thrown when content is sent to a resumable upload at an offset other than
+ * the number of bytes the server has already received.
+ */
+public class UploadOffsetMismatchException extends ODKTablesException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long committedOffset;
+
+  public UploadOffsetMismatchException(String message, long committedOffset) {
+    super(message);
+    this.committedOffset = committedOffset;
+  }
+
+  public long getCommittedOffset() {
+    return committedOffset;
+  }
+}
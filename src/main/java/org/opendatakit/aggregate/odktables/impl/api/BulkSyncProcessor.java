@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables.impl.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.aggregate.ContextFactory;
+import org.opendatakit.aggregate.odktables.api.DiffService;
+import org.opendatakit.aggregate.odktables.exception.ODKTablesException;
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.Error;
+import org.opendatakit.aggregate.odktables.rest.entity.Error.ErrorType;
+import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
+import org.opendatakit.aggregate.odktables.rest.entity.TableSyncRequest;
+import org.opendatakit.aggregate.odktables.rest.entity.TableSyncResult;
+import org.opendatakit.aggregate.odktables.rest.entity.TableSyncResultList;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.web.CallingContext;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.security.concurrent.DelegatingSecurityContextCallable;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Evaluates the tables of a bulk sync request concurrently and streams their
+ * results, in the order requested, as a single TableSyncResultList JSON
+ * document.
+ *
+ * Each table is processed through the same TableServiceImpl,
+ * RealizedTableServiceImpl and DiffServiceImpl chain as an individual
+ * getRowsSince request, with its own CallingContext and DataManager, on the
+ * bulk_sync_executor bean shared by all requests. At most
+ * {@link #MAX_CONCURRENT_TABLES_PER_REQUEST} tables of one request are in
+ * progress at a time, so one device cannot take every database connection.
+ * When the executor is saturated the request thread processes the table
+ * itself.
+ *
+ * The tables are processed while the response is being written, possibly
+ * after the resource method has returned, so everything they need from the
+ * request is resolved on the request thread: a CallingContext per table and
+ * detached copies of the UriInfo and HttpHeaders. The If-None-Match header
+ * of the bulk request applies to each table, so a table whose rows are
+ * unchanged is reported as 304 (Not Modified) without rows.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class BulkSyncProcessor {
+
+  private static final Log logger = LogFactory.getLog(BulkSyncProcessor.class);
+
+  /**
+   * Maximum number of tables in one bulk sync request.
+   */
+  public static final int MAX_TABLES_PER_REQUEST = 100;
+
+  /**
+   * Maximum number of tables of one request processed concurrently.
+   */
+  public static final int MAX_CONCURRENT_TABLES_PER_REQUEST = 4;
+
+  private static final int DEFAULT_FETCH_LIMIT = 2000;
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private final AsyncTaskExecutor executor;
+  private final ServletContext sc;
+  private final HttpServletRequest req;
+  private final HttpHeaders httpHeaders;
+  private final UriInfo info;
+  private final String appId;
+
+  /**
+   * Must be constructed on the request thread.
+   *
+   * @param executor
+   *          the bulk_sync_executor bean
+   * @param sc
+   * @param req
+   *          only used by {@link #process(List, Integer)}
+   * @param httpHeaders
+   * @param info
+   * @param appId
+   */
+  public BulkSyncProcessor(AsyncTaskExecutor executor, ServletContext sc, HttpServletRequest req,
+      HttpHeaders httpHeaders, UriInfo info, String appId) {
+    this.executor = executor;
+    this.sc = sc;
+    this.req = req;
+    this.httpHeaders = RequestSnapshot.httpHeaders(httpHeaders);
+    this.info = RequestSnapshot.uriInfo(info);
+    this.appId = appId;
+  }
+
+  /**
+   * Start processing the tables and return the streaming response. Must be
+   * called on the request thread.
+   *
+   * @param tables
+   * @param fetchLimit
+   *          maximum rows per table, or null for the default.
+   * @return
+   */
+  public Response process(final List<TableSyncRequest> tables, Integer fetchLimit) {
+    if (tables.size() > MAX_TABLES_PER_REQUEST) {
+      return Response.status(Response.Status.BAD_REQUEST)
+          .entity(new Error(ErrorType.BAD_REQUEST, "At most " + MAX_TABLES_PER_REQUEST
+              + " tables may be requested at once"))
+          .type(MediaType.APPLICATION_JSON_TYPE)
+          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+          .header("Access-Control-Allow-Origin", "*")
+          .header("Access-Control-Allow-Credentials", "true").build();
+    }
+    final String limit = Integer.toString((fetchLimit == null || fetchLimit <= 0)
+        ? DEFAULT_FETCH_LIMIT : fetchLimit);
+
+    // Each table gets its own CallingContext, built here on the request
+    // thread; the tasks run as the requesting user.
+    final List<Callable<TableSyncResult>> tasks = new ArrayList<Callable<TableSyncResult>>();
+    for (final TableSyncRequest t : tables) {
+      final CallingContext cc = ContextFactory.getCallingContext(sc, req);
+      tasks.add(new DelegatingSecurityContextCallable<TableSyncResult>(
+          new Callable<TableSyncResult>() {
+            @Override
+            public TableSyncResult call() {
+              return syncTable(t, limit, cc);
+            }
+          }, SecurityContextHolder.getContext()));
+    }
+
+    final List<Future<TableSyncResult>> futures = new ArrayList<Future<TableSyncResult>>();
+    while (futures.size() < tasks.size() && futures.size() < MAX_CONCURRENT_TABLES_PER_REQUEST) {
+      futures.add(executor.submit(tasks.get(futures.size())));
+    }
+
+    StreamingOutput body = new StreamingOutput() {
+      @Override
+      public void write(OutputStream output) throws IOException, WebApplicationException {
+        JsonGenerator g = mapper.getFactory().createGenerator(output, JsonEncoding.UTF8);
+        try {
+          g.writeStartObject();
+          g.writeArrayFieldStart(TableSyncResultList.TABLES);
+          for (int i = 0; i < tasks.size(); ++i) {
+            TableSyncResult result = awaitResult(futures.get(i), tables.get(i));
+            // keep the window of in-progress tables full
+            if (futures.size() < tasks.size()) {
+              futures.add(executor.submit(tasks.get(futures.size())));
+            }
+            mapper.writeValue(g, result);
+            g.flush();
+          }
+          g.writeEndArray();
+          g.writeEndObject();
+          g.flush();
+        } finally {
+          // if the client went away, don't leave the remaining tables queued
+          for (Future<TableSyncResult> f : futures) {
+            f.cancel(false);
+          }
+          g.close();
+        }
+      }
+    };
+
+    return Response.ok(body).type(MediaType.APPLICATION_JSON_TYPE)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  private TableSyncResult awaitResult(Future<TableSyncResult> future, TableSyncRequest t) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return errorResult(t, Response.Status.SERVICE_UNAVAILABLE.getStatusCode(),
+          new Error(ErrorType.INTERNAL_ERROR, "Interrupted"));
+    } catch (ExecutionException e) {
+      // syncTable catches everything it can
+      logger.error("Unexpected failure syncing table " + t.getTableId(), e.getCause());
+      return errorResult(t, Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(),
+          new Error(ErrorType.INTERNAL_ERROR, String.valueOf(e.getCause())));
+    }
+  }
+
+  private static TableSyncResult errorResult(TableSyncRequest t, int status, Error error) {
+    return new TableSyncResult(t.getTableId(), t.getSchemaETag(), status, error, null);
+  }
+
+  private static TableSyncResult errorResult(TableSyncRequest t, Response r) {
+    Object entity = r.getEntity();
+    return errorResult(t, r.getStatus(), (entity instanceof Error) ? (Error) entity : null);
+  }
+
+  /**
+   * Runs on an executor thread (or the request thread). Failures are
+   * reported as the error response the equivalent single-table request
+   * would have returned.
+   */
+  private TableSyncResult syncTable(TableSyncRequest t, String limit, CallingContext cc) {
+    MediaType type = MediaType.APPLICATION_JSON_TYPE;
+    try {
+      if (t.getTableId() == null || t.getSchemaETag() == null) {
+        return errorResult(t, Response.Status.BAD_REQUEST.getStatusCode(),
+            new Error(ErrorType.BAD_REQUEST, "tableId and schemaETag must be specified"));
+      }
+      // the servlet request is not used on this path, and must not be: it may
+      // already have completed.
+      TableServiceImpl ts = new TableServiceImpl(sc, null, httpHeaders, info, appId,
+          t.getTableId(), cc);
+      DiffService diff = ts.getRealizedTable(t.getSchemaETag()).getDiff();
+      Response r = diff.getRowsSince(t.getDataETag(), null, t.getCursor(), limit);
+      if (r.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+        // the client already has these rows
+        return new TableSyncResult(t.getTableId(), t.getSchemaETag(), r.getStatus(), null, null);
+      }
+      if (!(r.getEntity() instanceof RowResourceList)) {
+        return errorResult(t, r);
+      }
+      return new TableSyncResult(t.getTableId(), t.getSchemaETag(), r.getStatus(), null,
+          (RowResourceList) r.getEntity());
+    } catch (ODKTablesException e) {
+      return errorResult(t, new ODKTablesExceptionMapper(type).toResponse(e));
+    } catch (ODKTaskLockException e) {
+      return errorResult(t, new ODKTaskLockExceptionMapper(type).toResponse(e));
+    } catch (ODKDatastoreException e) {
+      return errorResult(t, new ODKDatastoreExceptionMapper(type).toResponse(e));
+    } catch (RuntimeException e) {
+      return errorResult(t, new RuntimeExceptionMapper(type).toResponse(e));
+    }
+  }
+}
@@ -20,14 +20,17 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeSet;
 
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
 import org.opendatakit.aggregate.odktables.DataManager;
 import org.opendatakit.aggregate.odktables.DataManager.WebsafeRows;
+import org.opendatakit.aggregate.odktables.DataManager.NotModifiedCheck;
 import org.opendatakit.aggregate.odktables.api.DataService;
 import org.opendatakit.aggregate.odktables.api.DiffService;
 import org.opendatakit.aggregate.odktables.api.OdkTables;
@@ -46,33 +49,77 @@ import org.opendatakit.common.persistence.QueryResumePoint;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
 import org.opendatakit.common.utils.WebUtils;
 import org.opendatakit.common.web.CallingContext;
+import org.springframework.security.core.GrantedAuthority;
 
 public class DiffServiceImpl implements DiffService {
   private final String schemaETag;
   private final DataManager dm;
   private final UriInfo info;
+  private final HttpHeaders httpHeaders;
+  private final CallingContext cc;
 
-  public DiffServiceImpl(String appId, String tableId, String schemaETag, UriInfo info, TablesUserPermissions userPermissions, CallingContext cc)
+  public DiffServiceImpl(String appId, String tableId, String schemaETag, UriInfo info, HttpHeaders httpHeaders, TablesUserPermissions userPermissions, CallingContext cc)
       throws ODKEntityNotFoundException, ODKDatastoreException {
     this.schemaETag = schemaETag;
     this.dm = new DataManager(appId, tableId, userPermissions, cc);
     this.info = info;
+    this.httpHeaders = httpHeaders;
+    this.cc = cc;
+  }
+
+  /**
+   * The rows returned by getRowsSince are a function of the table's dataETag,
+   * the request parameters and the rows the user may see, which depend on the
+   * user and the table's acls.
+   */
+  private String getRowsSinceETag(String currentDataETag, String aclETag, String dataETag,
+      boolean isActive, String cursor, int limit) {
+    User user = cc.getCurrentUser();
+    TreeSet<String> authorities = new TreeSet<String>();
+    for (GrantedAuthority a : user.getAuthorities()) {
+      authorities.add(a.getAuthority());
+    }
+    return ETagUtils.domainETag("rows", info.getBaseUri().toString(), dm.getAppId(),
+        dm.getTableId(), schemaETag, currentDataETag, aclETag, dataETag,
+        Boolean.toString(isActive), cursor, Integer.toString(limit), user.getUriUser(),
+        authorities.toString());
   }
 
   @Override
-  public Response getRowsSince(@QueryParam(QUERY_DATA_ETAG) String dataETag, @QueryParam(CURSOR_PARAMETER) String cursor, @QueryParam(FETCH_LIMIT) String fetchLimit) throws ODKDatastoreException,
+  public Response getRowsSince(@QueryParam(QUERY_DATA_ETAG) final String dataETag, @QueryParam(QUERY_ACTIVE_ONLY) String isActive, @QueryParam(CURSOR_PARAMETER) final String cursor, @QueryParam(FETCH_LIMIT) String fetchLimit) throws ODKDatastoreException,
       PermissionDeniedException, InconsistentStateException, ODKTaskLockException, BadColumnNameException {
-    int limit = (fetchLimit == null || fetchLimit.length() == 0) ? 2000 : Integer.valueOf(fetchLimit);
-    WebsafeRows websafeResult = dm.getRowsSince(dataETag, QueryResumePoint.fromWebsafeCursor(WebUtils.safeDecode(cursor)), limit);
+    final int limit = (fetchLimit == null || fetchLimit.length() == 0) ? 2000 : Integer.valueOf(fetchLimit);
+    final boolean bIsActive = (isActive == null || isActive.length() == 0 || !isActive.equalsIgnoreCase("true"))
+        ? false : true;
+    // test If-None-Match against the versions of the snapshot the rows would
+    // be read from, before reading them
+    NotModifiedCheck check = null;
+    if (httpHeaders != null && httpHeaders.getRequestHeader(HttpHeaders.IF_NONE_MATCH) != null) {
+      check = new NotModifiedCheck() {
+        @Override
+        public boolean isNotModified(String currentDataETag, String aclETag) {
+          return ETagUtils.ifNoneMatch(httpHeaders,
+              getRowsSinceETag(currentDataETag, aclETag, dataETag, bIsActive, cursor, limit));
+        }
+      };
+    }
+    WebsafeRows websafeResult = dm.getRowsSince(dataETag, bIsActive, QueryResumePoint.fromWebsafeCursor(WebUtils.safeDecode(cursor)), limit, check);
+    // the versions of the snapshot the rows were read from
+    String eTag = getRowsSinceETag(websafeResult.dataETag, websafeResult.aclETag, dataETag,
+        bIsActive, cursor, limit);
+    if (websafeResult.notModified) {
+      return ETagUtils.notModified(eTag);
+    }
     RowResourceList rowResourceList = new RowResourceList(getResources(websafeResult.rows),
         websafeResult.dataETag, getTableUri(),
         WebUtils.safeEncode(websafeResult.websafeRefetchCursor),
         WebUtils.safeEncode(websafeResult.websafeBackwardCursor),
         WebUtils.safeEncode(websafeResult.websafeResumeCursor),
         websafeResult.hasMore, websafeResult.hasPrior);
-    return Response.ok(rowResourceList)
+    return Response.ok(rowResourceList).header(HttpHeaders.ETAG, eTag)
         .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
         .header("Access-Control-Allow-Origin", "*")
         .header("Access-Control-Allow-Credentials", "true").build();
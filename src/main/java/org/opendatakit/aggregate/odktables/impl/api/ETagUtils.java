@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables.impl.api;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+
+/**
+ * ETag helpers for the odktables API.
+ *
+ * An ETag derived from the versions the response is built from (schemaETag,
+ * dataETag, manifest ETag) can be compared against If-None-Match before the
+ * response entity is constructed. Responses without such an ETag get one from
+ * the md5 hash of their JSON serialization in NotModifiedHandler.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class ETagUtils {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private ETagUtils() {
+  }
+
+  public static MessageDigest newMD5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+    }
+  }
+
+  /**
+   * @param digest
+   * @return the digest as lower-case hex, with leading zeros.
+   */
+  public static String toHex(byte[] digest) {
+    char[] chars = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; ++i) {
+      chars[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+      chars[2 * i + 1] = HEX[digest[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Compute an ETag from the domain versions and request parameters a
+   * response is a function of.
+   *
+   * @param kind
+   *          prefix identifying the kind of response.
+   * @param parts
+   *          the values the response depends upon; nulls are allowed.
+   * @return kind:md5-of-parts
+   */
+  public static String domainETag(String kind, String... parts) {
+    MessageDigest md = newMD5Digest();
+    for (String part : parts) {
+      if (part == null) {
+        md.update((byte) 0);
+      } else {
+        md.update(part.getBytes(StandardCharsets.UTF_8));
+      }
+      md.update((byte) '\n');
+    }
+    return kind + ":" + toHex(md.digest());
+  }
+
+  /**
+   * @param httpHeaders
+   * @param eTag
+   * @return true if the request has an If-None-Match header listing the eTag
+   *         (or *).
+   */
+  public static boolean ifNoneMatch(HttpHeaders httpHeaders, String eTag) {
+    if (httpHeaders == null) {
+      return false;
+    }
+    return ifNoneMatch(httpHeaders.getRequestHeader(HttpHeaders.IF_NONE_MATCH), eTag);
+  }
+
+  /**
+   * @param ifNoneMatchTags
+   *          the values of the If-None-Match request headers, or null.
+   * @param eTag
+   * @return true if the eTag (or *) is listed.
+   */
+  static boolean ifNoneMatch(List<String> ifNoneMatchTags, String eTag) {
+    if (ifNoneMatchTags == null || eTag == null) {
+      return false;
+    }
+    for (String header : ifNoneMatchTags) {
+      if (header == null) {
+        continue;
+      }
+      if (header.equals(eTag)) {
+        return true;
+      }
+      for (String tag : header.split(",")) {
+        tag = tag.trim();
+        if (tag.equals(eTag) || tag.equals("*")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  public static Response notModified(String eTag) {
+    return Response.status(Status.NOT_MODIFIED).header(HttpHeaders.ETAG, eTag)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+}
@@ -16,6 +16,8 @@
 package org.opendatakit.aggregate.odktables.impl.api;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
@@ -32,6 +34,7 @@ import javax.ws.rs.core.PathSegment;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
@@ -57,7 +60,7 @@ import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifest;
 import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifestEntry;
 import org.opendatakit.aggregate.odktables.security.TablesUserPermissions;
-import org.opendatakit.common.persistence.PersistenceUtils;
+import org.opendatakit.common.persistence.blob.BlobInputStream;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKTaskLockException;
@@ -253,11 +256,12 @@ public class InstanceFileServiceImpl implements InstanceFileService {
       FileContentInfo fi = fm.getFile(tableId, rowId, partialPath, userPermissions);
       if (fi != null) {
         // And now prepare everything to be returned to the caller.
-        if (fi.fileBlob != null && fi.contentType != null && fi.contentLength != null
+        if (fi.fileStream != null && fi.contentType != null && fi.contentLength != null
             && fi.contentLength != 0L) {
 
           // test if we should return a NOT_MODIFIED response...
           if (eTag != null && eTag.equals(fi.contentHash)) {
+            fi.fileStream.close();
             return Response.status(Status.NOT_MODIFIED).header(HttpHeaders.ETAG, eTag)
                 .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER,
                     ApiConstants.OPEN_DATA_KIT_VERSION)
@@ -265,7 +269,23 @@ public class InstanceFileServiceImpl implements InstanceFileService {
                 .header("Access-Control-Allow-Credentials", "true").build();
           }
 
-          ResponseBuilder rBuild = Response.ok(fi.fileBlob, fi.contentType)
+          // the content is streamed to the client part by part, or, if it is
+          // held in the blob store, handed to the store to write.
+          Object entity = fi.fileStream;
+          if (fi.fileStream instanceof BlobInputStream) {
+            final BlobInputStream blobStream = (BlobInputStream) fi.fileStream;
+            entity = new StreamingOutput() {
+              @Override
+              public void write(OutputStream output) throws IOException {
+                try {
+                  blobStream.transferTo(output);
+                } finally {
+                  blobStream.close();
+                }
+              }
+            };
+          }
+          ResponseBuilder rBuild = Response.ok(entity, fi.contentType)
               .header(HttpHeaders.ETAG, fi.contentHash)
               .header(HttpHeaders.CONTENT_LENGTH, fi.contentLength)
               .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
@@ -368,17 +388,20 @@ public class InstanceFileServiceImpl implements InstanceFileService {
             if (content.contentType != null && content.contentLength != null
                 && content.contentLength != 0L) {
 
-              // get content
-              byte[] fileBlob;
+              // get a stream over the content. Only the part references are
+              // read, and checked, here; the content is streamed from the
+              // database as the response is written, after the lock has been
+              // released.
+              InputStream fileStream;
               try {
-                fileBlob = fetcher.getBlob();
+                fileStream = fetcher.getBlobInputStream();
               } catch (ODKDatastoreException e) {
                 e.printStackTrace();
                 // silently ignore this -- error in this record
-                fileBlob = null;
+                fileStream = null;
               }
 
-              if (fileBlob != null) {
+              if (fileStream != null) {
                 // we got the content -- create an OutPart to hold it
                 OutPart op = new OutPart();
                 op.addHeader("Name", "file-" + Integer.toString(entryIndex));
@@ -386,7 +409,7 @@ public class InstanceFileServiceImpl implements InstanceFileService {
                     + "\"";
                 op.addHeader(HtmlConsts.CONTENT_DISPOSITION, disposition);
                 op.addHeader(HttpHeaders.CONTENT_TYPE, content.contentType);
-                op.setBody(fileBlob);
+                op.setBody(fileStream);
                 outParts[entryIndex] = op;
               }
             }
@@ -442,7 +465,7 @@ public class InstanceFileServiceImpl implements InstanceFileService {
 
   @Override
   public Response putFile(@Context HttpServletRequest req,
-      @PathParam("filePath") List<PathSegment> segments, byte[] content)
+      @PathParam("filePath") List<PathSegment> segments, InputStream content)
       throws IOException, ODKTaskLockException, PermissionDeniedException, ODKDatastoreException {
 
     if (segments.size() < 1) {
@@ -459,12 +482,12 @@ public class InstanceFileServiceImpl implements InstanceFileService {
     // appid/data/attachments/tableid/instances/instanceId/rest/of/path
     String partialPath = constructPathFromSegments(segments);
     String contentType = req.getContentType();
-    String md5Hash = PersistenceUtils.newMD5HashUri(content);
 
     InstanceFileManager fm = new InstanceFileManager(appId, cc);
 
-    FileContentInfo fi = new FileContentInfo(partialPath, contentType, (long) content.length,
-        md5Hash, content);
+    // the content is written to the datastore as it arrives;
+    // its length and md5 hash are computed along the way.
+    FileContentInfo fi = new FileContentInfo(partialPath, contentType, null, null, content);
     InstanceFileChangeDetail outcome = fm.putFile(tableId, rowId, fi, userPermissions);
 
     UriBuilder ub = info.getBaseUriBuilder();
@@ -495,6 +518,144 @@ public class InstanceFileServiceImpl implements InstanceFileService {
     }
   }
 
+  @Override
+  public Response createUploadSession(@Context HttpServletRequest req,
+      @PathParam("filePath") List<PathSegment> segments)
+      throws ODKDatastoreException, ODKTablesException {
+
+    if (segments.size() < 1) {
+      return badRequest(InstanceFileService.ERROR_MSG_INSUFFICIENT_PATH);
+    }
+    String partialPath = constructPathFromSegments(segments);
+    String contentType = req.getContentType();
+    if (contentType == null) {
+      return badRequest(InstanceFileService.ERROR_MSG_CONTENT_TYPE_EXPECTED);
+    }
+    Long contentLength = null;
+    String lengthHeader = req.getHeader(ApiConstants.UPLOAD_LENGTH_HEADER);
+    if (lengthHeader != null) {
+      contentLength = parseUploadHeader(lengthHeader);
+      if (contentLength == null) {
+        return badRequest(InstanceFileService.ERROR_MSG_INVALID_UPLOAD_LENGTH);
+      }
+    }
+
+    InstanceFileManager fm = new InstanceFileManager(appId, cc);
+    String sessionId = fm.createUploadSession(tableId, rowId, partialPath, contentType,
+        contentLength, userPermissions);
+
+    UriBuilder ub = info.getBaseUriBuilder();
+    ub.path(OdkTables.class, "getTablesService");
+
+    URI session = ub.clone().path(TableService.class, "getRealizedTable")
+        .path(RealizedTableService.class, "getInstanceFiles")
+        .path(InstanceFileService.class, "getUploadOffset")
+        .build(appId, tableId, schemaETag, rowId, sessionId);
+
+    return Response.status(Status.CREATED).header("Location", session.toString())
+        .header(ApiConstants.UPLOAD_OFFSET_HEADER, "0")
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  @Override
+  public Response getUploadOffset(@PathParam("sessionId") String sessionId)
+      throws ODKDatastoreException, ODKTablesException {
+
+    InstanceFileManager fm = new InstanceFileManager(appId, cc);
+    long offset = fm.getUploadOffset(tableId, rowId, sessionId, userPermissions);
+    return uploadOffset(Status.OK, offset);
+  }
+
+  @Override
+  public Response appendToUploadSession(@Context HttpServletRequest req,
+      @PathParam("sessionId") String sessionId, InputStream content)
+      throws IOException, ODKDatastoreException, ODKTaskLockException, ODKTablesException {
+
+    Long offset = parseUploadHeader(req.getHeader(ApiConstants.UPLOAD_OFFSET_HEADER));
+    if (offset == null) {
+      return badRequest(InstanceFileService.ERROR_MSG_INVALID_UPLOAD_OFFSET);
+    }
+
+    InstanceFileManager fm = new InstanceFileManager(appId, cc);
+    long committed = fm.appendToUploadSession(tableId, rowId, sessionId, offset, content,
+        userPermissions);
+    return uploadOffset(Status.OK, committed);
+  }
+
+  @Override
+  public Response finishUploadSession(@Context HttpServletRequest req,
+      @PathParam("sessionId") String sessionId)
+      throws IOException, ODKDatastoreException, ODKTaskLockException, ODKTablesException {
+
+    String contentHash = req.getHeader(ApiConstants.UPLOAD_CONTENT_HASH_HEADER);
+    if (contentHash == null) {
+      return badRequest(InstanceFileService.ERROR_MSG_UPLOAD_CONTENT_HASH_EXPECTED);
+    }
+
+    InstanceFileManager fm = new InstanceFileManager(appId, cc);
+    InstanceFileChangeDetail outcome = fm.finishUploadSession(tableId, rowId, sessionId,
+        contentHash, userPermissions);
+
+    if (outcome == InstanceFileChangeDetail.FILE_PRESENT) {
+      return Response.status(Status.CREATED)
+          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+          .header("Access-Control-Allow-Origin", "*")
+          .header("Access-Control-Allow-Credentials", "true").build();
+    } else {
+      return badRequest(ERROR_FILE_VERSION_DIFFERS);
+    }
+  }
+
+  @Override
+  public Response cancelUploadSession(@PathParam("sessionId") String sessionId)
+      throws ODKDatastoreException, ODKTaskLockException, ODKTablesException {
+
+    InstanceFileManager fm = new InstanceFileManager(appId, cc);
+    fm.cancelUploadSession(tableId, rowId, sessionId, userPermissions);
+    return Response.status(Status.NO_CONTENT)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  /**
+   * @param value
+   * @return the non-negative decimal value of an Upload-Offset or
+   *         Upload-Length header, or null if it is missing or invalid.
+   */
+  static Long parseUploadHeader(String value) {
+    if (value == null) {
+      return null;
+    }
+    String trimmed = value.trim();
+    if (trimmed.isEmpty() || trimmed.length() > 18) {
+      return null;
+    }
+    for (int i = 0; i < trimmed.length(); ++i) {
+      char ch = trimmed.charAt(i);
+      if (ch < '0' || ch > '9') {
+        return null;
+      }
+    }
+    return Long.valueOf(trimmed);
+  }
+
+  private Response uploadOffset(Status status, long offset) {
+    return Response.status(status).header(ApiConstants.UPLOAD_OFFSET_HEADER, Long.toString(offset))
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
+  private Response badRequest(String message) {
+    return Response.status(Status.BAD_REQUEST).entity(message)
+        .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+        .header("Access-Control-Allow-Origin", "*")
+        .header("Access-Control-Allow-Credentials", "true").build();
+  }
+
   /**
    * Construct the path for the file. This is the entire path excluding the app
    * id.
@@ -35,6 +35,7 @@ import org.opendatakit.aggregate.odktables.exception.SchemaETagMismatchException
 import org.opendatakit.aggregate.odktables.exception.TableAlreadyExistsException;
 import org.opendatakit.aggregate.odktables.exception.TableDataETagMismatchException;
 import org.opendatakit.aggregate.odktables.exception.TableNotFoundException;
+import org.opendatakit.aggregate.odktables.exception.UploadOffsetMismatchException;
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 import org.opendatakit.aggregate.odktables.rest.entity.Error;
 import org.opendatakit.aggregate.odktables.rest.entity.Error.ErrorType;
@@ -119,6 +120,14 @@ public class ODKTablesExceptionMapper implements ExceptionMapper<ODKTablesExcept
           .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
           .header("Access-Control-Allow-Origin", "*")
           .header("Access-Control-Allow-Credentials", "true").build();
+    } else if (e instanceof UploadOffsetMismatchException) {
+      return Response.status(Status.CONFLICT).entity(new Error(ErrorType.BAD_REQUEST, msg))
+          .type(type)
+          .header(ApiConstants.UPLOAD_OFFSET_HEADER,
+              Long.toString(((UploadOffsetMismatchException) e).getCommittedOffset()))
+          .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
+          .header("Access-Control-Allow-Origin", "*")
+          .header("Access-Control-Allow-Credentials", "true").build();
     } else if (e instanceof InstanceFileModificationException) {
       return Response.status(Status.BAD_REQUEST).entity(new Error(ErrorType.BAD_REQUEST, msg))
           .type(type)
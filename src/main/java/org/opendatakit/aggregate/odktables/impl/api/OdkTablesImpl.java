@@ -19,6 +19,7 @@ import javax.ws.rs.core.UriInfo;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.opendatakit.aggregate.ContextFactory;
+import org.opendatakit.aggregate.constants.BeanDefs;
 import org.opendatakit.aggregate.odktables.api.OdkTables;
 import org.opendatakit.aggregate.odktables.exception.AppNameMismatchException;
 import org.opendatakit.aggregate.odktables.exception.PermissionDeniedException;
@@ -28,6 +29,7 @@ import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 import org.opendatakit.aggregate.odktables.rest.entity.AppNameList;
 import org.opendatakit.aggregate.odktables.rest.entity.ClientVersionList;
 import org.opendatakit.aggregate.odktables.rest.entity.PrivilegesInfo;
+import org.opendatakit.aggregate.odktables.rest.entity.TableSyncRequestList;
 import org.opendatakit.aggregate.odktables.rest.entity.UserInfo;
 import org.opendatakit.aggregate.odktables.rest.entity.UserInfoList;
 import org.opendatakit.common.persistence.client.exception.DatastoreFailureException;
@@ -38,6 +40,7 @@ import org.opendatakit.common.security.client.exception.AccessDeniedException;
 import org.opendatakit.common.security.common.GrantedAuthorityName;
 import org.opendatakit.common.security.server.SecurityServiceUtil;
 import org.opendatakit.common.web.CallingContext;
+import org.springframework.core.task.AsyncTaskExecutor;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -268,6 +271,26 @@ public class OdkTablesImpl implements OdkTables {
             .header("Access-Control-Allow-Credentials", "true").build();
   }
 
+  @Override
+  public Response postBulkSync(ServletContext sc, HttpServletRequest req,
+      HttpHeaders httpHeaders, UriInfo info, String appId, TableSyncRequestList tables)
+      throws AppNameMismatchException, PermissionDeniedException, ODKDatastoreException,
+      ODKTaskLockException {
+
+    ServiceUtils.examineRequest(sc, req, httpHeaders);
+    CallingContext cc = ContextFactory.getCallingContext(sc, req);
+    String preferencesAppId = ContextFactory.getOdkTablesAppId(cc);
+
+    if (!preferencesAppId.equals(appId)) {
+      throw new AppNameMismatchException("AppName (" + appId + ") differs");
+    }
+
+    AsyncTaskExecutor executor = (AsyncTaskExecutor) cc.getBean(BeanDefs.BULK_SYNC_EXECUTOR);
+    BulkSyncProcessor processor = new BulkSyncProcessor(executor, sc, req, httpHeaders, info,
+        appId);
+    return processor.process(tables.getTables(), tables.getFetchLimit());
+  }
+
   @Override
   public FileManifestServiceImpl getFileManifestService(ServletContext sc, HttpServletRequest req,
       HttpHeaders httpHeaders, UriInfo info, String appId) throws AppNameMismatchException,
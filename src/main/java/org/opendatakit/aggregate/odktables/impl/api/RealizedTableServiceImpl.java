@@ -138,7 +138,7 @@ public class RealizedTableServiceImpl implements RealizedTableService {
     if ( notActiveSchema ) {
       throw new TableNotFoundException(TableServiceImpl.ERROR_TABLE_NOT_FOUND + "\n" + tableId);
     }
-    DiffService service = new DiffServiceImpl(appId, tableId, schemaETag, info, userPermissions, cc);
+    DiffService service = new DiffServiceImpl(appId, tableId, schemaETag, info, headers, userPermissions, cc);
     return service;
   }
 
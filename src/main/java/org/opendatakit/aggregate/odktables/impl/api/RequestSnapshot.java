@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables.impl.api;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.UriBuilder;
+import javax.ws.rs.core.UriInfo;
+
+/**
+ * Detached copies of the request-scoped UriInfo and HttpHeaders, for work that
+ * runs on another thread and may outlive the request. The container's
+ * instances are bound to the request being processed and must not be used
+ * after it completes.
+ *
+ * Only the accessors the table services use are supported: the base URI, and
+ * the request headers. Anything else throws UnsupportedOperationException.
+ * The copies are dynamic proxies because the build compiles against an older
+ * JAX-RS API than the container provides.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+final class RequestSnapshot {
+
+  private RequestSnapshot() {
+  }
+
+  private static Object objectMethod(Object proxy, Method m, Object[] args, String name) {
+    if (m.getName().equals("equals")) {
+      return proxy == args[0];
+    }
+    if (m.getName().equals("hashCode")) {
+      return System.identityHashCode(proxy);
+    }
+    if (m.getName().equals("toString")) {
+      return name;
+    }
+    throw new UnsupportedOperationException(name + " does not support " + m.getName());
+  }
+
+  /**
+   * @param info
+   * @return a copy of the base URI of the request, as a UriInfo.
+   */
+  static UriInfo uriInfo(UriInfo info) {
+    final URI baseUri = info.getBaseUri();
+    final String name = "UriInfo snapshot of " + baseUri;
+    return (UriInfo) Proxy.newProxyInstance(UriInfo.class.getClassLoader(),
+        new Class<?>[] { UriInfo.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("getBaseUri")) {
+              return baseUri;
+            }
+            if (m.getName().equals("getBaseUriBuilder")) {
+              return UriBuilder.fromUri(baseUri);
+            }
+            return objectMethod(proxy, m, args, name);
+          }
+        });
+  }
+
+  /**
+   * @param httpHeaders
+   *          the request headers, or null.
+   * @return a copy of the request headers, or null.
+   */
+  static HttpHeaders httpHeaders(HttpHeaders httpHeaders) {
+    if (httpHeaders == null) {
+      return null;
+    }
+    // header names are case-insensitive
+    final Map<String, List<String>> headers = new TreeMap<String, List<String>>(
+        String.CASE_INSENSITIVE_ORDER);
+    for (Map.Entry<String, List<String>> e : httpHeaders.getRequestHeaders().entrySet()) {
+      headers.put(e.getKey(), Collections.unmodifiableList(new ArrayList<String>(e.getValue())));
+    }
+    final String name = "HttpHeaders snapshot";
+    return (HttpHeaders) Proxy.newProxyInstance(HttpHeaders.class.getClassLoader(),
+        new Class<?>[] { HttpHeaders.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            if (m.getName().equals("getRequestHeader")) {
+              return headers.get((String) args[0]);
+            }
+            return objectMethod(proxy, m, args, name);
+          }
+        });
+  }
+}
@@ -195,17 +195,26 @@ public class TableServiceImpl implements TableService {
       // cruft)
       throw new TableNotFoundException(ERROR_TABLE_NOT_FOUND + "\n" + tableId);
     }
-    TableResource resource = getResource(info, appId, entry);
-
-    // set the table-level manifest ETag if known...
+    // the table-level manifest ETag if known...
+    String tableLevelManifestETag = null;
     try {
-      resource.setTableLevelManifestETag(FileManifestUtils.getTableLevelManifestETag(
-          entry.getTableId(), appId, cc));
+      tableLevelManifestETag = FileManifestUtils.getTableLevelManifestETag(
+          entry.getTableId(), appId, cc);
     } catch (ODKDatastoreException e) {
       // ignore
     }
 
-    return Response.ok(resource)
+    // the resource is entirely determined by these
+    String eTag = ETagUtils.domainETag("table", info.getBaseUri().toString(), appId,
+        entry.getTableId(), entry.getSchemaETag(), entry.getDataETag(), tableLevelManifestETag);
+    if (ETagUtils.ifNoneMatch(headers, eTag)) {
+      return ETagUtils.notModified(eTag);
+    }
+
+    TableResource resource = getResource(info, appId, entry);
+    resource.setTableLevelManifestETag(tableLevelManifestETag);
+
+    return Response.ok(resource).header(HttpHeaders.ETAG, eTag)
         .header(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER, ApiConstants.OPEN_DATA_KIT_VERSION)
         .header("Access-Control-Allow-Origin", "*")
         .header("Access-Control-Allow-Credentials", "true").build();
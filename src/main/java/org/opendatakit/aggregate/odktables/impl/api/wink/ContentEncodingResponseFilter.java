@@ -36,11 +36,17 @@
  */
 package org.opendatakit.aggregate.odktables.impl.api.wink;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -68,11 +74,14 @@ import org.slf4j.LoggerFactory;
 /**
  * Copied mostly verbatim from org.apache.wink.server.internal.servlet.contentencode
  * 
- * However, that implementation did not properly recompute the Content-Length.
- * This implementation does.
- * 
- * For increased efficiency, the client and server should be converted to use 
- * the chunked Transfer-Encoding.
+ * However, that implementation did not properly handle the Content-Length.
+ * This implementation streams the encoded response (chunked Transfer-Encoding)
+ * and suppresses the Content-Length of the unencoded entity. The encoding
+ * decision is deferred until either the Content-Length of the entity is known
+ * or minimumSize bytes have been written, so small responses and responses
+ * whose Content-Type is already compressed (images, video, archives) are sent
+ * unencoded with their original Content-Length. Entities written through
+ * either getOutputStream() or getWriter() are encoded.
  * 
  * @author mitchellsundt@gmail.com
  */
@@ -86,6 +95,14 @@ import org.slf4j.LoggerFactory;
  * &lt;filter&gt;<br/>
         &lt;filter-name&gt;ContentEncodingResponseFilter&lt;/filter-name&gt;<br/>
         &lt;filter-class&gt;org.apache.wink.server.internal.servlet.contentencode.ContentEncodingResponseFilter&lt;/filter-class&gt;<br/>
+        &lt;init-param&gt;<br/>
+            &lt;param-name&gt;minimumSize&lt;/param-name&gt;<br/>
+            &lt;param-value&gt;1024&lt;/param-value&gt;<br/>
+        &lt;/init-param&gt;<br/>
+        &lt;init-param&gt;<br/>
+            &lt;param-name&gt;compressionLevel&lt;/param-name&gt;<br/>
+            &lt;param-value&gt;6&lt;/param-value&gt;<br/>
+        &lt;/init-param&gt;<br/>
     &lt;/filter&gt;<br/>
     <br/>
     &lt;filter-mapping&gt;<br/>
@@ -107,9 +124,62 @@ public class ContentEncodingResponseFilter implements Filter {
                                                                                              .getInstance()
                                                                                              .createHeaderDelegate(AcceptEncoding.class);
 
+    /**
+     * init-param: responses shorter than this many bytes are not encoded.
+     */
+    public static final String PARAM_MINIMUM_SIZE = "minimumSize"; //$NON-NLS-1$
+
+    /**
+     * init-param: the deflater compression level, 1 (fastest) to 9 (smallest),
+     * or -1 for the zlib default.
+     */
+    public static final String PARAM_COMPRESSION_LEVEL = "compressionLevel"; //$NON-NLS-1$
+
+    public static final int DEFAULT_MINIMUM_SIZE = 1024;
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private static final int ENCODER_BUFFER_SIZE = 8192;
+
+    /**
+     * Content types whose representation is already compressed. Encoding them
+     * again costs CPU and usually makes them slightly larger.
+     */
+    private static final Set<String> COMPRESSED_CONTENT_TYPES = new HashSet<String>(Arrays.asList(
+        "application/zip", "application/gzip", "application/x-gzip", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        "application/x-compress", "application/x-compressed", "application/x-bzip2", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        "application/vnd.android.package-archive")); //$NON-NLS-1$
+
+    private int minimumSize = DEFAULT_MINIMUM_SIZE;
+
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
     public void init(FilterConfig arg0) throws ServletException {
         logger.trace("init({}) entry", arg0); //$NON-NLS-1$
-        /* do nothing */
+        String value = arg0.getInitParameter(PARAM_MINIMUM_SIZE);
+        if (value != null && value.trim().length() != 0) {
+            try {
+                minimumSize = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("Invalid " + PARAM_MINIMUM_SIZE + ": " + value);
+            }
+            if (minimumSize < 0) {
+                throw new ServletException("Invalid " + PARAM_MINIMUM_SIZE + ": " + value);
+            }
+        }
+        value = arg0.getInitParameter(PARAM_COMPRESSION_LEVEL);
+        if (value != null && value.trim().length() != 0) {
+            try {
+                compressionLevel = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("Invalid " + PARAM_COMPRESSION_LEVEL + ": " + value);
+            }
+            if (compressionLevel != Deflater.DEFAULT_COMPRESSION
+                && (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION)) {
+                throw new ServletException("Invalid " + PARAM_COMPRESSION_LEVEL + ": " + value);
+            }
+        }
         logger.trace("init() exit"); //$NON-NLS-1$
     }
 
@@ -119,6 +189,22 @@ public class ContentEncodingResponseFilter implements Filter {
         logger.trace("destroy() exit"); //$NON-NLS-1$
     }
 
+    public int getMinimumSize() {
+        return minimumSize;
+    }
+
+    public void setMinimumSize(int minimumSize) {
+        this.minimumSize = minimumSize;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
     public void doFilter(ServletRequest servletRequest,
                          ServletResponse servletResponse,
                          FilterChain chain) throws IOException, ServletException {
@@ -139,17 +225,12 @@ public class ContentEncodingResponseFilter implements Filter {
                 HttpServletResponseContentEncodingWrapperImpl wrappedServletResponse =
                     new HttpServletResponseContentEncodingWrapperImpl(
                                                                       (HttpServletResponse)servletResponse,
-                                                                      acceptEncoding);
+                                                                      acceptEncoding, minimumSize,
+                                                                      compressionLevel);
                 logger.trace("Passing on request and response down the filter chain"); //$NON-NLS-1$
                 chain.doFilter(servletRequest, wrappedServletResponse);
                 logger.trace("Finished filter chain"); //$NON-NLS-1$
-                EncodedOutputStream encodedOutputStream =
-                    wrappedServletResponse.getEncodedOutputStream();
-                if (encodedOutputStream != null) {
-                    logger.trace("Calling encodedOutputStream finish"); //$NON-NLS-1$
-                    // Changed from finish(): close the stream to complete the write...
-                    encodedOutputStream.close();
-                }
+                wrappedServletResponse.finishResponse();
                 logger.trace("doFilter exit()"); //$NON-NLS-1$
                 return;
             }
@@ -186,97 +267,190 @@ public class ContentEncodingResponseFilter implements Filter {
         return null;
     }
 
+    /**
+     * @param contentType
+     * @return false if the content type is one that is already compressed.
+     */
+    static boolean isCompressibleContentType(String contentType) {
+        if (contentType == null) {
+            return true;
+        }
+        String mediaType = contentType;
+        int idx = mediaType.indexOf(';');
+        if (idx != -1) {
+            mediaType = mediaType.substring(0, idx);
+        }
+        mediaType = mediaType.trim().toLowerCase(Locale.ENGLISH);
+        if (mediaType.startsWith("image/")) { //$NON-NLS-1$
+            // svg is xml text; everything else is a compressed raster format
+            return mediaType.equals("image/svg+xml"); //$NON-NLS-1$
+        }
+        if (mediaType.startsWith("video/") || mediaType.startsWith("audio/")) { //$NON-NLS-1$ //$NON-NLS-2$
+            return false;
+        }
+        return !COMPRESSED_CONTENT_TYPES.contains(mediaType);
+    }
+
+    /**
+     * Holds up to minimumSize bytes until it is known whether the response
+     * should be encoded, then either streams everything through the encoder
+     * or writes it unchanged to the underlying servlet output stream.
+     */
     static abstract class EncodedOutputStream extends ServletOutputStream {
 
-    	private boolean  isReady = false;
-		private boolean              isWritten = false;
+        final private HttpServletResponseContentEncodingWrapperImpl response;
+
+        final private ServletOutputStream actualOutputStream;
+
+        final private byte[] pending;
+
+        private int pendingCount = 0;
 
         private DeflaterOutputStream outputStream = null;
-        private ByteArrayOutputStream byteStream = null;
-        private OutputStream actualOutputStream = null;
 
-        public EncodedOutputStream() {
-        }
+        private boolean isDecided = false;
 
-        public void init(DeflaterOutputStream outputStream, ByteArrayOutputStream byteStream, OutputStream actualOutputStream) {
-            this.outputStream = outputStream;
-            this.byteStream = byteStream;
+        private boolean isClosed = false;
+
+        public EncodedOutputStream(ServletOutputStream actualOutputStream,
+            HttpServletResponseContentEncodingWrapperImpl response) {
             this.actualOutputStream = actualOutputStream;
-            isReady = true;
+            this.response = response;
+            this.pending = new byte[response.getMinimumSize()];
         }
 
 		public boolean isReady() {
-			return isReady;
+			return true;
 		}
 
 		public void setWriteListener(WriteListener arg0) {
 			throw new IllegalStateException("WriteListener functionality is not implemented!");
 		}
 
+        /**
+         * @return true once it has been decided whether to encode the response
+         *         and the headers reflecting that have been set.
+         */
+        public boolean isDecided() {
+            return isDecided;
+        }
+
+        /**
+         * @return true if the response is being encoded. Only meaningful
+         *         once something has been written or the stream is closed.
+         */
+        public boolean isEncoding() {
+            return outputStream != null;
+        }
+
+        private OutputStream target() {
+            return (outputStream != null) ? outputStream : actualOutputStream;
+        }
+
+        /**
+         * Decide whether to encode, emit the corresponding headers, and
+         * release any held bytes.
+         * 
+         * @param atEnd true if the entire entity is in the pending buffer.
+         * @throws IOException
+         */
+        private void decide(boolean atEnd) throws IOException {
+            isDecided = true;
+            long length = response.getDeclaredContentLength();
+            if (length < 0L && atEnd) {
+                length = pendingCount;
+            }
+            boolean encode = !response.hasContentEncoding()
+                && isCompressibleContentType(response.getContentType())
+                && (length < 0L || (length != 0L && length >= response.getMinimumSize()));
+            if (encode) {
+                isFirstWrite();
+                outputStream = createEncoder(actualOutputStream, response.getCompressionLevel());
+            } else {
+                if (response.getDeclaredContentLength() < 0L && atEnd && pendingCount != 0) {
+                    response.setContentLength(pendingCount);
+                }
+                response.passThroughContentLength();
+            }
+            if (pendingCount != 0) {
+                target().write(pending, 0, pendingCount);
+                pendingCount = 0;
+            }
+        }
+
         @Override
         public void write(int b) throws IOException {
-            if (!isWritten) {
-                isFirstWrite();
-                isWritten = true;
+            if (!isDecided) {
+                if (response.getDeclaredContentLength() < 0L && pendingCount < pending.length) {
+                    pending[pendingCount++] = (byte) b;
+                    return;
+                }
+                decide(false);
             }
-            outputStream.write(b);
+            target().write(b);
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            if (!isWritten) {
-                isFirstWrite();
-                isWritten = true;
+            if (!isDecided) {
+                if (response.getDeclaredContentLength() < 0L && pendingCount + len <= pending.length) {
+                    System.arraycopy(b, off, pending, pendingCount, len);
+                    pendingCount += len;
+                    return;
+                }
+                decide(false);
             }
-            outputStream.write(b, off, len);
+            target().write(b, off, len);
         }
 
         @Override
         public void write(byte[] b) throws IOException {
-            if (!isWritten) {
-                isFirstWrite();
-                isWritten = true;
-            }
-            outputStream.write(b);
+            write(b, 0, b.length);
         }
 
         @Override
         public void flush() throws IOException {
-            if (!isWritten) {
-                isFirstWrite();
-                isWritten = true;
+            // an early flush must not force the decision.
+            if (isDecided) {
+                target().flush();
             }
-            outputStream.flush();
         }
 
         @Override
         public void close() throws IOException {
-            outputStream.finish();
-            outputStream.close();
-            setContentLength(byteStream.size());
-            actualOutputStream.write(byteStream.toByteArray());
-            actualOutputStream.flush();
-            actualOutputStream.close();
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            if (!isDecided) {
+                decide(true);
+            }
+            // closes actualOutputStream too
+            target().close();
         }
 
         public void finish() throws IOException {
-            outputStream.finish();
+            if (!isDecided) {
+                decide(true);
+            }
+            if (outputStream != null) {
+                outputStream.finish();
+            }
         }
 
         public abstract void isFirstWrite();
-        
-        public abstract void setContentLength(int length);
+
+        public abstract DeflaterOutputStream createEncoder(OutputStream out, int level)
+            throws IOException;
     }
 
     static class GzipEncoderOutputStream extends EncodedOutputStream {
 
         final private HttpServletResponseContentEncodingWrapperImpl response;
 
-        public GzipEncoderOutputStream(OutputStream outputStream, 
+        public GzipEncoderOutputStream(ServletOutputStream outputStream, 
             HttpServletResponseContentEncodingWrapperImpl response) throws IOException {
-            super();
-            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-            init(new GZIPOutputStream(byteStream), byteStream, outputStream);
+            super(outputStream, response);
             this.response = response;
         }
 
@@ -287,8 +461,13 @@ public class ContentEncodingResponseFilter implements Filter {
         }
 
         @Override
-        public void setContentLength(int length) {
-          response.privateAddContentLengthHeader(length);
+        public DeflaterOutputStream createEncoder(OutputStream out, final int level)
+            throws IOException {
+            return new GZIPOutputStream(out, ENCODER_BUFFER_SIZE) {
+                {
+                    def.setLevel(level);
+                }
+            };
         }
     }
 
@@ -296,11 +475,9 @@ public class ContentEncodingResponseFilter implements Filter {
 
         final private HttpServletResponseContentEncodingWrapperImpl response;
 
-        public DeflaterContentEncodedOutputStream(OutputStream outputStream,
+        public DeflaterContentEncodedOutputStream(ServletOutputStream outputStream,
             HttpServletResponseContentEncodingWrapperImpl response) throws IOException {
-            super();
-            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-            init(new DeflaterOutputStream(byteStream), byteStream, outputStream );
+            super(outputStream, response);
             this.response = response;
         }
 
@@ -311,8 +488,19 @@ public class ContentEncodingResponseFilter implements Filter {
         }
 
         @Override
-        public void setContentLength(int length) {
-          response.privateAddContentLengthHeader(length);
+        public DeflaterOutputStream createEncoder(OutputStream out, final int level)
+            throws IOException {
+            return new DeflaterOutputStream(out, new Deflater(level), ENCODER_BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        // a Deflater supplied to the constructor is not ended by close()
+                        def.end();
+                    }
+                }
+            };
         }
     }
 
@@ -324,20 +512,54 @@ public class ContentEncodingResponseFilter implements Filter {
 
         final private AcceptEncoding acceptEncoding;
 
+        final private int            minimumSize;
+
+        final private int            compressionLevel;
+
         private ServletOutputStream  outputStream;
 
         private EncodedOutputStream  encodedOutputStream;
 
+        private PrintWriter          writer;
+
+        private boolean              isOutputStreamRequested = false;
+
         private int                  varyHeaderCount = 0;
 
+        private long                 declaredContentLength = -1L;
+
+        private boolean              isContentLengthPassedThrough = false;
+
+        private boolean              hasContentEncoding = false;
+
         public EncodedOutputStream getEncodedOutputStream() {
             return encodedOutputStream;
         }
 
         public HttpServletResponseContentEncodingWrapperImpl(HttpServletResponse response,
-                                                             AcceptEncoding acceptEncoding) {
+                                                             AcceptEncoding acceptEncoding,
+                                                             int minimumSize,
+                                                             int compressionLevel) {
             super(response);
             this.acceptEncoding = acceptEncoding;
+            this.minimumSize = minimumSize;
+            this.compressionLevel = compressionLevel;
+        }
+
+        int getMinimumSize() {
+            return minimumSize;
+        }
+
+        int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        long getDeclaredContentLength() {
+            return declaredContentLength;
+        }
+
+        boolean hasContentEncoding() {
+            return hasContentEncoding;
         }
 
         private boolean containsAcceptEncoding(String value) {
@@ -349,9 +571,99 @@ public class ContentEncodingResponseFilter implements Filter {
             }
             return false;
         }
-        
-        void privateAddContentLengthHeader(int value) {
-          super.addHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(value));
+
+        /**
+         * The response will not be encoded. Emit any Content-Length that was
+         * withheld and let subsequent ones through unchanged.
+         */
+        void passThroughContentLength() {
+            if (isContentLengthPassedThrough) {
+                return;
+            }
+            isContentLengthPassedThrough = true;
+            if (declaredContentLength >= 0L) {
+                super.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(declaredContentLength));
+            }
+        }
+
+        /**
+         * Content-Length describes the unencoded entity. Hold on to it until
+         * we know whether the response will be encoded.
+         * 
+         * @param value
+         * @return true if the value was withheld
+         */
+        private boolean withholdContentLength(long value) {
+            if (isContentLengthPassedThrough) {
+                return false;
+            }
+            declaredContentLength = value;
+            return true;
+        }
+
+        private boolean withholdContentLength(String value) {
+            if (isContentLengthPassedThrough) {
+                return false;
+            }
+            try {
+                declaredContentLength = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                declaredContentLength = -1L;
+            }
+            return true;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            if (!withholdContentLength(len)) {
+                super.setContentLength(len);
+            }
+        }
+
+        /**
+         * Servlet 3.1 addition. Not annotated with @Override because the build
+         * compiles against the Java EE 6 (Servlet 3.0) API, but it overrides
+         * the container's method at runtime, where it would otherwise bypass
+         * the withheld Content-Length.
+         * 
+         * @param len
+         */
+        public void setContentLengthLong(long len) {
+            if (!withholdContentLength(len)) {
+                super.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(len));
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                if (withholdContentLength(value)) {
+                    return;
+                }
+            } else if (HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name)) {
+                hasContentEncoding = true;
+            }
+            super.setHeader(name, value);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                if (withholdContentLength(value)) {
+                    return;
+                }
+            }
+            super.setIntHeader(name, value);
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                if (withholdContentLength(value)) {
+                    return;
+                }
+            }
+            super.addIntHeader(name, value);
         }
 
         @Override
@@ -380,15 +692,76 @@ public class ContentEncodingResponseFilter implements Filter {
                     // the first Vary value by the "if true" block above
                     return;
                 }
+            } else if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                // Content-Length is incorrect if we are compressing....
+                if (withholdContentLength(value)) {
+                    return;
+                }
+            } else if (HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name)) {
+                // if set by the application, the entity is already encoded
+                hasContentEncoding = true;
+            }
+            super.addHeader(name, value);
+        }
+
+        /**
+         * Complete the response once the filter chain has returned: flush any
+         * writer, then finish the encoding, or, if nothing was written, emit
+         * the withheld Content-Length.
+         * 
+         * @throws IOException
+         */
+        void finishResponse() throws IOException {
+            if (writer != null) {
+                writer.flush();
             }
-            // Content-Length is incorrect if we are compressing....
-            if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name) ) {
-              super.addHeader(name, value);
+            if (encodedOutputStream != null) {
+                logger.trace("Calling encodedOutputStream close"); //$NON-NLS-1$
+                // Changed from finish(): close the stream to complete the write...
+                encodedOutputStream.close();
+            } else {
+                // the entity was not written through getOutputStream()
+                passThroughContentLength();
             }
         }
 
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            // committing the response before the encoding is decided would
+            // send the headers without the Content-Encoding.
+            if (encodedOutputStream == null || encodedOutputStream.isDecided()) {
+                super.flushBuffer();
+            }
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            logger.trace("getWriter() entry"); //$NON-NLS-1$
+            if (writer == null) {
+                if (isOutputStreamRequested) {
+                    throw new IllegalStateException("getOutputStream() has already been called"); //$NON-NLS-1$
+                }
+                // write through the (possibly encoding) output stream
+                writer = new PrintWriter(new OutputStreamWriter(openOutputStream(),
+                    getCharacterEncoding()));
+            }
+            logger.trace("getWriter() exit"); //$NON-NLS-1$
+            return writer;
+        }
+
         @Override
         public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called"); //$NON-NLS-1$
+            }
+            isOutputStreamRequested = true;
+            return openOutputStream();
+        }
+
+        private ServletOutputStream openOutputStream() throws IOException {
             logger.trace("getOutputStream() entry"); //$NON-NLS-1$
             if (outputStream == null) {
                 logger.trace("output stream was null"); //$NON-NLS-1$
@@ -411,24 +784,25 @@ public class ContentEncodingResponseFilter implements Filter {
                 if (hasGZip || (acceptEncoding.isAnyEncodingAllowed() && !acceptEncoding.getBannedEncodings()
                     .contains("gzip"))) { //$NON-NLS-1$
                   if ( hasGZip ) {
-                    log.info("going to use gzip encoding"); //$NON-NLS-1$
+                    log.debug("gzip encoding is acceptable"); //$NON-NLS-1$
                   } else {
-                    log.info("going to use gzip encoding because any encoding is allowed"); //$NON-NLS-1$
+                    log.debug("gzip encoding is acceptable because any encoding is allowed"); //$NON-NLS-1$
                   }
                     this.encodedOutputStream = new GzipEncoderOutputStream(outputStream, this);
                     this.outputStream = encodedOutputStream;
                     logger.trace("getOutputStream() exit - returning gzipped encode stream"); //$NON-NLS-1$
                     return outputStream;
                 } else if ( hasDeflate ) {
-                  log.info("going to use deflate encoding"); //$NON-NLS-1$
+                  log.debug("deflate encoding is acceptable"); //$NON-NLS-1$
                   this.encodedOutputStream =
                       new DeflaterContentEncodedOutputStream(outputStream, this);
                   this.outputStream = encodedOutputStream;
                   logger.trace("getOutputStream() exit - returning deflate encode stream"); //$NON-NLS-1$
                   return outputStream;
                 }
+                log.debug("no content encoding");
+                passThroughContentLength();
             }
-            log.info("no content encoding");
             logger.trace("getOutputStream() exit - returning output stream"); //$NON-NLS-1$
             return outputStream;
         }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables.impl.api.wink;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.opendatakit.common.persistence.engine.QueryTrace;
+
+/**
+ * Traces the database statements issued while handling each request and
+ * reports the database time and statement count in the
+ * {@link #DB_TRACE_HEADER} response header. The header is set when the
+ * response body is first written, so statements issued while streaming the
+ * body are logged but not counted in it.
+ *
+ * Statements slower than the slowQueryThresholdMs init-param are logged to
+ * org.opendatakit.common.persistence.SlowQuery; statements issued at least
+ * repeatedStatementThreshold times within one request are logged when it
+ * completes.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class QueryTraceFilter implements Filter {
+
+  public static final String DB_TRACE_HEADER = "X-OpenDataKit-DB-Trace";
+
+  /**
+   * init-param: statements taking at least this many milliseconds are logged.
+   */
+  public static final String PARAM_SLOW_QUERY_THRESHOLD_MS = "slowQueryThresholdMs";
+
+  /**
+   * init-param: statements issued at least this many times by one request are
+   * logged.
+   */
+  public static final String PARAM_REPEATED_STATEMENT_THRESHOLD = "repeatedStatementThreshold";
+
+  private static final class TraceHeaderResponseWrapper extends HttpServletResponseWrapper {
+    private final QueryTrace trace;
+    private boolean headerSet = false;
+
+    TraceHeaderResponseWrapper(HttpServletResponse response, QueryTrace trace) {
+      super(response);
+      this.trace = trace;
+    }
+
+    void setTraceHeader() {
+      if (!headerSet && !isCommitted()) {
+        headerSet = true;
+        setHeader(DB_TRACE_HEADER, String.format(Locale.US, "statements=%d; time-ms=%.1f; rows=%d",
+            trace.getStatementCount(), trace.getDbMillis(), trace.getRowsRead()));
+      }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      setTraceHeader();
+      return super.getOutputStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      setTraceHeader();
+      return super.getWriter();
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      setTraceHeader();
+      super.flushBuffer();
+    }
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+    String value = filterConfig.getInitParameter(PARAM_SLOW_QUERY_THRESHOLD_MS);
+    if (value != null && value.trim().length() != 0) {
+      try {
+        QueryTrace.setSlowQueryThresholdMillis(Long.parseLong(value.trim()));
+      } catch (NumberFormatException e) {
+        throw new ServletException("Invalid " + PARAM_SLOW_QUERY_THRESHOLD_MS + ": " + value);
+      }
+    }
+    value = filterConfig.getInitParameter(PARAM_REPEATED_STATEMENT_THRESHOLD);
+    if (value != null && value.trim().length() != 0) {
+      try {
+        QueryTrace.setRepeatedStatementThreshold(Integer.parseInt(value.trim()));
+      } catch (NumberFormatException e) {
+        throw new ServletException("Invalid " + PARAM_REPEATED_STATEMENT_THRESHOLD + ": "
+            + value);
+      }
+    }
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    HttpServletRequest req = (HttpServletRequest) request;
+    QueryTrace trace = QueryTrace.begin(req.getMethod() + " " + req.getRequestURI());
+    TraceHeaderResponseWrapper resp = new TraceHeaderResponseWrapper(
+        (HttpServletResponse) response, trace);
+    try {
+      chain.doFilter(req, resp);
+      // e.g., 304 Not Modified with no body
+      resp.setTraceHeader();
+    } finally {
+      QueryTrace.end();
+    }
+  }
+
+  @Override
+  public void destroy() {
+  }
+}
@@ -26,6 +26,7 @@ import java.util.Map;
 import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.ElementType;
 import org.opendatakit.common.ermodel.Entity;
+import org.opendatakit.common.ermodel.ReadOnlyEntity;
 import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.ermodel.Relation;
 import org.opendatakit.common.persistence.DataField;
@@ -97,6 +98,16 @@ public class DbColumnDefinitions extends Relation {
       this.e = e;
     }
 
+    /**
+     * @return a read-only copy of this column definition that can be shared
+     *         across threads. Its setters, put() and delete() throw.
+     */
+    public DbColumnDefinitionsEntity asReadOnly() {
+      DbColumnDefinitionsEntity copy = new DbColumnDefinitionsEntity(ReadOnlyEntity.of(e));
+      copy.isUnitOfRetention = isUnitOfRetention;
+      return copy;
+    }
+
     // Primary Key
     public String getId() {
       return e.getId();
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables.relation;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.opendatakit.common.ermodel.Entity;
+import org.opendatakit.common.ermodel.Query;
+import org.opendatakit.common.ermodel.Relation;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.DataType;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
+import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Tracks the resumable uploads of row-level attachments that are in progress.
+ * The content received so far is staged, part by part, in the
+ * content-addressed store under the id of the session.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class DbInstanceFileUploadSessions extends Relation {
+
+  private DbInstanceFileUploadSessions(String namespace, String tableName, List<DataField> fields,
+      CallingContext cc) throws ODKDatastoreException {
+    super(namespace, tableName, fields, cc);
+  }
+
+  private static final String RELATION_NAME = "UPLOAD_SESSIONS";
+
+  private static final DataField TABLE_ID = new DataField("TABLE_ID", DataType.STRING, false);
+
+  private static final DataField ROW_ID = new DataField("ROW_ID", DataType.STRING, false);
+
+  /**
+   * The instance-relative path of the attachment being uploaded.
+   */
+  private static final DataField FILE_PATH = new DataField("FILE_PATH", DataType.STRING, false,
+      4096L);
+
+  private static final DataField CONTENT_TYPE = new DataField("CONTENT_TYPE", DataType.STRING,
+      false, 80L);
+
+  /**
+   * The length of the attachment, if the client declared it up front.
+   */
+  private static final DataField CONTENT_LENGTH = new DataField("CONTENT_LENGTH",
+      DataType.INTEGER, true);
+
+  /**
+   * The number of bytes received and staged so far.
+   */
+  private static final DataField COMMITTED_OFFSET = new DataField("COMMITTED_OFFSET",
+      DataType.INTEGER, false);
+
+  /**
+   * The number of staged parts holding those bytes.
+   */
+  private static final DataField PART_COUNT = new DataField("PART_COUNT", DataType.INTEGER,
+      false);
+
+  private static final List<DataField> dataFields;
+  static {
+    dataFields = new ArrayList<DataField>();
+    dataFields.add(TABLE_ID);
+    dataFields.add(ROW_ID);
+    dataFields.add(FILE_PATH);
+    dataFields.add(CONTENT_TYPE);
+    dataFields.add(CONTENT_LENGTH);
+    dataFields.add(COMMITTED_OFFSET);
+    dataFields.add(PART_COUNT);
+  }
+
+  public static class DbInstanceFileUploadSessionEntity {
+    Entity e;
+
+    public DbInstanceFileUploadSessionEntity(Entity e) {
+      this.e = e;
+    }
+
+    public void put(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
+      e.put(cc);
+    }
+
+    public void delete(CallingContext cc) throws ODKDatastoreException {
+      e.delete(cc);
+    }
+
+    // Primary Key -- the session id; also the uri of the staged parts
+    public String getId() {
+      return e.getId();
+    }
+
+    public String getCreationUser() {
+      return e.getCreationUser();
+    }
+
+    public Date getLastUpdateDate() {
+      return e.getLastUpdateDate();
+    }
+
+    // Accessors
+
+    public String getTableId() {
+      return e.getString(TABLE_ID);
+    }
+
+    public void setTableId(String value) {
+      e.set(TABLE_ID, value);
+    }
+
+    public String getRowId() {
+      return e.getString(ROW_ID);
+    }
+
+    public void setRowId(String value) {
+      e.set(ROW_ID, value);
+    }
+
+    public String getFilePath() {
+      return e.getString(FILE_PATH);
+    }
+
+    public void setFilePath(String value) {
+      e.set(FILE_PATH, value);
+    }
+
+    public String getContentType() {
+      return e.getString(CONTENT_TYPE);
+    }
+
+    public void setContentType(String value) {
+      e.set(CONTENT_TYPE, value);
+    }
+
+    public Long getContentLength() {
+      return e.getLong(CONTENT_LENGTH);
+    }
+
+    public void setContentLength(Long value) {
+      e.set(CONTENT_LENGTH, value);
+    }
+
+    public Long getCommittedOffset() {
+      return e.getLong(COMMITTED_OFFSET);
+    }
+
+    public void setCommittedOffset(Long value) {
+      e.set(COMMITTED_OFFSET, value);
+    }
+
+    public Long getPartCount() {
+      return e.getLong(PART_COUNT);
+    }
+
+    public void setPartCount(Long value) {
+      e.set(PART_COUNT, value);
+    }
+  }
+
+  private static DbInstanceFileUploadSessions relation = null;
+
+  public static synchronized final DbInstanceFileUploadSessions getRelation(CallingContext cc)
+      throws ODKDatastoreException {
+    if (relation == null) {
+      relation = new DbInstanceFileUploadSessions(RUtil.NAMESPACE, RELATION_NAME, dataFields, cc);
+    }
+    return relation;
+  }
+
+  /**
+   * Create a new session with nothing received yet. The row is not yet
+   * persisted.
+   *
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public static DbInstanceFileUploadSessionEntity createNewEntity(CallingContext cc)
+      throws ODKDatastoreException {
+    DbInstanceFileUploadSessionEntity session = new DbInstanceFileUploadSessionEntity(
+        getRelation(cc).newEntity(CommonFieldsBase.newUri(), cc));
+    session.setCommittedOffset(0L);
+    session.setPartCount(0L);
+    return session;
+  }
+
+  /**
+   * @param sessionId
+   * @param cc
+   * @return the session, or null if there is no such session.
+   * @throws ODKDatastoreException
+   */
+  public static DbInstanceFileUploadSessionEntity getSession(String sessionId, CallingContext cc)
+      throws ODKDatastoreException {
+    try {
+      return new DbInstanceFileUploadSessionEntity(getRelation(cc).getEntity(sessionId, cc));
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param cutoff
+   * @param cc
+   * @return the sessions that have not been added to since the cutoff.
+   * @throws ODKDatastoreException
+   */
+  public static List<DbInstanceFileUploadSessionEntity> queryForIdleSessions(Date cutoff,
+      CallingContext cc) throws ODKDatastoreException {
+
+    Query query = getRelation(cc).query("DbInstanceFileUploadSessions.queryForIdleSessions", cc);
+    query.addFilter(CommonFieldsBase.LAST_UPDATE_DATE_COLUMN_NAME, FilterOperation.LESS_THAN,
+        cutoff);
+
+    List<Entity> list = query.execute();
+    List<DbInstanceFileUploadSessionEntity> results = new ArrayList<DbInstanceFileUploadSessionEntity>();
+    for (Entity e : list) {
+      results.add(new DbInstanceFileUploadSessionEntity(e));
+    }
+    return results;
+  }
+}
@@ -17,17 +17,27 @@
 package org.opendatakit.aggregate.odktables.relation;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.Validate;
 
 import org.opendatakit.aggregate.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
 import org.opendatakit.aggregate.odktables.relation.DbTableDefinitions.DbTableDefinitionsEntity;
 import org.opendatakit.aggregate.odktables.rest.TableConstants;
+import org.opendatakit.common.ermodel.Entity;
+import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.ermodel.Relation;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.CompositeIndex;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.DataField.DataType;
 import org.opendatakit.common.persistence.DataField.IndexType;
+import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.web.CallingContext;
 
@@ -35,7 +45,7 @@ public class DbLogTable extends Relation {
 
   private DbLogTable(String namespace, String tableName, List<DataField> fields, CallingContext cc)
       throws ODKDatastoreException {
-    super(namespace, tableName, fields, cc);
+    super(namespace, tableName, fields, indexes, cc);
   }
 
   public static final String LAST_UPDATE_DATE_COLUMN_NAME = CommonFieldsBase.LAST_UPDATE_DATE_COLUMN_NAME;
@@ -126,6 +136,20 @@ public class DbLogTable extends Relation {
     dataFields.add(SAVEPOINT_CREATOR);
   }
 
+  /**
+   * getSequenceValueForDataETag filters on the dataETag and sorts by sequence
+   * value; getChangeSetsSince scans by sequence value for the distinct
+   * dataETags.
+   */
+  private static final List<CompositeIndex> indexes;
+  static {
+    indexes = new ArrayList<CompositeIndex>();
+    indexes.add(new CompositeIndex("desv", DATA_ETAG_AT_MODIFICATION.getName(),
+        SEQUENCE_VALUE.getName()));
+    indexes.add(new CompositeIndex("svde", SEQUENCE_VALUE.getName())
+        .include(DATA_ETAG_AT_MODIFICATION.getName()));
+  }
+
   private static final EntityConverter converter = new EntityConverter();
 
   public static final String getDbLogTableName(String dataTableName) {
@@ -145,6 +169,38 @@ public class DbLogTable extends Relation {
     return relation;
   }
 
+  /**
+   * Fetch the log entries with the given rowETags. The rowETags are split
+   * across as many IN (...) queries as the datastore's bind parameter limit
+   * requires.
+   *
+   * @param logTable
+   * @param rowETags
+   * @param cc
+   * @return map of rowETag to log entity for those entries that exist.
+   * @throws ODKDatastoreException
+   */
+  public static Map<String, Entity> getEntities(DbLogTable logTable, Collection<String> rowETags,
+      CallingContext cc) throws ODKDatastoreException {
+    Validate.notNull(logTable);
+    Validate.noNullElements(rowETags);
+    Validate.notNull(cc);
+
+    List<String> distinctRowETags = new ArrayList<String>(new LinkedHashSet<String>(rowETags));
+    int chunkSize = cc.getDatastore().getMaxBindParams();
+    Map<String, Entity> entities = new HashMap<String, Entity>();
+    for (int i = 0; i < distinctRowETags.size(); i += chunkSize) {
+      List<String> chunk = distinctRowETags.subList(i,
+          Math.min(distinctRowETags.size(), i + chunkSize));
+      Query query = logTable.query("DbLogTable.getEntities", cc);
+      query.include(PersistConsts.URI_COLUMN_NAME, chunk);
+      for (Entity entity : query.executeStrict()) {
+        entities.put(entity.getId(), entity);
+      }
+    }
+    return entities;
+  }
+
   private static List<DataField> getStaticFields() {
     return Collections.unmodifiableList(dataFields);
   }
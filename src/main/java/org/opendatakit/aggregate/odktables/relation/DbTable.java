@@ -17,8 +17,12 @@
 package org.opendatakit.aggregate.odktables.relation;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.Validate;
 import org.opendatakit.aggregate.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
@@ -27,6 +31,8 @@ import org.opendatakit.aggregate.odktables.rest.TableConstants;
 import org.opendatakit.common.ermodel.Entity;
 import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.ermodel.Relation;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.CompositeIndex;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.DataField.DataType;
 import org.opendatakit.common.persistence.DataField.IndexType;
@@ -47,7 +53,7 @@ public class DbTable extends Relation {
 
   private DbTable(String namespace, String tableName, List<DataField> fields, CallingContext cc)
       throws ODKDatastoreException {
-    super(namespace, tableName, fields, cc);
+    super(namespace, tableName, fields, indexes, cc);
   }
 
   /**
@@ -125,6 +131,17 @@ public class DbTable extends Relation {
     dataFields.add(SAVEPOINT_CREATOR);
   }
 
+  /**
+   * getRows filters on _DELETED and pages by _CREATION_DATE, breaking ties
+   * on _URI.
+   */
+  private static final List<CompositeIndex> indexes;
+  static {
+    indexes = new ArrayList<CompositeIndex>();
+    indexes.add(new CompositeIndex("dcdu", DELETED.getName(),
+        CommonFieldsBase.CREATION_DATE_COLUMN_NAME, CommonFieldsBase.URI_COLUMN_NAME));
+  }
+
   private static final EntityConverter converter = new EntityConverter();
 
   public static DbTable getRelation(DbTableDefinitionsEntity entity, List<DbColumnDefinitionsEntity> entities, CallingContext cc)
@@ -174,4 +191,35 @@ public class DbTable extends Relation {
     return entities;
   }
 
+  /**
+   * Fetch the existing rows with the given rowIds. The rowIds are split across
+   * as many IN (...) queries as the datastore's bind parameter limit requires.
+   *
+   * @param table
+   * @param rowIds
+   * @param cc
+   * @return map of rowId to entity for those rows that exist.
+   * @throws ODKDatastoreException
+   */
+  public static Map<String, Entity> getEntities(DbTable table, Collection<String> rowIds,
+      CallingContext cc) throws ODKDatastoreException {
+    Validate.notNull(table);
+    Validate.noNullElements(rowIds);
+    Validate.notNull(cc);
+
+    List<String> distinctRowIds = new ArrayList<String>(new LinkedHashSet<String>(rowIds));
+    int chunkSize = cc.getDatastore().getMaxBindParams();
+    Map<String, Entity> entities = new HashMap<String, Entity>();
+    for (int i = 0; i < distinctRowIds.size(); i += chunkSize) {
+      List<String> chunk = distinctRowIds.subList(i,
+          Math.min(distinctRowIds.size(), i + chunkSize));
+      Query query = table.query("DbTable.getEntities", cc);
+      query.include(PersistConsts.URI_COLUMN_NAME, chunk);
+      for (Entity entity : query.executeStrict()) {
+        entities.put(entity.getId(), entity);
+      }
+    }
+    return entities;
+  }
+
 }
\ No newline at end of file
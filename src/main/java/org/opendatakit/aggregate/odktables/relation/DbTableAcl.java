@@ -23,6 +23,7 @@ import org.opendatakit.common.ermodel.Entity;
 import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.ermodel.Query.WebsafeQueryResult;
 import org.opendatakit.common.ermodel.Relation;
+import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.DataField.DataType;
 import org.opendatakit.common.persistence.DataField.IndexType;
@@ -185,6 +186,33 @@ public class DbTableAcl extends Relation {
     return result;
   }
 
+  /**
+   * The rows a user may read depend on the table's acls, so a response that
+   * is filtered by them must change whenever they do.
+   *
+   * @param tableId
+   * @param cc
+   * @return an md5 hash uri over all the acls of the table.
+   * @throws ODKDatastoreException
+   */
+  public static String getAclETag(String tableId, CallingContext cc)
+      throws ODKDatastoreException {
+    Query query = getRelation(cc).query("DbTableAcl.getAclETag()", cc);
+    query.equal(DbTableAcl.TABLE_ID, tableId);
+    query.addSort(DbTableAcl.ROLE, Direction.ASCENDING);
+    query.addSort(DbTableAcl.SCOPE_TYPE, Direction.ASCENDING);
+    query.addSort(DbTableAcl.SCOPE_VALUE, Direction.ASCENDING);
+    List<Entity> acls = query.execute();
+
+    StringBuilder b = new StringBuilder();
+    for (Entity e : acls) {
+      DbTableAclEntity acl = new DbTableAclEntity(e);
+      b.append(acl.getRole()).append('|').append(acl.getScopeType()).append('|')
+          .append(acl.getScopeValue()).append('\n');
+    }
+    return CommonFieldsBase.newMD5HashUri(b.toString());
+  }
+
   /**
    * Retrieves the acl entity for a given table and scope.
    *
@@ -21,6 +21,7 @@ import java.util.List;
 
 import org.apache.commons.logging.LogFactory;
 import org.opendatakit.common.ermodel.Entity;
+import org.opendatakit.common.ermodel.ReadOnlyEntity;
 import org.opendatakit.common.ermodel.Query;
 import org.opendatakit.common.ermodel.Relation;
 import org.opendatakit.common.persistence.DataField;
@@ -77,6 +78,14 @@ public class DbTableDefinitions extends Relation {
       this.e = e;
     }
 
+    /**
+     * @return a read-only copy of this table definition that can be shared
+     *         across threads. Its setters, put() and delete() throw.
+     */
+    public DbTableDefinitionsEntity asReadOnly() {
+      return new DbTableDefinitionsEntity(ReadOnlyEntity.of(e));
+    }
+
     // Primary Key
     public String getId() {
       return e.getId();
@@ -27,7 +27,6 @@ import org.opendatakit.aggregate.odktables.relation.DbTableFileInfo.DbTableFileI
 import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.ElementType;
 import org.opendatakit.aggregate.odktables.rest.entity.Column;
-import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.Row;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope;
@@ -258,11 +257,11 @@ public class EntityConverter {
    *
    * @param entity
    *          the {@link DbTable} entity.
-   * @param columns
-   *          the {@link DbColumnDefinitions} entities of the table
+   * @param codec
+   *          the {@link RowCodec} for the table's schema
    * @return the row
    */
-  public Row toRow(Entity entity, List<DbColumnDefinitionsEntity> columns) {
+  public Row toRow(Entity entity, RowCodec codec) {
     Row row = new Row();
     row.setRowId(entity.getId());
     row.setRowETag(entity.getString(DbTable.ROW_ETAG));
@@ -278,7 +277,7 @@ public class EntityConverter {
     row.setSavepointTimestamp(entity.getString(DbTable.SAVEPOINT_TIMESTAMP));
     row.setSavepointCreator(entity.getString(DbTable.SAVEPOINT_CREATOR));
 
-    row.setValues(getRowValues(entity, columns));
+    row.setValues(codec.getTableValues(entity));
     return row;
   }
 
@@ -287,11 +286,11 @@ public class EntityConverter {
    *
    * @param entity
    *          the {@link DbLogTable} entity.
-   * @param columns
-   *          the {@link DbColumnDefinitions} entities of the table
+   * @param codec
+   *          the {@link RowCodec} for the table's schema
    * @return the row
    */
-  public Row toRowFromLogTable(Entity entity, List<DbColumnDefinitionsEntity> columns) {
+  public Row toRowFromLogTable(Entity entity, RowCodec codec) {
     Row row = new Row();
     row.setRowId(entity.getString(DbLogTable.ROW_ID));
     row.setRowETag(entity.getId());
@@ -307,42 +306,30 @@ public class EntityConverter {
     row.setSavepointTimestamp(entity.getString(DbLogTable.SAVEPOINT_TIMESTAMP));
     row.setSavepointCreator(entity.getString(DbLogTable.SAVEPOINT_CREATOR));
 
-    row.setValues(getRowValues(entity, columns));
+    row.setValues(codec.getLogTableValues(entity));
     return row;
   }
 
-  public ArrayList<DataKeyValue> getRowValues(Entity entity, List<DbColumnDefinitionsEntity> columns) {
-    ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
-    for (DbColumnDefinitionsEntity column : columns) {
-      if (column.isUnitOfRetention()) {
-        String name = column.getElementKey();
-        String value = entity.getAsString(name.toUpperCase());
-        values.add(new DataKeyValue(name, value));
-      }
-    }
-    return values;
-  }
-
   /**
    * Convert a list of {@link DbTable} or {@link DbLogTable} entities into a
    * list of {@link Row}
    *
    * @param entities
    *          the {@link DbTable} or {@link DbLogTable} entities
-   * @param columns
-   *          the {@link DbColumnDefinitions} of the table
+   * @param codec
+   *          the {@link RowCodec} for the table's schema
    * @param fromLogTable
    *          true if the rows are from the {@link DbLogTable}
    * @return the converted rows
    */
-  public List<Row> toRows(List<Entity> entities, List<DbColumnDefinitionsEntity> columns,
+  public List<Row> toRows(List<Entity> entities, RowCodec codec,
       boolean fromLogTable) {
-    ArrayList<Row> rows = new ArrayList<Row>();
+    ArrayList<Row> rows = new ArrayList<Row>(entities.size());
     for (Entity entity : entities) {
       if (fromLogTable)
-        rows.add(toRowFromLogTable(entity, columns));
+        rows.add(toRowFromLogTable(entity, codec));
       else
-        rows.add(toRow(entity, columns));
+        rows.add(toRow(entity, codec));
     }
     return rows;
   }
@@ -17,7 +17,6 @@
 package org.opendatakit.aggregate.odktables.relation;
 
 import java.util.ArrayList;
-import java.util.List;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.logging.Log;
@@ -207,7 +206,7 @@ public class EntityCreator {
   public void setRowFields(Entity row, String rowETag, String dataETagAtModification,
       String lastUpdateUser, boolean deleted,
       RowFilterScope rowFilterScope, String formId, String locale, String savepointType,
-      String savepointTimestamp, String savepointCreator, ArrayList<DataKeyValue> values, List<DbColumnDefinitionsEntity> columns)
+      String savepointTimestamp, String savepointCreator, ArrayList<DataKeyValue> values, RowCodec codec)
       throws BadColumnNameException {
     row.set(DbTable.ROW_ETAG, rowETag);
     row.set(DbTable.DATA_ETAG_AT_MODIFICATION, dataETagAtModification);
@@ -255,29 +254,19 @@ public class EntityCreator {
             + " should be passed using its reserved field");
       } else {
         // 3) --add it to the user-defined column
-        DbColumnDefinitionsEntity column = findColumn(name, columns);
-        if (column == null) {
+        int index = codec.indexOf(name);
+        if (index == RowCodec.UNKNOWN_COLUMN) {
           // If we don't have a colum in the aggregate db, it's ok if it's one
           // of the Tables-only columns. Otherwise it's an error.
           log.error("bad column name: " + name);
           throw new BadColumnNameException("Bad column name " + name);
-        } else if (column.isUnitOfRetention()) {
-          row.setAsString(column.getElementKey().toUpperCase(), value);
+        } else if (index != RowCodec.NOT_RETAINED) {
+          codec.setTableValue(row, index, value);
         }
       }
     }
   }
 
-  private DbColumnDefinitionsEntity findColumn(String elementKey,
-      List<DbColumnDefinitionsEntity> columns) {
-    for (DbColumnDefinitionsEntity entity : columns) {
-      String colName = entity.getElementKey();
-      if (elementKey.equals(colName))
-        return entity;
-    }
-    return null;
-  }
-
   /**
    * Create a new {@link DbLogTable} row entity.
    *
@@ -291,8 +280,8 @@ public class EntityCreator {
    *          the data etag at the time of creation
    * @param row
    *          the row
-   * @param columns
-   *          the {@link DbColumnDefinitions} entities for the log table
+   * @param codec
+   *          the {@link RowCodec} for the table's schema
    * @param sequencer
    *          the sequencer for ordering the log entries
    * @param cc
@@ -301,12 +290,12 @@ public class EntityCreator {
    */
   public Entity newLogEntity(DbLogTable logTable, String dataETagAtModification,
       String previousRowETag, Entity row,
-      List<DbColumnDefinitionsEntity> columns, Sequencer sequencer, CallingContext cc)
+      RowCodec codec, Sequencer sequencer, CallingContext cc)
       throws ODKDatastoreException {
     Validate.notNull(logTable);
     Validate.notEmpty(dataETagAtModification);
     Validate.notNull(row);
-    Validate.noNullElements(columns);
+    Validate.notNull(codec);
     Validate.notNull(cc);
 
     Entity entity = logTable.newEntity(row.getString(DbTable.ROW_ETAG), cc);
@@ -331,12 +320,7 @@ public class EntityCreator {
     entity.set(DbLogTable.SAVEPOINT_TIMESTAMP, row.getString(DbTable.SAVEPOINT_TIMESTAMP));
     entity.set(DbLogTable.SAVEPOINT_CREATOR, row.getString(DbTable.SAVEPOINT_CREATOR));
 
-    for (DbColumnDefinitionsEntity column : columns) {
-      if (column.isUnitOfRetention()) {
-        String value = row.getAsString(column.getElementKey().toUpperCase());
-        entity.setAsString(column.getElementKey().toUpperCase(), value);
-      }
-    }
+    codec.copyTableValuesToLogTable(row, entity);
     return entity;
   }
 }
\ No newline at end of file
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables.relation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.common.ermodel.Entity;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.utils.WebUtils;
+
+/**
+ * Converts the user-defined column values of a row between
+ * {@link DataKeyValue} lists and the {@link DbTable} and {@link DbLogTable}
+ * entities of one (tableId, schemaETag).
+ *
+ * Built once per schema (see TableMetadataCache). The elementKey lookup, the
+ * DataField of each column in both relations and the conversion for its data
+ * type are resolved up front, so that converting a row does no column search,
+ * name validation or upper-casing. The string forms produced and accepted are
+ * those of {@link Entity#getAsString(String)} and
+ * {@link Entity#setAsString(String, String)}.
+ *
+ * Instances are immutable and shared across threads.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class RowCodec {
+
+  /**
+   * Returned by {@link #indexOf(String)} for a column that is defined but not
+   * stored (e.g., the parent of a composite type).
+   */
+  public static final int NOT_RETAINED = -1;
+
+  /**
+   * Returned by {@link #indexOf(String)} for an elementKey that is not a
+   * column of the table.
+   */
+  public static final int UNKNOWN_COLUMN = -2;
+
+  private enum ValueCodec {
+    STRING {
+      @Override
+      String get(Entity e, DataField f) {
+        return e.getString(f);
+      }
+
+      @Override
+      void set(Entity e, DataField f, String value) {
+        e.set(f, value);
+      }
+
+      @Override
+      void copy(Entity from, DataField ff, Entity to, DataField tf) {
+        to.set(tf, from.getString(ff));
+      }
+    },
+    INTEGER {
+      @Override
+      String get(Entity e, DataField f) {
+        Long l = e.getLong(f);
+        return (l == null) ? null : l.toString();
+      }
+
+      @Override
+      void set(Entity e, DataField f, String value) {
+        try {
+          e.set(f, (value == null || value.length() == 0) ? null : Long.valueOf(value));
+        } catch (NumberFormatException ex) {
+          throw new IllegalArgumentException("Unparsable integer value: " + value
+              + " for field: " + f.getName());
+        }
+      }
+
+      @Override
+      void copy(Entity from, DataField ff, Entity to, DataField tf) {
+        to.set(tf, from.getLong(ff));
+      }
+    },
+    DECIMAL {
+      @Override
+      String get(Entity e, DataField f) {
+        WrappedBigDecimal v = e.getNumeric(f);
+        return (v == null) ? null : v.toString();
+      }
+
+      @Override
+      void set(Entity e, DataField f, String value) {
+        try {
+          e.set(f, (value == null || value.length() == 0) ? null : new WrappedBigDecimal(value));
+        } catch (NumberFormatException ex) {
+          throw new IllegalArgumentException("Unparsable integer value: " + value
+              + " for field: " + f.getName());
+        }
+      }
+
+      @Override
+      void copy(Entity from, DataField ff, Entity to, DataField tf) {
+        to.set(tf, from.getNumeric(ff));
+      }
+    },
+    BOOLEAN {
+      @Override
+      String get(Entity e, DataField f) {
+        Boolean b = e.getBoolean(f);
+        return (b == null) ? null : b.toString();
+      }
+
+      @Override
+      void set(Entity e, DataField f, String value) {
+        e.set(f, WebUtils.parseBoolean(value));
+      }
+
+      @Override
+      void copy(Entity from, DataField ff, Entity to, DataField tf) {
+        to.set(tf, from.getBoolean(ff));
+      }
+    },
+    /**
+     * Any other data type; goes through the Entity's string conversions.
+     */
+    OTHER {
+      @Override
+      String get(Entity e, DataField f) {
+        return e.getAsString(f.getName());
+      }
+
+      @Override
+      void set(Entity e, DataField f, String value) {
+        e.setAsString(f.getName(), value);
+      }
+
+      @Override
+      void copy(Entity from, DataField ff, Entity to, DataField tf) {
+        to.setAsString(tf.getName(), from.getAsString(ff.getName()));
+      }
+    };
+
+    abstract String get(Entity e, DataField f);
+
+    abstract void set(Entity e, DataField f, String value);
+
+    abstract void copy(Entity from, DataField ff, Entity to, DataField tf);
+
+    static ValueCodec forField(DataField f) {
+      switch (f.getDataType()) {
+      case STRING:
+      case URI:
+        return STRING;
+      case INTEGER:
+        return INTEGER;
+      case DECIMAL:
+        return DECIMAL;
+      case BOOLEAN:
+        return BOOLEAN;
+      default:
+        return OTHER;
+      }
+    }
+  }
+
+  private final List<DbColumnDefinitionsEntity> columns;
+
+  // indexed by position among the retained columns, in column order
+  private final String[] elementKeys;
+  private final ValueCodec[] codecs;
+  private final DataField[] tableFields;
+  private final DataField[] logTableFields;
+
+  // elementKey => position among the retained columns, or NOT_RETAINED
+  private final Map<String, Integer> indexByElementKey;
+
+  public RowCodec(List<DbColumnDefinitionsEntity> columns, DbTable table, DbLogTable logTable) {
+    this.columns = Collections.unmodifiableList(new ArrayList<DbColumnDefinitionsEntity>(columns));
+
+    List<DbColumnDefinitionsEntity> retained = new ArrayList<DbColumnDefinitionsEntity>();
+    Map<String, Integer> indexes = new HashMap<String, Integer>();
+    for (DbColumnDefinitionsEntity column : columns) {
+      if (column.isUnitOfRetention()) {
+        indexes.put(column.getElementKey(), retained.size());
+        retained.add(column);
+      } else if (!indexes.containsKey(column.getElementKey())) {
+        indexes.put(column.getElementKey(), NOT_RETAINED);
+      }
+    }
+    this.indexByElementKey = indexes;
+
+    int n = retained.size();
+    elementKeys = new String[n];
+    codecs = new ValueCodec[n];
+    tableFields = new DataField[n];
+    logTableFields = new DataField[n];
+    for (int i = 0; i < n; ++i) {
+      String elementKey = retained.get(i).getElementKey();
+      String fieldName = elementKey.toUpperCase();
+      elementKeys[i] = elementKey;
+      tableFields[i] = table.getDataField(fieldName);
+      logTableFields[i] = logTable.getDataField(fieldName);
+      codecs[i] = ValueCodec.forField(tableFields[i]);
+    }
+  }
+
+  /**
+   * @return the column definitions of the table.
+   */
+  public List<DbColumnDefinitionsEntity> getColumns() {
+    return columns;
+  }
+
+  /**
+   * @return the number of columns stored in the DbTable and DbLogTable.
+   */
+  public int getRetainedColumnCount() {
+    return elementKeys.length;
+  }
+
+  /**
+   * @param elementKey
+   * @return the position of the elementKey among the retained columns, or
+   *         {@link #NOT_RETAINED} or {@link #UNKNOWN_COLUMN}.
+   */
+  public int indexOf(String elementKey) {
+    Integer i = indexByElementKey.get(elementKey);
+    return (i == null) ? UNKNOWN_COLUMN : i;
+  }
+
+  /**
+   * Set the value of the retained column at the given position on a
+   * {@link DbTable} entity.
+   *
+   * @param row
+   * @param index
+   *          as returned by {@link #indexOf(String)}
+   * @param value
+   */
+  public void setTableValue(Entity row, int index, String value) {
+    codecs[index].set(row, tableFields[index], value);
+  }
+
+  /**
+   * @param row
+   *          a {@link DbTable} entity.
+   * @return the values of the retained columns, in column order.
+   */
+  public ArrayList<DataKeyValue> getTableValues(Entity row) {
+    return getValues(row, tableFields);
+  }
+
+  /**
+   * @param logEntity
+   *          a {@link DbLogTable} entity.
+   * @return the values of the retained columns, in column order.
+   */
+  public ArrayList<DataKeyValue> getLogTableValues(Entity logEntity) {
+    return getValues(logEntity, logTableFields);
+  }
+
+  private ArrayList<DataKeyValue> getValues(Entity entity, DataField[] fields) {
+    ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>(elementKeys.length);
+    for (int i = 0; i < elementKeys.length; ++i) {
+      values.add(new DataKeyValue(elementKeys[i], codecs[i].get(entity, fields[i])));
+    }
+    return values;
+  }
+
+  /**
+   * Copy the values of the retained columns from a {@link DbTable} entity to a
+   * {@link DbLogTable} entity without converting them to strings.
+   *
+   * @param row
+   * @param logEntity
+   */
+  public void copyTableValuesToLogTable(Entity row, Entity logEntity) {
+    for (int i = 0; i < elementKeys.length; ++i) {
+      codecs[i].copy(row, tableFields[i], logEntity, logTableFields[i]);
+    }
+  }
+}
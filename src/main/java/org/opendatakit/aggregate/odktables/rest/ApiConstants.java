@@ -63,4 +63,21 @@ public final class ApiConstants {
   public static final String ETAG_HEADER = "ETag";
   
   public static final String LOCATION_HEADER = "Location";
+
+  /**
+   * Resumable uploads: the number of bytes of the upload the server has
+   * received, and the offset at which the client is sending more.
+   */
+  public static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
+
+  /**
+   * Resumable uploads: the total length of the upload, if known when the
+   * upload is started.
+   */
+  public static final String UPLOAD_LENGTH_HEADER = "Upload-Length";
+
+  /**
+   * Resumable uploads: the md5 hash uri (md5:...) of the complete upload.
+   */
+  public static final String UPLOAD_CONTENT_HASH_HEADER = "Upload-Content-Hash";
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables.rest.entity;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The sync state of one table, as sent in a bulk sync request. The server
+ * returns the rows changed since the given dataETag, as getRowsSince would.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class TableSyncRequest {
+
+  @JsonProperty(required = true)
+  private String tableId;
+
+  /**
+   * The schemaETag the client holds for the table.
+   */
+  @JsonProperty(required = true)
+  private String schemaETag;
+
+  /**
+   * The dataETag the client last synced to. Null for a first sync.
+   */
+  @JsonProperty(required = false)
+  private String dataETag;
+
+  /**
+   * The resume cursor returned by the previous page, if any.
+   */
+  @JsonProperty(required = false)
+  private String cursor;
+
+  /**
+   * Constructor used by Jackson
+   */
+  public TableSyncRequest() {
+  }
+
+  /**
+   * Constructor used by our Java code
+   */
+  public TableSyncRequest(String tableId, String schemaETag, String dataETag, String cursor) {
+    this.tableId = tableId;
+    this.schemaETag = schemaETag;
+    this.dataETag = dataETag;
+    this.cursor = cursor;
+  }
+
+  public String getTableId() {
+    return tableId;
+  }
+
+  public void setTableId(String tableId) {
+    this.tableId = tableId;
+  }
+
+  public String getSchemaETag() {
+    return schemaETag;
+  }
+
+  public void setSchemaETag(String schemaETag) {
+    this.schemaETag = schemaETag;
+  }
+
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  public void setDataETag(String dataETag) {
+    this.dataETag = dataETag;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public void setCursor(String cursor) {
+    this.cursor = cursor;
+  }
+}
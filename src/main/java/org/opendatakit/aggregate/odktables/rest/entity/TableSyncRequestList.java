@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables.rest.entity;
+
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+
+/**
+ * The body of a bulk sync request: the sync state of each table the client
+ * wants the changes of, and the maximum number of rows to return per table.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@JacksonXmlRootElement(localName="tableSyncRequestList")
+public class TableSyncRequestList {
+
+  @JsonProperty(required = false)
+  @JacksonXmlElementWrapper(useWrapping=false)
+  @JacksonXmlProperty(localName="table")
+  private ArrayList<TableSyncRequest> tables;
+
+  /**
+   * The maximum number of rows to return for each table. Null for the
+   * server default.
+   */
+  @JsonProperty(required = false)
+  private Integer fetchLimit;
+
+  /**
+   * Constructor used by Jackson
+   */
+  public TableSyncRequestList() {
+    this.tables = new ArrayList<TableSyncRequest>();
+  }
+
+  /**
+   * Constructor used by our Java code
+   */
+  public TableSyncRequestList(ArrayList<TableSyncRequest> tables, Integer fetchLimit) {
+    this.tables = (tables == null) ? new ArrayList<TableSyncRequest>() : tables;
+    this.fetchLimit = fetchLimit;
+  }
+
+  public ArrayList<TableSyncRequest> getTables() {
+    return tables;
+  }
+
+  public void setTables(ArrayList<TableSyncRequest> tables) {
+    this.tables = tables;
+  }
+
+  public Integer getFetchLimit() {
+    return fetchLimit;
+  }
+
+  public void setFetchLimit(Integer fetchLimit) {
+    this.fetchLimit = fetchLimit;
+  }
+}
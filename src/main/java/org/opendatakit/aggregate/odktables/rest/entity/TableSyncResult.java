@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables.rest.entity;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The outcome for one table of a bulk sync request. The status is the HTTP
+ * status the equivalent getRowsSince request would have returned; on success
+ * rows holds its response body, on 304 (Not Modified) neither rows nor error
+ * is present, otherwise error describes the failure.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class TableSyncResult {
+
+  @JsonProperty(required = true)
+  private String tableId;
+
+  @JsonProperty(required = false)
+  private String schemaETag;
+
+  @JsonProperty(required = true)
+  private int status;
+
+  @JsonProperty(required = false)
+  private Error error;
+
+  @JsonProperty(required = false)
+  private RowResourceList rows;
+
+  /**
+   * Constructor used by Jackson
+   */
+  public TableSyncResult() {
+  }
+
+  /**
+   * Constructor used by our Java code
+   */
+  public TableSyncResult(String tableId, String schemaETag, int status, Error error,
+      RowResourceList rows) {
+    this.tableId = tableId;
+    this.schemaETag = schemaETag;
+    this.status = status;
+    this.error = error;
+    this.rows = rows;
+  }
+
+  public String getTableId() {
+    return tableId;
+  }
+
+  public void setTableId(String tableId) {
+    this.tableId = tableId;
+  }
+
+  public String getSchemaETag() {
+    return schemaETag;
+  }
+
+  public void setSchemaETag(String schemaETag) {
+    this.schemaETag = schemaETag;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public void setStatus(int status) {
+    this.status = status;
+  }
+
+  public Error getError() {
+    return error;
+  }
+
+  public void setError(Error error) {
+    this.error = error;
+  }
+
+  public RowResourceList getRows() {
+    return rows;
+  }
+
+  public void setRows(RowResourceList rows) {
+    this.rows = rows;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.odktables.rest.entity;
+
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+
+/**
+ * The response to a bulk sync request: one result per requested table, in
+ * the order requested.
+ *
+ * Proper XML documents can contain only one root node.
+ * This wrapping class provides that root node.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@JacksonXmlRootElement(localName="tableSyncResultList")
+public class TableSyncResultList {
+
+  /**
+   * The name of the results array in the JSON serialization.
+   */
+  public static final String TABLES = "tables";
+
+  @JsonProperty(value = TABLES, required = false)
+  @JacksonXmlElementWrapper(useWrapping=false)
+  @JacksonXmlProperty(localName="table")
+  private ArrayList<TableSyncResult> tables;
+
+  /**
+   * Constructor used by Jackson
+   */
+  public TableSyncResultList() {
+    this.tables = new ArrayList<TableSyncResult>();
+  }
+
+  /**
+   * Constructor used by our Java code
+   */
+  public TableSyncResultList(ArrayList<TableSyncResult> tables) {
+    this.tables = (tables == null) ? new ArrayList<TableSyncResult>() : tables;
+  }
+
+  public ArrayList<TableSyncResult> getTables() {
+    return tables;
+  }
+
+  public void setTables(ArrayList<TableSyncResult> tables) {
+    this.tables = tables;
+  }
+}
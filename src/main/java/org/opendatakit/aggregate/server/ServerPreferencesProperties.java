@@ -19,6 +19,7 @@ package org.opendatakit.aggregate.server;
 import java.util.Date;
 import java.util.List;
 
+import org.apache.commons.logging.LogFactory;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Datastore;
@@ -67,6 +68,10 @@ public class ServerPreferencesProperties extends CommonFieldsBase {
   private static final String ANONYMOUS_DATA_COLLECTION = "ANONYMOUS_DATA_COLLECTION";
   private static final String ANONYMOUS_ACCESS_TO_ATTACHMENTS = "ANONYMOUS_ACCESS_TO_ATTACHMENTS";
 
+  // set once attachment content has been written to a blob store; that
+  // content cannot be read back unless the blob store remains configured.
+  private static final String ATTACHMENTS_IN_BLOB_STORE = "ATTACHMENTS_IN_BLOB_STORE";
+
   private static final String ODK_TABLES_SEQUENCER_BASE = "ODK_TABLES_SEQUENCER_BASE";
   // there can be only one APP_ID per ODK Aggregate. Store the app name here.
   // The main impact on this is validity checking on sync when the appId is
@@ -173,29 +178,49 @@ public class ServerPreferencesProperties extends CommonFieldsBase {
     setServerPreferencesProperty(cc, ODK_TABLES_APP_ID, appId);
   }
 
-  public static String unsafeIncOdkTablesSequencerBase(CallingContext cc)
+  /**
+   * The ODK Tables sequencer is now backed by a database sequence. This
+   * returns the value that sequence should start at so that new sequence
+   * values continue to String-compare greater than those issued from the
+   * ODK_TABLES_SEQUENCER_BASE setting by earlier versions of the server.
+   *
+   * @param cc
+   * @return starting value for the sequence, in milliseconds since the epoch.
+   * @throws ODKEntityNotFoundException
+   * @throws ODKOverQuotaException
+   */
+  public static long getOdkTablesSequencerStartValue(CallingContext cc)
       throws ODKEntityNotFoundException, ODKOverQuotaException {
     String value = getServerPreferencesProperty(cc, ODK_TABLES_SEQUENCER_BASE);
-    String newValue = WebUtils.iso8601Date(new Date());
-    if (value != null && value.compareTo(newValue) >= 0) {
-      // the saved value String-compares greater
-      // than the current time string.
-
-      // parse the current time string...
+    long startValue = System.currentTimeMillis();
+    if (value != null) {
+      // parse the saved time string...
       Date d = WebUtils.parseDate(value);
       if (d == null) {
-        throw new IllegalStateException(
-            "The saved ODK_TABLES_SEQUENCER_BASE value could not be parsed!");
-      }
-      // add 1 millisecond and retry...
-      newValue = WebUtils.iso8601Date(new Date(d.getTime() + 1));
-      if (value.compareTo(newValue) >= 0) {
-        throw new IllegalStateException(
-            "The new ODK_TABLES_SEQUENCER_BASE value was not greater than the saved value.");
+        LogFactory.getLog(ServerPreferencesProperties.class).error(
+            "The saved ODK_TABLES_SEQUENCER_BASE value could not be parsed: " + value);
+      } else {
+        // start at least 1 millisecond after it
+        startValue = Math.max(startValue, d.getTime() + 1);
       }
     }
-    setServerPreferencesProperty(cc, ODK_TABLES_SEQUENCER_BASE, newValue);
-    return newValue;
+    return startValue;
+  }
+
+  /**
+   * Move the legacy ODK_TABLES_SEQUENCER_BASE setting forward to the value the
+   * database sequence was created at, so that it records where the sequence
+   * took over.
+   *
+   * @param cc
+   * @param sequenceBase
+   *          iso8601 date string.
+   * @throws ODKEntityNotFoundException
+   * @throws ODKOverQuotaException
+   */
+  public static void setOdkTablesSequencerBase(CallingContext cc, String sequenceBase)
+      throws ODKEntityNotFoundException, ODKOverQuotaException {
+    setServerPreferencesProperty(cc, ODK_TABLES_SEQUENCER_BASE, sequenceBase);
   }
 
   public static Boolean getFasterWatchdogCycleEnabled(CallingContext cc)
@@ -288,6 +313,21 @@ public class ServerPreferencesProperties extends CommonFieldsBase {
     setServerPreferencesProperty(cc, ANONYMOUS_DATA_COLLECTION, anonymousDataCollection.toString());
   }
 
+  public static Boolean getAttachmentsInBlobStore(CallingContext cc)
+      throws ODKEntityNotFoundException, ODKOverQuotaException {
+    String value = getServerPreferencesProperty(cc, ATTACHMENTS_IN_BLOB_STORE);
+    if (value != null) {
+      return Boolean.valueOf(value);
+    }
+    // null value should be treated as false
+    return false;
+  }
+
+  public static void setAttachmentsInBlobStore(CallingContext cc, Boolean attachmentsInBlobStore)
+      throws ODKEntityNotFoundException, ODKOverQuotaException {
+    setServerPreferencesProperty(cc, ATTACHMENTS_IN_BLOB_STORE, attachmentsInBlobStore.toString());
+  }
+
   public void persist(CallingContext cc) throws ODKEntityPersistException, ODKOverQuotaException {
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.aggregate.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opendatakit.aggregate.odktables.TableMetadataCache;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+
+/**
+ * Exposes the datastore access counters and latency histograms, and the table
+ * metadata cache counters, in the Prometheus text exposition format, for
+ * scraping by a monitoring server.
+ * Access is restricted to site administrators by Spring Security.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class MetricsServlet extends ServletUtilBase {
+
+  private static final long serialVersionUID = -3395254716543279014L;
+
+  public static final String ADDR = "metrics";
+
+  public static final String PROMETHEUS_TEXT_CONTENT_TYPE = "text/plain; version=0.0.4";
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
+      IOException {
+    StringBuilder b = new StringBuilder();
+    DatastoreAccessMetrics.writePrometheusText(b);
+    TableMetadataCache.writePrometheusText(b);
+
+    resp.setContentType(PROMETHEUS_TEXT_CONTENT_TYPE);
+    resp.setCharacterEncoding("UTF-8");
+    resp.setHeader("Cache-Control", "no-cache");
+    PrintWriter out = resp.getWriter();
+    out.write(b.toString());
+    out.flush();
+  }
+}
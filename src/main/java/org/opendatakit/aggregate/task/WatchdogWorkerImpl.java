@@ -30,6 +30,7 @@ import org.opendatakit.aggregate.datamodel.TopLevelDynamicBase;
 import org.opendatakit.aggregate.exception.ODKExternalServiceException;
 import org.opendatakit.aggregate.exception.ODKFormNotFoundException;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
+import org.opendatakit.aggregate.odktables.InstanceFileManager;
 import org.opendatakit.aggregate.util.BackendActionsTable;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.QueryResumePoint;
@@ -68,6 +69,14 @@ public class WatchdogWorkerImpl {
     try {
       wd = (Watchdog) cc.getBean(BeanDefs.WATCHDOG);
       cullThisWatchdog = BackendActionsTable.updateWatchdogStart(wd, cc);
+      try {
+        int count = InstanceFileManager.deleteIdleUploadSessions(cc);
+        if (count != 0) {
+          logger.info("Discarded " + count + " idle attachment upload sessions");
+        }
+      } catch (ODKDatastoreException e) {
+        logger.warn("Unable to discard idle attachment upload sessions: " + e.toString());
+      }
     } finally {
       // NOTE: if the above threw an exception, we re-start the watchdog.
       // otherwise, we restart it only if there is work to be done.
@@ -24,12 +24,17 @@ import javax.servlet.ServletContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.aggregate.odktables.Sequencer;
 import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.aggregate.task.Watchdog;
 import org.opendatakit.aggregate.task.WatchdogWorkerImpl;
 import org.opendatakit.aggregate.util.BackendActionsTable;
 import org.opendatakit.aggregate.util.ImageUtil;
+import org.opendatakit.common.datamodel.BinaryContentManipulator;
+import org.opendatakit.common.datamodel.ContentAddressedStore;
 import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.blob.BlobStore;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.security.Realm;
@@ -73,6 +78,8 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
   ServletContext ctxt = null;
   HttpClientFactory httpClientFactory = null;
   ImageUtil imageUtil = null;
+  BlobStore blobStore = null;
+  ContentAddressedStore contentAddressedStore = null;
 
   /**
    * Implementation of CallingContext for use by watchdog-launched tasks.
@@ -162,6 +169,11 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
         return httpClientFactory;
       } else if (BeanDefs.IMAGE_UTIL.equals(beanName)) {
         return imageUtil;
+      } else if (BeanDefs.BLOB_STORE.equals(beanName)) {
+        // optional -- null if attachment content is held in the database
+        return blobStore;
+      } else if (BeanDefs.CONTENT_ADDRESSED_STORE.equals(beanName)) {
+        return contentAddressedStore;
       }
       throw new IllegalStateException("unable to locate bean");
     }
@@ -303,6 +315,12 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
       e.printStackTrace();
     }
     lastFasterWatchdogCycleEnabledFlagFetch = System.currentTimeMillis();
+    // create or migrate the ODK Tables sequence once, before any writes
+    try {
+      Sequencer.initializeSequence(cc);
+    } catch (ODKDatastoreException e) {
+      logger.error("Unable to initialize the ODK Tables sequence", e);
+    }
     // start the publisher...
     establishWatchdog(lastFasterWatchdogCycleEnabledFlag);
     isStarted = true;
@@ -360,6 +378,22 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
     this.imageUtil = imageUtil;
   }
 
+  public BlobStore getBlobStore() {
+    return blobStore;
+  }
+
+  public void setBlobStore(BlobStore blobStore) {
+    this.blobStore = blobStore;
+  }
+
+  public ContentAddressedStore getContentAddressedStore() {
+    return contentAddressedStore;
+  }
+
+  public void setContentAddressedStore(ContentAddressedStore contentAddressedStore) {
+    this.contentAddressedStore = contentAddressedStore;
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
     System.out.println("afterPropertiesSet WATCHDOG TASK IN TOMCAT");
@@ -373,9 +407,28 @@ public class WatchdogImpl implements Watchdog, SmartLifecycle, InitializingBean,
       throw new IllegalStateException("no httpClientFactory specified");
     if (imageUtil == null)
       throw new IllegalStateException("no imageUtil specified");
+    if (contentAddressedStore == null)
+      throw new IllegalStateException("no contentAddressedStore specified");
+    verifyBlobStore();
     AggregrateThreadExecutor.initialize(taskScheduler);
   }
 
+  /**
+   * Attachment content written to a blob store is referenced by
+   * "blobstore:" sub-uris and can only be read through that store. Refuse to
+   * start without one rather than failing every read of that content.
+   */
+  private void verifyBlobStore() throws ODKDatastoreException {
+    if (blobStore != null) {
+      return;
+    }
+    if (ServerPreferencesProperties.getAttachmentsInBlobStore(getCallingContext())) {
+      throw new IllegalStateException("no " + BeanDefs.BLOB_STORE
+          + " specified but attachment content is held in a blob store ("
+          + BinaryContentManipulator.BLOB_STORE_REF_PREFIX + " references)");
+    }
+  }
+
   @Override
   public void setServletContext(ServletContext context) {
     System.out.print("Inside setServletContext");
@@ -13,25 +13,43 @@
  */
 package org.opendatakit.common.datamodel;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.aggregate.server.ServerPreferencesProperties;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.Direction;
 import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.blob.BlobInputStream;
+import org.opendatakit.common.persistence.blob.BlobStore;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.persistence.exception.ODKOverQuotaException;
 import org.opendatakit.common.security.User;
 import org.opendatakit.common.web.CallingContext;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 
 /**
  * Manipulator class for handling binary attachments. To use, create an instance
@@ -47,7 +65,13 @@ import org.opendatakit.common.web.CallingContext;
  * attachment relations, one for each distinct attachment. For submissions, for
  * example, each binary form element gets its own set of 3 attachment relations.
  * <p>
- *
+ * The content of new attachments is not written into these relations. It is
+ * held in the server-wide {@link ContentAddressedStore}, so that identical
+ * content is only stored once, and the attachment has a single
+ * {@link BinaryContentRefBlob} row whose _SUB_AURI is the content key. If a
+ * {@link BlobStore} is configured, the content is instead written there and
+ * the _SUB_AURI is {@link #BLOB_STORE_REF_PREFIX} followed by the id of the
+ * stored object. Content already held in RefBlob parts remains readable.
  *
  * @author mitchellsundt@gmail.com
  *
@@ -58,6 +82,38 @@ public class BinaryContentManipulator {
     FILE_UNCHANGED, NEW_FILE_VERSION, COMPLETELY_NEW_FILE
   }
 
+  /**
+   * Upper bound on the size of the RefBlob parts written by
+   * {@link BlobOutputStream}. This bounds the heap used by a streaming
+   * transfer regardless of the (much larger) maximum size of a RefBlob value.
+   */
+  public static final int STREAM_PART_SIZE = 1024 * 1024;
+
+  /**
+   * Prefix of the _SUB_AURI of a {@link BinaryContentRefBlob} that refers to
+   * content held in the {@link BlobStore} rather than to a {@link RefBlob}.
+   */
+  public static final String BLOB_STORE_REF_PREFIX = "blobstore:";
+
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  // true once the server preferences are known to record blob store use
+  private static volatile boolean blobStoreUseRecorded = false;
+
+  /**
+   * Maximum number of RefBlob parts fetched by one query when the whole blob
+   * is reassembled in memory. Keeps the IN list within bind-parameter limits.
+   */
+  private static final int MAX_PARTS_PER_QUERY = 100;
+
+  /**
+   * Number of RefBlob parts fetched by one query while streaming. Bounds the
+   * heap used by a stream to this many parts of {@link #STREAM_PART_SIZE}.
+   */
+  private static final int STREAM_PARTS_PER_QUERY = 8;
+
+  private static final Log logger = LogFactory.getLog(BinaryContentManipulator.class);
+
   private final String parentKey;
   private final String topLevelKey;
 
@@ -78,8 +134,18 @@ public class BinaryContentManipulator {
    */
   public static class BlobManipulator {
 
+    private final RefBlob ref;
+    private final Datastore ds;
+    private final User user;
     private List<BinaryContentRefBlob> dbBcbEntityList = new ArrayList<BinaryContentRefBlob>();
     private List<RefBlob> dbRefBlobList = new ArrayList<RefBlob>();
+    // set if the content is held in the blob store
+    private String blobStoreKey = null;
+    private BlobStore blobStore = null;
+    // set if the content is held in the content-addressed store
+    private String contentKey = null;
+    private BlobManipulator sharedContent = null;
+    private final CallingContext cc;
 
     /**
      * Construct an blob entity and persist it into the data store
@@ -96,12 +162,15 @@ public class BinaryContentManipulator {
     public BlobManipulator(byte[] blob, String uriVersionedContent, BinaryContentRefBlob bcbRef,
         RefBlob ref, String topLevelKey, CallingContext cc) throws ODKDatastoreException {
 
+      this.ref = ref;
+      this.ds = cc.getDatastore();
+      this.user = cc.getCurrentUser();
+      this.cc = cc;
+
       // loop to create the VBCRB and RB entries for each part of the
       // larger blob
       long blobLimit = ref.value.getMaxCharLen();
       long part = 1L;
-      Datastore ds = cc.getDatastore();
-      User user = cc.getCurrentUser();
       for (long index = 0; index < blob.length; index = index + blobLimit) {
         long endCopy = index + blobLimit;
         if (endCopy > blob.length)
@@ -122,11 +191,23 @@ public class BinaryContentManipulator {
       }
     }
 
+    /**
+     * Gather the ordered list of parts of an existing blob. The parts
+     * themselves are only fetched when the blob is read.
+     *
+     * @param uriVersionedContent
+     * @param bcbRef
+     * @param ref
+     * @param cc
+     * @throws ODKDatastoreException
+     */
     public BlobManipulator(String uriVersionedContent, BinaryContentRefBlob bcbRef, RefBlob ref,
         CallingContext cc) throws ODKDatastoreException {
 
-      Datastore ds = cc.getDatastore();
-      User user = cc.getCurrentUser();
+      this.ref = ref;
+      this.ds = cc.getDatastore();
+      this.user = cc.getCurrentUser();
+      this.cc = cc;
       // gather the ordered list of parts...
       Query q = ds.createQuery(bcbRef, "BinaryContentManipulator.BlobManipulator.constructor", user);
       q.addFilter(bcbRef.domAuri, FilterOperation.EQUAL, uriVersionedContent);
@@ -146,15 +227,72 @@ public class BinaryContentManipulator {
         ++expectedPart;
         dbBcbEntityList.add(bcref);
       }
+      if (dbBcbEntityList.size() == 1) {
+        String subAuri = dbBcbEntityList.get(0).getSubAuri();
+        if (isBlobStoreRef(subAuri)) {
+          blobStoreKey = getBlobStoreKey(bcbRef, subAuri);
+          blobStore = getBlobStore(cc);
+        } else if (ContentAddressedStore.isContentKey(subAuri)) {
+          contentKey = subAuri;
+        }
+      }
+    }
+
+    /**
+     * @return the manipulator over the shared parts of the content. These are
+     *         only looked up when the content is read.
+     */
+    private BlobManipulator getSharedContent() throws ODKDatastoreException {
+      if (sharedContent == null) {
+        sharedContent = ContentAddressedStore.getInstance(cc).getContent(contentKey, cc);
+      }
+      return sharedContent;
+    }
+
+    private BlobInputStream openBlobStoreContent() throws ODKDatastoreException {
+      if (blobStore == null) {
+        throw new ODKDatastoreException("Attachment content is held in a blob store but no "
+            + BeanDefs.BLOB_STORE + " bean is configured: " + blobStoreKey);
+      }
+      try {
+        return blobStore.get(blobStoreKey);
+      } catch (IOException e) {
+        throw new ODKDatastoreException("Unable to retrieve blob " + blobStoreKey, e);
+      }
+    }
 
-      // and gather the blob parts themselves...
-      for (BinaryContentRefBlob b : dbBcbEntityList) {
-        RefBlob eBlob = ds.getEntity(ref, b.getSubAuri(), user);
-        if (eBlob == null) {
-          throw new IllegalStateException("Missing blob part!");
+    /**
+     * Fetch the parts [fromIdx, toIdx) of the blob with a single query.
+     *
+     * @param fromIdx
+     * @param toIdx
+     * @return the part values, in part order.
+     * @throws ODKDatastoreException
+     */
+    private List<byte[]> getParts(int fromIdx, int toIdx) throws ODKDatastoreException {
+      List<String> subAuris = new ArrayList<String>(toIdx - fromIdx);
+      for (int i = fromIdx; i < toIdx; ++i) {
+        subAuris.add(dbBcbEntityList.get(i).getSubAuri());
+      }
+      Query q = ds.createQuery(ref, "BinaryContentManipulator.BlobManipulator.getParts", user);
+      q.addValueSetFilter(ref.primaryKey, subAuris);
+      Map<String, byte[]> values = new HashMap<String, byte[]>();
+      for (CommonFieldsBase cb : q.executeQuery()) {
+        RefBlob eBlob = (RefBlob) cb;
+        byte[] value = eBlob.getValue();
+        values.put(eBlob.getUri(), (value == null) ? new byte[0] : value);
+      }
+      // the references are ordered by part; return the values in that order.
+      List<byte[]> parts = new ArrayList<byte[]>(subAuris.size());
+      for (int i = fromIdx; i < toIdx; ++i) {
+        byte[] value = values.get(dbBcbEntityList.get(i).getSubAuri());
+        if (value == null) {
+          throw new ODKDatastoreException("Missing blob part "
+              + dbBcbEntityList.get(i).getPart() + " of " + getVersionedContentKey());
         }
-        dbRefBlobList.add(eBlob);
+        parts.add(value);
       }
+      return parts;
     }
 
     public String getTopLevelAuri() {
@@ -173,15 +311,155 @@ public class BinaryContentManipulator {
       return dbBcbEntityList.get(0).getDomAuri();
     }
 
-    public byte[] getBlob() {
+    public byte[] getBlob() throws ODKDatastoreException {
+      if (contentKey != null) {
+        return getSharedContent().getBlob();
+      }
       ByteArrayOutputStream reconstructedBlob = new ByteArrayOutputStream();
-      for (RefBlob partialBlob : dbRefBlobList) {
-        byte[] part = partialBlob.getValue();
-        reconstructedBlob.write(part, 0, part.length);
+      if (blobStoreKey != null) {
+        BlobInputStream in = openBlobStoreContent();
+        try {
+          try {
+            in.transferTo(reconstructedBlob);
+          } finally {
+            in.close();
+          }
+        } catch (IOException e) {
+          throw new ODKDatastoreException("Unable to retrieve blob " + blobStoreKey, e);
+        }
+        return reconstructedBlob.toByteArray();
+      }
+      for (int i = 0; i < dbBcbEntityList.size(); i += MAX_PARTS_PER_QUERY) {
+        int end = Math.min(dbBcbEntityList.size(), i + MAX_PARTS_PER_QUERY);
+        for (byte[] part : getParts(i, end)) {
+          reconstructedBlob.write(part, 0, part.length);
+        }
       }
       return reconstructedBlob.toByteArray();
     }
 
+    /**
+     * Confirm that every part of the blob is present, fetching only the part
+     * uris, a few hundred at a time.
+     *
+     * @throws ODKDatastoreException
+     *           if a part is missing.
+     */
+    private void verifyParts() throws ODKDatastoreException {
+      for (int i = 0; i < dbBcbEntityList.size(); i += MAX_PARTS_PER_QUERY) {
+        int end = Math.min(dbBcbEntityList.size(), i + MAX_PARTS_PER_QUERY);
+        List<String> subAuris = new ArrayList<String>(end - i);
+        for (int j = i; j < end; ++j) {
+          subAuris.add(dbBcbEntityList.get(j).getSubAuri());
+        }
+        Query q = ds.createQuery(ref, "BinaryContentManipulator.BlobManipulator.verifyParts",
+            user);
+        q.addValueSetFilter(ref.primaryKey, subAuris);
+        Set<Object> present = new HashSet<Object>(
+            q.executeDistinctValueForDataField(ref.primaryKey));
+        for (int j = i; j < end; ++j) {
+          if (!present.contains(dbBcbEntityList.get(j).getSubAuri())) {
+            throw new ODKDatastoreException("Missing blob part "
+                + dbBcbEntityList.get(j).getPart() + " of " + getVersionedContentKey());
+          }
+        }
+      }
+    }
+
+    /**
+     * The presence of every part is checked before the stream is returned, so
+     * that a damaged attachment is reported before any of it is written to a
+     * response.
+     *
+     * @return a stream over the blob content that holds at most a few parts in
+     *         memory at a time, or the blob store's stream over the content.
+     * @throws ODKDatastoreException
+     *           if the content, or any part of it, is missing.
+     */
+    public InputStream getInputStream() throws ODKDatastoreException {
+      if (blobStoreKey != null) {
+        return openBlobStoreContent();
+      }
+      if (contentKey != null) {
+        return getSharedContent().getInputStream();
+      }
+      verifyParts();
+      return new PartInputStream();
+    }
+
+    private class PartInputStream extends InputStream {
+      // index of the first part not yet fetched
+      private int partIdx = 0;
+      // parts fetched but not yet read
+      private final LinkedList<byte[]> fetched = new LinkedList<byte[]>();
+      private byte[] part = null;
+      private int offset = 0;
+
+      /**
+       * Advance to the next non-empty part if the current one is exhausted,
+       * fetching the next few parts with one query when none are left.
+       *
+       * @return false at the end of the blob.
+       * @throws IOException
+       */
+      private boolean hasData() throws IOException {
+        while (part == null || offset >= part.length) {
+          part = null;
+          if (fetched.isEmpty()) {
+            if (partIdx >= dbBcbEntityList.size()) {
+              return false;
+            }
+            int end = Math.min(dbBcbEntityList.size(), partIdx + STREAM_PARTS_PER_QUERY);
+            try {
+              fetched.addAll(getParts(partIdx, end));
+            } catch (ODKDatastoreException e) {
+              throw new IOException("Unable to retrieve blob parts "
+                  + dbBcbEntityList.get(partIdx).getPart() + " to "
+                  + dbBcbEntityList.get(end - 1).getPart(), e);
+            }
+            partIdx = end;
+          }
+          part = fetched.removeFirst();
+          offset = 0;
+        }
+        return true;
+      }
+
+      @Override
+      public int read() throws IOException {
+        if (!hasData()) {
+          return -1;
+        }
+        return part[offset++] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        if (!hasData()) {
+          return -1;
+        }
+        int n = Math.min(len, part.length - offset);
+        System.arraycopy(part, offset, b, off, n);
+        offset += n;
+        return n;
+      }
+
+      @Override
+      public int available() {
+        return (part == null) ? 0 : part.length - offset;
+      }
+
+      @Override
+      public void close() {
+        part = null;
+        fetched.clear();
+        partIdx = dbBcbEntityList.size();
+      }
+    }
+
     /**
      * Recursively add the keys for this entry to keyList.
      * Pay attention to the order of insertion so that if
@@ -192,23 +470,37 @@ public class BinaryContentManipulator {
      * @param keyList
      */
     public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList) {
-      HashMap<String, RefBlob> blobs = new HashMap<String, RefBlob>();
-      for ( RefBlob r : dbRefBlobList ) {
-        blobs.put(r.getUri(), r);
-      }
-      
+      // the parts are not fetched; build their keys from the references.
       for ( int i = 0 ; i < dbBcbEntityList.size() ; ++i ) {
         BinaryContentRefBlob e = dbBcbEntityList.get(i);
-        String sub = e.getSubAuri();
-        RefBlob r = blobs.get(sub);
-        if ( r != null ) {
-          keyList.add(r.getEntityKey());
-          blobs.remove(sub);
+        if (!isBlobStoreRef(e.getSubAuri()) && !ContentAddressedStore.isContentKey(e.getSubAuri())) {
+          keyList.add(new EntityKey(ref, e.getSubAuri()));
         }
         keyList.add(e.getEntityKey());
       }
-      for (RefBlob r : blobs.values()) {
-        keyList.add(r.getEntityKey());
+    }
+
+    /**
+     * Remove the content from the blob store, or this reference to it from the
+     * content-addressed store, if it is held there. Call this after the
+     * entities from {@link #recursivelyAddEntityKeysForDeletion} have been
+     * deleted. A failure only leaves unreferenced content behind, so it is
+     * logged rather than thrown.
+     */
+    public void releaseContent() {
+      if (blobStoreKey != null && blobStore != null) {
+        try {
+          blobStore.delete(blobStoreKey);
+        } catch (IOException e) {
+          logger.warn("Unable to delete blob " + blobStoreKey + ": " + e.toString());
+        }
+      }
+      if (contentKey != null) {
+        try {
+          ContentAddressedStore.getInstance(cc).removeReference(contentKey, cc);
+        } catch (ODKDatastoreException e) {
+          logger.warn("Unable to release content " + contentKey + ": " + e.toString());
+        }
       }
     }
 
@@ -221,6 +513,132 @@ public class BinaryContentManipulator {
 
   }
 
+  /**
+   * Writes a blob as a sequence of RefBlob parts of at most
+   * {@link BinaryContentManipulator#STREAM_PART_SIZE} bytes, persisting each
+   * part as soon as it fills. The MD5 hash and length of the content are
+   * accumulated as it is written and are available once the stream is closed.
+   *
+   * @author mitchellsundt@gmail.com
+   *
+   */
+  public static class BlobOutputStream extends OutputStream {
+
+    private final BinaryContentRefBlob bcbRef;
+    private final RefBlob ref;
+    private final String topLevelKey;
+    private final Datastore ds;
+    private final User user;
+    private final MessageDigest md;
+    private final byte[] buffer;
+    private final List<BinaryContentRefBlob> dbBcbEntityList = new ArrayList<BinaryContentRefBlob>();
+    private final List<EntityKey> dbRefBlobKeyList = new ArrayList<EntityKey>();
+    private final String uriVersionedContent;
+    private int buffered = 0;
+    private long contentLength = 0L;
+    private String contentHash = null;
+
+    public BlobOutputStream(String uriVersionedContent, BinaryContentRefBlob bcbRef, RefBlob ref,
+        String topLevelKey, CallingContext cc) {
+      this.uriVersionedContent = uriVersionedContent;
+      this.bcbRef = bcbRef;
+      this.ref = ref;
+      this.topLevelKey = topLevelKey;
+      this.ds = cc.getDatastore();
+      this.user = cc.getCurrentUser();
+      try {
+        this.md = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+      }
+      this.buffer = new byte[(int) Math.min(ref.value.getMaxCharLen(), STREAM_PART_SIZE)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (contentHash != null) {
+        throw new IOException("stream is closed");
+      }
+      md.update(b, off, len);
+      contentLength += len;
+      while (len > 0) {
+        int n = Math.min(len, buffer.length - buffered);
+        System.arraycopy(b, off, buffer, buffered, n);
+        buffered += n;
+        off += n;
+        len -= n;
+        if (buffered == buffer.length) {
+          writePart();
+        }
+      }
+    }
+
+    private void writePart() throws IOException {
+      try {
+        RefBlob eBlob = ds.createEntityUsingRelation(ref, user);
+        eBlob.setTopLevelAuri(topLevelKey);
+        eBlob.setValue(Arrays.copyOf(buffer, buffered));
+        BinaryContentRefBlob bcb = ds.createEntityUsingRelation(bcbRef, user);
+        bcb.setTopLevelAuri(topLevelKey);
+        bcb.setDomAuri(uriVersionedContent);
+        bcb.setSubAuri(eBlob.getUri());
+        bcb.setPart(dbBcbEntityList.size() + 1L);
+        ds.putEntity(eBlob, user);
+        dbRefBlobKeyList.add(eBlob.getEntityKey());
+        ds.putEntity(bcb, user);
+        dbBcbEntityList.add(bcb);
+        buffered = 0;
+      } catch (ODKDatastoreException e) {
+        throw new IOException("Unable to persist blob part " + (dbBcbEntityList.size() + 1L), e);
+      }
+    }
+
+    /**
+     * Persist any partially-filled final part and compute the content hash.
+     */
+    @Override
+    public void close() throws IOException {
+      if (contentHash == null) {
+        if (buffered != 0) {
+          writePart();
+        }
+        contentHash = CommonFieldsBase.newMD5HashUri(md);
+      }
+    }
+
+    /**
+     * @return the md5 hash uri of the content. Only available after close().
+     */
+    public String getContentHash() {
+      if (contentHash == null) {
+        throw new IllegalStateException("stream is not yet closed");
+      }
+      return contentHash;
+    }
+
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    /**
+     * Add the keys of the parts written by this stream to keyList, in the same
+     * order as {@link BlobManipulator#recursivelyAddEntityKeysForDeletion}.
+     *
+     * @param keyList
+     */
+    void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList) {
+      for (int i = 0; i < dbBcbEntityList.size(); ++i) {
+        keyList.add(dbRefBlobKeyList.get(i));
+        keyList.add(dbBcbEntityList.get(i).getEntityKey());
+      }
+    }
+  }
+
   public BinaryContentManipulator(String parentKey, String topLevelKey, BinaryContent ctntRelation,
       BinaryContentRefBlob vrefRelation, RefBlob blbRelation) {
     this.parentKey = parentKey;
@@ -230,6 +648,203 @@ public class BinaryContentManipulator {
     this.blbRelation = blbRelation;
   }
 
+  /**
+   * @param cc
+   * @return the configured blob store, or null if attachment content is held
+   *         in the database.
+   */
+  public static BlobStore getBlobStore(CallingContext cc) {
+    try {
+      return (BlobStore) cc.getBean(BeanDefs.BLOB_STORE);
+    } catch (NoSuchBeanDefinitionException e) {
+      return null;
+    }
+  }
+
+  static boolean isBlobStoreRef(String subAuri) {
+    return subAuri != null && subAuri.startsWith(BLOB_STORE_REF_PREFIX);
+  }
+
+  /**
+   * @param bcbRef
+   * @return the prefix of the blob store keys of the content referenced from
+   *         this relation.
+   */
+  public static String getBlobStoreKeyPrefix(BinaryContentRefBlob bcbRef) {
+    return bcbRef.getSchemaName() + "/" + bcbRef.getTableName() + "/";
+  }
+
+  static String getBlobStoreKey(BinaryContentRefBlob bcbRef, String subAuri) {
+    return getBlobStoreKeyPrefix(bcbRef) + subAuri.substring(BLOB_STORE_REF_PREFIX.length());
+  }
+
+  /**
+   * Remove everything held in the blob store for the given relation. Used
+   * after the relation has been dropped, to also sweep up objects left behind
+   * by failed requests.
+   *
+   * @param bcbRef
+   * @param cc
+   */
+  public static void deleteAllBlobStoreContent(BinaryContentRefBlob bcbRef, CallingContext cc) {
+    BlobStore store = getBlobStore(cc);
+    if (store != null) {
+      try {
+        store.deleteAll(getBlobStoreKeyPrefix(bcbRef));
+      } catch (IOException e) {
+        logger.warn("Unable to delete blobs under " + getBlobStoreKeyPrefix(bcbRef) + ": "
+            + e.toString());
+      }
+    }
+  }
+
+  /**
+   * Content written to the blob store or the content-addressed store, with
+   * its length and md5 hash. subAuri is the _SUB_AURI that refers to it.
+   */
+  private static final class StoredContent {
+    final String subAuri;
+    final long contentLength;
+    final String contentHash;
+
+    StoredContent(String subAuri, long contentLength, String contentHash) {
+      this.subAuri = subAuri;
+      this.contentLength = contentLength;
+      this.contentHash = contentHash;
+    }
+  }
+
+  /**
+   * Write the content to a new object in the blob store. Nothing refers to the
+   * object until {@link #bindContent} is called.
+   */
+  private StoredContent putBlobStoreContent(BlobStore store, InputStream in) throws IOException {
+    MessageDigest md = newMD5Digest();
+    String subAuri = BLOB_STORE_REF_PREFIX + UUID.randomUUID().toString().replace("-", "");
+    long length = store.put(getBlobStoreKey(vrefRelation, subAuri), new DigestInputStream(in, md));
+    return new StoredContent(subAuri, length, CommonFieldsBase.newMD5HashUri(md));
+  }
+
+  /**
+   * Write the content to the content-addressed store, or add a reference to
+   * it if it is already there. The reference is held by the caller until
+   * {@link #bindContent} is called.
+   */
+  private StoredContent putSharedContent(InputStream in, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    MessageDigest md = newMD5Digest();
+    String contentKey = ContentAddressedStore.getInstance(cc)
+        .putContent(new DigestInputStream(in, md), cc);
+    return new StoredContent(contentKey, ContentAddressedStore.getContentLength(contentKey),
+        CommonFieldsBase.newMD5HashUri(md));
+  }
+
+  private StoredContent putContent(BlobStore store, InputStream in, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    if (store == null) {
+      return putSharedContent(in, cc);
+    }
+    recordBlobStoreInUse(cc);
+    return putBlobStoreContent(store, in);
+  }
+
+  /**
+   * Record, before the first reference to blob store content is bound, that
+   * attachments are held there. The watchdog refuses to start without a blob
+   * store once this is set, rather than failing on every read of that content.
+   */
+  private static void recordBlobStoreInUse(CallingContext cc) throws ODKDatastoreException {
+    if (!blobStoreUseRecorded) {
+      if (!ServerPreferencesProperties.getAttachmentsInBlobStore(cc)) {
+        ServerPreferencesProperties.setAttachmentsInBlobStore(cc, true);
+      }
+      blobStoreUseRecorded = true;
+    }
+  }
+
+  /**
+   * Make the stored content the content of uriVersionedContent.
+   */
+  private void bindContent(StoredContent content, String uriVersionedContent, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    BinaryContentRefBlob bcb = ds.createEntityUsingRelation(vrefRelation, user);
+    bcb.setTopLevelAuri(topLevelKey);
+    bcb.setDomAuri(uriVersionedContent);
+    bcb.setSubAuri(content.subAuri);
+    bcb.setPart(1L);
+    ds.putEntity(bcb, user);
+  }
+
+  /**
+   * Give up stored content that was never bound.
+   */
+  private void releaseStoredContent(StoredContent content, CallingContext cc) {
+    if (isBlobStoreRef(content.subAuri)) {
+      String key = getBlobStoreKey(vrefRelation, content.subAuri);
+      try {
+        getBlobStore(cc).delete(key);
+      } catch (IOException e) {
+        logger.warn("Unable to delete blob " + key + ": " + e.toString());
+      }
+    } else {
+      try {
+        ContentAddressedStore.getInstance(cc).removeReference(content.subAuri, cc);
+      } catch (ODKDatastoreException e) {
+        logger.warn("Unable to release content " + content.subAuri + ": " + e.toString());
+      }
+    }
+  }
+
+  private void bindContentOrRelease(StoredContent content, String uriVersionedContent,
+      CallingContext cc) throws ODKDatastoreException {
+    boolean bound = false;
+    try {
+      bindContent(content, uriVersionedContent, cc);
+      bound = true;
+    } finally {
+      if (!bound) {
+        releaseStoredContent(content, cc);
+      }
+    }
+  }
+
+  /**
+   * Persist the content of uriVersionedContent, in the blob store if one is
+   * configured, otherwise in the content-addressed store. Content that is
+   * already in the content-addressed store is not written again.
+   */
+  private void storeContent(byte[] byteArray, String uriVersionedContent, CallingContext cc)
+      throws ODKDatastoreException {
+    BlobStore store = getBlobStore(cc);
+    StoredContent content;
+    if (store == null) {
+      String contentKey = ContentAddressedStore.getInstance(cc).putContent(byteArray, cc);
+      content = new StoredContent(contentKey, byteArray.length, null);
+    } else {
+      try {
+        content = putBlobStoreContent(store, new ByteArrayInputStream(byteArray));
+      } catch (IOException e) {
+        throw new ODKDatastoreException("Unable to store attachment content", e);
+      }
+    }
+    bindContentOrRelease(content, uriVersionedContent, cc);
+  }
+
+  /**
+   * Delete the content of uriVersionedContent, whether held as RefBlob parts
+   * or in the blob store.
+   */
+  private void deleteContent(String uriVersionedContent, CallingContext cc)
+      throws ODKDatastoreException {
+    BlobManipulator b = new BlobManipulator(uriVersionedContent, vrefRelation, blbRelation, cc);
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    b.recursivelyAddEntityKeysForDeletion(keyList);
+    DeleteHelper.deleteEntities(keyList, cc);
+    b.releaseContent();
+  }
+
   private int internalGetAttachmentCount() {
     Long max = 0L;
     for ( Long v : attachments.keySet() ) {
@@ -358,6 +973,28 @@ public class BinaryContentManipulator {
     return blbManipulator.getBlob();
   }
 
+  /**
+   * Get a stream over the content of the attachment. The list of parts is
+   * retrieved, and every part is confirmed to be present, immediately; the
+   * parts themselves are fetched a few at a time as the stream is read.
+   *
+   * @param ordinal
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public InputStream getBlobInputStream(int ordinal, CallingContext cc)
+      throws ODKDatastoreException {
+    updateAttachments(cc);
+    BinaryContent b = attachments.get(Long.valueOf(ordinal));
+    if (b == null) {
+      // we are somehow out of sync!
+      throw new IllegalStateException("missing attachment declaration");
+    }
+    BlobManipulator blbManipulator = new BlobManipulator(b.getUri(), vrefRelation, blbRelation, cc);
+    return blbManipulator.getInputStream();
+  }
+
   /**
    * Atomically rename the given source file path to the destination path.
    * Will fail if the destination path already exists.
@@ -510,16 +1147,11 @@ public class BinaryContentManipulator {
 
         // Step (2)
         // -- should not have any data. If it does, prior request failed before step 4 completed.
-        BlobManipulator b = new BlobManipulator(matchedBc.getUri(), vrefRelation, blbRelation, cc);
-        List<EntityKey> keyList = new ArrayList<EntityKey>();
-        b.recursivelyAddEntityKeysForDeletion(keyList);
-        DeleteHelper.deleteEntities(keyList, cc);
+        deleteContent(matchedBc.getUri(), cc);
 
         // Step (3)
         // persist the binary data
-        @SuppressWarnings("unused")
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        storeContent(byteArray, matchedBc.getUri(), cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -546,16 +1178,11 @@ public class BinaryContentManipulator {
         ds.putEntity(matchedBc, user);
 
         // Step (2)
-        BlobManipulator b = new BlobManipulator(matchedBc.getUri(), vrefRelation, blbRelation, cc);
-        List<EntityKey> keyList = new ArrayList<EntityKey>();
-        b.recursivelyAddEntityKeysForDeletion(keyList);
-        DeleteHelper.deleteEntities(keyList, cc);
+        deleteContent(matchedBc.getUri(), cc);
 
         // Step (3)
         // persist the binary data
-        @SuppressWarnings("unused")
-        BlobManipulator subBlob = new BlobManipulator(byteArray, matchedBc.getUri(), vrefRelation,
-            blbRelation, topLevelKey, cc);
+        storeContent(byteArray, matchedBc.getUri(), cc);
 
         // Step (4)
         matchedBc.setContentHash(md5Hash);
@@ -568,6 +1195,302 @@ public class BinaryContentManipulator {
     }
   }
 
+  private static MessageDigest newMD5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+    }
+  }
+
+  private static String computeMD5HashUri(InputStream in) throws IOException {
+    MessageDigest md = newMD5Digest();
+    byte[] data = new byte[COPY_BUFFER_SIZE];
+    int len;
+    while ((len = in.read(data, 0, data.length)) >= 0) {
+      md.update(data, 0, len);
+    }
+    return CommonFieldsBase.newMD5HashUri(md);
+  }
+
+  /**
+   * Save the attachment to the database, reading its content from the given
+   * stream. The content is written part by part as it is read and is never
+   * held in memory in its entirety; its MD5 hash and length are computed on
+   * the fly. The outcomes are the same as for
+   * {@link #setValueFromByteArray(byte[], String, String, boolean, CallingContext)}.
+   *
+   * @param in
+   * @param contentType
+   * @param unrootedFilePath
+   * @param overwriteOK -- if the file exists and is different, must be true to overwrite existing value.
+   * @param cc
+   * @return COMPLETELY_NEW_FILE on successful save; FILE_UNCHANGED on hash
+   *         equivalence; NEW_FILE_VERSION on updating existing file (save not allowed unless overwriteOK).
+   * @throws ODKDatastoreException
+   * @throws IOException
+   *           if the stream could not be read or a part could not be persisted.
+   */
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromStream(InputStream in,
+      String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+
+    if (in == null || contentType == null) {
+      throw new IllegalArgumentException("unexpected null values passed into method");
+    }
+
+    // search for a matching entry for unrootedFilePath
+    BinaryContent matchedBc = null;
+    String currentContentHash = null;
+
+    updateAttachments(cc);
+    for (BinaryContent bc : attachments.values()) {
+      String bcFilePath = bc.getUnrootedFilePath();
+      if ((bcFilePath == null) ? (unrootedFilePath == null)
+          : (unrootedFilePath != null && bcFilePath.equals(unrootedFilePath))) {
+        matchedBc = bc;
+        currentContentHash = matchedBc.getContentHash();
+        break;
+      }
+    }
+
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    BlobStore store = getBlobStore(cc);
+
+    if (matchedBc != null && currentContentHash != null && !overwriteOK) {
+      // we only need the hash of the incoming content to determine the outcome.
+      String md5Hash = computeMD5HashUri(in);
+      if (currentContentHash.equals(md5Hash)) {
+        return BinaryContentManipulator.BlobSubmissionOutcome.FILE_UNCHANGED;
+      } else {
+        return BinaryContentManipulator.BlobSubmissionOutcome.NEW_FILE_VERSION;
+      }
+    }
+
+    if (matchedBc == null || currentContentHash == null) {
+      // same steps as setValueFromByteArray(), except that the content
+      // length is only known after step (3).
+
+      boolean newBc = (matchedBc == null);
+
+      if (newBc) {
+        // Step (0)
+        // create the record...
+        matchedBc = (BinaryContent) ds.createEntityUsingRelation(ctntRelation, user);
+        matchedBc.setTopLevelAuri(topLevelKey);
+        matchedBc.setParentAuri(parentKey);
+        matchedBc.setOrdinalNumber(internalGetAttachmentCount() + 1L);
+        matchedBc.setUnrootedFilePath(unrootedFilePath);
+      }
+
+      // Step (1)
+      matchedBc.setContentType(contentType);
+      ds.putEntity(matchedBc, user);
+
+      if (newBc) {
+        // persist was successful -- remember this new record...
+        attachments.put(matchedBc.getOrdinalNumber(), matchedBc);
+      }
+
+      // Step (2)
+      // -- should not have any data. If it does, prior request failed before step 4 completed.
+      deleteContent(matchedBc.getUri(), cc);
+
+      // Step (3)
+      // persist the binary data as it arrives
+      StoredContent content = putContent(store, in, cc);
+      bindContentOrRelease(content, matchedBc.getUri(), cc);
+
+      // Step (4)
+      matchedBc.setContentLength(content.contentLength);
+      matchedBc.setContentHash(content.contentHash);
+      ds.putEntity(matchedBc, user);
+
+      return BinaryContentManipulator.BlobSubmissionOutcome.COMPLETELY_NEW_FILE;
+    }
+
+    // We may be overwriting what is there. The incoming content can only be
+    // read once, so store it before we know whether it differs from the
+    // current content. It only becomes referenced from this attachment if it
+    // does. A failure here leaves the current content untouched.
+    StoredContent staged = putContent(store, in, cc);
+    boolean keepStaged = false;
+    try {
+      if (currentContentHash.equals(staged.contentHash)) {
+        return BinaryContentManipulator.BlobSubmissionOutcome.FILE_UNCHANGED;
+      }
+
+      // (1) modify entry to be intermediate update state (null md5 hash).
+      // (2) delete the database entries for the old data.
+      // (3) make the stored content the content of this entry.
+      // (4) update contentHash to indicate that data is properly stored.
+
+      // Step (1)
+      matchedBc.setContentHash(null);
+      matchedBc.setContentType(contentType);
+      matchedBc.setContentLength(staged.contentLength);
+      ds.putEntity(matchedBc, user);
+
+      // Step (2)
+      deleteContent(matchedBc.getUri(), cc);
+
+      // Step (3)
+      bindContent(staged, matchedBc.getUri(), cc);
+      keepStaged = true;
+
+      // Step (4)
+      matchedBc.setContentHash(staged.contentHash);
+      ds.putEntity(matchedBc, user);
+
+      return BinaryContentManipulator.BlobSubmissionOutcome.NEW_FILE_VERSION;
+    } finally {
+      if (!keepStaged) {
+        releaseStoredContent(staged, cc);
+      }
+    }
+  }
+
+  /**
+   * Save the attachment using content that is already held in the
+   * content-addressed store, e.g., content assembled by a resumable upload.
+   * The caller hands over one reference to contentKey when this returns; it is
+   * released if this attachment does not end up referring to the content. If
+   * this throws before the attachment refers to the content, the caller still
+   * holds the reference and must remove it. If a blob store is
+   * configured, the content is copied into it instead. The outcomes are the
+   * same as for
+   * {@link #setValueFromByteArray(byte[], String, String, boolean, CallingContext)}.
+   *
+   * @param contentKey
+   * @param contentHash -- the md5 hash uri of the content.
+   * @param contentType
+   * @param unrootedFilePath
+   * @param overwriteOK -- if the file exists and is different, must be true to overwrite existing value.
+   * @param cc
+   * @return COMPLETELY_NEW_FILE on successful save; FILE_UNCHANGED on hash
+   *         equivalence; NEW_FILE_VERSION on updating existing file (save not allowed unless overwriteOK).
+   * @throws ODKDatastoreException
+   */
+  public BinaryContentManipulator.BlobSubmissionOutcome setValueFromStoredContent(
+      String contentKey, String contentHash, String contentType, String unrootedFilePath,
+      boolean overwriteOK, CallingContext cc) throws ODKDatastoreException {
+
+    if (contentKey == null || contentHash == null || contentType == null) {
+      throw new IllegalArgumentException("unexpected null values passed into method");
+    }
+
+    StoredContent content = new StoredContent(contentKey,
+        ContentAddressedStore.getContentLength(contentKey), contentHash);
+    boolean bound = false;
+    boolean failed = false;
+    try {
+      BlobStore store = getBlobStore(cc);
+      if (store != null) {
+        InputStream in = ContentAddressedStore.getInstance(cc).getContent(contentKey, cc)
+            .getInputStream();
+        try {
+          return setValueFromStream(in, contentType, unrootedFilePath, overwriteOK, cc);
+        } catch (IOException e) {
+          throw new ODKDatastoreException("Unable to copy " + contentKey + " to the blob store",
+              e);
+        }
+      }
+
+      // search for a matching entry for unrootedFilePath
+      BinaryContent matchedBc = null;
+      String currentContentHash = null;
+
+      updateAttachments(cc);
+      for (BinaryContent bc : attachments.values()) {
+        String bcFilePath = bc.getUnrootedFilePath();
+        if ((bcFilePath == null) ? (unrootedFilePath == null)
+            : (unrootedFilePath != null && bcFilePath.equals(unrootedFilePath))) {
+          matchedBc = bc;
+          currentContentHash = matchedBc.getContentHash();
+          break;
+        }
+      }
+
+      Datastore ds = cc.getDatastore();
+      User user = cc.getCurrentUser();
+
+      if (matchedBc != null && currentContentHash != null) {
+        if (currentContentHash.equals(contentHash)) {
+          return BinaryContentManipulator.BlobSubmissionOutcome.FILE_UNCHANGED;
+        }
+        if (!overwriteOK) {
+          return BinaryContentManipulator.BlobSubmissionOutcome.NEW_FILE_VERSION;
+        }
+
+        // same steps as the overwrite in setValueFromStream().
+
+        // Step (1)
+        matchedBc.setContentHash(null);
+        matchedBc.setContentType(contentType);
+        matchedBc.setContentLength(content.contentLength);
+        ds.putEntity(matchedBc, user);
+
+        // Step (2)
+        deleteContent(matchedBc.getUri(), cc);
+
+        // Step (3)
+        bindContent(content, matchedBc.getUri(), cc);
+        bound = true;
+
+        // Step (4)
+        matchedBc.setContentHash(content.contentHash);
+        ds.putEntity(matchedBc, user);
+
+        return BinaryContentManipulator.BlobSubmissionOutcome.NEW_FILE_VERSION;
+      }
+
+      boolean newBc = (matchedBc == null);
+
+      if (newBc) {
+        // Step (0)
+        // create the record...
+        matchedBc = (BinaryContent) ds.createEntityUsingRelation(ctntRelation, user);
+        matchedBc.setTopLevelAuri(topLevelKey);
+        matchedBc.setParentAuri(parentKey);
+        matchedBc.setOrdinalNumber(internalGetAttachmentCount() + 1L);
+        matchedBc.setUnrootedFilePath(unrootedFilePath);
+      }
+
+      // Step (1)
+      matchedBc.setContentType(contentType);
+      matchedBc.setContentLength(content.contentLength);
+      ds.putEntity(matchedBc, user);
+
+      if (newBc) {
+        // persist was successful -- remember this new record...
+        attachments.put(matchedBc.getOrdinalNumber(), matchedBc);
+      }
+
+      // Step (2)
+      // -- should not have any data. If it does, prior request failed before step 4 completed.
+      deleteContent(matchedBc.getUri(), cc);
+
+      // Step (3)
+      bindContent(content, matchedBc.getUri(), cc);
+      bound = true;
+
+      // Step (4)
+      matchedBc.setContentHash(content.contentHash);
+      ds.putEntity(matchedBc, user);
+
+      return BinaryContentManipulator.BlobSubmissionOutcome.COMPLETELY_NEW_FILE;
+    } catch (ODKDatastoreException | RuntimeException e) {
+      // the caller still holds its reference.
+      failed = true;
+      throw e;
+    } finally {
+      if (!bound && !failed) {
+        releaseStoredContent(content, cc);
+      }
+    }
+  }
+
   public synchronized void updateAttachments(CallingContext cc) throws ODKDatastoreException {
     if ( refreshBeforeUse ) {
       // clear our mutable state.
@@ -634,8 +1557,9 @@ public class BinaryContentManipulator {
     }
     boolean success = false;
     List<EntityKey> keys = new ArrayList<EntityKey>();
+    List<BlobManipulator> contents = new ArrayList<BlobManipulator>();
     try {
-      recursivelyAddEntityKeysForDeletion(keys, cc);
+      addEntityKeysForDeletion(keys, contents, cc);
       DeleteHelper.deleteEntities(keys, cc);
       success = true;
     } catch (ODKDatastoreException e) {
@@ -645,6 +1569,9 @@ public class BinaryContentManipulator {
       refreshBeforeUse = !success;
       if (success) {
         attachments.clear();
+        for (BlobManipulator b : contents) {
+          b.releaseContent();
+        }
       }
     }
   }
@@ -671,6 +1598,8 @@ public class BinaryContentManipulator {
    * Build up the list of entity keys for the attachments and their
    * references and blobs. This is done so that if we delete these in
    * reverse order, we don't get into a bad state.
+   * Content held in the blob store or the content-addressed store is not
+   * included; {@link #deleteAll} releases it as well.
    * 
    * @param keyList
    * @param cc
@@ -678,12 +1607,18 @@ public class BinaryContentManipulator {
    */
   public void recursivelyAddEntityKeysForDeletion(List<EntityKey> keyList, CallingContext cc)
       throws ODKDatastoreException {
+    addEntityKeysForDeletion(keyList, new ArrayList<BlobManipulator>(), cc);
+  }
+
+  private void addEntityKeysForDeletion(List<EntityKey> keyList, List<BlobManipulator> contents,
+      CallingContext cc) throws ODKDatastoreException {
 
     updateAttachments(cc);
     for (BinaryContent bc : attachments.values()) {
       if (bc.getContentHash() != null) {
         BlobManipulator b = new BlobManipulator(bc.getUri(), vrefRelation, blbRelation, cc);
         b.recursivelyAddEntityKeysForDeletion(keyList);
+        contents.add(b);
       }
       keyList.add(bc.getEntityKey());
     }
@@ -13,6 +13,7 @@
  */
 package org.opendatakit.common.datamodel;
 
+import org.opendatakit.common.persistence.CompositeIndex;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.security.User;
 
@@ -48,6 +49,9 @@ public final class BinaryContentRefBlob extends DynamicAssociationBase {
 	public BinaryContentRefBlob(String databaseSchema, String tableName) {
 		super(databaseSchema, tableName);
 		fieldList.add(part = new DataField(PART));
+		// the parts of an attachment are fetched by _DOM_AURI in PART order
+		indexList.add(new CompositeIndex("dap", domAuri.getName(), part.getName())
+				.include(subAuri.getName()));
 	}
 
 	/**
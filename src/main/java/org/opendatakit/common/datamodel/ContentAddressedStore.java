@@ -0,0 +1,632 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.datamodel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.aggregate.constants.BeanDefs;
+import org.opendatakit.aggregate.constants.TaskLockType;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobManipulator;
+import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobOutputStream;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.EntityKey;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.Query;
+import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.security.UserService;
+import org.opendatakit.common.web.CallingContext;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Server-wide store of attachment content, shared by every set of attachment
+ * relations and keyed by the SHA-256 hash and length of the content. Each
+ * distinct content is stored once, as {@link RefBlob} parts, and carries a
+ * count of the attachments that refer to it. The parts are deleted when the
+ * last reference is removed.
+ * <p>
+ * Reference counts are only changed while holding a task lock on the content
+ * key. New content is written to its parts before that lock is taken, so an
+ * upload of content that is already stored either skips the parts entirely (if
+ * its hash is known up front) or discards the copy it wrote.
+ * <p>
+ * Content can also be staged part by part, across several requests, under a
+ * uri chosen by the caller (see {@link #putStagedPart}). Once complete, the
+ * staged parts are committed as they are, without being copied.
+ * <p>
+ * There is one store per datastore, defined as the
+ * {@link BeanDefs#CONTENT_ADDRESSED_STORE} bean; its relations are created in
+ * the datastore's default schema when the bean is initialized.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class ContentAddressedStore implements InitializingBean {
+
+  /**
+   * Prefix of every content key. Content keys are "sha256:" followed by the
+   * lower-case base32 encoding of the hash, a '-', and the decimal length of
+   * the content. They are at most 79 characters long and are safe to compare
+   * in case-insensitive collations.
+   */
+  public static final String CONTENT_KEY_PREFIX = "sha256:";
+
+  private static final String TABLE_NAME = "_blob_content";
+  private static final String REF_TABLE_NAME = "_blob_content_ref";
+  private static final String BLOB_TABLE_NAME = "_blob_content_blb";
+
+  private static final String LOCK_FORM_ID_PREFIX = "content|";
+  private static final int LOCK_TRIES = 5;
+  private static final long LOCK_WAIT_MILLISECONDS = 2000L;
+
+  private static final char[] BASE32 = "abcdefghijklmnopqrstuvwxyz234567".toCharArray();
+
+  private static final Log logger = LogFactory.getLog(ContentAddressedStore.class);
+
+  /**
+   * One row per distinct content. The primary key is the content key.
+   */
+  static final class ContentEntry extends CommonFieldsBase {
+
+    private static final DataField CONTENT_LENGTH = new DataField("CONTENT_LENGTH",
+        DataField.DataType.INTEGER, false);
+    private static final DataField REF_COUNT = new DataField("REF_COUNT",
+        DataField.DataType.INTEGER, false);
+    private static final DataField PARTS_AURI = new DataField("PARTS_AURI",
+        DataField.DataType.URI, false, PersistConsts.URI_STRING_LEN)
+            .setIndexable(DataField.IndexType.HASH);
+
+    final DataField contentLength;
+    final DataField refCount;
+    final DataField partsAuri;
+
+    ContentEntry(String schemaName) {
+      super(schemaName, TABLE_NAME);
+      fieldList.add(contentLength = new DataField(CONTENT_LENGTH));
+      fieldList.add(refCount = new DataField(REF_COUNT));
+      fieldList.add(partsAuri = new DataField(PARTS_AURI));
+    }
+
+    private ContentEntry(ContentEntry ref, User user) {
+      super(ref, user);
+      contentLength = ref.contentLength;
+      refCount = ref.refCount;
+      partsAuri = ref.partsAuri;
+    }
+
+    // Only called from within the persistence layer.
+    @Override
+    public ContentEntry getEmptyRow(User user) {
+      return new ContentEntry(this, user);
+    }
+
+    Long getContentLength() {
+      return getLongField(contentLength);
+    }
+
+    void setContentLength(Long value) {
+      setLongField(contentLength, value);
+    }
+
+    Long getRefCount() {
+      return getLongField(refCount);
+    }
+
+    void setRefCount(Long value) {
+      setLongField(refCount, value);
+    }
+
+    /**
+     * @return the _DOM_AURI of the parts of this content.
+     */
+    String getPartsAuri() {
+      return getStringField(partsAuri);
+    }
+
+    void setPartsAuri(String value) {
+      if (!setStringField(partsAuri, value)) {
+        throw new IllegalStateException("overflow partsAuri");
+      }
+    }
+  }
+
+  private Datastore datastore;
+  private UserService userService;
+
+  private ContentEntry entryRelation;
+  private BinaryContentRefBlob refRelation;
+  private RefBlob blobRelation;
+
+  public ContentAddressedStore() {
+  }
+
+  public Datastore getDatastore() {
+    return datastore;
+  }
+
+  public void setDatastore(Datastore datastore) {
+    this.datastore = datastore;
+  }
+
+  public UserService getUserService() {
+    return userService;
+  }
+
+  public void setUserService(UserService userService) {
+    this.userService = userService;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    if (datastore == null)
+      throw new IllegalStateException("no datastore specified");
+    if (userService == null)
+      throw new IllegalStateException("no user service specified");
+    User user = userService.getDaemonAccountUser();
+    String schemaName = datastore.getDefaultSchemaName();
+    ContentEntry entryRelation = new ContentEntry(schemaName);
+    BinaryContentRefBlob refRelation = new BinaryContentRefBlob(schemaName, REF_TABLE_NAME);
+    RefBlob blobRelation = new RefBlob(schemaName, BLOB_TABLE_NAME);
+    datastore.assertRelation(entryRelation, user);
+    datastore.assertRelation(refRelation, user);
+    datastore.assertRelation(blobRelation, user);
+    this.entryRelation = entryRelation;
+    this.refRelation = refRelation;
+    this.blobRelation = blobRelation;
+  }
+
+  /**
+   * @param cc
+   * @return the store of the datastore of the calling context.
+   */
+  public static ContentAddressedStore getInstance(CallingContext cc) {
+    ContentAddressedStore store = (ContentAddressedStore) cc
+        .getBean(BeanDefs.CONTENT_ADDRESSED_STORE);
+    if (store == null) {
+      throw new IllegalStateException("no " + BeanDefs.CONTENT_ADDRESSED_STORE + " specified");
+    }
+    return store;
+  }
+
+  static MessageDigest newSHA256Digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing sha256 hash", e);
+    }
+  }
+
+  /**
+   * @param sha256
+   *          the SHA-256 hash of the content.
+   * @param length
+   *          the length of the content.
+   * @return the content key.
+   */
+  public static String newContentKey(byte[] sha256, long length) {
+    StringBuilder b = new StringBuilder(CONTENT_KEY_PREFIX);
+    int buffer = 0;
+    int bits = 0;
+    for (byte v : sha256) {
+      buffer = (buffer << 8) | (v & 0xff);
+      bits += 8;
+      while (bits >= 5) {
+        bits -= 5;
+        b.append(BASE32[(buffer >> bits) & 0x1f]);
+      }
+    }
+    if (bits > 0) {
+      b.append(BASE32[(buffer << (5 - bits)) & 0x1f]);
+    }
+    return b.append('-').append(length).toString();
+  }
+
+  public static boolean isContentKey(String value) {
+    return value != null && value.startsWith(CONTENT_KEY_PREFIX);
+  }
+
+  /**
+   * @param contentKey
+   * @return the length of the content, as recorded in its key.
+   */
+  public static long getContentLength(String contentKey) {
+    return Long.parseLong(contentKey.substring(contentKey.lastIndexOf('-') + 1));
+  }
+
+  RefBlob getBlobRelation() {
+    return blobRelation;
+  }
+
+  private ContentEntry getEntry(String contentKey, CallingContext cc)
+      throws ODKDatastoreException {
+    try {
+      return cc.getDatastore().getEntity(entryRelation, contentKey, cc.getCurrentUser());
+    } catch (ODKEntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  private String acquireLock(TaskLock lock, String contentKey) throws ODKDatastoreException {
+    String lockId = UUID.randomUUID().toString();
+    for (int i = 0; i < LOCK_TRIES; ++i) {
+      try {
+        if (lock.obtainLock(lockId, LOCK_FORM_ID_PREFIX + contentKey,
+            TaskLockType.CONTENT_REFERENCE_COUNT, LOCK_WAIT_MILLISECONDS)) {
+          return lockId;
+        }
+      } catch (ODKTaskLockException e) {
+        throw new ODKDatastoreException("Unable to lock content " + contentKey, e);
+      }
+    }
+    throw new ODKDatastoreException("Timed out locking content " + contentKey);
+  }
+
+  private void releaseLock(TaskLock lock, String lockId, String contentKey) {
+    try {
+      lock.releaseLock(lockId, LOCK_FORM_ID_PREFIX + contentKey,
+          TaskLockType.CONTENT_REFERENCE_COUNT);
+    } catch (ODKTaskLockException e) {
+      // the lock will expire
+      logger.warn("Unable to release lock on content " + contentKey + ": " + e.toString());
+    }
+  }
+
+  /**
+   * Add a reference to content that is already stored. This is the only
+   * datastore write needed when an upload's content is already known.
+   *
+   * @param contentKey
+   * @param cc
+   * @return true if the content is stored and the reference was added.
+   * @throws ODKDatastoreException
+   */
+  public boolean addReference(String contentKey, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    TaskLock lock = ds.createTaskLock(user);
+    String lockId = acquireLock(lock, contentKey);
+    try {
+      ContentEntry entry = getEntry(contentKey, cc);
+      if (entry == null) {
+        return false;
+      }
+      entry.setRefCount(entry.getRefCount() + 1L);
+      ds.putEntity(entry, user);
+      return true;
+    } finally {
+      releaseLock(lock, lockId, contentKey);
+    }
+  }
+
+  /**
+   * Record the parts written under partsUri as the content of contentKey, or,
+   * if that content was stored in the meantime, add a reference to it instead.
+   *
+   * @return true if the parts are now the stored content; false if the caller
+   *         should delete them.
+   */
+  private boolean commitContent(String contentKey, String partsUri, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    TaskLock lock = ds.createTaskLock(user);
+    String lockId = acquireLock(lock, contentKey);
+    try {
+      ContentEntry entry = getEntry(contentKey, cc);
+      if (entry != null) {
+        entry.setRefCount(entry.getRefCount() + 1L);
+        ds.putEntity(entry, user);
+        return false;
+      }
+      entry = ds.createEntityUsingRelation(entryRelation, user);
+      entry.setStringField(entry.primaryKey, contentKey);
+      entry.setContentLength(getContentLength(contentKey));
+      entry.setRefCount(1L);
+      entry.setPartsAuri(partsUri);
+      ds.putEntity(entry, user);
+      return true;
+    } finally {
+      releaseLock(lock, lockId, contentKey);
+    }
+  }
+
+  private void deleteParts(String partsUri, CallingContext cc) throws ODKDatastoreException {
+    BlobManipulator parts = new BlobManipulator(partsUri, refRelation, blobRelation, cc);
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    parts.recursivelyAddEntityKeysForDeletion(keyList);
+    if (!keyList.isEmpty()) {
+      DeleteHelper.deleteEntities(keyList, cc);
+    }
+  }
+
+  /**
+   * Store the content, or add a reference to it if it is already stored. The
+   * caller holds the returned reference and must eventually remove it.
+   *
+   * @param content
+   * @param cc
+   * @return the content key.
+   * @throws ODKDatastoreException
+   */
+  public String putContent(byte[] content, CallingContext cc) throws ODKDatastoreException {
+    String contentKey = newContentKey(newSHA256Digest().digest(content), content.length);
+    if (addReference(contentKey, cc)) {
+      return contentKey;
+    }
+    String partsUri = CommonFieldsBase.newUri();
+    boolean committed = false;
+    try {
+      @SuppressWarnings("unused")
+      BlobManipulator parts = new BlobManipulator(content, partsUri, refRelation, blobRelation,
+          partsUri, cc);
+      committed = commitContent(contentKey, partsUri, cc);
+    } finally {
+      if (!committed) {
+        deleteParts(partsUri, cc);
+      }
+    }
+    return contentKey;
+  }
+
+  /**
+   * Store the content read from the stream, or add a reference to it if it is
+   * already stored. Content that fits in a single part is hashed before
+   * anything is written; larger content is written as it is read and then
+   * discarded if it turns out to be stored already. The caller holds the
+   * returned reference and must eventually remove it.
+   *
+   * @param in
+   * @param cc
+   * @return the content key.
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  public String putContent(InputStream in, CallingContext cc)
+      throws ODKDatastoreException, IOException {
+    byte[] first = new byte[(int) Math.min(blobRelation.value.getMaxCharLen(),
+        BinaryContentManipulator.STREAM_PART_SIZE)];
+    int len = 0;
+    int n;
+    while (len < first.length && (n = in.read(first, len, first.length - len)) >= 0) {
+      len += n;
+    }
+    if (len < first.length) {
+      return putContent(Arrays.copyOf(first, len), cc);
+    }
+
+    MessageDigest md = newSHA256Digest();
+    String partsUri = CommonFieldsBase.newUri();
+    BlobOutputStream out = new BlobOutputStream(partsUri, refRelation, blobRelation, partsUri, cc);
+    boolean committed = false;
+    try {
+      byte[] data = first;
+      while (len >= 0) {
+        md.update(data, 0, len);
+        out.write(data, 0, len);
+        len = in.read(data, 0, data.length);
+      }
+      out.close();
+      String contentKey = newContentKey(md.digest(), out.getContentLength());
+      committed = commitContent(contentKey, partsUri, cc);
+      return contentKey;
+    } finally {
+      if (!committed) {
+        List<EntityKey> keyList = new ArrayList<EntityKey>();
+        out.recursivelyAddEntityKeysForDeletion(keyList);
+        if (!keyList.isEmpty()) {
+          DeleteHelper.deleteEntities(keyList, cc);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the largest part that {@link #putStagedPart} accepts.
+   */
+  public int getStagedPartSize() {
+    return (int) Math.min(blobRelation.value.getMaxCharLen(),
+        BinaryContentManipulator.STREAM_PART_SIZE);
+  }
+
+  /**
+   * Write one part of content that is being staged under partsUri, e.g., by a
+   * resumable upload. Parts may be of any size up to
+   * {@link #getStagedPartSize()} and are numbered from 1. Nothing refers to
+   * them until {@link #commitStagedParts} is called.
+   *
+   * @param partsUri
+   * @param partNumber
+   * @param value
+   * @param length
+   *          the number of bytes of value to write.
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void putStagedPart(String partsUri, long partNumber, byte[] value, int length,
+      CallingContext cc) throws ODKDatastoreException {
+    if (length > getStagedPartSize()) {
+      throw new IllegalArgumentException("part is too large: " + length);
+    }
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    RefBlob eBlob = ds.createEntityUsingRelation(blobRelation, user);
+    eBlob.setTopLevelAuri(partsUri);
+    eBlob.setValue(Arrays.copyOf(value, length));
+    BinaryContentRefBlob bcb = ds.createEntityUsingRelation(refRelation, user);
+    bcb.setTopLevelAuri(partsUri);
+    bcb.setDomAuri(partsUri);
+    bcb.setSubAuri(eBlob.getUri());
+    bcb.setPart(partNumber);
+    ds.putEntity(eBlob, user);
+    ds.putEntity(bcb, user);
+  }
+
+  /**
+   * Delete the staged parts numbered after partCount. These are left behind if
+   * a request fails between writing a part and recording that it was written.
+   *
+   * @param partsUri
+   * @param partCount
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void truncateStagedParts(String partsUri, long partCount, CallingContext cc)
+      throws ODKDatastoreException {
+    Query q = cc.getDatastore().createQuery(refRelation,
+        "ContentAddressedStore.truncateStagedParts", cc.getCurrentUser());
+    q.addFilter(refRelation.domAuri, FilterOperation.EQUAL, partsUri);
+    q.addFilter(refRelation.part, FilterOperation.GREATER_THAN, partCount);
+    List<? extends CommonFieldsBase> bcbList = q.executeQuery();
+    List<EntityKey> keyList = new ArrayList<EntityKey>();
+    for (CommonFieldsBase cb : bcbList) {
+      BinaryContentRefBlob bcb = (BinaryContentRefBlob) cb;
+      keyList.add(new EntityKey(blobRelation, bcb.getSubAuri()));
+      keyList.add(bcb.getEntityKey());
+    }
+    if (!keyList.isEmpty()) {
+      DeleteHelper.deleteEntities(keyList, cc);
+    }
+  }
+
+  /**
+   * @param partsUri
+   * @param cc
+   * @return a stream over the staged parts, in part order.
+   * @throws ODKDatastoreException
+   */
+  public InputStream getStagedContent(String partsUri, CallingContext cc)
+      throws ODKDatastoreException {
+    return new BlobManipulator(partsUri, refRelation, blobRelation, cc).getInputStream();
+  }
+
+  /**
+   * Make the staged parts the stored content of contentKey, or, if that content
+   * is already stored, delete them and add a reference to it instead. Either
+   * way, the caller holds a reference to contentKey and must eventually remove
+   * it. The caller is responsible for contentKey matching the staged parts.
+   *
+   * @param contentKey
+   * @param partsUri
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void commitStagedParts(String contentKey, String partsUri, CallingContext cc)
+      throws ODKDatastoreException {
+    if (!commitContent(contentKey, partsUri, cc)) {
+      deleteParts(partsUri, cc);
+    }
+  }
+
+  /**
+   * Discard content that was staged but never committed. If the parts were
+   * committed as stored content, they belong to that content and are left
+   * alone.
+   *
+   * @param partsUri
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void deleteStagedParts(String partsUri, CallingContext cc)
+      throws ODKDatastoreException {
+    Query q = cc.getDatastore().createQuery(entryRelation,
+        "ContentAddressedStore.deleteStagedParts", cc.getCurrentUser());
+    q.addFilter(entryRelation.partsAuri, FilterOperation.EQUAL, partsUri);
+    if (!q.executeQuery().isEmpty()) {
+      return;
+    }
+    deleteParts(partsUri, cc);
+  }
+
+  /**
+   * Remove a reference to the content, deleting the content if it was the last
+   * one. The parts are deleted while the lock on the content key is still held,
+   * so that a concurrent upload of the same content cannot add a reference to
+   * them or commit new parts for it in the meantime. The entry is deleted
+   * first: if deleting the parts fails, they are orphaned, but no entry refers
+   * to missing parts.
+   *
+   * @param contentKey
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public void removeReference(String contentKey, CallingContext cc)
+      throws ODKDatastoreException {
+    Datastore ds = cc.getDatastore();
+    User user = cc.getCurrentUser();
+    TaskLock lock = ds.createTaskLock(user);
+    String lockId = acquireLock(lock, contentKey);
+    try {
+      ContentEntry entry = getEntry(contentKey, cc);
+      if (entry == null) {
+        logger.warn("No stored content for " + contentKey);
+        return;
+      }
+      long refCount = entry.getRefCount() - 1L;
+      if (refCount > 0L) {
+        entry.setRefCount(refCount);
+        ds.putEntity(entry, user);
+      } else {
+        ds.deleteEntity(entry.getEntityKey(), user);
+        // nothing refers to the parts any more.
+        deleteParts(entry.getPartsAuri(), cc);
+      }
+    } finally {
+      releaseLock(lock, lockId, contentKey);
+    }
+  }
+
+  /**
+   * @param contentKey
+   * @param cc
+   * @return the number of references to the content; 0 if it is not stored.
+   * @throws ODKDatastoreException
+   */
+  public long getReferenceCount(String contentKey, CallingContext cc)
+      throws ODKDatastoreException {
+    ContentEntry entry = getEntry(contentKey, cc);
+    return (entry == null) ? 0L : entry.getRefCount();
+  }
+
+  /**
+   * @param contentKey
+   * @param cc
+   * @return a manipulator over the parts of the stored content.
+   * @throws ODKDatastoreException
+   *           if the content is not stored.
+   */
+  public BlobManipulator getContent(String contentKey, CallingContext cc)
+      throws ODKDatastoreException {
+    ContentEntry entry = getEntry(contentKey, cc);
+    if (entry == null) {
+      throw new ODKDatastoreException("No stored content for " + contentKey);
+    }
+    return new BlobManipulator(entry.getPartsAuri(), refRelation, blobRelation, cc);
+  }
+}
@@ -13,6 +13,8 @@
  */
 package org.opendatakit.common.ermodel;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 import java.util.List;
 
@@ -301,6 +303,7 @@ public class AbstractBlobRelationSet implements BlobRelationSet {
     ds.dropRelation(blobRelation, user);
     ds.dropRelation(vrefRelation, user);
     ds.dropRelation(ctntRelation, user);
+    BinaryContentManipulator.deleteAllBlobStoreContent(vrefRelation, cc);
   }
 
   public static class BlobEntitySetImpl implements BlobEntitySet {
@@ -345,6 +348,12 @@ public class AbstractBlobRelationSet implements BlobRelationSet {
       return m.getBlob(ordinal, cc);
     }
 
+    @Override
+    public InputStream getBlobInputStream(int ordinal, CallingContext cc)
+        throws ODKDatastoreException {
+      return m.getBlobInputStream(ordinal, cc);
+    }
+
     @Override
     public String getContentHash(int ordinal, CallingContext cc) throws ODKDatastoreException {
       return m.getContentHash(ordinal, cc);
@@ -392,6 +401,21 @@ public class AbstractBlobRelationSet implements BlobRelationSet {
         throws ODKDatastoreException {
       return m.setValueFromByteArray(byteArray, contentType, unrootedFilePath, overwriteOK, cc);
     }
+
+    @Override
+    public BlobSubmissionOutcome addBlob(InputStream in, String contentType,
+        String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+        throws ODKDatastoreException, IOException {
+      return m.setValueFromStream(in, contentType, unrootedFilePath, overwriteOK, cc);
+    }
+
+    @Override
+    public BlobSubmissionOutcome addStoredContent(String contentKey, String contentHash,
+        String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+        throws ODKDatastoreException {
+      return m.setValueFromStoredContent(contentKey, contentHash, contentType, unrootedFilePath,
+          overwriteOK, cc);
+    }
   }
 
   public List<BinaryContent> getAllBinaryContents(CallingContext cc) throws ODKDatastoreException {
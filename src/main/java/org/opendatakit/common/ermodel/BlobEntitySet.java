@@ -13,6 +13,8 @@
  */
 package org.opendatakit.common.ermodel;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 
 import org.opendatakit.common.datamodel.BinaryContentManipulator.BlobSubmissionOutcome;
@@ -143,6 +145,19 @@ public interface BlobEntitySet {
    */
   public byte[] getBlob(int ordinal, CallingContext cc) throws ODKDatastoreException;
 
+  /**
+   * Get a stream over the contents of the "ordinal'th" blob. Every part of the
+   * blob is confirmed to be present before the stream is returned; only a few
+   * parts are held in memory at a time.
+   * 
+   * @param ordinal
+   *          [1..]
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public InputStream getBlobInputStream(int ordinal, CallingContext cc) throws ODKDatastoreException;
+
   /**
    * Save this BlobSet. Only useful for empty blob sets, as inserting a blob
    * always causes an immediate persist of the blob set.
@@ -179,4 +194,42 @@ public interface BlobEntitySet {
   public BlobSubmissionOutcome addBlob(byte[] byteArray, String contentType,
       String unrootedFilePath, boolean overwriteOK, CallingContext cc) throws ODKDatastoreException;
 
+  /**
+   * Insert the blob read from the given stream into the Blob set, as for
+   * {@link #addBlob(byte[], String, String, boolean, CallingContext)}. The
+   * stream is consumed but not closed.
+   * 
+   * @param in
+   * @param contentType
+   * @param unrootedFilePath
+   * @param overwriteOK
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   * @throws IOException
+   */
+  public BlobSubmissionOutcome addBlob(InputStream in, String contentType,
+      String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException, IOException;
+
+  /**
+   * Insert content that is already held in the content-addressed store into
+   * the Blob set, as for
+   * {@link #addBlob(byte[], String, String, boolean, CallingContext)}. The
+   * caller's reference to contentKey is handed over to the Blob set when this
+   * returns; if it throws, the caller still holds the reference.
+   * 
+   * @param contentKey
+   * @param contentHash
+   * @param contentType
+   * @param unrootedFilePath
+   * @param overwriteOK
+   * @param cc
+   * @return
+   * @throws ODKDatastoreException
+   */
+  public BlobSubmissionOutcome addStoredContent(String contentKey, String contentHash,
+      String contentType, String unrootedFilePath, boolean overwriteOK, CallingContext cc)
+      throws ODKDatastoreException;
+
 }
\ No newline at end of file
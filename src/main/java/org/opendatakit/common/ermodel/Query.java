@@ -466,6 +466,23 @@ public class Query {
     }
   }
 
+  /**
+   * Execute the query and return a list of all results. Unlike
+   * {@link #execute()}, a datastore failure is thrown rather than reported as
+   * an empty result.
+   *
+   * @return a list of all the entities which matched the query.
+   * @throws ODKDatastoreException
+   */
+  public List<Entity> executeStrict() throws ODKDatastoreException {
+    List<? extends CommonFieldsBase> list = query.executeQuery();
+    List<Entity> entities = new ArrayList<Entity>();
+    for (CommonFieldsBase b : list) {
+      entities.add(relation.new EntityImpl((RelationImpl) b));
+    }
+    return entities;
+  }
+
   /**
    * Execute the query and return a list of all results.
    *
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.ermodel;
+
+import java.util.Date;
+
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Read-only view of an Entity, for entities that are cached and shared across
+ * threads. The setters, put() and delete() throw
+ * UnsupportedOperationException, and dates are returned as copies.
+ *
+ * The view is only safe to share if nothing retains the underlying Entity.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class ReadOnlyEntity implements Entity {
+
+  private final Entity e;
+
+  private ReadOnlyEntity(Entity e) {
+    this.e = e;
+  }
+
+  /**
+   * @param e
+   * @return a read-only view of the entity.
+   */
+  public static Entity of(Entity e) {
+    if (e instanceof ReadOnlyEntity) {
+      return e;
+    }
+    return new ReadOnlyEntity(e);
+  }
+
+  private static Date copy(Date d) {
+    return (d == null) ? null : new Date(d.getTime());
+  }
+
+  private static UnsupportedOperationException readOnly() {
+    return new UnsupportedOperationException("Entity is read-only");
+  }
+
+  @Override
+  public String getId() {
+    return e.getId();
+  }
+
+  @Override
+  public Date getLastUpdateDate() {
+    return copy(e.getLastUpdateDate());
+  }
+
+  @Override
+  public Date getCreationDate() {
+    return copy(e.getCreationDate());
+  }
+
+  @Override
+  public String getCreationUser() {
+    return e.getCreationUser();
+  }
+
+  @Override
+  public String getLastUpdateUser() {
+    return e.getLastUpdateUser();
+  }
+
+  @Override
+  public Boolean getBoolean(DataField field) {
+    return e.getBoolean(field);
+  }
+
+  @Override
+  public Date getDate(DataField field) {
+    return copy(e.getDate(field));
+  }
+
+  @Override
+  public Double getDouble(DataField field) {
+    return e.getDouble(field);
+  }
+
+  @Override
+  public WrappedBigDecimal getNumeric(DataField field) {
+    return e.getNumeric(field);
+  }
+
+  @Override
+  public Integer getInteger(DataField field) {
+    return e.getInteger(field);
+  }
+
+  @Override
+  public Long getLong(DataField field) {
+    return e.getLong(field);
+  }
+
+  @Override
+  public String getString(DataField field) {
+    return e.getString(field);
+  }
+
+  @Override
+  public Boolean getBoolean(String fieldName) {
+    return e.getBoolean(fieldName);
+  }
+
+  @Override
+  public Date getDate(String fieldName) {
+    return copy(e.getDate(fieldName));
+  }
+
+  @Override
+  public Double getDouble(String fieldName) {
+    return e.getDouble(fieldName);
+  }
+
+  @Override
+  public WrappedBigDecimal getNumeric(String fieldName) {
+    return e.getNumeric(fieldName);
+  }
+
+  @Override
+  public Integer getInteger(String fieldName) {
+    return e.getInteger(fieldName);
+  }
+
+  @Override
+  public Long getLong(String fieldName) {
+    return e.getLong(fieldName);
+  }
+
+  @Override
+  public String getString(String fieldName) {
+    return e.getString(fieldName);
+  }
+
+  @Override
+  public boolean isFromDatabase() {
+    return e.isFromDatabase();
+  }
+
+  @Override
+  public void set(DataField field, Boolean value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(DataField field, Date value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(DataField field, Double value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(DataField field, WrappedBigDecimal value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(DataField field, Integer value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(DataField field, Long value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(DataField field, String value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String fieldName, Boolean value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String fieldName, Date value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String fieldName, Double value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String fieldName, WrappedBigDecimal value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String fieldName, Integer value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String fieldName, Long value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String fieldName, String value) {
+    throw readOnly();
+  }
+
+  @Override
+  public String getAsString(String fieldName) {
+    return e.getAsString(fieldName);
+  }
+
+  @Override
+  public void setAsString(String fieldName, String value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void put(CallingContext cc) {
+    throw readOnly();
+  }
+
+  @Override
+  public void delete(CallingContext cc) {
+    throw readOnly();
+  }
+}
@@ -23,6 +23,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.CompositeIndex;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.Datastore;
 import org.opendatakit.common.persistence.EntityKey;
@@ -87,7 +88,7 @@ public class Relation {
       throw new IllegalArgumentException("Backing table name is too long: " + backingTableName);
     }
     this.namespace = TableNamespace.EXTENSION;
-    initialize(fields, cc);
+    initialize(fields, Collections.<CompositeIndex> emptyList(), cc);
   }
 
   /**
@@ -116,6 +117,23 @@ public class Relation {
    */
   public Relation(String namespace, String tableName, List<DataField> fields, CallingContext cc)
       throws ODKDatastoreException {
+    this(namespace, tableName, fields, Collections.<CompositeIndex> emptyList(), cc);
+  }
+
+  /**
+   * As above, but also asserts the given multi-column indexes on the table.
+   *
+   * @param namespace
+   * @param tableName
+   * @param fields
+   * @param indexes
+   *          the multi-column indexes. Their columns must be among the fields
+   *          or the 5 reserved fields.
+   * @param cc
+   * @throws ODKDatastoreException
+   */
+  public Relation(String namespace, String tableName, List<DataField> fields,
+      List<CompositeIndex> indexes, CallingContext cc) throws ODKDatastoreException {
     if (!namespace.matches(VALID_UPPER_CASE_NAME_REGEX) || namespace.contains("__")
         || namespace.startsWith("_")) {
       throw new IllegalArgumentException(
@@ -131,7 +149,7 @@ public class Relation {
       throw new IllegalArgumentException("Backing table name is too long: " + backingTableName);
     }
     this.namespace = TableNamespace.EXTENSION;
-    initialize(fields, cc);
+    initialize(fields, indexes, cc);
   }
 
   /**
@@ -195,7 +213,7 @@ public class Relation {
     default:
       throw new IllegalStateException("Unexpected TableNamespace value");
     }
-    initialize(fields, cc);
+    initialize(fields, Collections.<CompositeIndex> emptyList(), cc);
   }
 
   /**
@@ -348,9 +366,11 @@ public class Relation {
    */
   protected static class RelationImpl extends CommonFieldsBase {
 
-    RelationImpl(String schemaName, String tableName, List<DataField> definedFields) {
+    RelationImpl(String schemaName, String tableName, List<DataField> definedFields,
+        List<CompositeIndex> indexes) {
       super(schemaName, tableName);
       fieldList.addAll(definedFields);
+      indexList.addAll(indexes);
     }
 
     private RelationImpl(RelationImpl ref, User user) {
@@ -576,12 +596,7 @@ public class Relation {
 
     @Override
     public String getAsString(String fieldName) {
-      DataField f;
-      if (fieldName.matches(VALID_UPPER_CASE_NAME_REGEX)) {
-        f = Relation.this.getDataField(fieldName);
-      } else {
-        f = Relation.this.getDataField(WebUtils.unCamelCase(fieldName));
-      }
+      DataField f = getDataField(fieldName);
       switch (f.getDataType()) {
       case INTEGER:
         Long l = backingObject.getLongField(f);
@@ -705,7 +720,8 @@ public class Relation {
      * @return
      */
     private final DataField verify(DataField fieldName) {
-      if (!backingObject.getFieldList().contains(fieldName)) {
+      // fieldSet holds the user-defined fields; the list adds the 5 reserved ones.
+      if (!fieldSet.contains(fieldName) && !backingObject.getFieldList().contains(fieldName)) {
         throw new IllegalArgumentException("FieldName: " + fieldName.getName()
             + " is not identical to the one specified in this relation " + fieldName.toString());
       }
@@ -713,7 +729,11 @@ public class Relation {
     }
 
     private DataField getDataField(String fieldName) {
-      DataField f;
+      // the common case -- an UPPER_CASE name of a user-defined field
+      DataField f = nameMap.get(fieldName);
+      if (f != null) {
+        return f;
+      }
       if (fieldName.matches(VALID_UPPER_CASE_NAME_REGEX)) {
         f = Relation.this.getDataField(fieldName);
       } else {
@@ -736,10 +756,12 @@ public class Relation {
    * passed into the fields list.
    *
    * @param fields
+   * @param indexes
    * @param cc
    * @throws ODKDatastoreException
    */
-  private void initialize(List<DataField> fields, CallingContext cc) throws ODKDatastoreException {
+  private void initialize(List<DataField> fields, List<CompositeIndex> indexes,
+      CallingContext cc) throws ODKDatastoreException {
 
     List<DataField> definedFields = new ArrayList<DataField>();
     for (DataField f : fields) {
@@ -771,11 +793,26 @@ public class Relation {
           + "errorneously supplied in the DataField list");
     }
 
+    for (CompositeIndex index : indexes) {
+      List<String> names = new ArrayList<String>(index.getKeyColumnNames());
+      names.addAll(index.getIncludedColumnNames());
+      for (String name : names) {
+        if (!nameMap.containsKey(name) && !name.equals(CommonFieldsBase.URI_COLUMN_NAME)
+            && !name.equals(CommonFieldsBase.CREATION_DATE_COLUMN_NAME)
+            && !name.equals(CommonFieldsBase.CREATOR_URI_USER_COLUMN_NAME)
+            && !name.equals(CommonFieldsBase.LAST_UPDATE_DATE_COLUMN_NAME)
+            && !name.equals(CommonFieldsBase.LAST_UPDATE_URI_USER_COLUMN_NAME)) {
+          throw new IllegalArgumentException("Index " + index.getSuffix()
+              + " refers to an unknown field: " + name);
+        }
+      }
+    }
+
     Datastore ds = cc.getDatastore();
     User user = cc.getCurrentUser();
     String schema = ds.getDefaultSchemaName();
     synchronized (Relation.class) {
-      RelationImpl candidate = new RelationImpl(schema, backingTableName, definedFields);
+      RelationImpl candidate = new RelationImpl(schema, backingTableName, definedFields, indexes);
       ds.assertRelation(candidate, user);
       prototype = candidate;
     }
@@ -72,6 +72,7 @@ public abstract class CommonFieldsBase {
   private boolean fromDatabase = false;
   private Object opaquePersistenceData = null;
   protected final List<DataField> fieldList = new ArrayList<DataField>();
+  protected final List<CompositeIndex> indexList = new ArrayList<CompositeIndex>();
   protected final Map<DataField, Object> fieldValueMap = new HashMap<DataField, Object>();
 
   public final DataField primaryKey;
@@ -117,6 +118,7 @@ public abstract class CommonFieldsBase {
     lastUpdateDate = ref.lastUpdateDate;
 
     fieldList.addAll(ref.fieldList);
+    indexList.addAll(ref.indexList);
 
     // populate the audit fields...
     Date now = new Date();
@@ -165,6 +167,14 @@ public abstract class CommonFieldsBase {
     return Collections.unmodifiableList(fieldList);
   }
 
+  /**
+   * @return the multi-column indexes the persistence layer should maintain in
+   *         addition to the single-column indexes declared on the fields.
+   */
+  public final List<CompositeIndex> getIndexList() {
+    return Collections.unmodifiableList(indexList);
+  }
+
   public final String getStringField(DataField f) {
     if (f == null) {
       throw new IllegalArgumentException("Field value is null!");
@@ -432,30 +442,36 @@ public abstract class CommonFieldsBase {
       }
       md.update(asBytes);
 
-      byte[] messageDigest = md.digest();
-
-      BigInteger number = new BigInteger(1, messageDigest);
-      String md5 = number.toString(16);
-      while (md5.length() < 32)
-        md5 = "0" + md5;
-      return "md5:" + md5;
+      return newMD5HashUri(md);
     } catch (NoSuchAlgorithmException e) {
       throw new IllegalStateException("Unexpected problem computing md5 hash", e);
     }
   }
 
+  /**
+   * Complete the digest and format it as an md5 hash uri. Used when the
+   * content is streamed through the digest rather than held in memory.
+   *
+   * @param md
+   *          an MD5 MessageDigest
+   * @return the md5 hash uri of the digested content.
+   */
+  public final static String newMD5HashUri(MessageDigest md) {
+    byte[] messageDigest = md.digest();
+
+    BigInteger number = new BigInteger(1, messageDigest);
+    String md5 = number.toString(16);
+    while (md5.length() < 32)
+      md5 = "0" + md5;
+    return "md5:" + md5;
+  }
+
   public final static String newMD5HashUri(byte[] asBytes) {
     try {
       MessageDigest md = MessageDigest.getInstance("MD5");
       md.update(asBytes);
 
-      byte[] messageDigest = md.digest();
-
-      BigInteger number = new BigInteger(1, messageDigest);
-      String md5 = number.toString(16);
-      while (md5.length() < 32)
-        md5 = "0" + md5;
-      return "md5:" + md5;
+      return newMD5HashUri(md);
     } catch (NoSuchAlgorithmException e) {
       throw new IllegalStateException("Unexpected problem computing md5 hash", e);
     }
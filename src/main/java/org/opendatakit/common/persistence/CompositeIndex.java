@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A multi-column or covering index on a relation. Simple single-column indexes
+ * are declared with {@link DataField#setIndexable(DataField.IndexType)}; this
+ * is for queries that filter on one column and sort on another, or that can
+ * be answered from the index alone.
+ *
+ * Columns are identified by name so that the audit columns (_URI,
+ * _CREATION_DATE, etc.) can be used. The included columns are carried in the
+ * index leaf pages but are not part of the key; persistence layers whose
+ * database has no INCLUDE clause append them to the key instead.
+ *
+ * The index is named by appending "_" and the suffix to the table name, so the
+ * suffix must be unique within the relation and should be short.
+ *
+ * The index is created along with a new table. If it is missing from an
+ * existing table, it is built on a background thread, without blocking writes
+ * where the database allows it, once the relation is first verified.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class CompositeIndex {
+
+  private final String suffix;
+  private final List<String> keyColumnNames;
+  private final List<String> includedColumnNames = new ArrayList<String>();
+
+  public CompositeIndex(String suffix, String... keyColumnNames) {
+    if (suffix == null || suffix.length() == 0) {
+      throw new IllegalArgumentException("index suffix must be specified");
+    }
+    if (keyColumnNames.length == 0) {
+      throw new IllegalArgumentException("index must have at least one key column");
+    }
+    this.suffix = suffix;
+    this.keyColumnNames = Collections.unmodifiableList(Arrays.asList(keyColumnNames));
+  }
+
+  /**
+   * Add columns that are stored in the index but are not part of its key.
+   *
+   * @param columnNames
+   * @return this
+   */
+  public CompositeIndex include(String... columnNames) {
+    includedColumnNames.addAll(Arrays.asList(columnNames));
+    return this;
+  }
+
+  public String getSuffix() {
+    return suffix;
+  }
+
+  public String getIndexName(CommonFieldsBase relation) {
+    return relation.getTableName() + "_" + suffix;
+  }
+
+  public List<String> getKeyColumnNames() {
+    return keyColumnNames;
+  }
+
+  public List<String> getIncludedColumnNames() {
+    return Collections.unmodifiableList(includedColumnNames);
+  }
+}
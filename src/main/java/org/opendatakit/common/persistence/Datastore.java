@@ -47,6 +47,15 @@ public interface Datastore {
 	 * @return the maximum length of a column name in this persistence layer implementation
 	 */
 	public int getMaxLenColumnName();
+
+	/**
+	 * @return the maximum number of bind parameters a single statement may use
+	 *         in this persistence layer implementation, less
+	 *         {@link PersistConsts#BIND_PARAMS_RESERVE} for any additional where
+	 *         clause filters. Callers may bind this many values in one statement
+	 *         without subtracting anything themselves.
+	 */
+	public int getMaxBindParams();
 	
 	/**
 	 * Asserts that the relation exists in the datastore.  The details of the 
@@ -219,4 +228,38 @@ public interface Datastore {
 	 * @return
 	 */
 	public TaskLock createTaskLock(User user);
+
+	/**
+	 * Begin a unit of work. All datastore operations made on the calling thread
+	 * until the returned transaction is committed or rolled back are applied
+	 * in a single database transaction.
+	 * 
+	 * @param user
+	 * @return the active transaction
+	 * @throws ODKDatastoreException
+	 */
+	public DatastoreTransaction beginTransaction(User user) throws ODKDatastoreException;
+
+	/**
+	 * Begin a read-only unit of work. All queries made on the calling thread
+	 * until the returned transaction is committed or rolled back see a single
+	 * consistent view of the database, as far as the database's isolation
+	 * levels allow, without blocking or being blocked by concurrent writers.
+	 * 
+	 * @param user
+	 * @return the active transaction
+	 * @throws ODKDatastoreException
+	 */
+	public DatastoreTransaction beginSnapshotTransaction(User user) throws ODKDatastoreException;
+
+	/**
+	 * Get the allocator for the named sequence.  The same allocator instance is
+	 * returned for a given sequence name so that reserved blocks of values are
+	 * shared across all callers within this server.
+	 *
+	 * @param sequenceName
+	 * @param user
+	 * @return
+	 */
+	public SequenceAllocator getSequenceAllocator(String sequenceName, User user);
 }
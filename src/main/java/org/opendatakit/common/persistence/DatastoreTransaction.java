@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+
+/**
+ * A unit of work against the datastore. Between
+ * {@link Datastore#beginTransaction(org.opendatakit.common.security.User)} and {@link #commit()} or
+ * {@link #rollback()}, all datastore operations made on the calling thread are
+ * applied within a single database transaction and become visible to other
+ * requests together, or not at all.
+ *
+ * If a transaction is already active on the calling thread, the new unit of
+ * work participates in it and only the outermost commit writes to the database.
+ *
+ * Typical usage:
+ *
+ * <pre>
+ * DatastoreTransaction txn = ds.beginTransaction(user);
+ * try {
+ *   ... putEntity, deleteEntity, etc. ...
+ *   txn.commit();
+ * } finally {
+ *   txn.rollback(); // no-op if committed
+ * }
+ * </pre>
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public interface DatastoreTransaction {
+
+  /**
+   * @return true if neither commit() nor rollback() has been called.
+   */
+  boolean isActive();
+
+  /**
+   * Commit the unit of work.
+   *
+   * @throws ODKDatastoreException
+   *           if the commit failed. The changes have been rolled back.
+   */
+  void commit() throws ODKDatastoreException;
+
+  /**
+   * Discard the unit of work. Does nothing if the unit of work has already been
+   * committed or rolled back.
+   */
+  void rollback();
+
+}
@@ -81,4 +81,11 @@ public class PersistConsts {
    */
   public static final Long DEFAULT_MAX_STRING_LENGTH = 255L;
 
+  /**
+   * The number of bind parameters held back from a statement's limit for
+   * parameters other than the values being bound in bulk, e.g., additional
+   * where clause filters. See Datastore.getMaxBindParams().
+   */
+  public static final int BIND_PARAMS_RESERVE = 100;
+
 }
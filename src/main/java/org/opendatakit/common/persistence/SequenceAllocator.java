@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence;
+
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+
+/**
+ * A database-mediated, strictly increasing counter backed by the native
+ * sequence support of the underlying database. Unlike a read-modify-write of a
+ * row in a settings table, obtaining a value is atomic across all of the
+ * server instances sharing the database.
+ *
+ * Values are reserved from the database in blocks of
+ * {@link #getBlockSize()} and handed out from memory. When the block size is
+ * greater than 1, values are only ordered within a single server instance.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public interface SequenceAllocator {
+
+  /**
+   * @return the number of values reserved from the database at a time.
+   */
+  int getBlockSize();
+
+  /**
+   * @return true if the backing database sequence has been created. This is a
+   *         read-only check; it never changes the database.
+   * @throws ODKDatastoreException
+   */
+  boolean isInitialized() throws ODKDatastoreException;
+
+  /**
+   * Create the backing database sequence if it does not already exist, or
+   * align its increment with {@link #getBlockSize()} if it does. If it already
+   * exists, the startValue is ignored. This may issue DDL and must be called
+   * once, e.g., at server startup, before {@link #nextValue()} is used.
+   *
+   * @param startValue
+   *          the first value the sequence should return.
+   * @return true if this call created the sequence.
+   * @throws ODKDatastoreException
+   */
+  boolean initialize(long startValue) throws ODKDatastoreException;
+
+  /**
+   * @return the next value in the sequence.
+   * @throws ODKDatastoreException
+   *           if the sequence has not been initialized or the database failed.
+   */
+  long nextValue() throws ODKDatastoreException;
+
+}
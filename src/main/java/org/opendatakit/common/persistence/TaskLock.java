@@ -26,6 +26,22 @@ import org.opendatakit.common.persistence.exception.ODKTaskLockException;
 public interface TaskLock {
   
   boolean obtainLock(String lockId, String formId, ITaskLockType taskType) throws ODKTaskLockException;
+
+  /**
+   * Obtain the lock, waiting up to maxWaitMilliseconds for it to become
+   * available. Implementations backed by native database locks wait on the
+   * database server. Others make a single attempt and, if it fails, sleep for
+   * maxWaitMilliseconds before returning so that the caller can retry.
+   *
+   * @param lockId
+   * @param formId
+   * @param taskType
+   * @param maxWaitMilliseconds
+   * @return true if the lock was obtained.
+   * @throws ODKTaskLockException
+   */
+  boolean obtainLock(String lockId, String formId, ITaskLockType taskType,
+      long maxWaitMilliseconds) throws ODKTaskLockException;
   
   boolean renewLock(String lockId, String formId, ITaskLockType taskType) throws ODKTaskLockException;
   
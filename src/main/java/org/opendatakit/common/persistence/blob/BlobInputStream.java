@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.persistence.blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A stream over the content of a {@link BlobStore} object that can write
+ * itself to an OutputStream, allowing an implementation to skip the copy
+ * through a heap buffer (see {@link FileSystemBlobStore}).
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public abstract class BlobInputStream extends InputStream {
+
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  /**
+   * Write the remaining content of this stream to out. Does not close either
+   * stream.
+   *
+   * @param out
+   * @return the number of bytes written.
+   * @throws IOException
+   */
+  public long transferTo(OutputStream out) throws IOException {
+    byte[] data = new byte[COPY_BUFFER_SIZE];
+    long total = 0L;
+    int len;
+    while ((len = read(data, 0, data.length)) >= 0) {
+      out.write(data, 0, len);
+      total += len;
+    }
+    return total;
+  }
+}
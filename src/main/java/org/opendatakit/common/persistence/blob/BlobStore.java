@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.persistence.blob;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Storage for attachment content outside of the database.
+ *
+ * When a blob store is configured (the optional
+ * {@link org.opendatakit.aggregate.constants.BeanDefs#BLOB_STORE} bean),
+ * BinaryContentManipulator writes the content of new attachments here and
+ * keeps only their metadata and a reference to the stored object in the
+ * database. Attachments already stored as RefBlob parts remain readable.
+ *
+ * Keys are '/'-separated paths of the form schema/table/id. Implementations
+ * must be thread-safe, and a put must be atomic: a concurrent or later get
+ * sees either the complete content or no object at all.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public interface BlobStore {
+
+  /**
+   * Store the content under the given key, replacing any existing object.
+   *
+   * @param key
+   * @param content
+   *          read to its end; not closed.
+   * @return the number of bytes stored.
+   * @throws IOException
+   */
+  public long put(String key, InputStream content) throws IOException;
+
+  /**
+   * @param key
+   * @return a stream over the stored content. The caller must close it.
+   * @throws FileNotFoundException
+   *           if there is no object with this key.
+   * @throws IOException
+   */
+  public BlobInputStream get(String key) throws IOException;
+
+  /**
+   * Remove the object with the given key. Does nothing if there is none.
+   *
+   * @param key
+   * @throws IOException
+   */
+  public void delete(String key) throws IOException;
+
+  /**
+   * Remove every object whose key starts with the given prefix.
+   *
+   * @param prefix
+   *          a key prefix ending in '/', e.g., schema/table/
+   * @throws IOException
+   */
+  public void deleteAll(String prefix) throws IOException;
+}
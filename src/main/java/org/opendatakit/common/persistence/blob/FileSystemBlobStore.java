@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.persistence.blob;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * {@link BlobStore} on a local (or mounted) filesystem.
+ *
+ * The object with key schema/table/id is stored in the file
+ * rootDirectory/schema/table/i0i1/i2i3/id, where i0..i3 are the first four
+ * characters of the id, so that no directory grows to hold more than a few
+ * thousand entries. Content is written to a temporary file in the same
+ * directory, forced to disk, and then atomically renamed into place.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class FileSystemBlobStore implements BlobStore, InitializingBean {
+
+  private static final Log logger = LogFactory.getLog(FileSystemBlobStore.class);
+
+  private static final int COPY_BUFFER_SIZE = 65536;
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private Path root = null;
+
+  public FileSystemBlobStore() {
+  }
+
+  public void setRootDirectory(String rootDirectory) {
+    this.root = Paths.get(rootDirectory).toAbsolutePath().normalize();
+  }
+
+  public String getRootDirectory() {
+    return (root == null) ? null : root.toString();
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    if (root == null) {
+      throw new IllegalStateException("rootDirectory property must be set!");
+    }
+    Files.createDirectories(root);
+    logger.info("Attachment content is stored under " + root);
+  }
+
+  /**
+   * @param key
+   * @param sharded
+   *          true to add the shard directories of the last segment.
+   * @return the path of the key under the root directory.
+   */
+  Path resolve(String key, boolean sharded) {
+    if (root == null) {
+      throw new IllegalStateException("rootDirectory property must be set!");
+    }
+    String[] segments = key.split("/", -1);
+    Path p = root;
+    for (int i = 0; i < segments.length; ++i) {
+      String s = segments[i];
+      if (s.length() == 0) {
+        if (!sharded && i == segments.length - 1) {
+          // trailing '/' of a prefix
+          break;
+        }
+        throw new IllegalArgumentException("empty segment in blob key: " + key);
+      }
+      if (s.equals(".") || s.equals("..") || s.indexOf('\\') != -1 || s.indexOf('\0') != -1) {
+        throw new IllegalArgumentException("illegal segment in blob key: " + key);
+      }
+      if (sharded && i == segments.length - 1 && s.length() >= 4) {
+        p = p.resolve(s.substring(0, 2)).resolve(s.substring(2, 4));
+      }
+      p = p.resolve(s);
+    }
+    return p;
+  }
+
+  @Override
+  public long put(String key, InputStream content) throws IOException {
+    Path target = resolve(key, true);
+    Path dir = target.getParent();
+    Files.createDirectories(dir);
+    Path temp = Files.createTempFile(dir, "." + target.getFileName().toString(), TEMP_SUFFIX);
+    try {
+      long length = 0L;
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        byte[] data = new byte[COPY_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int len;
+        while ((len = content.read(data, 0, data.length)) >= 0) {
+          // call through Buffer: built on a newer JDK, buffer.clear() would
+          // link against the covariant ByteBuffer.clear() that does not
+          // exist on a Java 8 runtime.
+          ((Buffer) buffer).clear();
+          ((Buffer) buffer).limit(len);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+          length += len;
+        }
+        channel.force(true);
+      }
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      temp = null;
+      return length;
+    } finally {
+      if (temp != null) {
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  @Override
+  public BlobInputStream get(String key) throws IOException {
+    try {
+      return new FileBlobInputStream(FileChannel.open(resolve(key, true), StandardOpenOption.READ));
+    } catch (NoSuchFileException e) {
+      throw new FileNotFoundException("No blob found for key: " + key);
+    }
+  }
+
+  @Override
+  public void delete(String key) throws IOException {
+    Files.deleteIfExists(resolve(key, true));
+  }
+
+  @Override
+  public void deleteAll(String prefix) throws IOException {
+    if (!prefix.endsWith("/")) {
+      throw new IllegalArgumentException("blob key prefix must end with '/': " + prefix);
+    }
+    Path dir = resolve(prefix, false);
+    if (dir.equals(root) || !Files.isDirectory(dir)) {
+      return;
+    }
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.deleteIfExists(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+        if (e != null) {
+          throw e;
+        }
+        Files.deleteIfExists(d);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Reads through the FileChannel; {@link #transferTo(OutputStream)} hands the
+   * copy to FileChannel.transferTo, which avoids user-space buffers when the
+   * target is a file or socket channel.
+   */
+  private static final class FileBlobInputStream extends BlobInputStream {
+    private final FileChannel channel;
+
+    FileBlobInputStream(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return (n <= 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      return channel.read(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (n <= 0) {
+        return 0L;
+      }
+      long pos = channel.position();
+      long skipped = Math.min(n, Math.max(0L, channel.size() - pos));
+      channel.position(pos + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(Integer.MAX_VALUE, Math.max(0L, channel.size() - channel.position()));
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+      WritableByteChannel target = Channels.newChannel(out);
+      long pos = channel.position();
+      long size = channel.size();
+      long total = 0L;
+      while (pos < size) {
+        long n = channel.transferTo(pos, size - pos, target);
+        if (n <= 0) {
+          break;
+        }
+        pos += n;
+        total += n;
+      }
+      channel.position(pos);
+      return total;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.persistence.blob;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * {@link BlobStore} on an S3-compatible object store (Amazon S3, MinIO, Ceph
+ * RGW, ...), using path-style addressing and AWS Signature Version 4.
+ *
+ * Only PUT, GET, DELETE and ListObjectsV2 are used, over plain
+ * HttpURLConnection. Content is spooled to a temporary file on put so that
+ * its length and SHA-256 (both required by the signature) are known before
+ * the upload starts; objects larger than the single-PUT limit of the store
+ * (5GB on S3) are not supported.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class S3BlobStore implements BlobStore, InitializingBean {
+
+  private static final Log logger = LogFactory.getLog(S3BlobStore.class);
+
+  private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+  private static final String SERVICE = "s3";
+  private static final String EMPTY_PAYLOAD_SHA256 =
+      "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+  private static final String HEADER_CONTENT_SHA256 = "x-amz-content-sha256";
+  private static final String HEADER_DATE = "x-amz-date";
+  private static final String SIGNED_HEADERS = "host;" + HEADER_CONTENT_SHA256 + ";" + HEADER_DATE;
+
+  private static final DateTimeFormatter AMZ_DATE =
+      DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+  private static final DateTimeFormatter AMZ_DATE_STAMP = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final int COPY_BUFFER_SIZE = 65536;
+  private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+  private static final int READ_TIMEOUT_MILLIS = 120000;
+
+  private String endpoint = null;
+  private String region = "us-east-1";
+  private String bucket = null;
+  private String accessKey = null;
+  private String secretKey = null;
+  private String keyPrefix = "";
+
+  public S3BlobStore() {
+  }
+
+  /**
+   * @param endpoint
+   *          scheme, host and optional port, e.g., http://minio:9000
+   */
+  public void setEndpoint(String endpoint) {
+    while (endpoint.endsWith("/")) {
+      endpoint = endpoint.substring(0, endpoint.length() - 1);
+    }
+    this.endpoint = endpoint;
+  }
+
+  public void setRegion(String region) {
+    this.region = region;
+  }
+
+  public void setBucket(String bucket) {
+    this.bucket = bucket;
+  }
+
+  public void setAccessKey(String accessKey) {
+    this.accessKey = accessKey;
+  }
+
+  public void setSecretKey(String secretKey) {
+    this.secretKey = secretKey;
+  }
+
+  /**
+   * @param keyPrefix
+   *          prepended to every key, e.g., to share a bucket between servers.
+   */
+  public void setKeyPrefix(String keyPrefix) {
+    this.keyPrefix = (keyPrefix == null) ? "" : keyPrefix;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    if (endpoint == null || bucket == null || accessKey == null || secretKey == null) {
+      throw new IllegalStateException(
+          "endpoint, bucket, accessKey and secretKey properties must be set!");
+    }
+    logger.info("Attachment content is stored in bucket " + bucket + " at " + endpoint);
+  }
+
+  @Override
+  public long put(String key, InputStream content) throws IOException {
+    Path spool = Files.createTempFile("odk-blob", ".tmp");
+    try {
+      MessageDigest md = newSHA256Digest();
+      long length = 0L;
+      try (OutputStream out = Files.newOutputStream(spool)) {
+        byte[] data = new byte[COPY_BUFFER_SIZE];
+        int len;
+        while ((len = content.read(data, 0, data.length)) >= 0) {
+          md.update(data, 0, len);
+          out.write(data, 0, len);
+          length += len;
+        }
+      }
+
+      HttpURLConnection conn = open("PUT", keyPrefix + key, null, toHex(md.digest()));
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(length);
+      try (OutputStream out = conn.getOutputStream()) {
+        Files.copy(spool, out);
+      }
+      int status = conn.getResponseCode();
+      if (status / 100 != 2) {
+        throw failure(conn, "PUT", key);
+      }
+      drain(conn);
+      return length;
+    } finally {
+      Files.deleteIfExists(spool);
+    }
+  }
+
+  @Override
+  public BlobInputStream get(String key) throws IOException {
+    HttpURLConnection conn = open("GET", keyPrefix + key, null, EMPTY_PAYLOAD_SHA256);
+    int status = conn.getResponseCode();
+    if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+      drain(conn);
+      throw new FileNotFoundException("No blob found for key: " + key);
+    }
+    if (status / 100 != 2) {
+      throw failure(conn, "GET", key);
+    }
+    final InputStream in = conn.getInputStream();
+    return new BlobInputStream() {
+      @Override
+      public int read() throws IOException {
+        return in.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return in.read(b, off, len);
+      }
+
+      @Override
+      public int available() throws IOException {
+        return in.available();
+      }
+
+      @Override
+      public void close() throws IOException {
+        in.close();
+      }
+    };
+  }
+
+  @Override
+  public void delete(String key) throws IOException {
+    deleteObject(keyPrefix + key);
+  }
+
+  private void deleteObject(String objectKey) throws IOException {
+    HttpURLConnection conn = open("DELETE", objectKey, null, EMPTY_PAYLOAD_SHA256);
+    int status = conn.getResponseCode();
+    if (status / 100 != 2 && status != HttpURLConnection.HTTP_NOT_FOUND) {
+      throw failure(conn, "DELETE", objectKey);
+    }
+    drain(conn);
+  }
+
+  @Override
+  public void deleteAll(String prefix) throws IOException {
+    if (!prefix.endsWith("/")) {
+      throw new IllegalArgumentException("blob key prefix must end with '/': " + prefix);
+    }
+    // Each round deletes the first page of the listing and lists again, rather
+    // than following the continuation token, so that the deletions cannot
+    // shift the position a token refers to.
+    List<String> keys;
+    do {
+      TreeMap<String, String> query = new TreeMap<String, String>();
+      query.put("list-type", "2");
+      query.put("prefix", keyPrefix + prefix);
+      HttpURLConnection conn = open("GET", null, query, EMPTY_PAYLOAD_SHA256);
+      if (conn.getResponseCode() / 100 != 2) {
+        throw failure(conn, "LIST", prefix);
+      }
+      keys = new ArrayList<String>();
+      Document doc;
+      try (InputStream in = conn.getInputStream()) {
+        doc = newDocumentBuilder().parse(in);
+      } catch (SAXException e) {
+        throw new IOException("Unable to parse object listing for prefix: " + prefix, e);
+      }
+      Element result = doc.getDocumentElement();
+      NodeList contents = result.getElementsByTagName("Contents");
+      for (int i = 0; i < contents.getLength(); ++i) {
+        keys.add(childText((Element) contents.item(i), "Key"));
+      }
+      for (String objectKey : keys) {
+        deleteObject(objectKey);
+      }
+    } while (!keys.isEmpty());
+  }
+
+  /**
+   * Open a signed request for an object (or, with a null objectKey, the
+   * bucket).
+   */
+  HttpURLConnection open(String method, String objectKey, Map<String, String> query,
+      String payloadSha256) throws IOException {
+    String path = "/" + uriEncode(bucket, true)
+        + ((objectKey == null) ? "" : "/" + uriEncode(objectKey, false));
+
+    StringBuilder qs = new StringBuilder();
+    if (query != null) {
+      TreeMap<String, String> encoded = new TreeMap<String, String>();
+      for (Map.Entry<String, String> e : query.entrySet()) {
+        encoded.put(uriEncode(e.getKey(), true), uriEncode(e.getValue(), true));
+      }
+      for (Map.Entry<String, String> e : encoded.entrySet()) {
+        if (qs.length() != 0) {
+          qs.append('&');
+        }
+        qs.append(e.getKey()).append('=').append(e.getValue());
+      }
+    }
+
+    URL url = new URL(endpoint + path + ((qs.length() == 0) ? "" : "?" + qs));
+    ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+    String amzDate = AMZ_DATE.format(now);
+    String scope = AMZ_DATE_STAMP.format(now) + "/" + region + "/" + SERVICE + "/aws4_request";
+
+    String canonicalRequest = method + "\n" + path + "\n" + qs + "\n"
+        + "host:" + hostHeader(url) + "\n"
+        + HEADER_CONTENT_SHA256 + ":" + payloadSha256 + "\n"
+        + HEADER_DATE + ":" + amzDate + "\n"
+        + "\n" + SIGNED_HEADERS + "\n" + payloadSha256;
+    String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+        + toHex(newSHA256Digest().digest(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+    byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8),
+        AMZ_DATE_STAMP.format(now));
+    signingKey = hmac(signingKey, region);
+    signingKey = hmac(signingKey, SERVICE);
+    signingKey = hmac(signingKey, "aws4_request");
+    String signature = toHex(hmac(signingKey, stringToSign));
+
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestMethod(method);
+    conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+    conn.setUseCaches(false);
+    conn.setRequestProperty(HEADER_CONTENT_SHA256, payloadSha256);
+    conn.setRequestProperty(HEADER_DATE, amzDate);
+    conn.setRequestProperty("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope
+        + ", SignedHeaders=" + SIGNED_HEADERS + ", Signature=" + signature);
+    return conn;
+  }
+
+  /**
+   * @return the Host header HttpURLConnection sends for this url.
+   */
+  private static String hostHeader(URL url) {
+    int port = url.getPort();
+    if (port == -1 || port == url.getDefaultPort()) {
+      return url.getHost();
+    }
+    return url.getHost() + ":" + port;
+  }
+
+  /**
+   * URI-encode per the Signature Version 4 rules: every byte except the
+   * unreserved characters (and '/' in object keys) is percent-encoded.
+   */
+  static String uriEncode(String value, boolean encodeSlash) {
+    StringBuilder b = new StringBuilder();
+    for (byte by : value.getBytes(StandardCharsets.UTF_8)) {
+      char ch = (char) (by & 0xff);
+      if ((ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9')
+          || ch == '-' || ch == '_' || ch == '.' || ch == '~' || (ch == '/' && !encodeSlash)) {
+        b.append(ch);
+      } else {
+        b.append('%').append(Character.toUpperCase(HEX[(by >> 4) & 0xf]))
+            .append(Character.toUpperCase(HEX[by & 0xf]));
+      }
+    }
+    return b.toString();
+  }
+
+  private static MessageDigest newSHA256Digest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing sha-256 hash", e);
+    }
+  }
+
+  private static byte[] hmac(byte[] key, String data) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unexpected problem computing request signature", e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; ++i) {
+      chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  private static DocumentBuilder newDocumentBuilder() throws IOException {
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      factory.setExpandEntityReferences(false);
+      return factory.newDocumentBuilder();
+    } catch (ParserConfigurationException e) {
+      throw new IOException("Unable to create XML parser", e);
+    }
+  }
+
+  private static String childText(Element parent, String tagName) {
+    NodeList nodes = parent.getElementsByTagName(tagName);
+    return (nodes.getLength() == 0) ? null : nodes.item(0).getTextContent();
+  }
+
+  /**
+   * Read and discard the response so that the connection can be reused.
+   */
+  private static void drain(HttpURLConnection conn) {
+    try {
+      InputStream in = (conn.getResponseCode() / 100 == 2) ? conn.getInputStream()
+          : conn.getErrorStream();
+      if (in != null) {
+        try {
+          byte[] data = new byte[COPY_BUFFER_SIZE];
+          while (in.read(data) >= 0) {
+          }
+        } finally {
+          in.close();
+        }
+      }
+    } catch (IOException e) {
+      // ignore -- the connection will not be reused
+    }
+  }
+
+  private static IOException failure(HttpURLConnection conn, String operation, String key)
+      throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    InputStream in = conn.getErrorStream();
+    if (in != null) {
+      try {
+        byte[] data = new byte[COPY_BUFFER_SIZE];
+        int len;
+        while ((len = in.read(data)) >= 0 && body.size() < 4096) {
+          body.write(data, 0, len);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return new IOException(operation + " of blob " + key + " failed with status "
+        + conn.getResponseCode() + ": " + new String(body.toByteArray(), StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Builds the composite indexes that are missing from existing tables, e.g.,
+ * because a table was created by an earlier version of this server. Building
+ * an index on a large table can take minutes, so it is done one index at a
+ * time on a background thread rather than by the request that first verified
+ * the relation. Until the index is built, queries are merely slower.
+ *
+ * A build that is already queued or running for the same index is not queued
+ * again.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class CompositeIndexBuilder {
+
+  private static final Log logger = LogFactory.getLog(CompositeIndexBuilder.class);
+
+  // schema.table.index of the builds queued or running
+  private final Set<String> pending = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final ExecutorService exec;
+
+  public CompositeIndexBuilder(final String engineName) {
+    exec = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, engineName + "-composite-index-builder");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Queue the build of an index.
+   *
+   * @param indexKey
+   *          schema.table.index of the index being built.
+   * @param build
+   *          checks whether the index is still missing and builds it. Any
+   *          exception it throws is logged.
+   * @return false if a build of this index is already queued or running, or
+   *         the builder has been shut down.
+   */
+  public boolean submit(final String indexKey, final Runnable build) {
+    if (!pending.add(indexKey)) {
+      return false;
+    }
+    try {
+      exec.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            build.run();
+          } catch (RuntimeException e) {
+            logger.warn("Unable to add index " + indexKey + " exception: " + e.toString());
+          } finally {
+            pending.remove(indexKey);
+          }
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      pending.remove(indexKey);
+      return false;
+    }
+  }
+
+  /**
+   * @return the number of builds queued or running.
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Stop accepting builds and wait briefly for the running one to finish.
+   * Builds still queued are abandoned and will be queued again when the
+   * relation is next verified.
+   */
+  public void shutdown() {
+    exec.shutdownNow();
+    try {
+      exec.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
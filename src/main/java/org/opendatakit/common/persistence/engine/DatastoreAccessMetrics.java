@@ -1,11 +1,11 @@
 /**
  * Copyright (C) 2011 University of Washington
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
  * in compliance with the License. You may obtain a copy of the License at
- * 
+ *
  * http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software distributed under the License
  * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
  * or implied. See the License for the specific language governing permissions and limitations under
@@ -13,8 +13,21 @@
  */
 package org.opendatakit.common.persistence.engine;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -26,188 +39,460 @@ import org.opendatakit.common.utils.WebUtils;
  * Tracks the access patterns for the datastore layer. Useful for identifying
  * inefficient datastore access patterns and minimizing excessive read/write
  * actions.
- * 
+ *
+ * The counters are cumulative and are updated without locking, so recording
+ * usage does not serialize the request threads. Each table also has a latency
+ * histogram per operation. The counters are exposed through JMX (see
+ * {@link #registerMBean(String)}) and in the Prometheus text format (see
+ * {@link #writePrometheusText(Appendable)}).
+ *
  * Note that if you create and delete many tables and don't reuse table names,
- * the tableMap and count arrays will grow without bounds.
- * 
+ * the table map will grow without bounds.
+ *
  * @author mitchellsundt@gmail.com
- * 
+ *
  */
-public final class DatastoreAccessMetrics {
+public final class DatastoreAccessMetrics implements DatastoreAccessMetricsMBean {
 
   private static final Log logger = LogFactory.getLog(DatastoreAccessMetrics.class);
 
-  // map of fully qualified table name to index in counter array.
-  private final Map<String, Short> tableMap = new TreeMap<String, Short>();
-  private short nextCountIdx = 0;
-  private int readCount = 0;
+  public static final String JMX_DOMAIN = "org.opendatakit.common.persistence";
 
   /**
-   * Maintain a tally of which tables those actions were against.
-   * 
-   * NOTE: this is NOT thread-safe. All accesses should occur only from within
-   * synchronized methods.
+   * The operations whose latency is tracked. A get is executed as a query, so
+   * its latency is included in the query histogram.
    */
-  private final static class RingBufferCountArray {
-    private static final int ARRAY_INCREMENT = 20;
-    private int[] countArray = new int[36];
-
-    RingBufferCountArray() {
-      clear();
-    };
-
-    private void resizeArray(short arrayIdx) {
-      if (arrayIdx >= countArray.length) {
-        int newLen = ((arrayIdx / ARRAY_INCREMENT) + 1) * ARRAY_INCREMENT;
-        int[] newArray = new int[newLen];
-        for (int i = 0; i < newLen; ++i) {
-          newArray[i] = 0;
-        }
-        for (int i = 0; i < countArray.length; ++i) {
-          newArray[i] = countArray[i];
-        }
-        countArray = newArray;
-        logger.info("Resizing metrics array to " + newLen);
+  public enum Operation {
+    QUERY, PUT, DELETE
+  }
+
+  /**
+   * Upper bounds (inclusive) of the latency histogram buckets, in
+   * milliseconds. An implicit +Inf bucket follows the last one.
+   */
+  static final long[] LATENCY_BUCKET_BOUNDS_MS = { 1L, 2L, 5L, 10L, 25L, 50L, 100L, 250L, 500L,
+      1000L, 2500L, 5000L, 10000L };
+
+  private static final long NANOS_PER_MS = 1000000L;
+  private static final double NANOS_PER_SECOND = 1.0e9;
+
+  /**
+   * A fixed-bucket latency histogram. Each bucket holds the observations that
+   * fall within it; the Prometheus export accumulates them.
+   */
+  static final class LatencyHistogram {
+    private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKET_BOUNDS_MS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+      for (int i = 0; i < buckets.length; ++i) {
+        buckets[i] = new LongAdder();
       }
     }
 
-    private void recordUsage(short countArrayIdx, int incCount) {
-      // make sure our count array is sized big enough...
-      resizeArray(countArrayIdx);
-
-      countArray[countArrayIdx] = countArray[countArrayIdx] + incCount;
+    void observe(long elapsedNanos) {
+      if (elapsedNanos < 0L) {
+        elapsedNanos = 0L;
+      }
+      int i = 0;
+      while (i < LATENCY_BUCKET_BOUNDS_MS.length
+          && elapsedNanos > LATENCY_BUCKET_BOUNDS_MS[i] * NANOS_PER_MS) {
+        ++i;
+      }
+      buckets[i].increment();
+      sumNanos.add(elapsedNanos);
     }
 
-    private Integer getUsage(short countArrayIdx) {
-      // make sure our count array is sized big enough...
-      resizeArray(countArrayIdx);
+    long[] getBucketCounts() {
+      long[] counts = new long[buckets.length];
+      for (int i = 0; i < buckets.length; ++i) {
+        counts[i] = buckets[i].sum();
+      }
+      return counts;
+    }
 
-      return countArray[countArrayIdx];
+    long getSumNanos() {
+      return sumNanos.sum();
     }
+  }
 
-    private void clear() {
-      for (int i = 0; i < countArray.length; ++i) {
-        countArray[i] = 0;
+  /**
+   * The counters for a single table.
+   */
+  static final class TableCounters {
+    final LongAdder queries = new LongAdder();
+    final LongAdder queryResults = new LongAdder();
+    final LongAdder gets = new LongAdder();
+    final LongAdder puts = new LongAdder();
+    final LongAdder deletes = new LongAdder();
+    final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+
+    TableCounters() {
+      for (int i = 0; i < latencies.length; ++i) {
+        latencies[i] = new LatencyHistogram();
       }
     }
   }
 
-  // 20-second dump
-  private static final long ACCESS_METRIC_DUMP_INTERVAL = 20 * 1000L;
+  // all instances, for the /metrics servlet
+  private static final List<DatastoreAccessMetrics> instances = new CopyOnWriteArrayList<DatastoreAccessMetrics>();
+
+  // map of fully qualified table name to its counters.
+  private final ConcurrentMap<String, TableCounters> tableMap = new ConcurrentHashMap<String, TableCounters>();
 
-  private long lastLogging = 0L;
-  private final RingBufferCountArray countQueryArray = new RingBufferCountArray();
-  private final RingBufferCountArray countQueryResultArray = new RingBufferCountArray();
-  private final RingBufferCountArray countGetArray = new RingBufferCountArray();
-  private final RingBufferCountArray countPutArray = new RingBufferCountArray();
-  private final RingBufferCountArray countDeleteArray = new RingBufferCountArray();
+  private volatile String engineName = "unknown";
+
+  private ObjectName mbeanName = null;
 
   public DatastoreAccessMetrics() {
+    instances.add(this);
   }
 
-  public synchronized void logUsage() {
-    long now = System.currentTimeMillis();
-    lastLogging = now;
-    String gmtDate = WebUtils.iso8601Date(new java.util.Date(now));
-    logger.info("---------- " + gmtDate + " @ " + readCount + " ------------");
-    for (Map.Entry<String, Short> entry : tableMap.entrySet()) {
-      Short idx = entry.getValue();
-      logger.info(entry.getKey() + "," + countQueryArray.getUsage(idx) + ","
-          + countQueryResultArray.getUsage(idx) + "," + countGetArray.getUsage(idx) + ","
-          + countPutArray.getUsage(idx) + "," + countDeleteArray.getUsage(idx));
-    }
-    logger.info("-----------------------------------------");
-    countQueryArray.clear();
-    countQueryResultArray.clear();
-    countGetArray.clear();
-    countPutArray.clear();
-    countDeleteArray.clear();
+  /**
+   * @return the metrics of every datastore in this server.
+   */
+  public static List<DatastoreAccessMetrics> getInstances() {
+    return Collections.unmodifiableList(instances);
   }
 
   /**
-   * NOTE: This method is NOT thread-safe. Call only from within a synchronized
-   * method!
+   * Name this instance and register it with the platform MBean server.
+   * Failures are logged and otherwise ignored. A previously registered
+   * instance with the same name (e.g., from before a webapp reload) is
+   * replaced.
+   *
+   * @param engineName
+   *          the persistence layer implementation (e.g., "postgres").
    */
-  private void logUsage(int incCount) {
-    long now = System.currentTimeMillis();
-    int oldReadCount = readCount;
-    readCount = readCount + incCount;
-    if ((readCount / 500) != (oldReadCount / 500)
-        || (lastLogging + ACCESS_METRIC_DUMP_INTERVAL < now)) {
+  public synchronized void registerMBean(String engineName) {
+    this.engineName = engineName;
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(JMX_DOMAIN + ":type=DatastoreAccessMetrics,engine="
+          + ObjectName.quote(engineName));
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+      mbeanName = name;
+    } catch (Exception e) {
+      logger.warn("Unable to register datastore metrics with JMX: " + e.toString());
     }
   }
 
   /**
-   * Synchronized - this is the ONLY method that should manipulate the
-   * RingBufferCountArray or log usage statistics.
-   * 
-   * @param fullyQualifiedName
-   * @param rbc
+   * Unregister this instance from the platform MBean server and stop
+   * reporting it through the /metrics servlet.
    */
-  private synchronized void synchronizedRecordUsage(String fullyQualifiedName,
-      RingBufferCountArray rbc, int incCount) {
-    Short countArrayIdx = tableMap.get(fullyQualifiedName);
-    if (countArrayIdx == null) {
-      countArrayIdx = nextCountIdx++;
-      tableMap.put(fullyQualifiedName, countArrayIdx);
+  public synchronized void unregister() {
+    instances.remove(this);
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (Exception e) {
+        logger.warn("Unable to unregister datastore metrics from JMX: " + e.toString());
+      }
+      mbeanName = null;
     }
-
-    rbc.recordUsage(countArrayIdx, incCount);
-    logUsage(incCount);
   }
 
-  private void recordUsage(String fullyQualifiedName, RingBufferCountArray rbc, int incCount) {
-    try {
-      synchronizedRecordUsage(fullyQualifiedName, rbc, incCount);
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+  @Override
+  public String getEngineName() {
+    return engineName;
   }
 
-  private void recordUsage(String fullyQualifiedName, RingBufferCountArray rbc) {
-    recordUsage(fullyQualifiedName, rbc, 1);
+  private TableCounters getCounters(String fullyQualifiedName) {
+    TableCounters counters = tableMap.get(fullyQualifiedName);
+    if (counters == null) {
+      TableCounters newCounters = new TableCounters();
+      counters = tableMap.putIfAbsent(fullyQualifiedName, newCounters);
+      if (counters == null) {
+        counters = newCounters;
+      }
+    }
+    return counters;
   }
 
-  private void recordUsage(CommonFieldsBase relation, RingBufferCountArray rbc, int incCount) {
-    String fullyQualifiedName = relation.getSchemaName() + "." + relation.getTableName();
-    recordUsage(fullyQualifiedName, rbc, incCount);
+  private static String fullyQualifiedName(CommonFieldsBase relation) {
+    return relation.getSchemaName() + "." + relation.getTableName();
   }
 
-  private void recordUsage(CommonFieldsBase relation, RingBufferCountArray rbc) {
-    recordUsage(relation, rbc, 1);
+  @Override
+  public void logUsage() {
+    long now = System.currentTimeMillis();
+    String gmtDate = WebUtils.iso8601Date(new java.util.Date(now));
+    logger.info("---------- " + gmtDate + " ------------");
+    for (Map.Entry<String, TableCounters> entry : new TreeMap<String, TableCounters>(tableMap)
+        .entrySet()) {
+      TableCounters c = entry.getValue();
+      logger.info(entry.getKey() + "," + c.queries.sum() + "," + c.queryResults.sum() + ","
+          + c.gets.sum() + "," + c.puts.sum() + "," + c.deletes.sum());
+    }
+    logger.info("-----------------------------------------");
   }
 
   public void recordQueryUsage(String specialTableName, int resultCount) {
-    recordUsage(specialTableName, countQueryArray);
-    recordUsage(specialTableName, countQueryResultArray, resultCount);
+    TableCounters c = getCounters(specialTableName);
+    c.queries.increment();
+    c.queryResults.add(resultCount);
   }
 
   public void recordQueryUsage(CommonFieldsBase relation, int resultCount) {
-    recordUsage(relation, countQueryArray);
-    recordUsage(relation, countQueryResultArray, resultCount);
+    recordQueryUsage(fullyQualifiedName(relation), resultCount);
   }
 
   public void recordGetUsage(String specialTableName) {
-    recordUsage(specialTableName, countGetArray);
+    getCounters(specialTableName).gets.increment();
   }
 
   public void recordGetUsage(CommonFieldsBase relation) {
-    recordUsage(relation, countGetArray);
+    recordGetUsage(fullyQualifiedName(relation));
   }
 
   public void recordPutUsage(String specialTableName) {
-    recordUsage(specialTableName, countPutArray);
+    getCounters(specialTableName).puts.increment();
   }
 
   public void recordPutUsage(CommonFieldsBase relation) {
-    recordUsage(relation, countPutArray);
+    recordPutUsage(fullyQualifiedName(relation));
   }
 
   public void recordDeleteUsage(String specialTableName) {
-    recordUsage(specialTableName, countDeleteArray);
+    getCounters(specialTableName).deletes.increment();
   }
 
   public void recordDeleteUsage(EntityKey key) {
-    recordUsage(key.getRelation(), countDeleteArray);
+    recordDeleteUsage(fullyQualifiedName(key.getRelation()));
+  }
+
+  /**
+   * Record the time taken by a single database statement.
+   *
+   * @param specialTableName
+   * @param operation
+   * @param startNanos
+   *          the value of System.nanoTime() before the statement was issued.
+   */
+  public void recordLatency(String specialTableName, Operation operation, long startNanos) {
+    getCounters(specialTableName).latencies[operation.ordinal()]
+        .observe(System.nanoTime() - startNanos);
+  }
+
+  public void recordLatency(CommonFieldsBase relation, Operation operation, long startNanos) {
+    recordLatency(fullyQualifiedName(relation), operation, startNanos);
+  }
+
+  // JMX attributes and operations
+
+  private long total(int which) {
+    long sum = 0L;
+    for (TableCounters c : tableMap.values()) {
+      sum += counter(c, which).sum();
+    }
+    return sum;
+  }
+
+  private static LongAdder counter(TableCounters c, int which) {
+    switch (which) {
+    case 0:
+      return c.queries;
+    case 1:
+      return c.queryResults;
+    case 2:
+      return c.gets;
+    case 3:
+      return c.puts;
+    default:
+      return c.deletes;
+    }
+  }
+
+  private long count(String fullyQualifiedName, int which) {
+    TableCounters c = tableMap.get(fullyQualifiedName);
+    return (c == null) ? 0L : counter(c, which).sum();
+  }
+
+  @Override
+  public String[] getTableNames() {
+    List<String> names = new ArrayList<String>(tableMap.keySet());
+    Collections.sort(names);
+    return names.toArray(new String[names.size()]);
+  }
+
+  @Override
+  public long getTotalQueryCount() {
+    return total(0);
+  }
+
+  @Override
+  public long getTotalQueryResultCount() {
+    return total(1);
+  }
+
+  @Override
+  public long getTotalGetCount() {
+    return total(2);
+  }
+
+  @Override
+  public long getTotalPutCount() {
+    return total(3);
+  }
+
+  @Override
+  public long getTotalDeleteCount() {
+    return total(4);
+  }
+
+  @Override
+  public long getQueryCount(String fullyQualifiedName) {
+    return count(fullyQualifiedName, 0);
+  }
+
+  @Override
+  public long getQueryResultCount(String fullyQualifiedName) {
+    return count(fullyQualifiedName, 1);
+  }
+
+  @Override
+  public long getGetCount(String fullyQualifiedName) {
+    return count(fullyQualifiedName, 2);
+  }
+
+  @Override
+  public long getPutCount(String fullyQualifiedName) {
+    return count(fullyQualifiedName, 3);
+  }
+
+  @Override
+  public long getDeleteCount(String fullyQualifiedName) {
+    return count(fullyQualifiedName, 4);
+  }
+
+  @Override
+  public double getMeanLatencyMillis(String fullyQualifiedName, String operation) {
+    TableCounters c = tableMap.get(fullyQualifiedName);
+    if (c == null) {
+      return 0.0;
+    }
+    LatencyHistogram h = c.latencies[Operation.valueOf(operation.toUpperCase(Locale.US))
+        .ordinal()];
+    long n = 0L;
+    for (long bucket : h.getBucketCounts()) {
+      n += bucket;
+    }
+    return (n == 0L) ? 0.0 : (h.getSumNanos() / (double) NANOS_PER_MS) / n;
+  }
+
+  // Prometheus text exposition format (version 0.0.4)
+
+  private static String escapeLabelValue(String value) {
+    StringBuilder b = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); ++i) {
+      char ch = value.charAt(i);
+      switch (ch) {
+      case '\\':
+        b.append("\\\\");
+        break;
+      case '"':
+        b.append("\\\"");
+        break;
+      case '\n':
+        b.append("\\n");
+        break;
+      default:
+        b.append(ch);
+      }
+    }
+    return b.toString();
+  }
+
+  private static void writeHeader(Appendable out, String name, String type, String help)
+      throws IOException {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  /**
+   * Write the HELP and TYPE lines for the metrics emitted by
+   * {@link #writePrometheusSamples(Appendable)}. These must appear only once
+   * per scrape, however many datastores there are.
+   *
+   * @param out
+   * @throws IOException
+   */
+  public static void writePrometheusHeaders(Appendable out) throws IOException {
+    writeHeader(out, "odk_datastore_queries_total", "counter", "Queries issued against the table.");
+    writeHeader(out, "odk_datastore_query_rows_total", "counter",
+        "Rows read by queries against the table.");
+    writeHeader(out, "odk_datastore_gets_total", "counter", "Primary-key fetches from the table.");
+    writeHeader(out, "odk_datastore_puts_total", "counter", "Rows inserted or updated.");
+    writeHeader(out, "odk_datastore_deletes_total", "counter", "Rows deleted.");
+    writeHeader(out, "odk_datastore_operation_duration_seconds", "histogram",
+        "Time taken by database statements, by table and operation.");
+  }
+
+  /**
+   * Write the current counters and latency histograms of this datastore. The
+   * caller is responsible for writing the headers once.
+   *
+   * @param out
+   * @throws IOException
+   */
+  public void writePrometheusSamples(Appendable out) throws IOException {
+    String engine = escapeLabelValue(engineName);
+    Map<String, TableCounters> sorted = new TreeMap<String, TableCounters>(tableMap);
+    String[] names = { "odk_datastore_queries_total", "odk_datastore_query_rows_total",
+        "odk_datastore_gets_total", "odk_datastore_puts_total", "odk_datastore_deletes_total" };
+    for (int which = 0; which < names.length; ++which) {
+      for (Map.Entry<String, TableCounters> entry : sorted.entrySet()) {
+        out.append(names[which]).append("{engine=\"").append(engine).append("\",table=\"")
+            .append(escapeLabelValue(entry.getKey())).append("\"} ")
+            .append(Long.toString(counter(entry.getValue(), which).sum())).append('\n');
+      }
+    }
+    String histogram = "odk_datastore_operation_duration_seconds";
+    for (Map.Entry<String, TableCounters> entry : sorted.entrySet()) {
+      String table = escapeLabelValue(entry.getKey());
+      for (Operation op : Operation.values()) {
+        LatencyHistogram h = entry.getValue().latencies[op.ordinal()];
+        long[] counts = h.getBucketCounts();
+        long cumulative = 0L;
+        for (int i = 0; i < counts.length; ++i) {
+          cumulative += counts[i];
+        }
+        if (cumulative == 0L) {
+          // never performed -- don't clutter the output
+          continue;
+        }
+        String labels = "engine=\"" + engine + "\",table=\"" + table + "\",operation=\""
+            + op.name().toLowerCase(Locale.US) + "\"";
+        cumulative = 0L;
+        for (int i = 0; i < counts.length; ++i) {
+          cumulative += counts[i];
+          String le = (i < LATENCY_BUCKET_BOUNDS_MS.length)
+              ? Double.toString(LATENCY_BUCKET_BOUNDS_MS[i] / 1000.0) : "+Inf";
+          out.append(histogram).append("_bucket{").append(labels).append(",le=\"").append(le)
+              .append("\"} ").append(Long.toString(cumulative)).append('\n');
+        }
+        out.append(histogram).append("_sum{").append(labels).append("} ")
+            .append(Double.toString(h.getSumNanos() / NANOS_PER_SECOND)).append('\n');
+        out.append(histogram).append("_count{").append(labels).append("} ")
+            .append(Long.toString(cumulative)).append('\n');
+      }
+    }
+  }
+
+  /**
+   * Write the metrics of every datastore in this server.
+   *
+   * @param out
+   * @throws IOException
+   */
+  public static void writePrometheusText(Appendable out) throws IOException {
+    writePrometheusHeaders(out);
+    for (DatastoreAccessMetrics dam : instances) {
+      dam.writePrometheusSamples(out);
+    }
   }
 }
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+/**
+ * JMX management interface of {@link DatastoreAccessMetrics}. Tables are
+ * identified by their fully qualified (schema.table) name, as listed by
+ * {@link #getTableNames()}. All counts are cumulative since server start.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public interface DatastoreAccessMetricsMBean {
+
+  public String getEngineName();
+
+  public String[] getTableNames();
+
+  public long getTotalQueryCount();
+
+  public long getTotalQueryResultCount();
+
+  public long getTotalGetCount();
+
+  public long getTotalPutCount();
+
+  public long getTotalDeleteCount();
+
+  public long getQueryCount(String fullyQualifiedName);
+
+  public long getQueryResultCount(String fullyQualifiedName);
+
+  public long getGetCount(String fullyQualifiedName);
+
+  public long getPutCount(String fullyQualifiedName);
+
+  public long getDeleteCount(String fullyQualifiedName);
+
+  /**
+   * @param fullyQualifiedName
+   * @param operation
+   *          one of query, put or delete.
+   * @return the mean time taken by the operation on the table.
+   */
+  public double getMeanLatencyMillis(String fullyQualifiedName, String operation);
+
+  /**
+   * Log the per-table counts at INFO level.
+   */
+  public void logUsage();
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.common.persistence.DatastoreTransaction;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+/**
+ * DatastoreTransaction over a Spring transaction manager. The JdbcTemplate
+ * returned by each DatastoreImpl obtains its connection through the same
+ * DataSource, so every statement issued on this thread joins the transaction.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class DatastoreTransactionImpl implements DatastoreTransaction {
+
+  private static final Log logger = LogFactory.getLog(DatastoreTransactionImpl.class);
+
+  private final PlatformTransactionManager tm;
+  private TransactionStatus status;
+
+  public DatastoreTransactionImpl(PlatformTransactionManager tm) throws ODKDatastoreException {
+    this(tm, TransactionDefinition.ISOLATION_DEFAULT);
+  }
+
+  /**
+   * @param tm
+   * @param isolationLevel
+   *          one of the TransactionDefinition.ISOLATION_... values
+   * @throws ODKDatastoreException
+   */
+  public DatastoreTransactionImpl(PlatformTransactionManager tm, int isolationLevel)
+      throws ODKDatastoreException {
+    this.tm = tm;
+    try {
+      DefaultTransactionDefinition definition = new DefaultTransactionDefinition();
+      definition.setIsolationLevel(isolationLevel);
+      this.status = tm.getTransaction(definition);
+    } catch (TransactionException e) {
+      throw new ODKDatastoreException("unable to begin transaction", e);
+    }
+  }
+
+  @Override
+  public boolean isActive() {
+    return status != null;
+  }
+
+  @Override
+  public void commit() throws ODKDatastoreException {
+    if (status == null) {
+      throw new IllegalStateException("transaction is no longer active");
+    }
+    TransactionStatus s = status;
+    status = null;
+    try {
+      tm.commit(s);
+    } catch (TransactionException e) {
+      throw new ODKDatastoreException("commit failed", e);
+    }
+  }
+
+  @Override
+  public void rollback() {
+    if (status == null) {
+      return;
+    }
+    TransactionStatus s = status;
+    status = null;
+    try {
+      tm.rollback(s);
+    } catch (TransactionException e) {
+      logger.warn("rollback failed: " + e.toString());
+    }
+  }
+}
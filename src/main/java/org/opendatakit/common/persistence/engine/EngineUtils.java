@@ -14,8 +14,16 @@
 package org.opendatakit.common.persistence.engine;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.Date;
 
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp2.BasicDataSource;
 import org.opendatakit.common.persistence.CommonFieldsBase;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
@@ -256,4 +264,53 @@ public class EngineUtils {
 		return value;
 	}
 
+	/**
+	 * Hash a task lock's schema, formId and taskType down to a 64-bit key for
+	 * use with the database's native advisory or application locks. Unrelated
+	 * locks colliding on the same key would only serialize needlessly.
+	 *
+	 * @param schema
+	 * @param formId
+	 * @param taskType
+	 * @return
+	 */
+	public static final long getTaskLockKey(String schema, String formId, String taskType) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 digest is not available", e);
+		}
+		md.update(schema.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		md.update(formId.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		md.update(taskType.getBytes(StandardCharsets.UTF_8));
+		byte[] digest = md.digest();
+		long key = 0L;
+		for (int i = 0; i < 8; ++i) {
+			key = (key << 8) | (digest[i] & 0xffL);
+		}
+		return key;
+	}
+
+	/**
+	 * Close a task lock connection that may still hold a session-level lock.
+	 * A pooled connection is evicted from its pool, so that closing it ends the
+	 * database session and the lock with it, rather than handing the lock to
+	 * whichever request borrows the connection next.
+	 *
+	 * @param dataSource
+	 *          the data source the connection came from.
+	 * @param conn
+	 * @throws SQLException
+	 */
+	public static final void discardConnection(DataSource dataSource, Connection conn)
+			throws SQLException {
+		if (dataSource instanceof BasicDataSource) {
+			((BasicDataSource) dataSource).invalidateConnection(conn);
+		} else {
+			conn.close();
+		}
+	}
 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Per-request tally of the SQL statements issued by the persistence layer.
+ *
+ * A trace is bound to the calling thread between {@link #begin(String)} and
+ * {@link #end()}, which the servlet filter for the request calls. This is the
+ * same scope as the request's CallingContext, and the same thread binding the
+ * datastore transactions use. The persistence engines report each statement
+ * through {@link #recordStatement(String, int, int, int, long)} whether or not
+ * a trace is active; statements slower than the slow-query threshold are
+ * always logged.
+ *
+ * Statements are grouped by a fingerprint of their SQL (literals and bind
+ * lists collapsed) so that the same statement issued many times within one
+ * request -- an N+1 access pattern -- is reported when the trace ends.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class QueryTrace {
+
+  private static final Log logger = LogFactory.getLog(QueryTrace.class);
+
+  private static final Log slowQueryLogger = LogFactory
+      .getLog("org.opendatakit.common.persistence.SlowQuery");
+
+  public static final long DEFAULT_SLOW_QUERY_THRESHOLD_MS = 500L;
+
+  public static final int DEFAULT_REPEATED_STATEMENT_THRESHOLD = 20;
+
+  // bound on the fingerprints remembered per request
+  private static final int MAX_FINGERPRINTS = 200;
+
+  private static final Pattern QUOTED_STRING = Pattern.compile("'(?:[^']|'')*'");
+  private static final Pattern NUMBER = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+  private static final Pattern BIND_LIST = Pattern.compile("\\?(?:\\s*,\\s*\\?)+");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private static final ThreadLocal<QueryTrace> current = new ThreadLocal<QueryTrace>();
+
+  private static volatile long slowQueryThresholdNanos = DEFAULT_SLOW_QUERY_THRESHOLD_MS * 1000000L;
+
+  private static volatile int repeatedStatementThreshold = DEFAULT_REPEATED_STATEMENT_THRESHOLD;
+
+  /**
+   * Tally for one statement fingerprint.
+   */
+  public static final class StatementStats {
+    private int count = 0;
+    private long elapsedNanos = 0L;
+    private long rowsRead = 0L;
+
+    public int getCount() {
+      return count;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    public long getRowsRead() {
+      return rowsRead;
+    }
+  }
+
+  private final String label;
+  private final long startNanos;
+  private int statementCount = 0;
+  private long dbNanos = 0L;
+  private long rowsRead = 0L;
+  private long rowsReturned = 0L;
+  private final Map<String, StatementStats> fingerprints = new LinkedHashMap<String, StatementStats>();
+
+  private QueryTrace(String label) {
+    this.label = label;
+    this.startNanos = System.nanoTime();
+  }
+
+  public static void setSlowQueryThresholdMillis(long thresholdMillis) {
+    slowQueryThresholdNanos = thresholdMillis * 1000000L;
+  }
+
+  public static void setRepeatedStatementThreshold(int threshold) {
+    repeatedStatementThreshold = threshold;
+  }
+
+  /**
+   * Start tracing the statements issued by this thread. Any trace already
+   * bound to the thread is discarded.
+   *
+   * @param label
+   *          identifies the request in the log (e.g., the method and URI).
+   * @return the new trace
+   */
+  public static QueryTrace begin(String label) {
+    QueryTrace trace = new QueryTrace(label);
+    current.set(trace);
+    return trace;
+  }
+
+  /**
+   * @return the trace bound to this thread, or null if none.
+   */
+  public static QueryTrace getCurrent() {
+    return current.get();
+  }
+
+  /**
+   * Unbind the trace from this thread and log any statement that was repeated
+   * more often than the repeated-statement threshold.
+   *
+   * @return the trace that was bound to this thread, or null if none.
+   */
+  public static QueryTrace end() {
+    QueryTrace trace = current.get();
+    current.remove();
+    if (trace != null) {
+      trace.logSummary();
+    }
+    return trace;
+  }
+
+  /**
+   * Reduce a SQL statement to its shape: quoted strings and numbers become ?,
+   * lists of bind parameters become a single ?, and whitespace is collapsed.
+   *
+   * @param sql
+   * @return the fingerprint
+   */
+  public static String fingerprint(String sql) {
+    String f = QUOTED_STRING.matcher(sql).replaceAll("?");
+    f = NUMBER.matcher(f).replaceAll("?");
+    f = BIND_LIST.matcher(f).replaceAll("?");
+    f = WHITESPACE.matcher(f).replaceAll(" ");
+    return f.trim();
+  }
+
+  /**
+   * Record a statement issued by the persistence layer.
+   *
+   * @param sql
+   *          the statement as sent to the database.
+   * @param bindCount
+   *          the number of bind parameters.
+   * @param rowsRead
+   *          rows read from the result set, or rows written.
+   * @param rowsReturned
+   *          rows returned to the caller.
+   * @param startNanos
+   *          the value of System.nanoTime() before the statement was issued.
+   */
+  public static void recordStatement(String sql, int bindCount, int rowsRead, int rowsReturned,
+      long startNanos) {
+    long elapsedNanos = System.nanoTime() - startNanos;
+    QueryTrace trace = current.get();
+    String fingerprint = null;
+    if (trace != null) {
+      fingerprint = fingerprint(sql);
+      trace.add(fingerprint, elapsedNanos, rowsRead, rowsReturned);
+    }
+    if (elapsedNanos >= slowQueryThresholdNanos && slowQueryLogger.isWarnEnabled()) {
+      if (fingerprint == null) {
+        fingerprint = fingerprint(sql);
+      }
+      slowQueryLogger.warn(String.format(Locale.US,
+          "%.1f ms binds=%d rowsRead=%d rowsReturned=%d request=%s sql=%s",
+          elapsedNanos / 1000000.0, bindCount, rowsRead, rowsReturned,
+          (trace == null) ? "-" : trace.label, fingerprint));
+    }
+  }
+
+  private void add(String fingerprint, long elapsedNanos, int read, int returned) {
+    ++statementCount;
+    dbNanos += elapsedNanos;
+    rowsRead += read;
+    rowsReturned += returned;
+    StatementStats stats = fingerprints.get(fingerprint);
+    if (stats == null) {
+      if (fingerprints.size() >= MAX_FINGERPRINTS) {
+        return;
+      }
+      stats = new StatementStats();
+      fingerprints.put(fingerprint, stats);
+    }
+    ++stats.count;
+    stats.elapsedNanos += elapsedNanos;
+    stats.rowsRead += read;
+  }
+
+  private void logSummary() {
+    int threshold = repeatedStatementThreshold;
+    for (Map.Entry<String, StatementStats> entry : fingerprints.entrySet()) {
+      StatementStats stats = entry.getValue();
+      if (stats.count >= threshold) {
+        logger.warn(String.format(Locale.US,
+            "Statement issued %d times (%.1f ms, %d rows) by request %s: %s", stats.count,
+            stats.elapsedNanos / 1000000.0, stats.rowsRead, label, entry.getKey()));
+      }
+    }
+    if (logger.isDebugEnabled()) {
+      logger.debug(String.format(Locale.US,
+          "%s: %d statements, %.1f ms database time, %d rows read, %d returned, %.1f ms elapsed",
+          label, statementCount, getDbMillis(), rowsRead, rowsReturned,
+          (System.nanoTime() - startNanos) / 1000000.0));
+    }
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  public int getStatementCount() {
+    return statementCount;
+  }
+
+  public double getDbMillis() {
+    return dbNanos / 1000000.0;
+  }
+
+  public long getRowsRead() {
+    return rowsRead;
+  }
+
+  public long getRowsReturned() {
+    return rowsReturned;
+  }
+
+  /**
+   * @return the statement fingerprints, in the order first issued.
+   */
+  public Map<String, StatementStats> getStatements() {
+    return fingerprints;
+  }
+}
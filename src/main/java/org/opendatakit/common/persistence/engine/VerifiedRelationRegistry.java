@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.CompositeIndex;
+import org.opendatakit.common.persistence.DataField;
+
+/**
+ * Registry of the relations whose definitions a datastore has already
+ * verified against the database catalog, so that assertRelation and
+ * hasRelation only query the catalog the first time a table is used.
+ *
+ * Entries are keyed by schema.table and a fingerprint of the declared fields
+ * and indexes, so a prototype that declares a different set of columns is
+ * verified afresh. The column dimensions read from the catalog are
+ * remembered and applied to the fields of each later prototype.
+ *
+ * The datastore must invalidate a table when it drops it. A table dropped or
+ * altered by another server is not noticed until this server is restarted
+ * or drops the table itself.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class VerifiedRelationRegistry {
+
+  private static final class ColumnDimensions {
+    final Long maxCharLen;
+    final Integer numericPrecision;
+    final Integer numericScale;
+    final boolean isDoublePrecision;
+
+    ColumnDimensions(DataField f) {
+      maxCharLen = f.getMaxCharLen();
+      numericPrecision = f.getNumericPrecision();
+      numericScale = f.getNumericScale();
+      isDoublePrecision = f.isDoublePrecision();
+    }
+
+    void apply(DataField f) {
+      f.setMaxCharLen(maxCharLen);
+      f.setNumericPrecision(numericPrecision);
+      f.setNumericScale(numericScale);
+      f.asDoublePrecision(isDoublePrecision);
+    }
+  }
+
+  // schema.table \n fingerprint => column name => dimensions
+  private final Map<String, Map<String, ColumnDimensions>> verified = new ConcurrentHashMap<String, Map<String, ColumnDimensions>>();
+
+  // schema.table of the tables known to exist
+  private final Set<String> existing = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final AtomicLong hitCount = new AtomicLong(0L);
+  private final AtomicLong missCount = new AtomicLong(0L);
+
+  private static String tableKey(String schema, String tableName) {
+    return schema + "." + tableName;
+  }
+
+  private static String key(CommonFieldsBase relation) {
+    StringBuilder b = new StringBuilder();
+    b.append(tableKey(relation.getSchemaName(), relation.getTableName()));
+    b.append("\n");
+    for (DataField f : relation.getFieldList()) {
+      b.append(f.getName()).append(":").append(f.getDataType().name())
+          .append(f.getNullable() ? "?" : "!").append(f.getIndexable().name().charAt(0))
+          .append(",");
+    }
+    for (CompositeIndex index : relation.getIndexList()) {
+      b.append(index.getSuffix()).append(",");
+    }
+    return b.toString();
+  }
+
+  /**
+   * If the relation has been verified, update its fields with the column
+   * dimensions found in the database.
+   *
+   * @param relation
+   * @return true if the relation has been verified.
+   */
+  public boolean applyIfVerified(CommonFieldsBase relation) {
+    Map<String, ColumnDimensions> columns = verified.get(key(relation));
+    if (columns == null) {
+      missCount.incrementAndGet();
+      return false;
+    }
+    for (DataField f : relation.getFieldList()) {
+      ColumnDimensions d = columns.get(f.getName());
+      if (d == null) {
+        // cannot happen -- the field names are part of the key.
+        missCount.incrementAndGet();
+        return false;
+      }
+      d.apply(f);
+    }
+    hitCount.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Remember the relation, whose fields have just been updated from the
+   * database catalog, as verified.
+   *
+   * @param relation
+   */
+  public void recordVerified(CommonFieldsBase relation) {
+    List<DataField> fields = relation.getFieldList();
+    Map<String, ColumnDimensions> columns = new HashMap<String, ColumnDimensions>();
+    for (DataField f : fields) {
+      columns.put(f.getName(), new ColumnDimensions(f));
+    }
+    verified.put(key(relation), columns);
+    existing.add(tableKey(relation.getSchemaName(), relation.getTableName()));
+  }
+
+  /**
+   * @param schema
+   * @param tableName
+   * @return true if the table is known to exist. False means unknown.
+   */
+  public boolean isKnownToExist(String schema, String tableName) {
+    return existing.contains(tableKey(schema, tableName));
+  }
+
+  public void recordExists(String schema, String tableName) {
+    existing.add(tableKey(schema, tableName));
+  }
+
+  /**
+   * Forget everything about the given table. Called when it is dropped.
+   *
+   * @param schema
+   * @param tableName
+   */
+  public void invalidate(String schema, String tableName) {
+    String tableKey = tableKey(schema, tableName);
+    existing.remove(tableKey);
+    String prefix = tableKey + "\n";
+    Iterator<String> it = verified.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+}
@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -27,20 +28,29 @@ import javax.sql.DataSource;
 
 import org.apache.commons.logging.LogFactory;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.CompositeIndex;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.DataField.IndexType;
 import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.DatastoreTransaction;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.SequenceAllocator;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.persistence.engine.CompositeIndexBuilder;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.Operation;
+import org.opendatakit.common.persistence.engine.DatastoreTransactionImpl;
+import org.opendatakit.common.persistence.engine.QueryTrace;
+import org.opendatakit.common.persistence.engine.VerifiedRelationRegistry;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.security.User;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.jdbc.BadSqlGrammarException;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
@@ -49,6 +59,7 @@ import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.SqlParameterValue;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
 
@@ -58,7 +69,7 @@ import org.springframework.transaction.support.DefaultTransactionDefinition;
  * @author mitchellsundt@gmail.com
  *
  */
-public class DatastoreImpl implements Datastore, InitializingBean {
+public class DatastoreImpl implements Datastore, InitializingBean, DisposableBean {
 
   private static final boolean logBindDetails = false;
 
@@ -74,6 +85,27 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   private String schemaName = null;
 
+  // number of sequence values reserved from the database at a time.
+  // Values are only ordered across servers when this is 1.
+  private int sequenceBlockSize = 1;
+
+  // use the database's native locks for TaskLock rather than the _task_lock
+  // table.
+  private boolean useNativeTaskLocks = true;
+
+  // connections for native task locks, pooled apart from dataSource. Each
+  // held lock keeps its own connection checked out, so the two must not
+  // compete.
+  private DataSource taskLockDataSource = null;
+
+  // relations already verified against the database catalog.
+  private final VerifiedRelationRegistry relationRegistry = new VerifiedRelationRegistry();
+
+  // builds the composite indexes missing from existing tables.
+  private final CompositeIndexBuilder indexBuilder = new CompositeIndexBuilder("mysql");
+
+  private final Map<String, SequenceAllocatorImpl> sequenceAllocators = new HashMap<String, SequenceAllocatorImpl>();
+
   public DatastoreImpl() throws ODKDatastoreException {
   }
 
@@ -92,16 +124,46 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     this.schemaName = schemaName;
   }
 
+  public void setSequenceBlockSize(int sequenceBlockSize) {
+    if (sequenceBlockSize < 1) {
+      throw new IllegalArgumentException("sequenceBlockSize must be 1 or greater");
+    }
+    this.sequenceBlockSize = sequenceBlockSize;
+  }
+
+  public void setUseNativeTaskLocks(boolean useNativeTaskLocks) {
+    this.useNativeTaskLocks = useNativeTaskLocks;
+  }
+
+  public void setTaskLockDataSource(DataSource taskLockDataSource) {
+    this.taskLockDataSource = taskLockDataSource;
+  }
+
+  DataSource getTaskLockDataSource() {
+    return taskLockDataSource;
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
     if (dataSource == null) {
       throw new IllegalStateException("dataSource property must be set!");
     }
+    if (useNativeTaskLocks && taskLockDataSource == null) {
+      LogFactory.getLog(DatastoreImpl.class).warn(
+          "taskLockDataSource property is not set -- using the _task_lock table for TaskLock");
+    }
     if (schemaName == null) {
       JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
       List<?> databaseNames = jdbcTemplate.queryForList("SELECT DATABASE()", String.class);
       schemaName = (String) databaseNames.get(0);
     }
+    dam.registerMBean("mysql");
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    indexBuilder.shutdown();
+    dam.unregister();
   }
 
   public static final String K_CREATE_TABLE = "CREATE TABLE ";
@@ -121,12 +183,17 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public static final String K_AND = " AND ";
   public static final String K_EQ = " = ";
   public static final String K_BIND_VALUE = "?";
+  public static final String K_CREATE_INDEX = "CREATE INDEX ";
+  public static final String K_ONLINE_INDEX_BUILD = " ALGORITHM=INPLACE LOCK=NONE";
+  public static final String K_ON = " ON ";
   public static final String K_USING_HASH = " USING HASH ";
   public static final String K_INSERT_INTO = "INSERT INTO ";
   public static final String K_VALUES = " VALUES ";
   public static final String K_UPDATE = "UPDATE ";
   public static final String K_SET = " SET ";
   public static final String K_DELETE_FROM = "DELETE FROM ";
+  public static final String K_IN_OPEN = " IN ( ";
+  public static final String K_IN_CLOSE = " ) ";
 
   public static final Integer DEFAULT_DBL_NUMERIC_SCALE = 10;
   public static final Integer DEFAULT_DBL_NUMERIC_PRECISION = 38;
@@ -194,6 +261,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     private static final String K_LONG = "long";
     private static final Long MAX_ROW_SIZE = 65000L;
 
+    public static final String INFORMATION_SCHEMA_INDEXES = "information_schema.statistics";
+
+    public static final String INDEX_EXISTS_QUERY = "SELECT COUNT(1) FROM "
+        + INFORMATION_SCHEMA_INDEXES + " WHERE table_schema = ? AND table_name = ?"
+        + " AND index_name = ?";
+
     private static final Map<String, TableDefinition> query(String schemaName, String tableName,
         JdbcTemplate db, DatastoreAccessMetrics dam) {
       StringBuilder b = new StringBuilder();
@@ -452,8 +525,17 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     }
   }
 
-  void recordQueryUsage(CommonFieldsBase relation, int recCount) {
-    dam.recordQueryUsage(relation, recCount);
+  void recordQueryUsage(CommonFieldsBase relation, String sql, int bindCount, int rowsRead,
+      int rowsReturned, long startNanos) {
+    dam.recordQueryUsage(relation, rowsRead);
+    dam.recordLatency(relation, Operation.QUERY, startNanos);
+    QueryTrace.recordStatement(sql, bindCount, rowsRead, rowsReturned, startNanos);
+  }
+
+  private void recordStatement(CommonFieldsBase relation, Operation operation, String sql,
+      int bindCount, int rowCount, long startNanos) {
+    dam.recordLatency(relation, operation, startNanos);
+    QueryTrace.recordStatement(sql, bindCount, rowCount, rowCount, startNanos);
   }
 
   @Override
@@ -470,6 +552,11 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return MAX_COLUMN_NAME_LEN;
   }
 
+  @Override
+  public int getMaxBindParams() {
+    return MAX_BIND_PARAMS - PersistConsts.BIND_PARAMS_RESERVE;
+  }
+
   @Override
   public int getMaxLenTableName() {
     return MAX_TABLE_NAME_LEN;
@@ -561,6 +648,9 @@ public class DatastoreImpl implements Datastore, InitializingBean {
    */
   @Override
   public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    if (relationRegistry.applyIfVerified(relation)) {
+      return;
+    }
     JdbcTemplate jc = getJdbcConnection();
     // TODO: transactions are questionable here, as MySQL (and Oracle) do 
     // TODO: not evaluate DDL statements under transactional semantics.
@@ -582,6 +672,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // it exists -- we're done!
         tm.commit(status);
         status = null;
+        assertCompositeIndexes(relation);
+        relationRegistry.recordVerified(relation);
         return;
       } else {
         tm.commit(status);
@@ -724,6 +816,13 @@ public class DatastoreImpl implements Datastore, InitializingBean {
             }
           }
         }
+        for (CompositeIndex index : relation.getIndexList()) {
+          b.append(", INDEX ");
+          b.append(K_BQ);
+          b.append(index.getIndexName(relation));
+          b.append(K_BQ);
+          appendCompositeIndexColumns(b, index);
+        }
         b.append(K_CLOSE_PAREN);
 
         String createTableStmt = b.toString();
@@ -735,6 +834,7 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // and update the relation with actual dimensions...
         updateRelation(jc, relation, createTableStmt);
         tm.commit(status);
+        relationRegistry.recordVerified(relation);
       }
     } catch (Exception e) {
       if (status != null) {
@@ -746,8 +846,99 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     }
   }
 
+  /**
+   * MySQL has no INCLUDE clause; the included columns are appended to the
+   * index key.
+   *
+   * @param b
+   * @param index
+   */
+  private void appendCompositeIndexColumns(StringBuilder b, CompositeIndex index) {
+    List<String> names = new ArrayList<String>(index.getKeyColumnNames());
+    names.addAll(index.getIncludedColumnNames());
+    b.append(" (");
+    boolean firstTime = true;
+    for (String name : names) {
+      if (!firstTime) {
+        b.append(K_CS);
+      }
+      firstTime = false;
+      b.append(K_BQ);
+      b.append(name);
+      b.append(K_BQ);
+    }
+    b.append(" )");
+  }
+
+  private void createCompositeIndex(JdbcTemplate jc, CommonFieldsBase tbl, CompositeIndex index) {
+    StringBuilder b = new StringBuilder();
+
+    b.append(K_CREATE_INDEX);
+    b.append(K_BQ);
+    b.append(index.getIndexName(tbl));
+    b.append(K_BQ);
+    b.append(K_ON);
+    b.append(K_BQ);
+    b.append(tbl.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(tbl.getTableName());
+    b.append(K_BQ);
+    appendCompositeIndexColumns(b, index);
+    // build it without blocking writes to the table.
+    b.append(K_ONLINE_INDEX_BUILD);
+
+    jc.execute(b.toString());
+  }
+
+  /**
+   * Queue the build of the composite indexes of an existing relation, in case
+   * they are missing, e.g., because the table was created by an earlier
+   * version of this server. This is checked when the relation is first
+   * verified. The caller does not wait for the indexes to be built.
+   *
+   * @param relation
+   */
+  private void assertCompositeIndexes(final CommonFieldsBase relation) {
+    for (final CompositeIndex index : relation.getIndexList()) {
+      indexBuilder.submit(relation.getSchemaName() + "." + relation.getTableName() + "."
+          + index.getIndexName(relation), new Runnable() {
+            @Override
+            public void run() {
+              buildCompositeIndex(relation, index);
+            }
+          });
+    }
+  }
+
+  /**
+   * Build a composite index of an existing table if it is missing. The index
+   * is built in place, so that the table can be written to meanwhile. If
+   * another server builds the same index first, this build fails and that is
+   * only logged.
+   *
+   * @param relation
+   * @param index
+   */
+  private void buildCompositeIndex(CommonFieldsBase relation, CompositeIndex index) {
+    String idxName = index.getIndexName(relation);
+    JdbcTemplate jc = getJdbcConnection();
+    dam.recordQueryUsage(TableDefinition.INFORMATION_SCHEMA_INDEXES, 1);
+    Integer count = jc.queryForObject(TableDefinition.INDEX_EXISTS_QUERY,
+        new Object[] { relation.getSchemaName(), relation.getTableName(), idxName },
+        Integer.class);
+    if (count == null || count == 0) {
+      LogFactory.getLog(DatastoreImpl.class).info("Adding index " + idxName);
+      createCompositeIndex(jc, relation, index);
+    }
+  }
+
   @Override
   public boolean hasRelation(String schema, String tableName, User user) {
+    if (relationRegistry.isKnownToExist(schema, tableName)) {
+      return true;
+    }
     // Query for the create table string.
     try {
       StringBuilder b = new StringBuilder();
@@ -771,6 +962,7 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       return false;
     }
     LogFactory.getLog(DatastoreImpl.class).info(tableName + " exists!");
+    relationRegistry.recordExists(schema, tableName);
     return true;
   }
 
@@ -790,7 +982,9 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       LogFactory.getLog(DatastoreImpl.class)
           .info("Executing " + b.toString() + " by user " + user.getUriUser());
       getJdbcConnection().execute(b.toString());
+      relationRegistry.invalidate(relation.getSchemaName(), relation.getTableName());
     } catch (Exception e) {
+      relationRegistry.invalidate(relation.getSchemaName(), relation.getTableName());
       LogFactory.getLog(DatastoreImpl.class)
           .warn(relation.getTableName() + " exception: " + e.toString());
       throw new ODKDatastoreException(e);
@@ -976,7 +1170,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // update...
         String sql = b.toString();
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
-        getJdbcConnection().update(sql, setter);
+        long startNanos = System.nanoTime();
+        try {
+          getJdbcConnection().update(sql, setter);
+        } finally {
+          recordStatement(entity, Operation.PUT, sql, pv.size(), 1, startNanos);
+        }
       } else {
         // not yet in database -- insert
         b.append(K_INSERT_INTO);
@@ -1020,7 +1219,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // insert...
         String sql = b.toString();
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
-        getJdbcConnection().update(sql, setter);
+        long startNanos = System.nanoTime();
+        try {
+          getJdbcConnection().update(sql, setter);
+        } finally {
+          recordStatement(entity, Operation.PUT, sql, pv.size(), 1, startNanos);
+        }
         entity.setFromDatabase(true); // now it is in the database...
       }
     } catch (Exception e) {
@@ -1031,8 +1235,65 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   @Override
   public void putEntities(Collection<? extends CommonFieldsBase> entityList, User user)
       throws ODKEntityPersistException {
+    // bucket the entities by relation and by insert vs. update so that
+    // each bucket can be sent to the server as a JDBC batch.
+    Map<String, List<CommonFieldsBase>> buckets = new LinkedHashMap<String, List<CommonFieldsBase>>();
     for (CommonFieldsBase d : entityList) {
-      putEntity(d, user);
+      String bucketKey = (d.isFromDatabase() ? "U" : "I") + d.getSchemaName() + "."
+          + d.getTableName();
+      List<CommonFieldsBase> bucket = buckets.get(bucketKey);
+      if (bucket == null) {
+        bucket = new ArrayList<CommonFieldsBase>();
+        buckets.put(bucketKey, bucket);
+      }
+      bucket.add(d);
+    }
+
+    for (List<CommonFieldsBase> bucket : buckets.values()) {
+      if (bucket.size() == 1) {
+        putEntity(bucket.get(0), user);
+        continue;
+      }
+      int maxPerBatch = (MAX_BIND_PARAMS / bucket.get(0).getFieldList().size());
+      for (int idxStart = 0; idxStart < bucket.size(); idxStart += maxPerBatch) {
+        int idxAfterEnd = idxStart + maxPerBatch;
+        if (idxAfterEnd > bucket.size()) {
+          idxAfterEnd = bucket.size();
+        }
+        putEntityBatch(bucket, idxStart, idxAfterEnd, user);
+      }
+    }
+  }
+
+  /**
+   * Write one batch of a putEntities() bucket. The batch is applied within a
+   * (possibly nested) transaction. If it fails, it is rolled back and the
+   * entities are re-sent one at a time so that the exception thrown is the one
+   * for the first entity that could not be persisted, as it would be if each
+   * entity had been put individually.
+   *
+   * @param bucket
+   * @param idxStart
+   * @param idxAfterEnd
+   * @param user
+   * @throws ODKEntityPersistException
+   */
+  private void putEntityBatch(List<CommonFieldsBase> bucket, int idxStart, int idxAfterEnd,
+      User user) throws ODKEntityPersistException {
+    DefaultTransactionDefinition paramTransactionDefinition = new DefaultTransactionDefinition();
+    paramTransactionDefinition.setPropagationBehavior(DefaultTransactionDefinition.PROPAGATION_NESTED);
+    TransactionStatus status = tm.getTransaction(paramTransactionDefinition);
+    try {
+      partialBatchAlterData(bucket, idxStart, idxAfterEnd, user);
+      tm.commit(status);
+      return;
+    } catch (Exception e) {
+      tm.rollback(status);
+      LogFactory.getLog(DatastoreImpl.class).warn(
+          "Batch put failed - retrying the entities individually: " + e.toString());
+    }
+    for (int idx = idxStart; idx < idxAfterEnd; ++idx) {
+      putEntity(bucket.get(idx), user);
     }
   }
 
@@ -1208,10 +1469,16 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     try {
       // update...
       BatchStatementFieldSetter setter = new BatchStatementFieldSetter(sql, batchArgs);
-      getJdbcConnection().batchUpdate(sql, setter);
+      long startNanos = System.nanoTime();
+      try {
+        getJdbcConnection().batchUpdate(sql, setter);
+      } finally {
+        recordStatement(allChanges.get(idxStart), Operation.PUT, sql, batchArgs.get(0).size(),
+            batchArgs.size(), startNanos);
+      }
 
       // if this was an insert, set the fromDatabase flag in the entities
-      if (!allChanges.get(0).isFromDatabase()) {
+      if (!allChanges.get(idxStart).isFromDatabase()) {
         for (int idx = idxStart ; idx < idxAfterEnd ; ++idx ) {
           CommonFieldsBase entity = allChanges.get(idx);
           entity.setFromDatabase(true);
@@ -1247,7 +1514,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
       LogFactory.getLog(DatastoreImpl.class).info("Executing " + b.toString() + " with key "
           + key.getKey() + " by user " + user.getUriUser());
-      getJdbcConnection().update(b.toString(), new Object[] { key.getKey() });
+      long startNanos = System.nanoTime();
+      try {
+        getJdbcConnection().update(b.toString(), new Object[] { key.getKey() });
+      } finally {
+        recordStatement(d, Operation.DELETE, b.toString(), 1, 1, startNanos);
+      }
     } catch (Exception e) {
       throw new ODKDatastoreException("delete failed", e);
     }
@@ -1255,14 +1527,54 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   @Override
   public void deleteEntities(Collection<EntityKey> keys, User user) throws ODKDatastoreException {
-    ODKDatastoreException e = null;
+    // bucket the keys by relation so that each relation's rows can be
+    // deleted with a few DELETE ... WHERE pk IN (...) statements.
+    Map<String, List<EntityKey>> buckets = new LinkedHashMap<String, List<EntityKey>>();
     for (EntityKey k : keys) {
-      try {
-        deleteEntity(k, user);
-      } catch (ODKDatastoreException ex) {
-        ex.printStackTrace();
-        if (e == null) {
-          e = ex; // save the first exception...
+      CommonFieldsBase d = k.getRelation();
+      String bucketKey = d.getSchemaName() + "." + d.getTableName();
+      List<EntityKey> bucket = buckets.get(bucketKey);
+      if (bucket == null) {
+        bucket = new ArrayList<EntityKey>();
+        buckets.put(bucketKey, bucket);
+      }
+      bucket.add(k);
+    }
+
+    ODKDatastoreException e = null;
+    for (List<EntityKey> bucket : buckets.values()) {
+      for (int idxStart = 0; idxStart < bucket.size(); idxStart += MAX_BIND_PARAMS) {
+        int idxAfterEnd = idxStart + MAX_BIND_PARAMS;
+        if (idxAfterEnd > bucket.size()) {
+          idxAfterEnd = bucket.size();
+        }
+        List<EntityKey> chunk = bucket.subList(idxStart, idxAfterEnd);
+        try {
+          if (chunk.size() == 1) {
+            deleteEntity(chunk.get(0), user);
+          } else {
+            deleteEntityChunk(chunk, user);
+          }
+        } catch (ODKDatastoreException ex) {
+          LogFactory.getLog(DatastoreImpl.class).warn("deleteEntities: chunk delete failed", ex);
+          if (chunk.size() == 1) {
+            if (e == null) {
+              e = ex; // save the first exception...
+            }
+            continue;
+          }
+          // fall back to deleting them one at a time so that the
+          // failure is reported against the entity that caused it.
+          for (EntityKey k : chunk) {
+            try {
+              deleteEntity(k, user);
+            } catch (ODKDatastoreException exk) {
+              LogFactory.getLog(DatastoreImpl.class).warn("deleteEntities: delete failed", exk);
+              if (e == null) {
+                e = exk; // save the first exception...
+              }
+            }
+          }
         }
       }
     }
@@ -1270,8 +1582,83 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       throw e; // throw the first exception...
   }
 
+  private void deleteEntityChunk(List<EntityKey> chunk, User user) throws ODKDatastoreException {
+
+    CommonFieldsBase d = chunk.get(0).getRelation();
+    Object[] args = new Object[chunk.size()];
+    for (int i = 0; i < chunk.size(); ++i) {
+      EntityKey k = chunk.get(i);
+      dam.recordDeleteUsage(k);
+      args[i] = k.getKey();
+    }
+
+    try {
+      StringBuilder b = new StringBuilder();
+      b.append(K_DELETE_FROM);
+      b.append(K_BQ);
+      b.append(d.getSchemaName());
+      b.append(K_BQ);
+      b.append(".");
+      b.append(K_BQ);
+      b.append(d.getTableName());
+      b.append(K_BQ);
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(d.primaryKey.getName());
+      b.append(K_BQ);
+      b.append(K_IN_OPEN);
+      for (int i = 0; i < args.length; ++i) {
+        if (i != 0) {
+          b.append(K_CS);
+        }
+        b.append(K_BIND_VALUE);
+      }
+      b.append(K_IN_CLOSE);
+
+      LogFactory.getLog(DatastoreImpl.class).info("Executing " + K_DELETE_FROM + d.getSchemaName()
+          + "." + d.getTableName() + " of " + args.length + " keys by user " + user.getUriUser());
+      long startNanos = System.nanoTime();
+      try {
+        getJdbcConnection().update(b.toString(), args);
+      } finally {
+        recordStatement(d, Operation.DELETE, b.toString(), args.length, args.length, startNanos);
+      }
+    } catch (Exception e) {
+      throw new ODKDatastoreException("delete failed", e);
+    }
+  }
+
+  @Override
+  public DatastoreTransaction beginTransaction(User user) throws ODKDatastoreException {
+    return new DatastoreTransactionImpl(tm);
+  }
+
+  /**
+   * REPEATABLE READ in InnoDB gives every plain SELECT in the transaction the
+   * same consistent, non-locking snapshot.
+   */
+  @Override
+  public DatastoreTransaction beginSnapshotTransaction(User user) throws ODKDatastoreException {
+    return new DatastoreTransactionImpl(tm, TransactionDefinition.ISOLATION_REPEATABLE_READ);
+  }
+
   @Override
   public TaskLock createTaskLock(User user) {
+    if (useNativeTaskLocks && taskLockDataSource != null) {
+      return new AdvisoryTaskLockImpl(this, dam, user);
+    }
     return new TaskLockImpl(this, dam, user);
   }
+
+  @Override
+  public SequenceAllocator getSequenceAllocator(String sequenceName, User user) {
+    synchronized (sequenceAllocators) {
+      SequenceAllocatorImpl allocator = sequenceAllocators.get(sequenceName);
+      if (allocator == null) {
+        allocator = new SequenceAllocatorImpl(this, dam, sequenceName, sequenceBlockSize);
+        sequenceAllocators.put(sequenceName, allocator);
+      }
+      return allocator;
+    }
+  }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.mysql;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.common.persistence.SequenceAllocator;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+
+/**
+ * SequenceAllocator for MySQL, which has no SEQUENCE object. The sequence is
+ * a single-row table holding the next unreserved value. A block is reserved
+ * by atomically advancing that value with LAST_INSERT_ID(expr), which also
+ * makes the new value available to the same connection without a re-read.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class SequenceAllocatorImpl implements SequenceAllocator {
+
+  private static final String K_BQ = "`";
+
+  private static final String K_ID = "ID";
+  private static final String K_NEXT_VALUE = "NEXT_VALUE";
+
+  private static final String SEQUENCE_EXISTS_QUERY = "SELECT COUNT(*) FROM information_schema.tables"
+      + " WHERE table_schema = ? AND table_name = ?";
+
+  /**
+   * A reserved range of values [next, limit). Values are handed out by
+   * incrementing next; once it passes limit, a new block must be reserved.
+   */
+  private static final class Block {
+    final AtomicLong next;
+    final long limit;
+
+    Block(long start, long limit) {
+      this.next = new AtomicLong(start);
+      this.limit = limit;
+    }
+  }
+
+  private static final Block EMPTY_BLOCK = new Block(0L, 0L);
+
+  final DatastoreAccessMetrics dam;
+  final DatastoreImpl datastore;
+  final String sequenceName;
+  final int blockSize;
+
+  private volatile Block block = EMPTY_BLOCK;
+  private volatile boolean initialized = false;
+
+  SequenceAllocatorImpl(DatastoreImpl datastore, DatastoreAccessMetrics dam, String sequenceName,
+      int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("blockSize must be 1 or greater");
+    }
+    this.datastore = datastore;
+    this.dam = dam;
+    this.sequenceName = sequenceName;
+    this.blockSize = blockSize;
+  }
+
+  private String qualifiedName() {
+    return K_BQ + datastore.getDefaultSchemaName() + K_BQ + "." + K_BQ + sequenceName + K_BQ;
+  }
+
+  @Override
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  private boolean sequenceExists() throws ODKDatastoreException {
+    try {
+      dam.recordQueryUsage(sequenceName, 1);
+      Integer count = datastore.getJdbcConnection().queryForObject(SEQUENCE_EXISTS_QUERY,
+          new Object[] { datastore.getDefaultSchemaName(), sequenceName }, Integer.class);
+      return count != null && count != 0;
+    } catch (Exception e) {
+      throw new ODKDatastoreException(e);
+    }
+  }
+
+  @Override
+  public boolean isInitialized() throws ODKDatastoreException {
+    return initialized || sequenceExists();
+  }
+
+  @Override
+  public synchronized boolean initialize(long startValue) throws ODKDatastoreException {
+    StringBuilder b = new StringBuilder();
+    b.append("CREATE TABLE IF NOT EXISTS ").append(qualifiedName()).append(" (");
+    b.append(K_BQ).append(K_ID).append(K_BQ).append(" TINYINT NOT NULL PRIMARY KEY, ");
+    b.append(K_BQ).append(K_NEXT_VALUE).append(K_BQ).append(" BIGINT NOT NULL) ENGINE=InnoDB");
+    String create = b.toString();
+    b.setLength(0);
+    // only the first server to get here seeds the row
+    b.append("INSERT IGNORE INTO ").append(qualifiedName()).append(" (");
+    b.append(K_BQ).append(K_ID).append(K_BQ).append(", ");
+    b.append(K_BQ).append(K_NEXT_VALUE).append(K_BQ).append(") VALUES (1, ");
+    b.append(startValue).append(")");
+    String seed = b.toString();
+    int seeded;
+    try {
+      LogFactory.getLog(SequenceAllocatorImpl.class).info("Executing " + create);
+      datastore.getJdbcConnection().execute(create);
+      seeded = datastore.getJdbcConnection().update(seed);
+    } catch (Exception e) {
+      throw new ODKDatastoreException(e);
+    }
+    if (!sequenceExists()) {
+      throw new ODKDatastoreException("Unable to create sequence " + sequenceName);
+    }
+    initialized = true;
+    return seeded != 0;
+  }
+
+  private synchronized void reserveBlock(Block exhausted) throws ODKDatastoreException {
+    if (block != exhausted) {
+      // another thread already reserved a new block
+      return;
+    }
+    if (!initialized) {
+      throw new ODKDatastoreException("Sequence " + sequenceName + " has not been initialized");
+    }
+    StringBuilder b = new StringBuilder();
+    b.append("UPDATE ").append(qualifiedName()).append(" SET ");
+    b.append(K_BQ).append(K_NEXT_VALUE).append(K_BQ).append(" = LAST_INSERT_ID(");
+    b.append(K_BQ).append(K_NEXT_VALUE).append(K_BQ).append(" + ").append(blockSize);
+    b.append(") WHERE ").append(K_BQ).append(K_ID).append(K_BQ).append(" = 1");
+    final String update = b.toString();
+    Long start;
+    try {
+      dam.recordPutUsage(sequenceName);
+      // LAST_INSERT_ID() is per-connection, so both statements must share one.
+      Long end = datastore.getJdbcConnection().execute(new ConnectionCallback<Long>() {
+
+        @Override
+        public Long doInConnection(Connection conn) throws SQLException, DataAccessException {
+          Statement stmt = conn.createStatement();
+          try {
+            stmt.executeUpdate(update);
+            ResultSet rs = stmt.executeQuery("SELECT LAST_INSERT_ID()");
+            return rs.next() ? rs.getLong(1) : null;
+          } finally {
+            stmt.close();
+          }
+        }
+
+      });
+      start = (end == null) ? null : end - blockSize;
+    } catch (Exception e) {
+      throw new ODKDatastoreException(e);
+    }
+    if (start == null) {
+      throw new ODKDatastoreException("Unable to reserve values from sequence " + sequenceName);
+    }
+    block = new Block(start, start + blockSize);
+  }
+
+  @Override
+  public long nextValue() throws ODKDatastoreException {
+    for (;;) {
+      Block current = block;
+      long value = current.next.getAndIncrement();
+      if (value < current.limit) {
+        return value;
+      }
+      reserveBlock(current);
+    }
+  }
+}
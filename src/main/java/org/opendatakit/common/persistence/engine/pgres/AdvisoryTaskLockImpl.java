@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.pgres;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.common.persistence.ITaskLockType;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.EngineUtils;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+
+/**
+ * TaskLock built on PostgreSQL session-level advisory locks keyed by a hash of
+ * (schema, formId, taskType). Locks on different resources never contend, and
+ * a waiting request blocks on the database server (bounded by lock_timeout)
+ * rather than sleep-polling.
+ *
+ * A session-level lock belongs to the connection that obtained it. Each lock is
+ * obtained on its own connection from the datastore's taskLockDataSource, a
+ * small pool kept apart from the one used for queries, and is always unlocked
+ * explicitly before that connection is returned to it. A connection whose lock
+ * could not be unlocked is evicted from the pool instead, which ends its
+ * session. If this server dies, the database drops the connection and the lock
+ * with it.
+ *
+ * Renewing a lock touches its connection. A lock whose connection has been
+ * idle past its taskType's expiration timeout is presumed abandoned: this
+ * server releases its own such locks the next time any lock is obtained, and
+ * a server that times out waiting for one terminates the holding session.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class AdvisoryTaskLockImpl implements TaskLock {
+
+  private static final Log logger = LogFactory.getLog(AdvisoryTaskLockImpl.class);
+
+  private static final String TASK_LOCK_NAME = "pg_advisory_lock";
+
+  // identifies our lock sessions in pg_stat_activity
+  private static final String APPLICATION_NAME = "odk_task_lock";
+
+  private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+  private static final class HeldLock {
+    final DataSource dataSource;
+    final Connection conn;
+    final long key;
+    final String formId;
+    final String taskType;
+    volatile long expiration;
+
+    HeldLock(DataSource dataSource, Connection conn, long key, String formId, String taskType,
+        long expiration) {
+      this.dataSource = dataSource;
+      this.conn = conn;
+      this.key = key;
+      this.formId = formId;
+      this.taskType = taskType;
+      this.expiration = expiration;
+    }
+  }
+
+  // locks held by this server, by lockId.
+  private static final Map<String, HeldLock> heldLocks = new ConcurrentHashMap<String, HeldLock>();
+
+  final DatastoreAccessMetrics dam;
+  final DatastoreImpl datastore;
+  final User user;
+
+  AdvisoryTaskLockImpl(DatastoreImpl datastore, DatastoreAccessMetrics dam, User user) {
+    this.datastore = datastore;
+    this.dam = dam;
+    this.user = user;
+  }
+
+  private static void close(Connection conn) {
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      logger.warn("close of task lock connection failed: " + e.toString());
+    }
+  }
+
+  private static void discard(DataSource dataSource, Connection conn) {
+    try {
+      EngineUtils.discardConnection(dataSource, conn);
+    } catch (SQLException e) {
+      logger.warn("discard of task lock connection failed: " + e.toString());
+    }
+  }
+
+  private static void unlockAndClose(HeldLock held) {
+    synchronized (held) {
+      boolean unlocked = false;
+      try {
+        Statement stmt = held.conn.createStatement();
+        try {
+          stmt.execute("SELECT pg_advisory_unlock(" + held.key + ")");
+          unlocked = true;
+        } finally {
+          stmt.close();
+        }
+      } catch (SQLException e) {
+        logger.warn("pg_advisory_unlock failed: " + e.toString());
+      } finally {
+        if (unlocked) {
+          close(held.conn);
+        } else {
+          // do not let the next borrower inherit the lock
+          discard(held.dataSource, held.conn);
+        }
+      }
+    }
+  }
+
+  private static void releaseExpiredLocks() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<String, HeldLock>> it = heldLocks.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, HeldLock> entry = it.next();
+      HeldLock held = entry.getValue();
+      if (held.expiration <= now && heldLocks.remove(entry.getKey(), held)) {
+        logger.warn("Releasing expired task lock " + entry.getKey() + " on " + held.formId + " "
+            + held.taskType);
+        unlockAndClose(held);
+      }
+    }
+  }
+
+  private HeldLock getHeldLock(String lockId, String formId, ITaskLockType taskType) {
+    HeldLock held = heldLocks.get(lockId);
+    if (held != null
+        && !(held.formId.equals(formId) && held.taskType.equals(taskType.getName()))) {
+      throw new IllegalArgumentException("formId or taskType don't match held lock");
+    }
+    return held;
+  }
+
+  private static boolean tryLock(Statement stmt, long key, long maxWaitMilliseconds)
+      throws SQLException {
+    if (maxWaitMilliseconds <= 0L) {
+      ResultSet rs = stmt.executeQuery("SELECT pg_try_advisory_lock(" + key + ")");
+      return rs.next() && rs.getBoolean(1);
+    }
+    stmt.execute("SET lock_timeout = " + maxWaitMilliseconds);
+    try {
+      stmt.execute("SELECT pg_advisory_lock(" + key + ")");
+      return true;
+    } catch (SQLException e) {
+      if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState())) {
+        throw e;
+      }
+      // timed out waiting for the lock
+      return false;
+    } finally {
+      stmt.execute("RESET lock_timeout");
+    }
+  }
+
+  /**
+   * Terminate the session holding the lock if it is one of our lock sessions
+   * and has been idle (neither renewed nor released) past the expiration
+   * timeout. Works whichever server obtained the lock.
+   *
+   * @return true if a session was terminated.
+   */
+  private static boolean terminateAbandonedHolder(Statement stmt, long key,
+      ITaskLockType taskType) throws SQLException {
+    // a bigint key is reported with its high half in classid and its low
+    // half in objid.
+    ResultSet rs = stmt.executeQuery("SELECT a.pid, pg_terminate_backend(a.pid)"
+        + " FROM pg_locks l JOIN pg_stat_activity a ON a.pid = l.pid"
+        + " WHERE l.locktype = 'advisory' AND l.granted AND l.objsubid = 1"
+        + " AND l.classid = '" + (key >>> 32) + "' AND l.objid = '" + (key & 0xFFFFFFFFL) + "'"
+        + " AND l.database = (SELECT oid FROM pg_database WHERE datname = current_database())"
+        + " AND a.application_name = '" + APPLICATION_NAME + "' AND a.state = 'idle'"
+        + " AND a.state_change < now() - interval '" + taskType.getLockExpirationTimeout()
+        + " milliseconds'");
+    boolean terminated = false;
+    while (rs.next()) {
+      if (rs.getBoolean(2)) {
+        logger.warn("Terminated session " + rs.getInt(1) + " holding expired task lock "
+            + taskType.getName() + " key " + key);
+        terminated = true;
+      }
+    }
+    return terminated;
+  }
+
+  @Override
+  public boolean obtainLock(String lockId, String formId, ITaskLockType taskType) {
+    return obtainLock(lockId, formId, taskType, 0L);
+  }
+
+  @Override
+  public boolean obtainLock(String lockId, String formId, ITaskLockType taskType,
+      long maxWaitMilliseconds) {
+    releaseExpiredLocks();
+    if (getHeldLock(lockId, formId, taskType) != null) {
+      return renewLock(lockId, formId, taskType);
+    }
+
+    long key = EngineUtils.getTaskLockKey(datastore.getDefaultSchemaName(), formId,
+        taskType.getName());
+    dam.recordPutUsage(TASK_LOCK_NAME);
+    DataSource dataSource = datastore.getTaskLockDataSource();
+    Connection conn = null;
+    boolean locked = false;
+    boolean failed = false;
+    try {
+      conn = dataSource.getConnection();
+      conn.setAutoCommit(true);
+      Statement stmt = conn.createStatement();
+      try {
+        stmt.execute("SET application_name = '" + APPLICATION_NAME + "'");
+        locked = tryLock(stmt, key, maxWaitMilliseconds);
+        if (!locked) {
+          boolean terminated = false;
+          try {
+            terminated = terminateAbandonedHolder(stmt, key, taskType);
+          } catch (SQLException e) {
+            logger.warn("Unable to check for an abandoned task lock: " + e.toString());
+          }
+          if (terminated) {
+            // termination is asynchronous; give the session a moment to end
+            locked = tryLock(stmt, key, PersistConsts.MIN_SETTLE_MILLISECONDS);
+          }
+        }
+      } finally {
+        stmt.close();
+      }
+      if (locked) {
+        heldLocks.put(lockId, new HeldLock(dataSource, conn, key, formId, taskType.getName(),
+            System.currentTimeMillis() + taskType.getLockExpirationTimeout()));
+      }
+    } catch (SQLException e) {
+      logger.error("obtainLock failed for " + formId + " " + taskType.getName(), e);
+      locked = false;
+      failed = true;
+    } finally {
+      if (!locked && conn != null) {
+        if (failed) {
+          // the lock may have been obtained before the failure
+          discard(dataSource, conn);
+        } else {
+          close(conn);
+        }
+      }
+    }
+    return locked;
+  }
+
+  @Override
+  public boolean renewLock(String lockId, String formId, ITaskLockType taskType) {
+    HeldLock held;
+    try {
+      held = getHeldLock(lockId, formId, taskType);
+    } catch (IllegalArgumentException e) {
+      logger.error("renewLock failed for " + lockId, e);
+      return false;
+    }
+    if (held == null) {
+      return false;
+    }
+    synchronized (held) {
+      try {
+        // touch the session so that other servers see it is still in use
+        Statement stmt = held.conn.createStatement();
+        try {
+          stmt.execute("SELECT 1");
+        } finally {
+          stmt.close();
+        }
+      } catch (SQLException e) {
+        // the session is gone, and the lock with it
+        logger.error("renewLock lost the session for " + lockId, e);
+        if (heldLocks.remove(lockId, held)) {
+          discard(held.dataSource, held.conn);
+        }
+        return false;
+      }
+      held.expiration = System.currentTimeMillis() + taskType.getLockExpirationTimeout();
+    }
+    return true;
+  }
+
+  @Override
+  public boolean releaseLock(String lockId, String formId, ITaskLockType taskType) {
+    HeldLock held;
+    try {
+      held = getHeldLock(lockId, formId, taskType);
+    } catch (IllegalArgumentException e) {
+      logger.error("releaseLock failed for " + lockId, e);
+      return false;
+    }
+    if (held != null && heldLocks.remove(lockId, held)) {
+      dam.recordDeleteUsage(TASK_LOCK_NAME);
+      unlockAndClose(held);
+    }
+    return true;
+  }
+}
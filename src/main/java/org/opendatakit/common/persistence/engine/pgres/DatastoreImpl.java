@@ -14,6 +14,7 @@
 package org.opendatakit.common.persistence.engine.pgres;
 
 import java.math.BigDecimal;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -21,6 +22,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -28,27 +30,38 @@ import javax.sql.DataSource;
 
 import org.apache.commons.logging.LogFactory;
 import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.CompositeIndex;
 import org.opendatakit.common.persistence.DataField;
 import org.opendatakit.common.persistence.DataField.IndexType;
 import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.DatastoreTransaction;
 import org.opendatakit.common.persistence.EntityKey;
 import org.opendatakit.common.persistence.PersistConsts;
 import org.opendatakit.common.persistence.Query;
 import org.opendatakit.common.persistence.Query.FilterOperation;
+import org.opendatakit.common.persistence.SequenceAllocator;
 import org.opendatakit.common.persistence.TaskLock;
 import org.opendatakit.common.persistence.WrappedBigDecimal;
+import org.opendatakit.common.persistence.engine.CompositeIndexBuilder;
 import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.Operation;
+import org.opendatakit.common.persistence.engine.DatastoreTransactionImpl;
+import org.opendatakit.common.persistence.engine.QueryTrace;
+import org.opendatakit.common.persistence.engine.VerifiedRelationRegistry;
 import org.opendatakit.common.persistence.exception.ODKDatastoreException;
 import org.opendatakit.common.persistence.exception.ODKEntityNotFoundException;
 import org.opendatakit.common.persistence.exception.ODKEntityPersistException;
 import org.opendatakit.common.security.User;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.SqlParameterValue;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.DefaultTransactionDefinition;
 
@@ -58,7 +71,7 @@ import org.springframework.transaction.support.DefaultTransactionDefinition;
  * @author mitchellsundt@gmail.com
  *
  */
-public class DatastoreImpl implements Datastore, InitializingBean {
+public class DatastoreImpl implements Datastore, InitializingBean, DisposableBean {
 
   private static final boolean logBindDetails = false;
 
@@ -69,7 +82,7 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   private static final int MAX_TABLE_NAME_LEN = 59; // reserve 4 char for idx
                                                     // name
 
-  // limit on postgresql capacity (minus about 100 for where clause filters)
+  // limit on postgresql capacity
   private static final int MAX_BIND_PARAMS = 34300;
 
   private static final Long MAX_BLOB_SIZE = 65536 * 4096L;
@@ -80,6 +93,30 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   private String schemaName = null;
 
+  // number of sequence values reserved from the database at a time.
+  // Values are only ordered across servers when this is 1.
+  private int sequenceBlockSize = 1;
+
+  // use the database's native locks for TaskLock rather than the _task_lock
+  // table.
+  private boolean useNativeTaskLocks = true;
+
+  // connections for native task locks, pooled apart from dataSource. Each
+  // held lock keeps its own connection checked out, so the two must not
+  // compete.
+  private DataSource taskLockDataSource = null;
+
+  // relations already verified against the database catalog.
+  private final VerifiedRelationRegistry relationRegistry = new VerifiedRelationRegistry();
+
+  // builds the composite indexes missing from existing tables.
+  private final CompositeIndexBuilder indexBuilder = new CompositeIndexBuilder("postgres");
+
+  // whether the database supports CREATE INDEX ... INCLUDE; null until known.
+  private volatile Boolean supportsIncludeColumns = null;
+
+  private final Map<String, SequenceAllocatorImpl> sequenceAllocators = new HashMap<String, SequenceAllocatorImpl>();
+
   public DatastoreImpl() throws ODKDatastoreException {
   }
 
@@ -92,16 +129,46 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     this.schemaName = schemaName;
   }
 
+  public void setSequenceBlockSize(int sequenceBlockSize) {
+    if (sequenceBlockSize < 1) {
+      throw new IllegalArgumentException("sequenceBlockSize must be 1 or greater");
+    }
+    this.sequenceBlockSize = sequenceBlockSize;
+  }
+
+  public void setUseNativeTaskLocks(boolean useNativeTaskLocks) {
+    this.useNativeTaskLocks = useNativeTaskLocks;
+  }
+
+  public void setTaskLockDataSource(DataSource taskLockDataSource) {
+    this.taskLockDataSource = taskLockDataSource;
+  }
+
+  DataSource getTaskLockDataSource() {
+    return taskLockDataSource;
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
     if (dataSource == null) {
       throw new IllegalStateException("dataSource property must be set!");
     }
+    if (useNativeTaskLocks && taskLockDataSource == null) {
+      LogFactory.getLog(DatastoreImpl.class).warn(
+          "taskLockDataSource property is not set -- using the _task_lock table for TaskLock");
+    }
     if (schemaName == null) {
       JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
       List<?> databaseNames = jdbcTemplate.queryForList("SELECT current_database()", String.class);
       schemaName = (String) databaseNames.get(0);
     }
+    dam.registerMBean("postgres");
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    indexBuilder.shutdown();
+    dam.unregister();
   }
 
   public static final String K_CREATE_TABLE = "CREATE TABLE ";
@@ -120,13 +187,18 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   public static final String K_EQ = " = ";
   public static final String K_BIND_VALUE = "?";
   public static final String K_CREATE_INDEX = "CREATE INDEX ";
+  public static final String K_CONCURRENTLY_IF_NOT_EXISTS = "CONCURRENTLY IF NOT EXISTS ";
+  public static final String K_DROP_INDEX_CONCURRENTLY = "DROP INDEX CONCURRENTLY IF EXISTS ";
   public static final String K_ON = " ON ";
+  public static final String K_INCLUDE = " INCLUDE ( ";
   public static final String K_USING_HASH = " USING HASH ";
   public static final String K_INSERT_INTO = "INSERT INTO ";
   public static final String K_VALUES = " VALUES ";
   public static final String K_UPDATE = "UPDATE ";
   public static final String K_SET = " SET ";
   public static final String K_DELETE_FROM = "DELETE FROM ";
+  public static final String K_IN_OPEN = " IN ( ";
+  public static final String K_IN_CLOSE = " ) ";
 
   public static final Integer DEFAULT_DBL_NUMERIC_SCALE = 10;
   public static final Integer DEFAULT_DBL_NUMERIC_PRECISION = 38;
@@ -186,6 +258,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         + INFORMATION_SCHEMA_COLUMNS + K_WHERE + TABLE_SCHEMA + K_EQ + K_BIND_VALUE + K_AND
         + TABLE_NAME + K_EQ + K_BIND_VALUE;
 
+    public static final String INFORMATION_SCHEMA_INDEXES = "pg_indexes";
+
+    public static final String INDEX_EXISTS_QUERY = K_SELECT + K_COUNT_ONE + K_FROM
+        + INFORMATION_SCHEMA_INDEXES + K_WHERE + "schemaname" + K_EQ + K_BIND_VALUE + K_AND
+        + "tablename" + K_EQ + K_BIND_VALUE + K_AND + "indexname" + K_EQ + K_BIND_VALUE;
+
     private static final String YES = "YES";
     private static final String TEXT = "text"; // lower case!
     private static final String CHAR = "char";
@@ -377,8 +455,17 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     }
   }
 
-  void recordQueryUsage(CommonFieldsBase relation, int recCount) {
-    dam.recordQueryUsage(relation, recCount);
+  void recordQueryUsage(CommonFieldsBase relation, String sql, int bindCount, int rowsRead,
+      int rowsReturned, long startNanos) {
+    dam.recordQueryUsage(relation, rowsRead);
+    dam.recordLatency(relation, Operation.QUERY, startNanos);
+    QueryTrace.recordStatement(sql, bindCount, rowsRead, rowsReturned, startNanos);
+  }
+
+  private void recordStatement(CommonFieldsBase relation, Operation operation, String sql,
+      int bindCount, int rowCount, long startNanos) {
+    dam.recordLatency(relation, operation, startNanos);
+    QueryTrace.recordStatement(sql, bindCount, rowCount, rowCount, startNanos);
   }
 
   @Override
@@ -395,6 +482,11 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     return MAX_COLUMN_NAME_LEN;
   }
 
+  @Override
+  public int getMaxBindParams() {
+    return MAX_BIND_PARAMS - PersistConsts.BIND_PARAMS_RESERVE;
+  }
+
   @Override
   public int getMaxLenTableName() {
     return MAX_TABLE_NAME_LEN;
@@ -494,6 +586,9 @@ public class DatastoreImpl implements Datastore, InitializingBean {
    */
   @Override
   public void assertRelation(CommonFieldsBase relation, User user) throws ODKDatastoreException {
+    if (relationRegistry.applyIfVerified(relation)) {
+      return;
+    }
     JdbcTemplate jc = getJdbcConnection();
     TransactionStatus status = null;
     try {
@@ -510,6 +605,8 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // it exists -- we're done!
         tm.commit(status);
         status = null;
+        assertCompositeIndexes(relation);
+        relationRegistry.recordVerified(relation);
         return;
       } else {
         tm.commit(status);
@@ -638,10 +735,13 @@ public class DatastoreImpl implements Datastore, InitializingBean {
             createIndex(jc, relation, idx, f);
           }
         }
-
+        for (CompositeIndex index : relation.getIndexList()) {
+          createCompositeIndex(jc, relation, index, false);
+        }
         // and update the relation with actual dimensions...
         updateRelation(jc, relation, createTableStmt);
         tm.commit(status);
+        relationRegistry.recordVerified(relation);
       }
     } catch (Exception e) {
       if (status != null) {
@@ -698,13 +798,164 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     jc.execute(b.toString());
   }
 
+  /**
+   * INCLUDE is available in PostgreSQL 11 and later. Earlier versions get the
+   * included columns appended to the index key.
+   *
+   * @param jc
+   * @return
+   */
+  private boolean supportsIncludeColumns(JdbcTemplate jc) {
+    Boolean supported = supportsIncludeColumns;
+    if (supported == null) {
+      Integer majorVersion = jc.execute(new ConnectionCallback<Integer>() {
+        @Override
+        public Integer doInConnection(Connection conn) throws SQLException {
+          return conn.getMetaData().getDatabaseMajorVersion();
+        }
+      });
+      supported = (majorVersion != null && majorVersion >= 11);
+      supportsIncludeColumns = supported;
+    }
+    return supported;
+  }
+
+  /**
+   * @param jc
+   * @param tbl
+   * @param index
+   * @param concurrently
+   *          true to build the index without blocking writes to the table.
+   *          This cannot be done within a transaction.
+   */
+  private void createCompositeIndex(JdbcTemplate jc, CommonFieldsBase tbl, CompositeIndex index,
+      boolean concurrently) {
+    StringBuilder b = new StringBuilder();
+
+    b.append(K_CREATE_INDEX);
+    if (concurrently) {
+      b.append(K_CONCURRENTLY_IF_NOT_EXISTS);
+    }
+    b.append(K_BQ);
+    b.append(index.getIndexName(tbl));
+    b.append(K_BQ);
+    b.append(K_ON);
+    b.append(K_BQ);
+    b.append(tbl.getSchemaName());
+    b.append(K_BQ);
+    b.append(".");
+    b.append(K_BQ);
+    b.append(tbl.getTableName());
+    b.append(K_BQ);
+    b.append(" (");
+    boolean includeClause = supportsIncludeColumns(jc);
+    boolean firstTime = true;
+    for (String name : index.getKeyColumnNames()) {
+      if (!firstTime) {
+        b.append(K_CS);
+      }
+      firstTime = false;
+      b.append(K_BQ);
+      b.append(name);
+      b.append(K_BQ);
+    }
+    if (!includeClause) {
+      for (String name : index.getIncludedColumnNames()) {
+        b.append(K_CS);
+        b.append(K_BQ);
+        b.append(name);
+        b.append(K_BQ);
+      }
+    }
+    b.append(" )");
+    if (includeClause && !index.getIncludedColumnNames().isEmpty()) {
+      b.append(K_INCLUDE);
+      firstTime = true;
+      for (String name : index.getIncludedColumnNames()) {
+        if (!firstTime) {
+          b.append(K_CS);
+        }
+        firstTime = false;
+        b.append(K_BQ);
+        b.append(name);
+        b.append(K_BQ);
+      }
+      b.append(" )");
+    }
+
+    jc.execute(b.toString());
+  }
+
+  /**
+   * Queue the build of the composite indexes of an existing relation, in case
+   * they are missing, e.g., because the table was created by an earlier
+   * version of this server. This is checked when the relation is first
+   * verified. The caller does not wait for the indexes to be built.
+   *
+   * @param relation
+   */
+  private void assertCompositeIndexes(final CommonFieldsBase relation) {
+    for (final CompositeIndex index : relation.getIndexList()) {
+      indexBuilder.submit(relation.getSchemaName() + "." + relation.getTableName() + "."
+          + index.getIndexName(relation), new Runnable() {
+            @Override
+            public void run() {
+              buildCompositeIndex(relation, index);
+            }
+          });
+    }
+  }
+
+  /**
+   * Build a composite index of an existing table if it is missing. The index
+   * is built concurrently, outside of any transaction, so that the table can
+   * be written to meanwhile; if another server is already building it, it is
+   * left to that server. A failed build leaves an invalid index behind; it is
+   * dropped so that the build is tried again when the relation is next
+   * verified.
+   *
+   * @param relation
+   * @param index
+   */
+  private void buildCompositeIndex(CommonFieldsBase relation, CompositeIndex index) {
+    String idxName = index.getIndexName(relation);
+    JdbcTemplate jc = getJdbcConnection();
+    dam.recordQueryUsage(TableDefinition.INFORMATION_SCHEMA_INDEXES, 1);
+    Integer count = jc.queryForObject(TableDefinition.INDEX_EXISTS_QUERY,
+        new Object[] { relation.getSchemaName(), relation.getTableName(), idxName },
+        Integer.class);
+    if (count != null && count != 0) {
+      return;
+    }
+    LogFactory.getLog(DatastoreImpl.class).info("Adding index " + idxName);
+    try {
+      createCompositeIndex(jc, relation, index, true);
+    } catch (RuntimeException e) {
+      try {
+        jc.execute(K_DROP_INDEX_CONCURRENTLY + K_BQ + relation.getSchemaName() + K_BQ + "."
+            + K_BQ + idxName + K_BQ);
+      } catch (RuntimeException ex) {
+        LogFactory.getLog(DatastoreImpl.class)
+            .warn("Unable to drop invalid index " + idxName + " exception: " + ex.toString());
+      }
+      throw e;
+    }
+  }
+
   @Override
   public boolean hasRelation(String schema, String tableName, User user) {
+    if (relationRegistry.isKnownToExist(schema, tableName)) {
+      return true;
+    }
     dam.recordQueryUsage(TableDefinition.INFORMATION_SCHEMA_COLUMNS, 1);
     String qs = TableDefinition.TABLE_EXISTS_QUERY;
     Integer columnCount = getJdbcConnection().queryForObject(qs, new Object[] { schema, tableName },
         Integer.class);
-    return (columnCount != null && columnCount != 0);
+    boolean exists = (columnCount != null && columnCount != 0);
+    if (exists) {
+      relationRegistry.recordExists(schema, tableName);
+    }
+    return exists;
   }
 
   @Override
@@ -723,7 +974,9 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       LogFactory.getLog(DatastoreImpl.class)
           .info("Executing " + b.toString() + " by user " + user.getUriUser());
       getJdbcConnection().execute(b.toString());
+      relationRegistry.invalidate(relation.getSchemaName(), relation.getTableName());
     } catch (Exception e) {
+      relationRegistry.invalidate(relation.getSchemaName(), relation.getTableName());
       LogFactory.getLog(DatastoreImpl.class)
           .warn(relation.getTableName() + " exception: " + e.toString());
       throw new ODKDatastoreException(e);
@@ -909,7 +1162,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // update...
         String sql = b.toString();
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
-        getJdbcConnection().update(sql, setter);
+        long startNanos = System.nanoTime();
+        try {
+          getJdbcConnection().update(sql, setter);
+        } finally {
+          recordStatement(entity, Operation.PUT, sql, pv.size(), 1, startNanos);
+        }
       } else {
         // not yet in database -- insert
         b.append(K_INSERT_INTO);
@@ -953,7 +1211,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
         // insert...
         String sql = b.toString();
         ReusableStatementSetter setter = new ReusableStatementSetter(sql, pv);
-        getJdbcConnection().update(sql, setter);
+        long startNanos = System.nanoTime();
+        try {
+          getJdbcConnection().update(sql, setter);
+        } finally {
+          recordStatement(entity, Operation.PUT, sql, pv.size(), 1, startNanos);
+        }
         entity.setFromDatabase(true); // now it is in the database...
       }
     } catch (Exception e) {
@@ -964,8 +1227,65 @@ public class DatastoreImpl implements Datastore, InitializingBean {
   @Override
   public void putEntities(Collection<? extends CommonFieldsBase> entityList, User user)
       throws ODKEntityPersistException {
+    // bucket the entities by relation and by insert vs. update so that
+    // each bucket can be sent to the server as a JDBC batch.
+    Map<String, List<CommonFieldsBase>> buckets = new LinkedHashMap<String, List<CommonFieldsBase>>();
     for (CommonFieldsBase d : entityList) {
-      putEntity(d, user);
+      String bucketKey = (d.isFromDatabase() ? "U" : "I") + d.getSchemaName() + "."
+          + d.getTableName();
+      List<CommonFieldsBase> bucket = buckets.get(bucketKey);
+      if (bucket == null) {
+        bucket = new ArrayList<CommonFieldsBase>();
+        buckets.put(bucketKey, bucket);
+      }
+      bucket.add(d);
+    }
+
+    for (List<CommonFieldsBase> bucket : buckets.values()) {
+      if (bucket.size() == 1) {
+        putEntity(bucket.get(0), user);
+        continue;
+      }
+      int maxPerBatch = (MAX_BIND_PARAMS / bucket.get(0).getFieldList().size());
+      for (int idxStart = 0; idxStart < bucket.size(); idxStart += maxPerBatch) {
+        int idxAfterEnd = idxStart + maxPerBatch;
+        if (idxAfterEnd > bucket.size()) {
+          idxAfterEnd = bucket.size();
+        }
+        putEntityBatch(bucket, idxStart, idxAfterEnd, user);
+      }
+    }
+  }
+
+  /**
+   * Write one batch of a putEntities() bucket. The batch is applied within a
+   * (possibly nested) transaction. If it fails, it is rolled back and the
+   * entities are re-sent one at a time so that the exception thrown is the one
+   * for the first entity that could not be persisted, as it would be if each
+   * entity had been put individually.
+   *
+   * @param bucket
+   * @param idxStart
+   * @param idxAfterEnd
+   * @param user
+   * @throws ODKEntityPersistException
+   */
+  private void putEntityBatch(List<CommonFieldsBase> bucket, int idxStart, int idxAfterEnd,
+      User user) throws ODKEntityPersistException {
+    DefaultTransactionDefinition paramTransactionDefinition = new DefaultTransactionDefinition();
+    paramTransactionDefinition.setPropagationBehavior(DefaultTransactionDefinition.PROPAGATION_NESTED);
+    TransactionStatus status = tm.getTransaction(paramTransactionDefinition);
+    try {
+      partialBatchAlterData(bucket, idxStart, idxAfterEnd, user);
+      tm.commit(status);
+      return;
+    } catch (Exception e) {
+      tm.rollback(status);
+      LogFactory.getLog(DatastoreImpl.class).warn(
+          "Batch put failed - retrying the entities individually: " + e.toString());
+    }
+    for (int idx = idxStart; idx < idxAfterEnd; ++idx) {
+      putEntity(bucket.get(idx), user);
     }
   }
 
@@ -1141,10 +1461,16 @@ public class DatastoreImpl implements Datastore, InitializingBean {
     try {
       // update...
       BatchStatementFieldSetter setter = new BatchStatementFieldSetter(sql, batchArgs);
-      getJdbcConnection().batchUpdate(sql, setter);
+      long startNanos = System.nanoTime();
+      try {
+        getJdbcConnection().batchUpdate(sql, setter);
+      } finally {
+        recordStatement(allChanges.get(idxStart), Operation.PUT, sql, batchArgs.get(0).size(),
+            batchArgs.size(), startNanos);
+      }
 
       // if this was an insert, set the fromDatabase flag in the entities
-      if (!allChanges.get(0).isFromDatabase()) {
+      if (!allChanges.get(idxStart).isFromDatabase()) {
         for (int idx = idxStart ; idx < idxAfterEnd ; ++idx ) {
           CommonFieldsBase entity = allChanges.get(idx);
           entity.setFromDatabase(true);
@@ -1180,7 +1506,12 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
       LogFactory.getLog(DatastoreImpl.class).info("Executing " + b.toString() + " with key "
           + key.getKey() + " by user " + user.getUriUser());
-      getJdbcConnection().update(b.toString(), new Object[] { key.getKey() });
+      long startNanos = System.nanoTime();
+      try {
+        getJdbcConnection().update(b.toString(), new Object[] { key.getKey() });
+      } finally {
+        recordStatement(d, Operation.DELETE, b.toString(), 1, 1, startNanos);
+      }
     } catch (Exception e) {
       throw new ODKDatastoreException("delete failed", e);
     }
@@ -1188,14 +1519,54 @@ public class DatastoreImpl implements Datastore, InitializingBean {
 
   @Override
   public void deleteEntities(Collection<EntityKey> keys, User user) throws ODKDatastoreException {
-    ODKDatastoreException e = null;
+    // bucket the keys by relation so that each relation's rows can be
+    // deleted with a few DELETE ... WHERE pk IN (...) statements.
+    Map<String, List<EntityKey>> buckets = new LinkedHashMap<String, List<EntityKey>>();
     for (EntityKey k : keys) {
-      try {
-        deleteEntity(k, user);
-      } catch (ODKDatastoreException ex) {
-        ex.printStackTrace();
-        if (e == null) {
-          e = ex; // save the first exception...
+      CommonFieldsBase d = k.getRelation();
+      String bucketKey = d.getSchemaName() + "." + d.getTableName();
+      List<EntityKey> bucket = buckets.get(bucketKey);
+      if (bucket == null) {
+        bucket = new ArrayList<EntityKey>();
+        buckets.put(bucketKey, bucket);
+      }
+      bucket.add(k);
+    }
+
+    ODKDatastoreException e = null;
+    for (List<EntityKey> bucket : buckets.values()) {
+      for (int idxStart = 0; idxStart < bucket.size(); idxStart += MAX_BIND_PARAMS) {
+        int idxAfterEnd = idxStart + MAX_BIND_PARAMS;
+        if (idxAfterEnd > bucket.size()) {
+          idxAfterEnd = bucket.size();
+        }
+        List<EntityKey> chunk = bucket.subList(idxStart, idxAfterEnd);
+        try {
+          if (chunk.size() == 1) {
+            deleteEntity(chunk.get(0), user);
+          } else {
+            deleteEntityChunk(chunk, user);
+          }
+        } catch (ODKDatastoreException ex) {
+          LogFactory.getLog(DatastoreImpl.class).warn("deleteEntities: chunk delete failed", ex);
+          if (chunk.size() == 1) {
+            if (e == null) {
+              e = ex; // save the first exception...
+            }
+            continue;
+          }
+          // fall back to deleting them one at a time so that the
+          // failure is reported against the entity that caused it.
+          for (EntityKey k : chunk) {
+            try {
+              deleteEntity(k, user);
+            } catch (ODKDatastoreException exk) {
+              LogFactory.getLog(DatastoreImpl.class).warn("deleteEntities: delete failed", exk);
+              if (e == null) {
+                e = exk; // save the first exception...
+              }
+            }
+          }
         }
       }
     }
@@ -1203,8 +1574,83 @@ public class DatastoreImpl implements Datastore, InitializingBean {
       throw e; // throw the first exception...
   }
 
+  private void deleteEntityChunk(List<EntityKey> chunk, User user) throws ODKDatastoreException {
+
+    CommonFieldsBase d = chunk.get(0).getRelation();
+    Object[] args = new Object[chunk.size()];
+    for (int i = 0; i < chunk.size(); ++i) {
+      EntityKey k = chunk.get(i);
+      dam.recordDeleteUsage(k);
+      args[i] = k.getKey();
+    }
+
+    try {
+      StringBuilder b = new StringBuilder();
+      b.append(K_DELETE_FROM);
+      b.append(K_BQ);
+      b.append(d.getSchemaName());
+      b.append(K_BQ);
+      b.append(".");
+      b.append(K_BQ);
+      b.append(d.getTableName());
+      b.append(K_BQ);
+      b.append(K_WHERE);
+      b.append(K_BQ);
+      b.append(d.primaryKey.getName());
+      b.append(K_BQ);
+      b.append(K_IN_OPEN);
+      for (int i = 0; i < args.length; ++i) {
+        if (i != 0) {
+          b.append(K_CS);
+        }
+        b.append(K_BIND_VALUE);
+      }
+      b.append(K_IN_CLOSE);
+
+      LogFactory.getLog(DatastoreImpl.class).info("Executing " + K_DELETE_FROM + d.getSchemaName()
+          + "." + d.getTableName() + " of " + args.length + " keys by user " + user.getUriUser());
+      long startNanos = System.nanoTime();
+      try {
+        getJdbcConnection().update(b.toString(), args);
+      } finally {
+        recordStatement(d, Operation.DELETE, b.toString(), args.length, args.length, startNanos);
+      }
+    } catch (Exception e) {
+      throw new ODKDatastoreException("delete failed", e);
+    }
+  }
+
+  @Override
+  public DatastoreTransaction beginTransaction(User user) throws ODKDatastoreException {
+    return new DatastoreTransactionImpl(tm);
+  }
+
+  /**
+   * REPEATABLE READ is a true snapshot in PostgreSQL; readers never block
+   * writers.
+   */
+  @Override
+  public DatastoreTransaction beginSnapshotTransaction(User user) throws ODKDatastoreException {
+    return new DatastoreTransactionImpl(tm, TransactionDefinition.ISOLATION_REPEATABLE_READ);
+  }
+
   @Override
   public TaskLock createTaskLock(User user) {
+    if (useNativeTaskLocks && taskLockDataSource != null) {
+      return new AdvisoryTaskLockImpl(this, dam, user);
+    }
     return new TaskLockImpl(this, dam, user);
   }
+
+  @Override
+  public SequenceAllocator getSequenceAllocator(String sequenceName, User user) {
+    synchronized (sequenceAllocators) {
+      SequenceAllocatorImpl allocator = sequenceAllocators.get(sequenceName);
+      if (allocator == null) {
+        allocator = new SequenceAllocatorImpl(this, dam, sequenceName, sequenceBlockSize);
+        sequenceAllocators.put(sequenceName, allocator);
+      }
+      return allocator;
+    }
+  }
 }
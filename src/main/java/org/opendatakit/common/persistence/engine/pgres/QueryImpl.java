@@ -58,6 +58,10 @@ public class QueryImpl implements Query {
   private static final String K_IN_CLOSE = ")";
   private static final String K_BIND_VALUE = " ? ";
   private static final String K_ORDER_BY = " ORDER BY ";
+  private static final String K_OR = " OR ";
+  private static final String K_OPEN_PAREN = " ( ";
+  private static final String K_CLOSE_PAREN = " ) ";
+  private static final String K_LIMIT = " LIMIT ";
 
   private static Map<FilterOperation, String> operationMap = new HashMap<FilterOperation, String>();
   private static Map<Direction, String> directionMap = new HashMap<Direction, String>();
@@ -81,6 +85,8 @@ public class QueryImpl implements Query {
   private DataField dominantSortAttr = null;
   private Direction dominantSortDirection = null;
   private boolean isSortedByUri = false;
+  // true if the sort order is fully determined by (dominantSortAttr, PK)
+  private boolean isKeysetOrdering = true;
 
   private final StringBuilder queryBindBuilder = new StringBuilder();
   private final List<Object> bindValues = new ArrayList<Object>();
@@ -173,12 +179,23 @@ public class QueryImpl implements Query {
    * Constructs the necessary filter clause to append to the Query filters to
    * support continuation cursors.
    * 
+   * If the sort order is fully determined by the dominant sort attribute and
+   * the PK, and the cursor holds the PK of the last returned record, this is a
+   * keyset predicate that starts immediately after that record: 
+   * (dominant > value) OR (dominant = value AND PK > uriLast)
+   * (with the comparisons reversed for descending sorts). Otherwise, it
+   * selects all records at or after the dominant sort value and the caller 
+   * must skip forward to the last returned record.
+   * 
    * @param queryContinuationBindBuilder
    * @param continuationValue
+   * @param uriLastReturnedValue
+   *          PK of the last returned record, or null to use the
+   *          dominant-sort-value-only filter.
    * @return the updated bindArgs
    */
   private ArrayList<Object> addContinuationFilter(StringBuilder queryContinuationBindBuilder,
-      Object continuationValue) {
+      Object continuationValue, String uriLastReturnedValue) {
     if (dominantSortAttr == null) {
       throw new IllegalStateException("unexpected state");
     }
@@ -191,18 +208,59 @@ public class QueryImpl implements Query {
     } else {
       queryContinuationBindBuilder.append(K_AND);
     }
+
+    ArrayList<Object> values = new ArrayList<Object>();
+    values.addAll(bindValues);
+
+    boolean isAscending = dominantSortDirection.equals(Direction.ASCENDING);
+    if (uriLastReturnedValue == null) {
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(dominantSortAttr.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(operationMap.get(isAscending
+          ? FilterOperation.GREATER_THAN_OR_EQUAL : FilterOperation.LESS_THAN_OR_EQUAL));
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      values.add(DatastoreImpl.getBindValue(dominantSortAttr, continuationValue));
+      return values;
+    }
+
+    String strictOp = operationMap.get(isAscending ? FilterOperation.GREATER_THAN
+        : FilterOperation.LESS_THAN);
+    if (dominantSortAttr.equals(relation.primaryKey)) {
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(dominantSortAttr.getName());
+      queryContinuationBindBuilder.append(K_BQ);
+      queryContinuationBindBuilder.append(strictOp);
+      queryContinuationBindBuilder.append(K_BIND_VALUE);
+      values.add(DatastoreImpl.getBindValue(dominantSortAttr, uriLastReturnedValue));
+      return values;
+    }
+
+    queryContinuationBindBuilder.append(K_OPEN_PAREN);
     queryContinuationBindBuilder.append(K_BQ);
     queryContinuationBindBuilder.append(dominantSortAttr.getName());
     queryContinuationBindBuilder.append(K_BQ);
-    queryContinuationBindBuilder.append(operationMap.get(dominantSortDirection
-        .equals(Direction.ASCENDING) ? FilterOperation.GREATER_THAN_OR_EQUAL
-        : FilterOperation.LESS_THAN_OR_EQUAL));
+    queryContinuationBindBuilder.append(strictOp);
     queryContinuationBindBuilder.append(K_BIND_VALUE);
-    
-    ArrayList<Object> values = new ArrayList<Object>();
-    values.addAll(bindValues);
+    queryContinuationBindBuilder.append(K_OR);
+    queryContinuationBindBuilder.append(K_OPEN_PAREN);
+    queryContinuationBindBuilder.append(K_BQ);
+    queryContinuationBindBuilder.append(dominantSortAttr.getName());
+    queryContinuationBindBuilder.append(K_BQ);
+    queryContinuationBindBuilder.append(operationMap.get(FilterOperation.EQUAL));
+    queryContinuationBindBuilder.append(K_BIND_VALUE);
+    queryContinuationBindBuilder.append(K_AND);
+    queryContinuationBindBuilder.append(K_BQ);
+    queryContinuationBindBuilder.append(relation.primaryKey.getName());
+    queryContinuationBindBuilder.append(K_BQ);
+    queryContinuationBindBuilder.append(strictOp);
+    queryContinuationBindBuilder.append(K_BIND_VALUE);
+    queryContinuationBindBuilder.append(K_CLOSE_PAREN);
+    queryContinuationBindBuilder.append(K_CLOSE_PAREN);
+
     values.add(DatastoreImpl.getBindValue(dominantSortAttr, continuationValue));
-    
+    values.add(DatastoreImpl.getBindValue(dominantSortAttr, continuationValue));
+    values.add(DatastoreImpl.getBindValue(relation.primaryKey, uriLastReturnedValue));
     return values;
   }
 
@@ -245,6 +303,12 @@ public class QueryImpl implements Query {
     if (dominantSortAttr == null) {
       dominantSortAttr = attributeName;
       dominantSortDirection = direction;
+    } else if (!isSortedByUri
+        && (!attributeName.equals(relation.primaryKey) || !direction.equals(dominantSortDirection))) {
+      // once the PK is a sort criteria, any further sorts do not alter the
+      // ordering. Until then, anything other than a PK sort in the same
+      // direction as the dominant sort prevents the use of keyset paging.
+      isKeysetOrdering = false;
     }
 
     // track whether or not the PK is a sort criteria
@@ -261,14 +325,16 @@ public class QueryImpl implements Query {
     RowMapper<? extends CommonFieldsBase> rowMapper = null;
     rowMapper = new RelationRowMapper(relation, user);
 
+    long startNanos = System.nanoTime();
     try {
       queryStringLogger.debug(query);
       List<? extends CommonFieldsBase> l = dataStoreImpl.getJdbcConnection().query(query,
           bindValues.toArray(), rowMapper);
-      dataStoreImpl.recordQueryUsage(relation, l.size());
+      dataStoreImpl.recordQueryUsage(relation, query, bindValues.size(), l.size(), l.size(),
+          startNanos);
       return l;
     } catch (Exception e) {
-      dataStoreImpl.recordQueryUsage(relation, 0);
+      dataStoreImpl.recordQueryUsage(relation, query, bindValues.size(), 0, 0, startNanos);
       e.printStackTrace();
       throw new ODKDatastoreException(e);
     }
@@ -281,12 +347,14 @@ public class QueryImpl implements Query {
         + querySortBuilder.toString() + ";";
 
     List<?> keys = null;
+    long startNanos = System.nanoTime();
     try {
       keys = dataStoreImpl.getJdbcConnection().queryForList(query, bindValues.toArray(),
           String.class);
-      dataStoreImpl.recordQueryUsage(relation, keys.size());
+      dataStoreImpl.recordQueryUsage(relation, query, bindValues.size(), keys.size(),
+          keys.size(), startNanos);
     } catch (Exception e) {
-      dataStoreImpl.recordQueryUsage(relation, 0);
+      dataStoreImpl.recordQueryUsage(relation, query, bindValues.size(), 0, 0, startNanos);
       e.printStackTrace();
       throw new ODKDatastoreException(e);
     }
@@ -325,13 +393,22 @@ public class QueryImpl implements Query {
   private class RowMapperFilteredResultSetExtractor implements ResultSetExtractor<CoreResult> {
 
     private int readCount = 0;
-    private final QueryResumePoint startCursor;
+    private int resultCount = 0;
+    private final String startUri;
     private final int fetchLimit;
     private final RowMapper<? extends CommonFieldsBase> rowMapper;
 
-    RowMapperFilteredResultSetExtractor(QueryResumePoint startCursor, int fetchLimit,
+    /**
+     * @param startUri
+     *          if not null, skip all records up to and including the one with
+     *          this PK. Null if the query already starts after the last
+     *          returned record.
+     * @param fetchLimit
+     * @param rowMapper
+     */
+    RowMapperFilteredResultSetExtractor(String startUri, int fetchLimit,
         RowMapper<? extends CommonFieldsBase> rowMapper) {
-      this.startCursor = startCursor;
+      this.startUri = startUri;
       this.fetchLimit = fetchLimit;
       this.rowMapper = rowMapper;
     }
@@ -340,7 +417,6 @@ public class QueryImpl implements Query {
     public CoreResult extractData(ResultSet rs) throws SQLException {
       boolean hasMoreResults = false;
       List<CommonFieldsBase> results = new ArrayList<CommonFieldsBase>();
-      String startUri = (startCursor == null) ? null : startCursor.getUriLastReturnedValue();
       boolean beforeUri = (startUri != null);
       while (rs.next()) {
         ++readCount;
@@ -356,6 +432,7 @@ public class QueryImpl implements Query {
           break;
         }
       }
+      resultCount = results.size();
       return new CoreResult(results, hasMoreResults);
     }
     
@@ -363,6 +440,10 @@ public class QueryImpl implements Query {
       return readCount;
     }
 
+    public int getResultCount() {
+      return resultCount;
+    }
+
   }
 
   @Override
@@ -383,6 +464,9 @@ public class QueryImpl implements Query {
     // for continuation executions of queries
     StringBuilder queryContinuationBindBuilder = new StringBuilder();
     List<Object> values;
+    // PK of the last returned record when the result set must be scanned for
+    // it (i.e., when the ordering does not permit a keyset predicate).
+    String skipToUri = null;
 
     if (startCursor != null) {
       DataField matchingStartCursorAttr = null;
@@ -405,25 +489,42 @@ public class QueryImpl implements Query {
 
       Object continuationValue = EngineUtils.getDominantSortAttributeValueFromString(
           startCursor.getValue(), dominantSortAttr);
-      values = addContinuationFilter(queryContinuationBindBuilder, continuationValue);
+      if (isKeysetOrdering) {
+        values = addContinuationFilter(queryContinuationBindBuilder, continuationValue,
+            startCursor.getUriLastReturnedValue());
+      } else {
+        values = addContinuationFilter(queryContinuationBindBuilder, continuationValue, null);
+        skipToUri = startCursor.getUriLastReturnedValue();
+      }
     } else {
       values = bindValues;
     }
 
+    // we can only limit the result set on the server if we don't need to
+    // scan through it to find the last returned record. Fetch one extra
+    // record so that we know whether there are more results.
+    String limitClause = "";
+    if (fetchLimit > 0 && skipToUri == null) {
+      limitClause = K_LIMIT + (((long) fetchLimit) + 1L);
+    }
+
     String query = generateQuery() + queryBindBuilder.toString()
-        + queryContinuationBindBuilder.toString() + querySortBuilder.toString() + ";";
+        + queryContinuationBindBuilder.toString() + querySortBuilder.toString() + limitClause
+        + ";";
     RowMapper<? extends CommonFieldsBase> rowMapper = null;
     rowMapper = new RelationRowMapper(relation, user);
-    RowMapperFilteredResultSetExtractor rse = new RowMapperFilteredResultSetExtractor(startCursor,
+    RowMapperFilteredResultSetExtractor rse = new RowMapperFilteredResultSetExtractor(skipToUri,
         fetchLimit, rowMapper);
 
     try {
       CoreResult r;
+      long startNanos = System.nanoTime();
       try {
         queryStringLogger.debug(query);
         r = dataStoreImpl.getJdbcConnection().query(query, values.toArray(), rse);
       } finally {
-        dataStoreImpl.recordQueryUsage(relation, rse.getReadCount());
+        dataStoreImpl.recordQueryUsage(relation, query, values.size(), rse.getReadCount(),
+            rse.getResultCount(), startNanos);
       }
 
       if (r.results.size() == 0) {
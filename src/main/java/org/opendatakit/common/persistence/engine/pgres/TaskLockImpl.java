@@ -282,6 +282,25 @@ public class TaskLockImpl implements TaskLock {
     return result;
   }
 
+  @Override
+  public boolean obtainLock(String lockId, String formId, ITaskLockType taskType,
+      long maxWaitMilliseconds) throws ODKTaskLockException {
+    if (obtainLock(lockId, formId, taskType)) {
+      return true;
+    }
+    if (maxWaitMilliseconds <= 0L) {
+      return false;
+    }
+    // we cannot wait on the database; back off before the caller retries.
+    try {
+      Thread.sleep(maxWaitMilliseconds);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ODKTaskLockException(e);
+    }
+    return false;
+  }
+
   @Override
   public boolean renewLock(String lockId, String formId, ITaskLockType taskType) {
     boolean result = false;
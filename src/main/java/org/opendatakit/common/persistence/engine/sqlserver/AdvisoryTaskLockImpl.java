@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.sqlserver;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.common.persistence.ITaskLockType;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.TaskLock;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.engine.EngineUtils;
+import org.opendatakit.common.persistence.exception.ODKTaskLockException;
+import org.opendatakit.common.security.User;
+
+/**
+ * TaskLock built on SQL Server session-owned application locks
+ * (sp_getapplock) named by a hash of (schema, formId, taskType). Locks on
+ * different resources never contend, and a waiting request blocks on the
+ * database server (bounded by @LockTimeout) rather than sleep-polling.
+ *
+ * A session-owned lock belongs to the connection that obtained it. Each lock is
+ * obtained on its own connection from the datastore's taskLockDataSource, a
+ * small pool kept apart from the one used for queries, and is always released
+ * explicitly before that connection is returned to it. A connection whose lock
+ * could not be released is evicted from the pool instead, which ends its
+ * session. If this server dies, the database drops the connection and the lock
+ * with it.
+ *
+ * Renewing a lock touches its connection. A lock whose connection has been
+ * idle past its taskType's expiration timeout is presumed abandoned: this
+ * server releases its own such locks the next time any lock is obtained, and
+ * a server that times out waiting for one kills the holding session (this
+ * needs VIEW SERVER STATE and ALTER ANY CONNECTION; without them, abandoned
+ * locks are only released when the holding connection drops).
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class AdvisoryTaskLockImpl implements TaskLock {
+
+  private static final Log logger = LogFactory.getLog(AdvisoryTaskLockImpl.class);
+
+  private static final String TASK_LOCK_NAME = "sp_getapplock";
+
+  private static final class HeldLock {
+    final DataSource dataSource;
+    final Connection conn;
+    final String key;
+    final String formId;
+    final String taskType;
+    volatile long expiration;
+
+    HeldLock(DataSource dataSource, Connection conn, String key, String formId, String taskType,
+        long expiration) {
+      this.dataSource = dataSource;
+      this.conn = conn;
+      this.key = key;
+      this.formId = formId;
+      this.taskType = taskType;
+      this.expiration = expiration;
+    }
+  }
+
+  // locks held by this server, by lockId.
+  private static final Map<String, HeldLock> heldLocks = new ConcurrentHashMap<String, HeldLock>();
+
+  final DatastoreAccessMetrics dam;
+  final DatastoreImpl datastore;
+  final User user;
+
+  AdvisoryTaskLockImpl(DatastoreImpl datastore, DatastoreAccessMetrics dam, User user) {
+    this.datastore = datastore;
+    this.dam = dam;
+    this.user = user;
+  }
+
+  private static void close(Connection conn) {
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      logger.warn("close of task lock connection failed: " + e.toString());
+    }
+  }
+
+  private static void discard(DataSource dataSource, Connection conn) {
+    try {
+      EngineUtils.discardConnection(dataSource, conn);
+    } catch (SQLException e) {
+      logger.warn("discard of task lock connection failed: " + e.toString());
+    }
+  }
+
+  private static void unlockAndClose(HeldLock held) {
+    synchronized (held) {
+      boolean unlocked = false;
+      try {
+        CallableStatement stmt = held.conn
+            .prepareCall("{? = call sp_releaseapplock(?, 'Session')}");
+        try {
+          stmt.registerOutParameter(1, Types.INTEGER);
+          stmt.setString(2, held.key);
+          stmt.execute();
+          unlocked = (stmt.getInt(1) >= 0);
+        } finally {
+          stmt.close();
+        }
+      } catch (SQLException e) {
+        logger.warn("sp_releaseapplock failed: " + e.toString());
+      } finally {
+        if (unlocked) {
+          close(held.conn);
+        } else {
+          // do not let the next borrower inherit the lock
+          discard(held.dataSource, held.conn);
+        }
+      }
+    }
+  }
+
+  private static void releaseExpiredLocks() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<String, HeldLock>> it = heldLocks.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, HeldLock> entry = it.next();
+      HeldLock held = entry.getValue();
+      if (held.expiration <= now && heldLocks.remove(entry.getKey(), held)) {
+        logger.warn("Releasing expired task lock " + entry.getKey() + " on " + held.formId + " "
+            + held.taskType);
+        unlockAndClose(held);
+      }
+    }
+  }
+
+  private HeldLock getHeldLock(String lockId, String formId, ITaskLockType taskType) {
+    HeldLock held = heldLocks.get(lockId);
+    if (held != null
+        && !(held.formId.equals(formId) && held.taskType.equals(taskType.getName()))) {
+      throw new IllegalArgumentException("formId or taskType don't match held lock");
+    }
+    return held;
+  }
+
+  private static boolean tryLock(Connection conn, String key, long maxWaitMilliseconds)
+      throws SQLException {
+    CallableStatement stmt = conn
+        .prepareCall("{? = call sp_getapplock(?, 'Exclusive', 'Session', ?)}");
+    try {
+      stmt.registerOutParameter(1, Types.INTEGER);
+      stmt.setString(2, key);
+      stmt.setInt(3, (int) Math.min(Integer.MAX_VALUE, Math.max(0L, maxWaitMilliseconds)));
+      stmt.execute();
+      // 0 or 1 if granted; negative if timed out, cancelled or deadlocked
+      return stmt.getInt(1) >= 0;
+    } finally {
+      stmt.close();
+    }
+  }
+
+  /**
+   * Kill the session holding the lock if it has been idle (neither renewed
+   * nor released) past the expiration timeout. Works whichever server
+   * obtained the lock.
+   *
+   * @return true if a session was killed.
+   */
+  private static boolean killAbandonedHolder(Connection conn, String key,
+      ITaskLockType taskType) throws SQLException {
+    Integer sessionId = null;
+    PreparedStatement query = conn.prepareStatement("SELECT l.request_session_id"
+        + " FROM sys.dm_tran_locks l"
+        + " JOIN sys.dm_exec_sessions s ON s.session_id = l.request_session_id"
+        + " WHERE l.resource_type = 'APPLICATION' AND l.resource_database_id = DB_ID()"
+        + " AND l.request_owner_type = 'SESSION' AND l.request_status = 'GRANT'"
+        + " AND l.resource_description LIKE ? AND s.status = 'sleeping'"
+        + " AND s.last_request_end_time < DATEADD(millisecond, ?, GETDATE())");
+    try {
+      query.setString(1, "%[[]" + key + "]%");
+      query.setInt(2, (int) -Math.min(Integer.MAX_VALUE, taskType.getLockExpirationTimeout()));
+      ResultSet rs = query.executeQuery();
+      if (rs.next()) {
+        sessionId = rs.getInt(1);
+      }
+    } finally {
+      query.close();
+    }
+    if (sessionId == null) {
+      return false;
+    }
+    Statement stmt = conn.createStatement();
+    try {
+      stmt.execute("KILL " + sessionId);
+    } finally {
+      stmt.close();
+    }
+    logger.warn("Killed session " + sessionId + " holding expired task lock "
+        + taskType.getName() + " " + key);
+    return true;
+  }
+
+  @Override
+  public boolean obtainLock(String lockId, String formId, ITaskLockType taskType) {
+    return obtainLock(lockId, formId, taskType, 0L);
+  }
+
+  @Override
+  public boolean obtainLock(String lockId, String formId, ITaskLockType taskType,
+      long maxWaitMilliseconds) {
+    releaseExpiredLocks();
+    if (getHeldLock(lockId, formId, taskType) != null) {
+      return renewLock(lockId, formId, taskType);
+    }
+
+    String key = "odk_" + Long.toHexString(EngineUtils.getTaskLockKey(
+        datastore.getDefaultSchemaName(), formId, taskType.getName()));
+    dam.recordPutUsage(TASK_LOCK_NAME);
+    DataSource dataSource = datastore.getTaskLockDataSource();
+    Connection conn = null;
+    boolean locked = false;
+    boolean failed = false;
+    try {
+      conn = dataSource.getConnection();
+      conn.setAutoCommit(true);
+      locked = tryLock(conn, key, maxWaitMilliseconds);
+      if (!locked) {
+        boolean killed = false;
+        try {
+          killed = killAbandonedHolder(conn, key, taskType);
+        } catch (SQLException e) {
+          logger.warn("Unable to check for an abandoned task lock: " + e.toString());
+        }
+        if (killed) {
+          // give the killed session a moment to end
+          locked = tryLock(conn, key, PersistConsts.MIN_SETTLE_MILLISECONDS);
+        }
+      }
+      if (locked) {
+        heldLocks.put(lockId, new HeldLock(dataSource, conn, key, formId, taskType.getName(),
+            System.currentTimeMillis() + taskType.getLockExpirationTimeout()));
+      }
+    } catch (SQLException e) {
+      logger.error("obtainLock failed for " + formId + " " + taskType.getName(), e);
+      locked = false;
+      failed = true;
+    } finally {
+      if (!locked && conn != null) {
+        if (failed) {
+          // the lock may have been obtained before the failure
+          discard(dataSource, conn);
+        } else {
+          close(conn);
+        }
+      }
+    }
+    return locked;
+  }
+
+  @Override
+  public boolean renewLock(String lockId, String formId, ITaskLockType taskType) {
+    HeldLock held;
+    try {
+      held = getHeldLock(lockId, formId, taskType);
+    } catch (IllegalArgumentException e) {
+      logger.error("renewLock failed for " + lockId, e);
+      return false;
+    }
+    if (held == null) {
+      return false;
+    }
+    synchronized (held) {
+      try {
+        // touch the session so that other servers see it is still in use
+        Statement stmt = held.conn.createStatement();
+        try {
+          stmt.execute("SELECT 1");
+        } finally {
+          stmt.close();
+        }
+      } catch (SQLException e) {
+        // the session is gone, and the lock with it
+        logger.error("renewLock lost the session for " + lockId, e);
+        if (heldLocks.remove(lockId, held)) {
+          discard(held.dataSource, held.conn);
+        }
+        return false;
+      }
+      held.expiration = System.currentTimeMillis() + taskType.getLockExpirationTimeout();
+    }
+    return true;
+  }
+
+  @Override
+  public boolean releaseLock(String lockId, String formId, ITaskLockType taskType) {
+    HeldLock held;
+    try {
+      held = getHeldLock(lockId, formId, taskType);
+    } catch (IllegalArgumentException e) {
+      logger.error("releaseLock failed for " + lockId, e);
+      return false;
+    }
+    if (held != null && heldLocks.remove(lockId, held)) {
+      dam.recordDeleteUsage(TASK_LOCK_NAME);
+      unlockAndClose(held);
+    }
+    return true;
+  }
+}
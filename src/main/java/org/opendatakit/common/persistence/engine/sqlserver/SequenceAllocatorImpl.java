@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine.sqlserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.LogFactory;
+import org.opendatakit.common.persistence.SequenceAllocator;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+
+/**
+ * SequenceAllocator backed by a SQL Server SEQUENCE. The sequence increments
+ * by the block size so that each NEXT VALUE FOR reserves a full block of values.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public class SequenceAllocatorImpl implements SequenceAllocator {
+
+  private static final String K_BQ = "\"";
+
+  private static final String SEQUENCE_EXISTS_QUERY = "SELECT COUNT(*) FROM sys.sequences"
+      + " WHERE SCHEMA_NAME(schema_id) = ? AND name = ?";
+
+  /**
+   * A reserved range of values [next, limit). Values are handed out by
+   * incrementing next; once it passes limit, a new block must be reserved.
+   */
+  private static final class Block {
+    final AtomicLong next;
+    final long limit;
+
+    Block(long start, long limit) {
+      this.next = new AtomicLong(start);
+      this.limit = limit;
+    }
+  }
+
+  private static final Block EMPTY_BLOCK = new Block(0L, 0L);
+
+  final DatastoreAccessMetrics dam;
+  final DatastoreImpl datastore;
+  final String sequenceName;
+  final int blockSize;
+
+  private volatile Block block = EMPTY_BLOCK;
+  private volatile boolean initialized = false;
+
+  SequenceAllocatorImpl(DatastoreImpl datastore, DatastoreAccessMetrics dam, String sequenceName,
+      int blockSize) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("blockSize must be 1 or greater");
+    }
+    this.datastore = datastore;
+    this.dam = dam;
+    this.sequenceName = sequenceName;
+    this.blockSize = blockSize;
+  }
+
+  private String qualifiedName() {
+    return K_BQ + datastore.getDefaultSchemaName() + K_BQ + "." + K_BQ + sequenceName + K_BQ;
+  }
+
+  @Override
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  private boolean sequenceExists() throws ODKDatastoreException {
+    try {
+      dam.recordQueryUsage(sequenceName, 1);
+      Integer count = datastore.getJdbcConnection().queryForObject(SEQUENCE_EXISTS_QUERY,
+          new Object[] { datastore.getDefaultSchemaName(), sequenceName }, Integer.class);
+      return count != null && count != 0;
+    } catch (Exception e) {
+      throw new ODKDatastoreException(e);
+    }
+  }
+
+  @Override
+  public boolean isInitialized() throws ODKDatastoreException {
+    return initialized || sequenceExists();
+  }
+
+  @Override
+  public synchronized boolean initialize(long startValue) throws ODKDatastoreException {
+    boolean created = false;
+    if (sequenceExists()) {
+      // align the increment with our block size in case it was changed
+      String alter = "ALTER SEQUENCE " + qualifiedName() + " INCREMENT BY " + blockSize;
+      try {
+        LogFactory.getLog(SequenceAllocatorImpl.class).info("Executing " + alter);
+        datastore.getJdbcConnection().execute(alter);
+      } catch (Exception e) {
+        throw new ODKDatastoreException(e);
+      }
+    } else {
+      StringBuilder b = new StringBuilder();
+      b.append("CREATE SEQUENCE ").append(qualifiedName());
+      b.append(" AS BIGINT START WITH ").append(startValue);
+      b.append(" INCREMENT BY ").append(blockSize);
+      try {
+        LogFactory.getLog(SequenceAllocatorImpl.class).info("Executing " + b.toString());
+        datastore.getJdbcConnection().execute(b.toString());
+        created = true;
+      } catch (Exception e) {
+        // SQL Server has no CREATE SEQUENCE IF NOT EXISTS; another server may
+        // have created it concurrently.
+        if (!sequenceExists()) {
+          throw new ODKDatastoreException(e);
+        }
+      }
+    }
+    if (!sequenceExists()) {
+      throw new ODKDatastoreException("Unable to create sequence " + sequenceName);
+    }
+    initialized = true;
+    return created;
+  }
+
+  private synchronized void reserveBlock(Block exhausted) throws ODKDatastoreException {
+    if (block != exhausted) {
+      // another thread already reserved a new block
+      return;
+    }
+    if (!initialized) {
+      throw new ODKDatastoreException("Sequence " + sequenceName + " has not been initialized");
+    }
+    Long start;
+    try {
+      dam.recordPutUsage(sequenceName);
+      start = datastore.getJdbcConnection()
+          .queryForObject("SELECT NEXT VALUE FOR " + qualifiedName(), Long.class);
+    } catch (Exception e) {
+      throw new ODKDatastoreException(e);
+    }
+    if (start == null) {
+      throw new ODKDatastoreException("Unable to reserve values from sequence " + sequenceName);
+    }
+    block = new Block(start, start + blockSize);
+  }
+
+  @Override
+  public long nextValue() throws ODKDatastoreException {
+    for (;;) {
+      Block current = block;
+      long value = current.next.getAndIncrement();
+      if (value < current.limit) {
+        return value;
+      }
+      reserveBlock(current);
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.common.utils;
+
+import java.util.Date;
+
+/**
+ * Formats and parses the ISO8601 form produced by
+ * {@link WebUtils#iso8601Date(Date)} (yyyy-MM-dd'T'HH:mm:ss.SSSZ in GMT, e.g.,
+ * 2017-03-04T05:06:07.123+0000) without a SimpleDateFormat.
+ *
+ * This is the form every DATETIME value and every dataETag sequence takes on
+ * the sync path, so it is handled directly on the characters. Only values
+ * whose result is certain to be identical to that of SimpleDateFormat are
+ * handled: exactly 28 characters, in-range fields and years 1600 through
+ * 9999 (well after the Julian-Gregorian cutover of GregorianCalendar).
+ * Anything else is left to the SimpleDateFormat-based code in WebUtils.
+ *
+ * Stateless and thread-safe.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+public final class DateCodec {
+
+  static final int ISO8601_LENGTH = 28;
+
+  private static final int MIN_YEAR = 1600;
+  private static final int MAX_YEAR = 9999;
+
+  private static final long MILLIS_PER_MINUTE = 60L * 1000L;
+  private static final long MILLIS_PER_DAY = 24L * 60L * MILLIS_PER_MINUTE;
+
+  private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+  private DateCodec() {
+  }
+
+  /**
+   * @param d
+   * @return the ISO8601 string for the date in GMT, or null if the date is
+   *         outside the range handled here.
+   */
+  public static String formatIso8601(Date d) {
+    long millis = d.getTime();
+    long epochDay = Math.floorDiv(millis, MILLIS_PER_DAY);
+    int millisOfDay = (int) Math.floorMod(millis, MILLIS_PER_DAY);
+
+    // civil-from-days over the proleptic Gregorian calendar
+    long z = epochDay + 719468L;
+    long era = Math.floorDiv(z, 146097L);
+    int doe = (int) (z - era * 146097L);
+    int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    int mp = (5 * doy + 2) / 153;
+    int day = doy - (153 * mp + 2) / 5 + 1;
+    int month = (mp < 10) ? mp + 3 : mp - 9;
+    long year = yoe + era * 400L + ((month <= 2) ? 1 : 0);
+    if (year < MIN_YEAR || year > MAX_YEAR) {
+      return null;
+    }
+
+    char[] c = new char[ISO8601_LENGTH];
+    put(c, 0, (int) year, 4);
+    c[4] = '-';
+    put(c, 5, month, 2);
+    c[7] = '-';
+    put(c, 8, day, 2);
+    c[10] = 'T';
+    int secondOfDay = millisOfDay / 1000;
+    put(c, 11, secondOfDay / 3600, 2);
+    c[13] = ':';
+    put(c, 14, (secondOfDay / 60) % 60, 2);
+    c[16] = ':';
+    put(c, 17, secondOfDay % 60, 2);
+    c[19] = '.';
+    put(c, 20, millisOfDay % 1000, 3);
+    c[23] = '+';
+    c[24] = '0';
+    c[25] = '0';
+    c[26] = '0';
+    c[27] = '0';
+    return new String(c);
+  }
+
+  /**
+   * @param value
+   * @return the date, or null if the value is not in exactly the ISO8601 form
+   *         handled here.
+   */
+  public static Date parseIso8601(String value) {
+    if (value == null || value.length() != ISO8601_LENGTH || value.charAt(4) != '-'
+        || value.charAt(7) != '-' || value.charAt(10) != 'T' || value.charAt(13) != ':'
+        || value.charAt(16) != ':' || value.charAt(19) != '.') {
+      return null;
+    }
+    int year = digits(value, 0, 4);
+    int month = digits(value, 5, 2);
+    int day = digits(value, 8, 2);
+    int hour = digits(value, 11, 2);
+    int minute = digits(value, 14, 2);
+    int second = digits(value, 17, 2);
+    int millis = digits(value, 20, 3);
+    char sign = value.charAt(23);
+    int zoneHours = digits(value, 24, 2);
+    int zoneMinutes = digits(value, 26, 2);
+    if (year < MIN_YEAR || year > MAX_YEAR || month < 1 || month > 12 || day < 1
+        || day > daysInMonth(year, month) || hour < 0 || hour > 23 || minute < 0
+        || minute > 59 || second < 0 || second > 59 || millis < 0
+        || (sign != '+' && sign != '-') || zoneHours < 0 || zoneHours > 23 || zoneMinutes < 0
+        || zoneMinutes > 59) {
+      return null;
+    }
+
+    // days-from-civil over the proleptic Gregorian calendar
+    int y = (month <= 2) ? year - 1 : year;
+    int era = y / 400;
+    int yoe = y - era * 400;
+    int doy = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    long epochDay = era * 146097L + doe - 719468L;
+
+    long offset = (zoneHours * 60L + zoneMinutes) * MILLIS_PER_MINUTE;
+    long time = epochDay * MILLIS_PER_DAY + ((hour * 60L + minute) * 60L + second) * 1000L
+        + millis - ((sign == '+') ? offset : -offset);
+    return new Date(time);
+  }
+
+  private static int daysInMonth(int year, int month) {
+    if (month == 2 && (year % 4 == 0) && ((year % 100 != 0) || (year % 400 == 0))) {
+      return 29;
+    }
+    return DAYS_IN_MONTH[month - 1];
+  }
+
+  private static void put(char[] c, int offset, int value, int width) {
+    for (int i = offset + width - 1; i >= offset; --i) {
+      c[i] = (char) ('0' + (value % 10));
+      value /= 10;
+    }
+  }
+
+  /**
+   * @return the value of the ASCII digits, or -1 if any is not a digit.
+   */
+  private static int digits(String value, int offset, int width) {
+    int v = 0;
+    for (int i = offset; i < offset + width; ++i) {
+      char ch = value.charAt(i);
+      if (ch < '0' || ch > '9') {
+        return -1;
+      }
+      v = v * 10 + (ch - '0');
+    }
+    return v;
+  }
+}
@@ -81,6 +81,24 @@ public class WebUtils {
   private static final String PATTERN_GOOGLE_DOCS = "MM/dd/yyyy HH:mm:ss.SSS";
   private static final String PATTERN_GOOGLE_DOCS_DATE_ONLY = "MM/dd/yyyy";
 
+  private static final String[] ISO8601_PATTERN = new String[] { PATTERN_ISO8601 };
+
+  private static final String[] LOCALIZED_PARSE_PATTERNS = new String[] {
+      // try the common HTTP date formats that have time zones
+      PATTERN_RFC1123, PATTERN_RFC1036, PATTERN_DATE_TOSTRING };
+
+  private static final String[] LOCALIZED_NO_TZ_PARSE_PATTERNS = new String[] {
+      // ones without timezones... (will assume UTC)
+      PATTERN_ASCTIME };
+
+  private static final String[] TZ_PARSE_PATTERNS = new String[] { PATTERN_ISO8601,
+      PATTERN_ISO8601_DATE, PATTERN_ISO8601_TIME };
+
+  private static final String[] NO_TZ_PARSE_PATTERNS = new String[] {
+      // ones without timezones... (will assume UTC)
+      PATTERN_ISO8601_WITHOUT_ZONE, PATTERN_NO_DATE_TIME_ONLY,
+      PATTERN_YYYY_MM_DD_DATE_ONLY_NO_TIME_DASH, PATTERN_GOOGLE_DOCS };
+
   private static final String PURGE_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
 
   private WebUtils() {
@@ -221,27 +239,12 @@ public class WebUtils {
     if (value == null || value.length() == 0)
       return null;
 
-    String[] iso8601Pattern = new String[] { PATTERN_ISO8601 };
-
-    String[] localizedParsePatterns = new String[] {
-        // try the common HTTP date formats that have time zones
-        PATTERN_RFC1123, PATTERN_RFC1036, PATTERN_DATE_TOSTRING };
-
-    String[] localizedNoTzParsePatterns = new String[] {
-    // ones without timezones... (will assume UTC)
-    PATTERN_ASCTIME };
-
-    String[] tzParsePatterns = new String[] { PATTERN_ISO8601, PATTERN_ISO8601_DATE,
-        PATTERN_ISO8601_TIME };
-
-    String[] noTzParsePatterns = new String[] {
-        // ones without timezones... (will assume UTC)
-        PATTERN_ISO8601_WITHOUT_ZONE, PATTERN_NO_DATE_TIME_ONLY,
-        PATTERN_YYYY_MM_DD_DATE_ONLY_NO_TIME_DASH, PATTERN_GOOGLE_DOCS };
-
-    Date d = null;
+    // the form iso8601Date() produces -- nearly every value on the sync path
+    Date d = DateCodec.parseIso8601(value);
+    if (d != null)
+      return d;
     // iso8601 parsing is sometimes off-by-one when JR does it...
-    d = parseDateSubset(value, iso8601Pattern, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, ISO8601_PATTERN, null, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
     // try to parse with the JavaRosa parsers
@@ -256,24 +259,24 @@ public class WebUtils {
       return d;
     // try localized and english text parsers (for Web headers and interactive
     // filter spec.)
-    d = parseDateSubset(value, localizedParsePatterns, Locale.ENGLISH, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_PARSE_PATTERNS, Locale.ENGLISH, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
-    d = parseDateSubset(value, localizedParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_PARSE_PATTERNS, null, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
-    d = parseDateSubset(value, localizedNoTzParsePatterns, Locale.ENGLISH,
+    d = parseDateSubset(value, LOCALIZED_NO_TZ_PARSE_PATTERNS, Locale.ENGLISH,
         TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
-    d = parseDateSubset(value, localizedNoTzParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_NO_TZ_PARSE_PATTERNS, null, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
     // try other common patterns that might not quite match JavaRosa parsers
-    d = parseDateSubset(value, tzParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, TZ_PARSE_PATTERNS, null, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
-    d = parseDateSubset(value, noTzParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, NO_TZ_PARSE_PATTERNS, null, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
     // try the locale- and timezone- specific parsers
@@ -395,6 +398,9 @@ public class WebUtils {
   public static final String iso8601Date(Date d) {
     if (d == null)
       return null;
+    String value = DateCodec.formatIso8601(d);
+    if (value != null)
+      return value;
     // SDF is not thread-safe
     SimpleDateFormat asGMTiso8601 = new SimpleDateFormat(PATTERN_ISO8601); // with
                                                                            // time
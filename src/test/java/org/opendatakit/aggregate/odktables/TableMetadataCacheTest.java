@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class TableMetadataCacheTest {
+
+  @Test
+  public void testPrometheusExport() throws IOException {
+    StringBuilder b = new StringBuilder();
+    TableMetadataCache.writePrometheusText(b);
+    String text = b.toString();
+    assertTrue(text.contains("# TYPE odk_table_metadata_cache_hits_total counter\n"));
+    assertTrue(text.contains("\nodk_table_metadata_cache_hits_total "
+        + TableMetadataCache.getHitCount() + "\n"));
+    assertTrue(text.contains("\nodk_table_metadata_cache_misses_total "
+        + TableMetadataCache.getMissCount() + "\n"));
+    assertTrue(text.contains("\nodk_table_metadata_cache_entries " + TableMetadataCache.size()
+        + "\n"));
+  }
+}
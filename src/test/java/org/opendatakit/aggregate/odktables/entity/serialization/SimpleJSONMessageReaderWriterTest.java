@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables.entity.serialization;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wink.common.internal.MultivaluedMapImpl;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.T;
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
+import org.opendatakit.aggregate.odktables.rest.entity.RowList;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class SimpleJSONMessageReaderWriterTest {
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @Test
+  public void testRoundTripStreamed() throws IOException {
+    SimpleJSONMessageReaderWriter<RowList> rw = new SimpleJSONMessageReaderWriter<RowList>();
+    RowList expected = new RowList(new ArrayList<Row>(T.rows), "dataETag-1");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    MultivaluedMapImpl<String, Object> responseHeaders = new MultivaluedMapImpl<String, Object>();
+    rw.writeTo(expected, RowList.class, RowList.class, null, null,
+        responseHeaders, out);
+    assertEquals(ApiConstants.OPEN_DATA_KIT_VERSION,
+        responseHeaders.getFirst(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER));
+
+    RowList actual = rw.readFrom(RowList.class, RowList.class, null,
+        null, new MultivaluedMapImpl(),
+        new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(expected, actual);
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @Test(expected = IOException.class)
+  public void testMalformedRequest() throws IOException {
+    SimpleJSONMessageReaderWriter<RowList> rw = new SimpleJSONMessageReaderWriter<RowList>();
+    rw.readFrom(RowList.class, RowList.class, null, null,
+        new MultivaluedMapImpl(),
+        new ByteArrayInputStream("{\"rows\": [ {".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testCredentialHeadersAreRedacted() {
+    Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+    headers.put("authorization", Arrays.asList("Basic am9objoxMjM0NTY3OA=="));
+    headers.put("Proxy-Authorization", Arrays.asList("Digest username=\"john\", response=\"abc\""));
+    headers.put("Cookie", Arrays.asList("JSESSIONID=0123456789", "other=secret"));
+    headers.put("Content-Type", Arrays.asList("application/json; charset=utf-8"));
+    StringBuilder b = new StringBuilder();
+    SimpleJSONMessageReaderWriter.appendRequestHeaders(b, headers);
+    String log = b.toString();
+
+    assertFalse(log.contains("am9objoxMjM0NTY3OA=="));
+    assertFalse(log.contains("john"));
+    assertFalse(log.contains("0123456789"));
+    assertFalse(log.contains("secret"));
+    assertTrue(log.contains("Header: authorization = Basic [redacted]"));
+    assertTrue(log.contains("Header: Proxy-Authorization = Digest [redacted]"));
+    assertTrue(log.contains("Header: Cookie = [redacted], [redacted]"));
+    assertTrue(log.contains("Header: Content-Type = application/json; charset=utf-8"));
+  }
+
+  @Test
+  public void testCaptureIsBounded() throws IOException {
+    byte[] body = new byte[10000];
+    for (int i = 0; i < body.length; ++i) {
+      body[i] = (byte) ('a' + (i % 26));
+    }
+    SimpleJSONMessageReaderWriter.PrefixCapturingInputStream in =
+        new SimpleJSONMessageReaderWriter.PrefixCapturingInputStream(
+            new ByteArrayInputStream(body), 100);
+    byte[] buf = new byte[333];
+    assertEquals('a', in.read());
+    while (in.read(buf, 0, buf.length) != -1) {
+    }
+    assertEquals(100, in.getCapturedLength());
+    assertEquals(body.length, in.getTotalLength());
+    assertEquals(new String(body, 0, 100, StandardCharsets.UTF_8), in.getCapturedText());
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables.impl.api;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class ETagUtilsTest {
+
+  private static List<String> ifNoneMatch(String... values) {
+    return (values.length == 0) ? null : Arrays.asList(values);
+  }
+
+  @Test
+  public void testToHexMatchesPaddedBigInteger() throws Exception {
+    // the form NotModifiedHandler has always produced
+    for (String s : new String[] { "", "a", "odk", "leading zero 14" }) {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] digest = md.digest(s.getBytes(StandardCharsets.UTF_8));
+      String expected = new BigInteger(1, digest).toString(16);
+      while (expected.length() < 32) {
+        expected = "0" + expected;
+      }
+      assertEquals(expected, ETagUtils.toHex(digest));
+    }
+  }
+
+  @Test
+  public void testDomainETag() {
+    String eTag = ETagUtils.domainETag("rows", "table", "schema", "data");
+    assertTrue(eTag.startsWith("rows:"));
+    assertEquals(eTag, ETagUtils.domainETag("rows", "table", "schema", "data"));
+    assertNotEquals(eTag, ETagUtils.domainETag("rows", "table", "schema", "data2"));
+    assertNotEquals(ETagUtils.domainETag("rows", "a", null),
+        ETagUtils.domainETag("rows", "a", ""));
+    assertNotEquals(ETagUtils.domainETag("rows", "ab", "c"),
+        ETagUtils.domainETag("rows", "a", "bc"));
+  }
+
+  @Test
+  public void testIfNoneMatch() {
+    String eTag = ETagUtils.domainETag("table", "t1");
+    assertFalse(ETagUtils.ifNoneMatch(ifNoneMatch(), eTag));
+    assertFalse(ETagUtils.ifNoneMatch(ifNoneMatch("md5:0000"), eTag));
+    assertTrue(ETagUtils.ifNoneMatch(ifNoneMatch(eTag), eTag));
+    assertTrue(ETagUtils.ifNoneMatch(ifNoneMatch("md5:0000, " + eTag), eTag));
+    assertTrue(ETagUtils.ifNoneMatch(ifNoneMatch("*"), eTag));
+    assertFalse(ETagUtils.ifNoneMatch(ifNoneMatch(eTag), null));
+  }
+}
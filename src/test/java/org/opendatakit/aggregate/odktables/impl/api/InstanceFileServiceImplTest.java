@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables.impl.api;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class InstanceFileServiceImplTest {
+
+  @Test
+  public void testParseUploadHeader() {
+    assertEquals(Long.valueOf(0L), InstanceFileServiceImpl.parseUploadHeader("0"));
+    assertEquals(Long.valueOf(52428800L), InstanceFileServiceImpl.parseUploadHeader(" 52428800 "));
+    assertEquals(Long.valueOf(999999999999999999L),
+        InstanceFileServiceImpl.parseUploadHeader("999999999999999999"));
+  }
+
+  @Test
+  public void testParseUploadHeaderRejectsInvalidValues() {
+    assertNull(InstanceFileServiceImpl.parseUploadHeader(null));
+    assertNull(InstanceFileServiceImpl.parseUploadHeader(""));
+    assertNull(InstanceFileServiceImpl.parseUploadHeader("-1"));
+    assertNull(InstanceFileServiceImpl.parseUploadHeader("+1"));
+    assertNull(InstanceFileServiceImpl.parseUploadHeader("1e3"));
+    assertNull(InstanceFileServiceImpl.parseUploadHeader("0x10"));
+    // would overflow a long
+    assertNull(InstanceFileServiceImpl.parseUploadHeader("9999999999999999999"));
+  }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables.impl.api.wink;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.ws.rs.core.HttpHeaders;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class ContentEncodingResponseFilterTest {
+
+  private static final int ENTITY_SIZE = 64 * 1024;
+
+  private interface Body {
+    void write(ServletResponse response) throws IOException;
+  }
+
+  private static MockHttpServletResponse filter(String acceptEncoding, final Body body)
+      throws IOException, ServletException {
+    MockHttpServletRequest req = new MockHttpServletRequest("GET", "/odktables/default/tables");
+    if (acceptEncoding != null) {
+      req.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+    }
+    MockHttpServletResponse resp = new MockHttpServletResponse();
+    new ContentEncodingResponseFilter().doFilter(req, resp, new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response)
+          throws IOException, ServletException {
+        body.write(response);
+      }
+    });
+    return resp;
+  }
+
+  private static Body streamBody(final String contentType, final byte[] entity,
+      final boolean useLong) {
+    return new Body() {
+      @Override
+      public void write(ServletResponse response) throws IOException {
+        response.setContentType(contentType);
+        if (useLong) {
+          // a Servlet 3.1 method; the build compiles against the 3.0 API
+          try {
+            response.getClass().getMethod("setContentLengthLong", long.class).invoke(response,
+                (long) entity.length);
+          } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+          }
+        } else {
+          response.setContentLength(entity.length);
+        }
+        response.getOutputStream().write(entity);
+      }
+    };
+  }
+
+  private static Body writerBody(final String text) {
+    return new Body() {
+      @Override
+      public void write(ServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter w = response.getWriter();
+        w.write(text);
+        w.flush();
+        response.flushBuffer();
+        if (text.length() < ContentEncodingResponseFilter.DEFAULT_MINIMUM_SIZE) {
+          // neither an early flush nor flushBuffer() may force the decision
+          assertFalse(response.isCommitted());
+        }
+      }
+    };
+  }
+
+  private static byte[] decode(MockHttpServletResponse resp) throws IOException {
+    byte[] wire = resp.getContentAsByteArray();
+    String encoding = resp.getHeader(HttpHeaders.CONTENT_ENCODING);
+    if (encoding == null) {
+      return wire;
+    }
+    InputStream in;
+    if ("gzip".equals(encoding)) {
+      in = new GZIPInputStream(new ByteArrayInputStream(wire));
+    } else {
+      assertEquals("deflate", encoding);
+      in = new InflaterInputStream(new ByteArrayInputStream(wire));
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = in.read(buffer)) != -1) {
+      out.write(buffer, 0, len);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] compressibleEntity() {
+    StringBuilder b = new StringBuilder();
+    int i = 0;
+    while (b.length() < ENTITY_SIZE) {
+      b.append("{\"column_").append(i % 20).append("\":\"value ").append(i++).append("\"},");
+    }
+    return b.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testGzipStream() throws Exception {
+    byte[] entity = compressibleEntity();
+    MockHttpServletResponse resp = filter("gzip", streamBody("application/json", entity, false));
+    assertEquals("gzip", resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertNull(resp.getHeader(HttpHeaders.CONTENT_LENGTH));
+    assertTrue(resp.getContentAsByteArray().length < entity.length);
+    assertArrayEquals(entity, decode(resp));
+  }
+
+  @Test
+  public void testDeflateStream() throws Exception {
+    byte[] entity = compressibleEntity();
+    MockHttpServletResponse resp = filter("deflate", streamBody("application/json", entity, false));
+    assertEquals("deflate", resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertNull(resp.getHeader(HttpHeaders.CONTENT_LENGTH));
+    assertArrayEquals(entity, decode(resp));
+  }
+
+  @Test
+  public void testContentLengthLongIsWithheldWhenEncoding() throws Exception {
+    byte[] entity = compressibleEntity();
+    MockHttpServletResponse resp = filter("gzip", streamBody("application/json", entity, true));
+    assertEquals("gzip", resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertNull(resp.getHeader(HttpHeaders.CONTENT_LENGTH));
+    assertArrayEquals(entity, decode(resp));
+
+    // and passed through when not
+    byte[] small = new byte[ContentEncodingResponseFilter.DEFAULT_MINIMUM_SIZE - 1];
+    resp = filter("gzip", streamBody("application/json", small, true));
+    assertNull(resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(Integer.toString(small.length), resp.getHeader(HttpHeaders.CONTENT_LENGTH));
+    assertArrayEquals(small, resp.getContentAsByteArray());
+  }
+
+  @Test
+  public void testWriterIsEncoded() throws Exception {
+    String text = new String(compressibleEntity(), StandardCharsets.UTF_8) + "é中";
+    MockHttpServletResponse resp = filter("gzip, deflate", writerBody(text));
+    assertEquals("gzip", resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), decode(resp));
+  }
+
+  @Test
+  public void testSmallWriterPassesThrough() throws Exception {
+    String text = "{\"ok\":true}";
+    MockHttpServletResponse resp = filter("gzip", writerBody(text));
+    assertNull(resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(text.length(), resp.getContentLength());
+    assertEquals(text, resp.getContentAsString());
+  }
+
+  @Test
+  public void testWriterAndStreamAreExclusive() throws Exception {
+    filter("gzip", new Body() {
+      @Override
+      public void write(ServletResponse response) throws IOException {
+        response.getWriter();
+        try {
+          response.getOutputStream();
+          fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+          // expected
+        }
+      }
+    });
+    filter("gzip", new Body() {
+      @Override
+      public void write(ServletResponse response) throws IOException {
+        response.getOutputStream();
+        try {
+          response.getWriter();
+          fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+          // expected
+        }
+      }
+    });
+  }
+
+  @Test
+  public void testPassThrough() throws Exception {
+    // already compressed
+    byte[] image = new byte[ENTITY_SIZE];
+    new Random(1).nextBytes(image);
+    MockHttpServletResponse resp = filter("gzip, deflate", streamBody("image/jpeg", image, false));
+    assertNull(resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(image.length, resp.getContentLength());
+    assertArrayEquals(image, resp.getContentAsByteArray());
+
+    // already encoded by the application
+    final byte[] entity = compressibleEntity();
+    resp = filter("gzip", new Body() {
+      @Override
+      public void write(ServletResponse response) throws IOException {
+        ((javax.servlet.http.HttpServletResponse) response)
+            .setHeader(HttpHeaders.CONTENT_ENCODING, "br");
+        response.getOutputStream().write(entity);
+      }
+    });
+    assertEquals("br", resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertArrayEquals(entity, resp.getContentAsByteArray());
+
+    // no Accept-Encoding
+    resp = filter(null, streamBody("application/json", entity, false));
+    assertNull(resp.getHeader(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(entity.length, resp.getContentLength());
+    assertArrayEquals(entity, resp.getContentAsByteArray());
+  }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.aggregate.odktables.relation;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.aggregate.odktables.relation.DbColumnDefinitions.DbColumnDefinitionsEntity;
+import org.opendatakit.aggregate.odktables.relation.DbTableDefinitions.DbTableDefinitionsEntity;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.common.ermodel.Entity;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.DataType;
+import org.opendatakit.common.persistence.Datastore;
+import org.opendatakit.common.persistence.PersistConsts;
+import org.opendatakit.common.persistence.engine.pgres.DatastoreImpl;
+import org.opendatakit.common.security.User;
+import org.opendatakit.common.web.CallingContext;
+
+/**
+ * Round-trips a value of every column type through the RowCodec and through
+ * the by-name getAsString/setAsString conversions of the entity that it
+ * replaces, and checks that both produce the same strings. No database is
+ * used: the relations are built against a datastore that only applies the
+ * default column dimensions and hands out empty rows.
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class RowCodecTest {
+
+  private static CallingContext cc;
+  private static List<DbColumnDefinitionsEntity> columns;
+  private static DbTable table;
+  private static DbLogTable logTable;
+  private static RowCodec codec;
+
+  // elementKey, elementType, listChildElementKeys
+  private static final String[][] COLUMNS = {
+      { "col_string", "string", null },
+      { "col_integer", "integer", null },
+      { "col_number", "number", null },
+      { "col_boolean", "boolean", null },
+      { "col_date", "date", null },
+      { "col_datetime", "dateTime", null },
+      { "col_time", "time", null },
+      { "col_rowpath", "rowpath", null },
+      { "col_configpath", "configpath", null },
+      { "col_array", "array", "[\"col_array_items\"]" },
+      { "col_array_items", "string", null },
+      { "col_geopoint", "geopoint",
+          "[\"col_geopoint_latitude\",\"col_geopoint_longitude\","
+              + "\"col_geopoint_altitude\",\"col_geopoint_accuracy\"]" },
+      { "col_geopoint_latitude", "number", null },
+      { "col_geopoint_longitude", "number", null },
+      { "col_geopoint_altitude", "number", null },
+      { "col_geopoint_accuracy", "number", null } };
+
+  // values for each retained column, in retained column order
+  private static final String[][] VALUES = {
+      { "a string", "42", "3.14159", "true", "2017-05-04", "2017-05-04T10:11:12.123456789",
+          "10:11:12.123456789", "instances/uuid_1/photo.jpg", "assets/img/logo.png",
+          "[\"x\",\"y\"]", "47.6062", "-122.3321", "56.5", "10" },
+      { "", "-9223372036854775808", "-0.000001", "false", "", "", "", "", "", "[]", "0",
+          "1E+10", "-1.5e-3", "0.0" },
+      { "ünïcødé 中文", "9223372036854775807", "123456789012345678.123456789", "TRUE", null,
+          null, null, null, null, null, null, null, null, null },
+      { null, "", "", null, null, null, null, null, null, null, null, null, null, null } };
+
+  private static final class StubContext implements InvocationHandler {
+    private final User user;
+    private final Datastore ds;
+
+    StubContext() {
+      user = (User) Proxy.newProxyInstance(User.class.getClassLoader(),
+          new Class<?>[] { User.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) {
+              if (m.getName().equals("getUriUser")) {
+                return "mailto:codec@opendatakit.org";
+              }
+              throw new UnsupportedOperationException(m.getName());
+            }
+          });
+      ds = (Datastore) Proxy.newProxyInstance(Datastore.class.getClassLoader(),
+          new Class<?>[] { Datastore.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) {
+              if (m.getName().equals("getDefaultSchemaName")) {
+                return "odk_sync";
+              } else if (m.getName().equals("assertRelation")) {
+                // the dimensions the datastore creates the columns with
+                for (DataField f : ((CommonFieldsBase) args[0]).getFieldList()) {
+                  if (f.getMaxCharLen() == null && f.getDataType() == DataType.STRING) {
+                    f.setMaxCharLen(PersistConsts.DEFAULT_MAX_STRING_LENGTH);
+                  } else if (f.getMaxCharLen() == null && f.getDataType() == DataType.URI) {
+                    f.setMaxCharLen(PersistConsts.URI_STRING_LEN);
+                  } else if (f.getNumericScale() == null && f.getDataType() == DataType.DECIMAL) {
+                    f.setNumericPrecision(DatastoreImpl.DEFAULT_DBL_NUMERIC_PRECISION);
+                    f.setNumericScale(DatastoreImpl.DEFAULT_DBL_NUMERIC_SCALE);
+                  }
+                }
+                return null;
+              } else if (m.getName().equals("createEntityUsingRelation")) {
+                return ((CommonFieldsBase) args[0]).getEmptyRow((User) args[1]);
+              }
+              throw new UnsupportedOperationException(m.getName());
+            }
+          });
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method m, Object[] args) {
+      if (m.getName().equals("getDatastore")) {
+        return ds;
+      } else if (m.getName().equals("getCurrentUser")) {
+        return user;
+      }
+      throw new UnsupportedOperationException(m.getName());
+    }
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    cc = (CallingContext) Proxy.newProxyInstance(CallingContext.class.getClassLoader(),
+        new Class<?>[] { CallingContext.class }, new StubContext());
+
+    columns = new ArrayList<DbColumnDefinitionsEntity>();
+    for (String[] c : COLUMNS) {
+      DbColumnDefinitionsEntity column = DbColumnDefinitions.createNewEntity(cc);
+      column.setTableId("row_codec_test");
+      column.setschemaETag("uuid:schema");
+      column.setElementKey(c[0]);
+      column.setElementName(c[0]);
+      column.setElementType(c[1]);
+      column.setListChildElementKeys(c[2]);
+      columns.add(column);
+    }
+    DbColumnDefinitions.markUnitOfRetention(columns);
+
+    DbTableDefinitionsEntity definition = DbTableDefinitions.createNewEntity(cc);
+    definition.setTableId("row_codec_test");
+    definition.setSchemaETag("uuid:schema");
+    definition.setDbTableName("ROW_CODEC_TEST");
+    table = DbTable.getRelation(definition, columns, cc);
+    logTable = DbLogTable.getRelation(definition, columns, cc);
+    codec = new RowCodec(columns, table, logTable);
+  }
+
+  private static List<DbColumnDefinitionsEntity> retained() {
+    List<DbColumnDefinitionsEntity> retained = new ArrayList<DbColumnDefinitionsEntity>();
+    for (DbColumnDefinitionsEntity column : columns) {
+      if (column.isUnitOfRetention()) {
+        retained.add(column);
+      }
+    }
+    return retained;
+  }
+
+  /**
+   * What EntityCreator and EntityConverter did before the RowCodec.
+   */
+  private static ArrayList<DataKeyValue> legacyRoundTrip(Entity e, String[] values) {
+    List<DbColumnDefinitionsEntity> retained = retained();
+    for (int i = 0; i < values.length; ++i) {
+      e.setAsString(retained.get(i).getElementKey().toUpperCase(), values[i]);
+    }
+    ArrayList<DataKeyValue> out = new ArrayList<DataKeyValue>();
+    for (DbColumnDefinitionsEntity column : retained) {
+      String elementKey = column.getElementKey();
+      out.add(new DataKeyValue(elementKey, e.getAsString(elementKey.toUpperCase())));
+    }
+    return out;
+  }
+
+  private static void assertSameValues(List<DataKeyValue> expected, List<DataKeyValue> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); ++i) {
+      assertEquals(expected.get(i).column, actual.get(i).column);
+      assertEquals(expected.get(i).column, expected.get(i).value, actual.get(i).value);
+    }
+  }
+
+  @Test
+  public void testRetainedColumns() {
+    List<DbColumnDefinitionsEntity> retained = retained();
+    assertEquals(VALUES[0].length, retained.size());
+    assertEquals(retained.size(), codec.getRetainedColumnCount());
+    for (int i = 0; i < retained.size(); ++i) {
+      assertEquals(i, codec.indexOf(retained.get(i).getElementKey()));
+    }
+    // the array's items are folded into its json; the geopoint is its parts
+    assertEquals(RowCodec.NOT_RETAINED, codec.indexOf("col_array_items"));
+    assertEquals(RowCodec.NOT_RETAINED, codec.indexOf("col_geopoint"));
+    assertEquals(RowCodec.UNKNOWN_COLUMN, codec.indexOf("no_such_column"));
+  }
+
+  @Test
+  public void testTableValuesMatchEntityConversions() {
+    List<DbColumnDefinitionsEntity> retained = retained();
+    for (String[] values : VALUES) {
+      ArrayList<DataKeyValue> expected = legacyRoundTrip(table.newEntity("uuid:legacy", cc),
+          values);
+
+      Entity row = table.newEntity("uuid:codec", cc);
+      for (int i = 0; i < values.length; ++i) {
+        codec.setTableValue(row, codec.indexOf(retained.get(i).getElementKey()), values[i]);
+      }
+      assertSameValues(expected, codec.getTableValues(row));
+    }
+  }
+
+  @Test
+  public void testLogTableValuesMatchEntityConversions() {
+    List<DbColumnDefinitionsEntity> retained = retained();
+    for (String[] values : VALUES) {
+      // the log entity used to get the string forms of the row's values
+      Entity legacyRow = table.newEntity("uuid:legacy", cc);
+      ArrayList<DataKeyValue> rowValues = legacyRoundTrip(legacyRow, values);
+      String[] strings = new String[rowValues.size()];
+      for (int i = 0; i < strings.length; ++i) {
+        strings[i] = rowValues.get(i).value;
+      }
+      ArrayList<DataKeyValue> expected = legacyRoundTrip(logTable.newEntity("uuid:legacy", cc),
+          strings);
+
+      Entity row = table.newEntity("uuid:codec", cc);
+      for (int i = 0; i < values.length; ++i) {
+        codec.setTableValue(row, i, values[i]);
+      }
+      Entity logEntity = logTable.newEntity("uuid:codec", cc);
+      codec.copyTableValuesToLogTable(row, logEntity);
+      assertSameValues(expected, codec.getLogTableValues(logEntity));
+    }
+  }
+
+  @Test
+  public void testUnparsableValuesAreRejectedAlike() {
+    int integerIndex = codec.indexOf("col_integer");
+    int numberIndex = codec.indexOf("col_number");
+    String[][] bad = { { "col_integer", "4.2" }, { "col_integer", "forty-two" },
+        { "col_number", "3,14" } };
+    for (String[] b : bad) {
+      try {
+        table.newEntity("uuid:legacy", cc).setAsString(b[0].toUpperCase(), b[1]);
+        fail("expected IllegalArgumentException from setAsString for " + b[1]);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      try {
+        codec.setTableValue(table.newEntity("uuid:codec", cc),
+            b[0].equals("col_integer") ? integerIndex : numberIndex, b[1]);
+        fail("expected IllegalArgumentException from the codec for " + b[1]);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.ermodel;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.common.persistence.exception.ODKDatastoreException;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class ReadOnlyEntityTest {
+
+  private static final Date CREATED = new Date(1500000000000L);
+
+  private static int writes = 0;
+
+  private static Entity stubEntity() {
+    return (Entity) Proxy.newProxyInstance(Entity.class.getClassLoader(),
+        new Class<?>[] { Entity.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getId")) {
+              return "uuid:1";
+            } else if (name.equals("getString")) {
+              return "value";
+            } else if (name.equals("getCreationDate") || name.equals("getDate")) {
+              return CREATED;
+            } else if (name.equals("isFromDatabase")) {
+              return true;
+            }
+            ++writes;
+            return null;
+          }
+        });
+  }
+
+  @Test
+  public void testReadsDelegate() {
+    Entity e = ReadOnlyEntity.of(stubEntity());
+    assertEquals("uuid:1", e.getId());
+    assertEquals("value", e.getString("NAME"));
+    assertTrue(e.isFromDatabase());
+    assertSame(e, ReadOnlyEntity.of(e));
+  }
+
+  @Test
+  public void testDatesAreCopies() {
+    Entity e = ReadOnlyEntity.of(stubEntity());
+    e.getCreationDate().setTime(0L);
+    e.getDate("WHEN").setTime(0L);
+    assertEquals(1500000000000L, e.getCreationDate().getTime());
+    assertEquals(1500000000000L, e.getDate("WHEN").getTime());
+  }
+
+  @Test
+  public void testWritesThrow() throws ODKDatastoreException {
+    Entity e = ReadOnlyEntity.of(stubEntity());
+    writes = 0;
+    try {
+      e.set("NAME", "other");
+      fail("set should throw");
+    } catch (UnsupportedOperationException ex) {
+      // expected
+    }
+    try {
+      e.setAsString("NAME", "other");
+      fail("setAsString should throw");
+    } catch (UnsupportedOperationException ex) {
+      // expected
+    }
+    try {
+      e.put(null);
+      fail("put should throw");
+    } catch (UnsupportedOperationException ex) {
+      // expected
+    }
+    try {
+      e.delete(null);
+      fail("delete should throw");
+    } catch (UnsupportedOperationException ex) {
+      // expected
+    }
+    assertEquals(0, writes);
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.blob;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class FileSystemBlobStoreTest {
+
+  private Path root;
+  private FileSystemBlobStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    root = Files.createTempDirectory("blobstore-test");
+    store = new FileSystemBlobStore();
+    store.setRootDirectory(root.toString());
+    store.afterPropertiesSet();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    store.deleteAll("odk/");
+    Files.deleteIfExists(root);
+  }
+
+  private static byte[] content(int length, int seed) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; ++i) {
+      b[i] = (byte) (i * 31 + seed);
+    }
+    return b;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1000];
+    int len;
+    while ((len = in.read(buf)) >= 0) {
+      out.write(buf, 0, len);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testPutGetDelete() throws IOException {
+    byte[] v1 = content(200000, 1);
+    String key = "odk/_table_ref/0123456789abcdef";
+    assertEquals(v1.length, store.put(key, new ByteArrayInputStream(v1)));
+    assertTrue(Files.isRegularFile(root.resolve("odk/_table_ref/01/23/0123456789abcdef")));
+    assertArrayEquals(v1, readAll(store.get(key)));
+
+    // replace
+    byte[] v2 = content(10, 2);
+    assertEquals(v2.length, store.put(key, new ByteArrayInputStream(v2)));
+    assertArrayEquals(v2, readAll(store.get(key)));
+
+    // no temporary files are left behind
+    try (Stream<Path> files = Files.list(root.resolve("odk/_table_ref/01/23"))) {
+      assertEquals(1L, files.count());
+    }
+
+    store.delete(key);
+    store.delete(key);
+    try {
+      store.get(key);
+      fail("expected FileNotFoundException");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testTransferTo() throws IOException {
+    byte[] v = content(300001, 3);
+    store.put("odk/t/abcdef", new ByteArrayInputStream(v));
+    BlobInputStream in = store.get("odk/t/abcdef");
+    assertEquals(5, in.read(new byte[5]));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(v.length - 5, in.transferTo(out));
+    assertEquals(-1, in.read());
+    in.close();
+    byte[] expected = new byte[v.length - 5];
+    System.arraycopy(v, 5, expected, 0, expected.length);
+    assertArrayEquals(expected, out.toByteArray());
+  }
+
+  @Test
+  public void testDeleteAll() throws IOException {
+    store.put("odk/a/11112222", new ByteArrayInputStream(content(10, 4)));
+    store.put("odk/a/33334444", new ByteArrayInputStream(content(10, 5)));
+    store.put("odk/b/55556666", new ByteArrayInputStream(content(10, 6)));
+    store.deleteAll("odk/a/");
+    assertFalse(Files.exists(root.resolve("odk/a")));
+    assertArrayEquals(content(10, 6), readAll(store.get("odk/b/55556666")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsTraversal() throws IOException {
+    store.put("odk/../../etc/passwd", new ByteArrayInputStream(new byte[1]));
+  }
+}
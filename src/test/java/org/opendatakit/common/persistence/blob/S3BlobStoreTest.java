@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.blob;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exercises S3BlobStore against a minimal in-process stand-in for an
+ * S3-compatible server (PUT, GET, DELETE and ListObjectsV2 on one bucket).
+ *
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class S3BlobStoreTest {
+
+  private static final String BUCKET = "odk-blobs";
+  private static final int PAGE_SIZE = 2;
+
+  private HttpServer server;
+  private final TreeMap<String, byte[]> objects = new TreeMap<String, byte[]>();
+  private final List<String> failures = new ArrayList<String>();
+  private S3BlobStore store;
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int len;
+    while ((len = in.read(buf)) >= 0) {
+      out.write(buf, 0, len);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+    Map<String, String> query = new HashMap<String, String>();
+    if (rawQuery != null) {
+      for (String term : rawQuery.split("&")) {
+        int idx = term.indexOf('=');
+        query.put(URLDecoder.decode(term.substring(0, idx), "UTF-8"),
+            URLDecoder.decode(term.substring(idx + 1), "UTF-8"));
+      }
+    }
+    return query;
+  }
+
+  private void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(status, (body == null) ? -1 : body.length);
+    if (body != null) {
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+    }
+    exchange.close();
+  }
+
+  private class StandIn implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      String method = exchange.getRequestMethod();
+      String auth = exchange.getRequestHeaders().getFirst("Authorization");
+      if (auth == null || !auth.startsWith("AWS4-HMAC-SHA256 Credential=ACCESS/")
+          || !auth.contains("SignedHeaders=host;x-amz-content-sha256;x-amz-date")) {
+        failures.add("bad Authorization header: " + auth);
+      }
+      byte[] body = readAll(exchange.getRequestBody());
+      try {
+        String expected = S3BlobStore
+            .toHex(MessageDigest.getInstance("SHA-256").digest(body));
+        if (!expected.equals(exchange.getRequestHeaders().getFirst("x-amz-content-sha256"))) {
+          failures.add("payload hash mismatch on " + method);
+        }
+      } catch (Exception e) {
+        failures.add(e.toString());
+      }
+
+      String path = exchange.getRequestURI().getPath();
+      String bucketPath = "/" + BUCKET;
+      if (path.equals(bucketPath) && method.equals("GET")) {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String prefix = query.get("prefix");
+        int start = query.containsKey("continuation-token")
+            ? Integer.parseInt(query.get("continuation-token")) : 0;
+        List<String> keys = new ArrayList<String>();
+        for (String key : objects.keySet()) {
+          if (key.startsWith(prefix)) {
+            keys.add(key);
+          }
+        }
+        StringBuilder b = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        int end = Math.min(keys.size(), start + PAGE_SIZE);
+        for (int i = start; i < end; ++i) {
+          b.append("<Contents><Key>").append(keys.get(i)).append("</Key></Contents>");
+        }
+        b.append("<IsTruncated>").append(end < keys.size()).append("</IsTruncated>");
+        if (end < keys.size()) {
+          b.append("<NextContinuationToken>").append(end).append("</NextContinuationToken>");
+        }
+        b.append("</ListBucketResult>");
+        respond(exchange, 200, b.toString().getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      if (!path.startsWith(bucketPath + "/")) {
+        respond(exchange, 400, null);
+        return;
+      }
+      String key = path.substring(bucketPath.length() + 1);
+      if (method.equals("PUT")) {
+        objects.put(key, body);
+        respond(exchange, 200, null);
+      } else if (method.equals("GET")) {
+        byte[] content = objects.get(key);
+        if (content == null) {
+          respond(exchange, 404,
+              "<Error><Code>NoSuchKey</Code></Error>".getBytes(StandardCharsets.UTF_8));
+        } else {
+          respond(exchange, 200, content);
+        }
+      } else if (method.equals("DELETE")) {
+        objects.remove(key);
+        respond(exchange, 204, null);
+      } else {
+        respond(exchange, 405, null);
+      }
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new StandIn());
+    server.start();
+    store = new S3BlobStore();
+    store.setEndpoint("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    store.setBucket(BUCKET);
+    store.setAccessKey("ACCESS");
+    store.setSecretKey("SECRET");
+    store.setKeyPrefix("server1/");
+    store.afterPropertiesSet();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testPutGetDelete() throws IOException {
+    byte[] v = new byte[100000];
+    for (int i = 0; i < v.length; ++i) {
+      v[i] = (byte) i;
+    }
+    assertEquals(v.length, store.put("odk/_t_ref/abcd1234", new ByteArrayInputStream(v)));
+    assertTrue(objects.containsKey("server1/odk/_t_ref/abcd1234"));
+
+    BlobInputStream in = store.get("odk/_t_ref/abcd1234");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(v.length, in.transferTo(out));
+    in.close();
+    assertArrayEquals(v, out.toByteArray());
+
+    store.delete("odk/_t_ref/abcd1234");
+    store.delete("odk/_t_ref/abcd1234");
+    try {
+      store.get("odk/_t_ref/abcd1234");
+      fail("expected FileNotFoundException");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+    assertEquals(failures.toString(), 0, failures.size());
+  }
+
+  @Test
+  public void testDeleteAllAcrossListingPages() throws IOException {
+    for (int i = 0; i < 5; ++i) {
+      store.put("odk/a/id" + i, new ByteArrayInputStream(new byte[] { (byte) i }));
+    }
+    store.put("odk/b/id0", new ByteArrayInputStream(new byte[] { 9 }));
+    store.deleteAll("odk/a/");
+    assertEquals(1, objects.size());
+    assertTrue(objects.containsKey("server1/odk/b/id0"));
+    assertEquals(failures.toString(), 0, failures.size());
+  }
+
+  @Test
+  public void testUriEncode() {
+    assertEquals("a/b%20c/%257E~", S3BlobStore.uriEncode("a/b c/%7E~", false));
+    assertEquals("a%2Fb", S3BlobStore.uriEncode("a/b", true));
+    assertEquals("%C3%A9", S3BlobStore.uriEncode("é", true));
+  }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class CompositeIndexBuilderTest {
+
+  @Test
+  public void testBuildIsNotQueuedTwice() throws InterruptedException {
+    CompositeIndexBuilder builder = new CompositeIndexBuilder("test");
+    try {
+      final CountDownLatch started = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final AtomicInteger builds = new AtomicInteger(0);
+      Runnable build = new Runnable() {
+        @Override
+        public void run() {
+          builds.incrementAndGet();
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+
+      assertTrue(builder.submit("s.t.idx", build));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      // still running
+      assertFalse(builder.submit("s.t.idx", build));
+      assertEquals(1, builder.getPendingCount());
+
+      release.countDown();
+      waitForIdle(builder);
+      assertEquals(1, builds.get());
+
+      // once finished, it can be queued again
+      assertTrue(builder.submit("s.t.idx", build));
+      waitForIdle(builder);
+      assertEquals(2, builds.get());
+    } finally {
+      builder.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailedBuildDoesNotStopLaterBuilds() throws InterruptedException {
+    CompositeIndexBuilder builder = new CompositeIndexBuilder("test");
+    try {
+      final CountDownLatch built = new CountDownLatch(1);
+      assertTrue(builder.submit("s.t.bad", new Runnable() {
+        @Override
+        public void run() {
+          throw new IllegalStateException("index build failed");
+        }
+      }));
+      assertTrue(builder.submit("s.t.good", new Runnable() {
+        @Override
+        public void run() {
+          built.countDown();
+        }
+      }));
+      assertTrue(built.await(5, TimeUnit.SECONDS));
+      waitForIdle(builder);
+    } finally {
+      builder.shutdown();
+    }
+  }
+
+  @Test
+  public void testNothingIsQueuedAfterShutdown() {
+    CompositeIndexBuilder builder = new CompositeIndexBuilder("test");
+    builder.shutdown();
+    assertFalse(builder.submit("s.t.idx", new Runnable() {
+      @Override
+      public void run() {
+      }
+    }));
+    assertEquals(0, builder.getPendingCount());
+  }
+
+  private static void waitForIdle(CompositeIndexBuilder builder) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (builder.getPendingCount() != 0) {
+      assertTrue("builds still pending", System.currentTimeMillis() < deadline);
+      Thread.sleep(10L);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.common.persistence.engine.DatastoreAccessMetrics.Operation;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class DatastoreAccessMetricsTest {
+
+  @Test
+  public void testConcurrentCounts() throws InterruptedException {
+    final DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+    try {
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < 8; ++t) {
+        Thread thread = new Thread() {
+          @Override
+          public void run() {
+            for (int i = 0; i < 1000; ++i) {
+              dam.recordQueryUsage("s.TABLE_" + (i % 3), 2);
+              dam.recordPutUsage("s.TABLE_0");
+            }
+          }
+        };
+        threads.add(thread);
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertEquals(8000L, dam.getTotalQueryCount());
+      assertEquals(16000L, dam.getTotalQueryResultCount());
+      assertEquals(8000L, dam.getPutCount("s.TABLE_0"));
+      assertEquals(0L, dam.getPutCount("s.TABLE_1"));
+      assertEquals(0L, dam.getDeleteCount("s.UNKNOWN"));
+      assertArrayEquals(new String[] { "s.TABLE_0", "s.TABLE_1", "s.TABLE_2" },
+          dam.getTableNames());
+    } finally {
+      dam.unregister();
+    }
+  }
+
+  @Test
+  public void testPrometheusText() throws Exception {
+    DatastoreAccessMetrics dam = new DatastoreAccessMetrics();
+    try {
+      dam.recordQueryUsage("s.T\"1", 5);
+      dam.recordLatency("s.T\"1", Operation.QUERY, System.nanoTime());
+      dam.recordDeleteUsage("s.T\"1");
+
+      StringBuilder b = new StringBuilder();
+      dam.writePrometheusSamples(b);
+      String text = b.toString();
+      assertTrue(text.contains("odk_datastore_queries_total{engine=\"unknown\",table=\"s.T\\\"1\"} 1\n"));
+      assertTrue(text.contains("odk_datastore_query_rows_total{engine=\"unknown\",table=\"s.T\\\"1\"} 5\n"));
+      assertTrue(text.contains("odk_datastore_deletes_total{engine=\"unknown\",table=\"s.T\\\"1\"} 1\n"));
+      assertTrue(text.contains("odk_datastore_operation_duration_seconds_bucket{engine=\"unknown\","
+          + "table=\"s.T\\\"1\",operation=\"query\",le=\"+Inf\"} 1\n"));
+      assertTrue(text.contains("odk_datastore_operation_duration_seconds_count{engine=\"unknown\","
+          + "table=\"s.T\\\"1\",operation=\"query\"} 1\n"));
+      // no deletes were timed
+      assertFalse(text.contains("operation=\"delete\""));
+
+      b.setLength(0);
+      DatastoreAccessMetrics.writePrometheusHeaders(b);
+      assertTrue(b.toString().contains("# TYPE odk_datastore_operation_duration_seconds histogram\n"));
+    } finally {
+      dam.unregister();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class QueryTraceTest {
+
+  @Test
+  public void testFingerprint() {
+    assertEquals("SELECT * FROM \"s\".\"T\" WHERE \"_URI\" IN ( ? ) LIMIT ?;",
+        QueryTrace.fingerprint("SELECT * FROM \"s\".\"T\"\n WHERE \"_URI\" IN ( ?, ?,? )  LIMIT 101;"));
+    assertEquals("SELECT * FROM T WHERE A = ? AND B = ?",
+        QueryTrace.fingerprint("SELECT * FROM T WHERE A = 'it''s' AND B = 2.5"));
+    // digits within identifiers are preserved
+    assertEquals("SELECT COL_2 FROM T1", QueryTrace.fingerprint("SELECT COL_2 FROM T1"));
+  }
+
+  @Test
+  public void testPerRequestTally() {
+    assertNull(QueryTrace.getCurrent());
+    // not traced
+    QueryTrace.recordStatement("SELECT 1", 0, 1, 1, System.nanoTime());
+
+    QueryTrace trace = QueryTrace.begin("GET /test");
+    try {
+      for (int i = 0; i < 3; ++i) {
+        QueryTrace.recordStatement("SELECT * FROM T WHERE ID = " + i, 0, 5, 2, System.nanoTime());
+      }
+      QueryTrace.recordStatement("DELETE FROM T WHERE ID IN (?,?)", 2, 2, 2, System.nanoTime());
+      assertSame(trace, QueryTrace.getCurrent());
+    } finally {
+      assertSame(trace, QueryTrace.end());
+    }
+    assertNull(QueryTrace.getCurrent());
+
+    assertEquals(4, trace.getStatementCount());
+    assertEquals(17L, trace.getRowsRead());
+    assertEquals(8L, trace.getRowsReturned());
+    assertEquals(2, trace.getStatements().size());
+    assertEquals(3, trace.getStatements().get("SELECT * FROM T WHERE ID = ?").getCount());
+    assertEquals(1, trace.getStatements().get("DELETE FROM T WHERE ID IN (?)").getCount());
+  }
+}
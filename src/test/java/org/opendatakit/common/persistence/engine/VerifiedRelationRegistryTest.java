@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.persistence.engine;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opendatakit.common.persistence.CommonFieldsBase;
+import org.opendatakit.common.persistence.CompositeIndex;
+import org.opendatakit.common.persistence.DataField;
+import org.opendatakit.common.persistence.DataField.DataType;
+import org.opendatakit.common.security.User;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class VerifiedRelationRegistryTest {
+
+  private static final String SCHEMA = "odk_sync";
+
+  private static final class TestRelation extends CommonFieldsBase {
+    final DataField name;
+    final DataField amount;
+
+    TestRelation(String tableName, boolean withAmount, CompositeIndex... indexes) {
+      super(SCHEMA, tableName);
+      fieldList.add(name = new DataField("NAME", DataType.STRING, true, 80L));
+      if (withAmount) {
+        fieldList.add(amount = new DataField("AMOUNT", DataType.DECIMAL, true));
+      } else {
+        amount = null;
+      }
+      for (CompositeIndex index : indexes) {
+        indexList.add(index);
+      }
+    }
+
+    @Override
+    public CommonFieldsBase getEmptyRow(User user) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  @Test
+  public void testMissThenHitAppliesCatalogDimensions() {
+    VerifiedRelationRegistry registry = new VerifiedRelationRegistry();
+
+    TestRelation first = new TestRelation("T", true);
+    assertFalse(registry.applyIfVerified(first));
+    assertEquals(0L, registry.getHitCount());
+    assertEquals(1L, registry.getMissCount());
+
+    // as if updated from the database catalog
+    first.name.setMaxCharLen(255L);
+    first.amount.setNumericPrecision(38);
+    first.amount.setNumericScale(8);
+    registry.recordVerified(first);
+    assertTrue(registry.isKnownToExist(SCHEMA, "T"));
+
+    // a later prototype declares the defaults and picks up the catalog's
+    TestRelation second = new TestRelation("T", true);
+    assertTrue(registry.applyIfVerified(second));
+    assertEquals(Long.valueOf(255L), second.name.getMaxCharLen());
+    assertEquals(Integer.valueOf(38), second.amount.getNumericPrecision());
+    assertEquals(Integer.valueOf(8), second.amount.getNumericScale());
+    assertEquals(1L, registry.getHitCount());
+    assertEquals(1L, registry.getMissCount());
+  }
+
+  @Test
+  public void testDifferentFieldsOrIndexesAreVerifiedAfresh() {
+    VerifiedRelationRegistry registry = new VerifiedRelationRegistry();
+    registry.recordVerified(new TestRelation("T", true));
+
+    assertFalse(registry.applyIfVerified(new TestRelation("T", false)));
+    assertFalse(registry.applyIfVerified(new TestRelation("T", true,
+        new CompositeIndex("nm", "NAME"))));
+    assertFalse(registry.applyIfVerified(new TestRelation("U", true)));
+    assertEquals(0L, registry.getHitCount());
+    assertEquals(3L, registry.getMissCount());
+
+    // the table itself is known to exist whatever the prototype
+    assertTrue(registry.isKnownToExist(SCHEMA, "T"));
+    assertFalse(registry.isKnownToExist(SCHEMA, "U"));
+    assertFalse(registry.isKnownToExist("other", "T"));
+  }
+
+  @Test
+  public void testInvalidateForgetsOnlyThatTable() {
+    VerifiedRelationRegistry registry = new VerifiedRelationRegistry();
+    registry.recordVerified(new TestRelation("T", true));
+    registry.recordVerified(new TestRelation("T", false));
+    registry.recordVerified(new TestRelation("T2", true));
+    registry.recordExists(SCHEMA, "V");
+
+    registry.invalidate(SCHEMA, "T");
+
+    assertFalse(registry.isKnownToExist(SCHEMA, "T"));
+    assertFalse(registry.applyIfVerified(new TestRelation("T", true)));
+    assertFalse(registry.applyIfVerified(new TestRelation("T", false)));
+    // a table whose name starts with the dropped table's is unaffected
+    assertTrue(registry.isKnownToExist(SCHEMA, "T2"));
+    assertTrue(registry.applyIfVerified(new TestRelation("T2", true)));
+    assertTrue(registry.isKnownToExist(SCHEMA, "V"));
+  }
+
+  @Test
+  public void testRecordExistsDoesNotVerify() {
+    VerifiedRelationRegistry registry = new VerifiedRelationRegistry();
+    assertFalse(registry.isKnownToExist(SCHEMA, "T"));
+    registry.recordExists(SCHEMA, "T");
+    assertTrue(registry.isKnownToExist(SCHEMA, "T"));
+    assertFalse(registry.applyIfVerified(new TestRelation("T", true)));
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2017 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.common.utils;
+
+import static org.junit.Assert.*;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * @author mitchellsundt@gmail.com
+ *
+ */
+@RunWith(org.junit.runners.JUnit4.class)
+public class DateCodecTest {
+
+  private static SimpleDateFormat iso8601() {
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return sdf;
+  }
+
+  @Test
+  public void testMatchesSimpleDateFormat() {
+    SimpleDateFormat sdf = iso8601();
+    Random r = new Random(20170304L);
+    long min = DateCodecTest.parse(sdf, "1600-01-01T00:00:00.000+0000").getTime();
+    long max = DateCodecTest.parse(sdf, "9999-12-31T23:59:59.999+0000").getTime();
+    long[] edges = { min, max, 0L, -1L, 1L, 951782400000L, 951868799999L, 4107542400000L };
+    for (long t : edges) {
+      Date d = new Date(t);
+      assertEquals(sdf.format(d), DateCodec.formatIso8601(d));
+      assertEquals(d, DateCodec.parseIso8601(sdf.format(d)));
+    }
+    for (int i = 0; i < 20000; ++i) {
+      Date d = new Date(min + (long) (r.nextDouble() * (max - min)));
+      String expected = sdf.format(d);
+      assertEquals(expected, DateCodec.formatIso8601(d));
+      assertEquals(d, DateCodec.parseIso8601(expected));
+    }
+  }
+
+  @Test
+  public void testZoneOffsets() {
+    SimpleDateFormat sdf = iso8601();
+    for (String value : new String[] { "2017-03-04T05:06:07.123-0800",
+        "2017-03-04T05:06:07.123+0530", "2016-02-29T23:59:59.999+2359",
+        "2016-03-01T00:00:00.000-2359" }) {
+      assertEquals(value, parse(sdf, value), DateCodec.parseIso8601(value));
+      assertEquals(value, parse(sdf, value), WebUtils.parseDate(value));
+    }
+  }
+
+  @Test
+  public void testOutsideFastPath() {
+    // left to the SimpleDateFormat cascade in WebUtils
+    String[] values = { null, "", "2017-03-04", "2017-03-04T05:06:07.123Z",
+        "2017-03-04T05:06:07.123+00:00", "2017-03-04T05:06:07.123+0000 ",
+        "2017-13-04T05:06:07.123+0000", "2017-02-29T05:06:07.123+0000",
+        "2017-03-04T24:06:07.123+0000", "2017-03-04T05:06:60.123+0000",
+        "1582-10-04T05:06:07.123+0000", "2017-03-04T05:06:07.1a3+0000",
+        "2017-03-04 05:06:07.123+0000" };
+    for (String value : values) {
+      assertNull(value, DateCodec.parseIso8601(value));
+    }
+    Date julian = parse(iso8601(), "1500-06-01T00:00:00.000+0000");
+    assertNull(DateCodec.formatIso8601(julian));
+    assertEquals(iso8601().format(julian), WebUtils.iso8601Date(julian));
+  }
+
+  @Test
+  public void testWebUtilsRoundTrip() {
+    Date d = new Date(1488603967123L);
+    assertEquals("2017-03-04T05:06:07.123+0000", WebUtils.iso8601Date(d));
+    assertEquals(d, WebUtils.parseDate(WebUtils.iso8601Date(d)));
+  }
+
+  private static Date parse(SimpleDateFormat sdf, String value) {
+    ParsePosition pos = new ParsePosition(0);
+    Date d = sdf.parse(value, pos);
+    assertEquals(value.length(), pos.getIndex());
+    return d;
+  }
+}